@@ -0,0 +1,119 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import java.util.logging.Logger;
+
+/**
+ * Chooses the page size for paged ldap searches, based on how long recent
+ * pages took to arrive and how large their entries were. Fast pages make
+ * the page size grow, to save round trips; slow pages, or pages that would
+ * hold too much data in memory, make it shrink.
+ * <p>
+ * The page size never exceeds the server's limit. The limit may be set from
+ * what the server advertises, or learned when the server returns a short
+ * page that is not the last one. Instances are thread-safe, so they can be
+ * shared by concurrent searches.
+ */
+public class AdaptivePageSize {
+  private static final Logger LOG = Logger.getLogger(AdaptivePageSize.class.getName());
+
+  /** The smallest page size that will be chosen. */
+  public static final int MIN_PAGE_SIZE = 100;
+
+  /** The largest page size that will be chosen, if the server allows it. */
+  public static final int MAX_PAGE_SIZE = 10000;
+
+  /** Pages that take longer than this to arrive make the page size shrink. */
+  static final long SLOW_PAGE_MILLIS = 2000;
+
+  /** Pages that arrive faster than this make the page size grow. */
+  static final long FAST_PAGE_MILLIS = 500;
+
+  /** The most characters of attribute values to receive in one page. */
+  static final long MAX_PAGE_CHARS = 8L * 1024 * 1024;
+
+  private final int minPageSize;
+  private int maxPageSize;
+  private int pageSize;
+
+  /**
+   * @param initialPageSize the page size to start with
+   */
+  public AdaptivePageSize(int initialPageSize) {
+    this.minPageSize = Math.min(MIN_PAGE_SIZE, initialPageSize);
+    this.maxPageSize = Math.max(MAX_PAGE_SIZE, initialPageSize);
+    this.pageSize = initialPageSize;
+  }
+
+  /** Returns the page size to request next. */
+  public synchronized int get() {
+    return pageSize;
+  }
+
+  /**
+   * Sets the largest page size the server will return.
+   */
+  public synchronized void setServerLimit(int limit) {
+    if (limit > 0 && limit < maxPageSize) {
+      LOG.info("Limiting the ldap page size to " + limit);
+      maxPageSize = limit;
+      pageSize = bound(pageSize);
+    }
+  }
+
+  /**
+   * Records the result of a page.
+   *
+   * @param requested the page size that was requested
+   * @param returned the number of entries returned
+   * @param millis the time spent waiting for the page
+   * @param chars the number of characters in the page's attribute values
+   * @param morePages true if the server has more pages
+   */
+  public synchronized void record(int requested, int returned, long millis, long chars,
+      boolean morePages) {
+    if (returned == 0 || !morePages) {
+      // An empty or last page says nothing about the server's speed.
+      return;
+    }
+    if (returned < requested) {
+      // A short page that is not the last one means the server caps the
+      // page size.
+      setServerLimit(returned);
+      return;
+    }
+    int next = pageSize;
+    if (millis > SLOW_PAGE_MILLIS) {
+      next = pageSize / 2;
+    } else if (millis < FAST_PAGE_MILLIS) {
+      next = pageSize * 2;
+    }
+    long charsPerEntry = chars / returned;
+    if (charsPerEntry > 0) {
+      next = (int) Math.min(next, MAX_PAGE_CHARS / charsPerEntry);
+    }
+    next = bound(next);
+    if (next != pageSize) {
+      LOG.fine("Changing the ldap page size from " + pageSize + " to " + next
+          + " after a page of " + returned + " entries took " + millis + " ms");
+      pageSize = next;
+    }
+  }
+
+  private int bound(int size) {
+    return Math.max(Math.min(size, maxPageSize), Math.min(minPageSize, maxPageSize));
+  }
+}
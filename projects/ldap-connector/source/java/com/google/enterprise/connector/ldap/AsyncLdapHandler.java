@@ -0,0 +1,349 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.enterprise.connector.ldap.LdapConstants.EngineType;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapConstants.Method;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link LdapHandlerI} that runs its searches on an {@link LdapEngine}.
+ * The results stream from the engine's threads straight into an
+ * {@link ExternalEntrySorter}, so partitioned searches need no thread of
+ * their own here. This handler does full traversals only; the incremental
+ * and two-phase modes, server-side sorting and adaptive paging are
+ * available from {@link LdapHandler}, which remains the default.
+ */
+public class AsyncLdapHandler implements LdapHandlerI {
+  private static final Logger LOG = Logger.getLogger(AsyncLdapHandler.class.getName());
+
+  private LdapConnectionSettings ldapConnectionSettings = null;
+  private LdapEngine engine = null;
+  private final boolean ownEngine;
+  private final EngineType engineType;
+  private Map<LdapConnectionError, Throwable> errors = null;
+  private LdapRule rule = null;
+  private Set<String> schema = null;
+  private String schemaKey = null;
+  private int maxResults = 0;
+  private String ldapConnectionTimeout = "-1";
+  private File sortDirectory = null;
+  private int sortBufferSize = ExternalEntrySorter.DEFAULT_BUFFER_SIZE;
+  private int partitions = 1;
+  private String partitionAttribute = null;
+  private int pageSize = LdapHandler.DEFAULT_PAGE_SIZE;
+
+  /** Creates a handler that makes a {@link JndiLdapEngine} for its settings. */
+  public AsyncLdapHandler() {
+    this(EngineType.ASYNC);
+  }
+
+  /**
+   * Creates a handler that makes an engine of the given type for its
+   * settings.
+   */
+  public AsyncLdapHandler(EngineType engineType) {
+    this.engineType = engineType;
+    this.ownEngine = true;
+  }
+
+  /** Creates a handler that uses the given engine, whatever its settings. */
+  @VisibleForTesting
+  AsyncLdapHandler(LdapEngine engine) {
+    this.engine = engine;
+    this.engineType = null;
+    this.ownEngine = false;
+  }
+
+  /**
+   * Convenience routine for setting up an AsyncLdapHandler from an
+   * LdapConnectorConfig. This is expected to be called by Spring, for a
+   * production instance.
+   */
+  public static LdapHandlerI makeLdapHandlerFromConfig(LdapConnectorConfig ldapConnectorConfig) {
+    AsyncLdapHandler ldapHandler = new AsyncLdapHandler(ldapConnectorConfig.getEngine());
+    ldapHandler.setLdapConnectionSettings(ldapConnectorConfig.getSettings());
+    ldapHandler.setQueryParameters(ldapConnectorConfig.getRule(),
+        ldapConnectorConfig.getSchema(), ldapConnectorConfig.getSchemaKey(), 0);
+    String workdir = ldapConnectorConfig.getWorkdir();
+    if (workdir != null) {
+      ldapHandler.setSortDirectory(new File(workdir, "sort"));
+    }
+    ldapHandler.setSortBufferSize(ldapConnectorConfig.getSortBufferSize());
+    ldapHandler.setPartitions(ldapConnectorConfig.getPartitions());
+    ldapHandler.setPartitionAttribute(ldapConnectorConfig.getPartitionAttribute());
+    ldapHandler.setPageSize(ldapConnectorConfig.getPageSize());
+    return ldapHandler;
+  }
+
+  @Override
+  public void setLdapConnectionSettings(LdapConnectionSettings ldapConnectionSettings) {
+    this.ldapConnectionSettings = ldapConnectionSettings;
+    LOG.fine("settings " + ldapConnectionSettings);
+    if (ownEngine) {
+      if (engine != null) {
+        engine.close();
+      }
+      engine = makeEngine();
+    }
+    errors = engine.checkConnection();
+  }
+
+  private LdapEngine makeEngine() {
+    if (engineType == EngineType.NIO) {
+      if (ldapConnectionSettings == null
+          || ldapConnectionSettings.getConnectMethod() != Method.SSL) {
+        return new NioLdapEngine(ldapConnectionSettings, ldapConnectionTimeout);
+      }
+      LOG.warning("The nio engine does not support SSL; using the jndi engine instead");
+    }
+    return new JndiLdapEngine(ldapConnectionSettings, ldapConnectionTimeout);
+  }
+
+  @Override
+  public void setQueryParameters(LdapRule rule, Set<String> schema, String schemaKey,
+      int maxResults) {
+    this.rule = rule;
+    this.schemaKey = schemaKey;
+    if (schema == null) {
+      this.schema = null;
+    } else {
+      this.schema = Sets.newHashSet();
+      for (String attribute : schema) {
+        this.schema.add(attribute.toLowerCase());
+      }
+    }
+    this.maxResults = maxResults;
+  }
+
+  @Override
+  public Map<LdapConnectionError, Throwable> getErrors() {
+    if (errors != null) {
+      return errors;
+    }
+    throw new IllegalStateException(
+        "Must successfully set connection config before getting error state");
+  }
+
+  /**
+   * Sets the directory used to sort large result sets on disk. If this is
+   * not set, the system temporary directory is used.
+   */
+  public void setSortDirectory(File sortDirectory) {
+    this.sortDirectory = sortDirectory;
+  }
+
+  /** Sets the most results to hold in memory while sorting. */
+  public void setSortBufferSize(int sortBufferSize) {
+    this.sortBufferSize = sortBufferSize;
+  }
+
+  /**
+   * Sets the number of partitions to search concurrently. The default is
+   * one, which searches the rule's filter alone.
+   */
+  public void setPartitions(int partitions) {
+    this.partitions = partitions;
+  }
+
+  /**
+   * Sets the attribute whose leading characters divide the entries into
+   * partitions, as for {@link LdapHandler#setPartitionAttribute}.
+   */
+  public void setPartitionAttribute(String partitionAttribute) {
+    this.partitionAttribute = partitionAttribute;
+  }
+
+  /** Sets the number of results requested in each page. */
+  public void setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public Map<String, Multimap<String, String>> get() {
+    SortedMap<String, Multimap<String, String>> result =
+        new TreeMap<String, Multimap<String, String>>();
+    Iterator<Entry<String, Multimap<String, String>>> results = iterator();
+    while (results.hasNext()) {
+      Entry<String, Multimap<String, String>> entry = results.next();
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Runs the search, returning the results in ascending key order. All of
+   * the results are read before this returns. Errors are thrown as
+   * IllegalStateException.
+   */
+  @Override
+  public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+    if (ldapConnectionSettings == null && ownEngine) {
+      throw new IllegalStateException("Must successfully set LdapConnectionSettings before get");
+    }
+    List<String> filters;
+    if (partitions > 1 && maxResults == 0) {
+      String attribute = partitionAttribute;
+      if (attribute == null) {
+        attribute = (schemaKey == null || schemaKey.equalsIgnoreCase(LdapHandler.DN_ATTRIBUTE))
+            ? LdapHandler.DEFAULT_PARTITION_ATTRIBUTE : schemaKey;
+      }
+      filters = PartitionFilters.split(rule.getFilter(), attribute, partitions);
+    } else {
+      filters = ImmutableList.of(rule.getFilter());
+    }
+
+    ExternalEntrySorter sorter = new ExternalEntrySorter(sortDirectory, sortBufferSize);
+    Collector collector = new Collector(sorter, filters.size());
+    List<LdapEngine.Search> searches = Lists.newArrayList();
+    try {
+      for (String filter : filters) {
+        searches.add(engine.search(rule.getScope(), filter, schema, pageSize, collector));
+      }
+      collector.await();
+    } catch (RuntimeException e) {
+      cancel(searches);
+      sorter.close();
+      throw e;
+    }
+    // The searches have all finished, unless maxResults cut them short.
+    cancel(searches);
+    LOG.info("ldap search final result count " + collector.getCount());
+    return sorter.iterator();
+  }
+
+  private static void cancel(Collection<LdapEngine.Search> searches) {
+    for (LdapEngine.Search search : searches) {
+      search.cancel();
+    }
+  }
+
+  /**
+   * Converts the results of one or more searches to entries, and adds them
+   * to a sorter, until every search is done, one has failed, or maxResults
+   * is reached.
+   */
+  private class Collector implements LdapEngine.SearchListener {
+    private final ExternalEntrySorter sorter;
+    private volatile int pending;
+    private int count = 0;
+    private RuntimeException error = null;
+
+    Collector(ExternalEntrySorter sorter, int searches) {
+      this.sorter = sorter;
+      this.pending = searches;
+    }
+
+    @Override
+    public void onEntry(String dn, Multimap<String, String> attributes) {
+      if (pending == 0) {
+        return;
+      }
+      // The entry is built before taking the lock, so that the searches
+      // only wait for each other to add to the sorter.
+      Multimap<String, String> entry = ArrayListMultimap.create();
+      String canonicalDn = LdapHandler.canonicalDn(dn);
+      entry.put(LdapHandler.DN_ATTRIBUTE, canonicalDn);
+      for (Entry<String, Collection<String>> values : attributes.asMap().entrySet()) {
+        if (schema == null || schema.contains(values.getKey())) {
+          entry.putAll(values.getKey(), values.getValue());
+        }
+      }
+      String key = LdapHandler.getFirst(schemaKey, entry);
+      if (key == null) {
+        LOG.warning("Ldap result" + canonicalDn + " is missing schema key attribute "
+            + schemaKey + ": skipping");
+        return;
+      }
+      synchronized (this) {
+        if (pending == 0) {
+          return;
+        }
+        try {
+          sorter.add(key, entry);
+        } catch (RuntimeException e) {
+          fail(e);
+          return;
+        }
+        count++;
+        if (maxResults > 0 && count >= maxResults) {
+          pending = 0;
+          notifyAll();
+        }
+      }
+    }
+
+    @Override
+    public synchronized void onDone() {
+      if (pending > 0) {
+        pending--;
+      }
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void onError(RuntimeException e) {
+      fail(e);
+    }
+
+    private void fail(RuntimeException e) {
+      if (error == null) {
+        LOG.log(Level.WARNING, "Ldap search failed", e);
+        error = e;
+      }
+      pending = 0;
+      notifyAll();
+    }
+
+    /** Waits for the searches to finish, throwing the first error. */
+    synchronized void await() {
+      while (pending > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while reading ldap results", e);
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+  }
+}
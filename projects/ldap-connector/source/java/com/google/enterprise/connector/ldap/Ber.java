@@ -0,0 +1,358 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The subset of the Basic Encoding Rules needed for the values of the ldap
+ * controls that JNDI does not implement. Elements are encoded with definite
+ * lengths, as ldap requires.
+ */
+public class Ber {
+  public static final int BOOLEAN = 0x01;
+  public static final int INTEGER = 0x02;
+  public static final int OCTET_STRING = 0x04;
+  public static final int ENUMERATED = 0x0a;
+  public static final int SEQUENCE = 0x30;
+  public static final int SET = 0x31;
+
+  private Ber() {
+    // prevents instantiation
+  }
+
+  /** Encodes a SEQUENCE of already encoded elements. */
+  public static byte[] sequence(byte[]... elements) {
+    return element(SEQUENCE, concat(elements));
+  }
+
+  public static byte[] integer(long value) {
+    return element(INTEGER, twosComplement(value));
+  }
+
+  public static byte[] enumerated(int value) {
+    return element(ENUMERATED, twosComplement(value));
+  }
+
+  /**
+   * Encodes an integer with another tag, as for an implicitly tagged
+   * INTEGER such as an ldap AbandonRequest.
+   */
+  public static byte[] integer(int tag, long value) {
+    return element(tag, twosComplement(value));
+  }
+
+  public static byte[] bool(boolean value) {
+    return element(BOOLEAN, new byte[] { (byte) (value ? 0xff : 0) });
+  }
+
+  public static byte[] octetString(byte[] value) {
+    return element(OCTET_STRING, value);
+  }
+
+  /** Encodes a string as a UTF-8 OCTET STRING. */
+  public static byte[] octetString(String value) {
+    return element(OCTET_STRING, utf8(value));
+  }
+
+  /** Returns the UTF-8 encoding of a string. */
+  public static byte[] utf8(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Encodes an element with the given tag.
+   *
+   * @param tag the identifier octet
+   * @param contents the encoded contents
+   */
+  public static byte[] element(int tag, byte[] contents) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length + 6);
+    out.write(tag);
+    int length = contents.length;
+    if (length < 0x80) {
+      out.write(length);
+    } else {
+      int octets = 1;
+      while (octets < 4 && (length >>> (8 * octets)) != 0) {
+        octets++;
+      }
+      out.write(0x80 | octets);
+      for (int i = octets - 1; i >= 0; i--) {
+        out.write(length >>> (8 * i));
+      }
+    }
+    out.write(contents, 0, contents.length);
+    return out.toByteArray();
+  }
+
+  /** Returns the shortest two's complement encoding of the value. */
+  private static byte[] twosComplement(long value) {
+    int octets = 1;
+    while (octets < 8) {
+      long high = value >> (8 * octets - 1);
+      if (high == 0 || high == -1) {
+        break;
+      }
+      octets++;
+    }
+    byte[] bytes = new byte[octets];
+    for (int i = 0; i < octets; i++) {
+      bytes[octets - 1 - i] = (byte) (value >>> (8 * i));
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the bytes as lower-case hex digits, so that binary values such
+   * as cookies can be saved as text.
+   */
+  public static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Decodes a string returned by {@link #toHex}.
+   *
+   * @throws IllegalArgumentException if the string is not valid hex
+   */
+  public static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid hex digits: " + hex);
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the total length of the element that starts at the offset,
+   * including its tag and length octets, so that elements can be read from
+   * a stream.
+   *
+   * @param data the buffer holding the element
+   * @param offset where the element starts
+   * @param available the number of bytes of the element read so far
+   * @return the length, or -1 if not enough bytes have been read to know it
+   * @throws IOException if the length is invalid
+   */
+  public static int elementLength(byte[] data, int offset, int available) throws IOException {
+    if (available < 2) {
+      return -1;
+    }
+    int length = data[offset + 1] & 0xff;
+    int header = 2;
+    if ((length & 0x80) != 0) {
+      int octets = length & 0x7f;
+      if (octets == 0 || octets > 4) {
+        throw new IOException("Invalid length");
+      }
+      if (available < 2 + octets) {
+        return -1;
+      }
+      length = 0;
+      for (int i = 0; i < octets; i++) {
+        length = (length << 8) | (data[offset + 2 + i] & 0xff);
+      }
+      if (length < 0) {
+        throw new IOException("Invalid length");
+      }
+      header += octets;
+    }
+    return header + length;
+  }
+
+  /**
+   * Concatenates already encoded elements, such as the contents of a
+   * SEQUENCE or a constructed element with another tag.
+   */
+  public static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Reads the elements of an encoded value in order. Methods throw
+   * IOException if the next element is not of the expected type, or is
+   * truncated.
+   */
+  public static class Decoder {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    public Decoder(byte[] data) {
+      this(data, 0, data.length);
+    }
+
+    /**
+     * Decodes part of a buffer, without copying it.
+     *
+     * @param data the buffer
+     * @param start the offset of the first element
+     * @param end the offset after the last element
+     */
+    public Decoder(byte[] data, int start, int end) {
+      this.data = data;
+      this.position = start;
+      this.end = end;
+    }
+
+    /** Returns true if there is another element to read. */
+    public boolean hasMore() {
+      return position < end;
+    }
+
+    /** Returns the tag of the next element, or -1 if there are no more. */
+    public int peekTag() {
+      return hasMore() ? (data[position] & 0xff) : -1;
+    }
+
+    /** Reads a SEQUENCE, returning a decoder for its elements. */
+    public Decoder readSequence() throws IOException {
+      return readConstructed(SEQUENCE);
+    }
+
+    /**
+     * Reads a constructed element with the given tag, returning a decoder
+     * for its elements.
+     */
+    public Decoder readConstructed(int tag) throws IOException {
+      int length = readHeader(tag);
+      Decoder contents = new Decoder(data, position, position + length);
+      position += length;
+      return contents;
+    }
+
+    public long readInteger() throws IOException {
+      return readTwosComplement(INTEGER);
+    }
+
+    public int readEnumerated() throws IOException {
+      return (int) readTwosComplement(ENUMERATED);
+    }
+
+    public boolean readBoolean() throws IOException {
+      byte[] contents = readElement(BOOLEAN);
+      if (contents.length != 1) {
+        throw new IOException("Invalid BOOLEAN length " + contents.length);
+      }
+      return contents[0] != 0;
+    }
+
+    public byte[] readOctetString() throws IOException {
+      return readElement(OCTET_STRING);
+    }
+
+    /** Reads an OCTET STRING as UTF-8, without copying it first. */
+    public String readString() throws IOException {
+      return readString(OCTET_STRING);
+    }
+
+    /**
+     * Reads the contents of a primitive element with the given tag as
+     * UTF-8, without copying it first.
+     */
+    public String readString(int tag) throws IOException {
+      int length = readHeader(tag);
+      String value = new String(data, position, length, "UTF-8");
+      position += length;
+      return value;
+    }
+
+    /** Reads the contents of a primitive element with the given tag. */
+    public byte[] readElement(int tag) throws IOException {
+      int length = readHeader(tag);
+      byte[] contents = new byte[length];
+      System.arraycopy(data, position, contents, 0, length);
+      position += length;
+      return contents;
+    }
+
+    /** Skips the next element, whatever its type. */
+    public void skip() throws IOException {
+      int length = readHeader(peekTag());
+      position += length;
+    }
+
+    private long readTwosComplement(int tag) throws IOException {
+      byte[] contents = readElement(tag);
+      if (contents.length == 0 || contents.length > 8) {
+        throw new IOException("Invalid integer length " + contents.length);
+      }
+      long value = contents[0]; // sign-extended
+      for (int i = 1; i < contents.length; i++) {
+        value = (value << 8) | (contents[i] & 0xff);
+      }
+      return value;
+    }
+
+    /**
+     * Reads the tag and length of the next element, leaving the position at
+     * its contents.
+     *
+     * @return the length of the contents
+     */
+    private int readHeader(int tag) throws IOException {
+      if (!hasMore()) {
+        throw new IOException("Expected tag 0x" + Integer.toHexString(tag) + " at end of data");
+      }
+      int actual = data[position++] & 0xff;
+      if (actual != tag) {
+        throw new IOException("Expected tag 0x" + Integer.toHexString(tag) + ", found 0x"
+            + Integer.toHexString(actual));
+      }
+      if (!hasMore()) {
+        throw new IOException("Truncated length");
+      }
+      int length = data[position++] & 0xff;
+      if ((length & 0x80) != 0) {
+        int octets = length & 0x7f;
+        if (octets == 0 || octets > 4 || end - position < octets) {
+          throw new IOException("Invalid length");
+        }
+        length = 0;
+        for (int i = 0; i < octets; i++) {
+          length = (length << 8) | (data[position++] & 0xff);
+        }
+      }
+      if (length < 0 || length > end - position) {
+        throw new IOException("Truncated element");
+      }
+      return length;
+    }
+  }
+}
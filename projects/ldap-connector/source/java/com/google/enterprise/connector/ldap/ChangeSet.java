@@ -0,0 +1,121 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The entries that have changed since a position in the directory's
+ * history, as read by a {@link ChangeSource}. Entries are identified by
+ * their canonical DN, as returned by {@link LdapHandler#canonicalDn}.
+ * <p>
+ * The changes are applied to the results of an earlier traversal by
+ * dropping every entry whose DN has changed or been deleted, then adding
+ * the changed entries. An entry whose key has changed is thus moved.
+ */
+public class ChangeSet {
+  private static final Logger LOG = Logger.getLogger(ChangeSet.class.getName());
+
+  private final String position;
+  private final SortedMap<String, Multimap<String, String>> changed =
+      new TreeMap<String, Multimap<String, String>>();
+  private final Set<String> removedDns = Sets.newHashSet();
+
+  /**
+   * @param position the position to read the next changes from
+   */
+  public ChangeSet(String position) {
+    this.position = position;
+  }
+
+  /** Returns the position to read the next changes from. */
+  public String getPosition() {
+    return position;
+  }
+
+  /**
+   * Adds an entry that has been added or modified.
+   *
+   * @param key the value of the entry's schemaKey
+   * @param entry the entry, including its DN
+   */
+  public void addChanged(String key, Multimap<String, String> entry) {
+    changed.put(key, entry);
+    removedDns.addAll(entry.get(LdapHandler.DN_ATTRIBUTE));
+  }
+
+  /**
+   * Adds an entry that has been deleted, or moved or renamed away from the
+   * given DN.
+   */
+  public void addDeleted(String dn) {
+    removedDns.add(dn);
+  }
+
+  /**
+   * Reads changed entries in full, by DN, and adds them. Entries that no
+   * longer exist, or no longer match the filter, are added as deleted.
+   *
+   * @param dns the full DNs of the entries, as returned by the server
+   * @return false if the entries could not be read
+   */
+  boolean readChanged(LdapDirectory directory, Collection<String> dns) {
+    List<Entry<String, Multimap<String, String>>> entries;
+    try {
+      entries = directory.fetchEntries(dns);
+    } catch (IllegalStateException e) {
+      LOG.log(Level.WARNING, "Unable to read the changed entries", e);
+      return false;
+    }
+    Set<String> missing = Sets.newLinkedHashSet();
+    for (String dn : dns) {
+      missing.add(LdapHandler.canonicalDn(dn));
+    }
+    for (Entry<String, Multimap<String, String>> entry : entries) {
+      addChanged(entry.getKey(), entry.getValue());
+      missing.removeAll(entry.getValue().get(LdapHandler.DN_ATTRIBUTE));
+    }
+    for (String dn : missing) {
+      addDeleted(dn);
+    }
+    return true;
+  }
+
+  /** Returns the added and modified entries, in ascending key order. */
+  public SortedMap<String, Multimap<String, String>> getChanged() {
+    return Collections.unmodifiableSortedMap(changed);
+  }
+
+  /** Returns the DNs of the entries that have changed or been deleted. */
+  public Set<String> getRemovedDns() {
+    return Collections.unmodifiableSet(removedDns);
+  }
+
+  /** Returns the number of entries that have changed or been deleted. */
+  public int size() {
+    return removedDns.size();
+  }
+}
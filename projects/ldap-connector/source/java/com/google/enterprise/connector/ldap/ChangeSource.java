@@ -0,0 +1,45 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+/**
+ * A way of finding the ldap entries that have changed since an earlier
+ * traversal. A position marks a point in the directory's history; its
+ * format is up to the implementation, but it must be a String so that it
+ * can be saved between traversals.
+ */
+public interface ChangeSource {
+
+  /**
+   * Returns the directory's current position. This is called before a full
+   * traversal, and saved with the traversal's results.
+   *
+   * @return the position, or {@code null} if no position is available, in
+   *         which case the next traversal will be a full traversal as well
+   */
+  public String getPosition();
+
+  /**
+   * Reads the changes since a saved position.
+   *
+   * @param position a position returned by {@link #getPosition}, or by
+   *        {@link ChangeSet#getPosition} after an earlier call to this method
+   * @param maxChanges the largest number of changes to read
+   * @return the changes, or {@code null} if they cannot be read from the
+   *         given position, or there are more than {@code maxChanges} of
+   *         them, so that a full traversal is needed
+   */
+  public ChangeSet getChanges(String position, int maxChanges);
+}
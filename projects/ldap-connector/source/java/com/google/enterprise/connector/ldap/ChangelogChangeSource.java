@@ -0,0 +1,145 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Finds changed entries by reading the changelog that 389-DS and OpenDJ
+ * publish under cn=changelog. Each change is an entry with an increasing
+ * changeNumber, naming the targetDN and the changeType; the changed
+ * entries are then read in full. The position is the last changeNumber.
+ * If the server has trimmed changes newer than the position, a full
+ * traversal is needed.
+ * <p>
+ * Renaming an entry with children moves them as well, but the changelog
+ * only records the renamed entry, so the children are caught by the next
+ * full traversal.
+ */
+class ChangelogChangeSource implements ChangeSource {
+  private static final Logger LOG = Logger.getLogger(ChangelogChangeSource.class.getName());
+
+  private static final String PREFIX = "changelog:";
+  private static final String DEFAULT_CHANGELOG = "cn=changelog";
+
+  /** The number of changes read by each search. */
+  private static final int CHUNK_SIZE = 500;
+
+  private final LdapDirectory directory;
+
+  public ChangelogChangeSource(LdapDirectory directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public String getPosition() {
+    Multimap<String, String> rootDse = directory.readRootDse("lastChangeNumber");
+    String last = LdapHandler.getFirst("lastchangenumber", rootDse);
+    if (last == null) {
+      LOG.warning("Unable to read the lastChangeNumber");
+      return null;
+    }
+    return PREFIX + last;
+  }
+
+  @Override
+  public ChangeSet getChanges(String position, int maxChanges) {
+    if (!position.startsWith(PREFIX)) {
+      return null;
+    }
+    Multimap<String, String> rootDse =
+        directory.readRootDse("firstChangeNumber", "lastChangeNumber", "changelog");
+    long saved;
+    long first;
+    long last;
+    try {
+      saved = Long.parseLong(position.substring(PREFIX.length()));
+      first = Long.parseLong(LdapHandler.getFirst("firstchangenumber", rootDse));
+      last = Long.parseLong(LdapHandler.getFirst("lastchangenumber", rootDse));
+    } catch (NumberFormatException e) {
+      LOG.warning("Unable to read the changelog limits: " + rootDse);
+      return null;
+    }
+    if (!ChangelogChanges.hasChangesSince(saved, first, last)) {
+      LOG.info("The changelog no longer has the changes since " + saved);
+      return null;
+    }
+    if (last - saved > maxChanges) {
+      LOG.info("More than " + maxChanges + " changes");
+      return null;
+    }
+    String changelog = LdapHandler.getFirst("changelog", rootDse);
+    if (changelog == null) {
+      changelog = DEFAULT_CHANGELOG;
+    }
+
+    ChangelogChanges changed = new ChangelogChanges(directory.getCanonicalBaseDn());
+    LdapDirectory.Connection rootConnection = directory.connect(false);
+    if (rootConnection == null) {
+      return null;
+    }
+    try {
+      SearchControls controls = new SearchControls();
+      controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+      controls.setReturningAttributes(new String[] {
+          "changeNumber", "targetDN", "changeType", "newRDN", "newSuperior" });
+      LdapName changelogName = new LdapName(changelog);
+      for (long from = saved + 1; from <= last; from += CHUNK_SIZE) {
+        long to = Math.min(from + CHUNK_SIZE - 1, last);
+        // The changes are not necessarily returned in order.
+        SortedMap<Long, Attributes> chunk = new TreeMap<Long, Attributes>();
+        NamingEnumeration<SearchResult> results = rootConnection.search(changelogName,
+            "(&(changeNumber>=" + from + ")(changeNumber<=" + to + "))", controls);
+        try {
+          while (results.hasMore()) {
+            Attributes attributes = results.next().getAttributes();
+            chunk.put(Long.parseLong(ChangelogChanges.getString(attributes, "changeNumber")), attributes);
+          }
+        } finally {
+          results.close();
+        }
+        for (Attributes attributes : chunk.values()) {
+          changed.add(attributes);
+        }
+      }
+    } catch (NamingException e) {
+      LOG.log(Level.WARNING, "Unable to read the changelog", e);
+      return null;
+    } catch (NumberFormatException e) {
+      LOG.log(Level.WARNING, "Invalid changeNumber in the changelog", e);
+      return null;
+    } finally {
+      rootConnection.close();
+    }
+
+    ChangeSet changes = new ChangeSet(PREFIX + last);
+    List<String> dns = changed.addDeleted(changes);
+    return changes.readChanged(directory, dns) ? changes : null;
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.LdapName;
+
+/**
+ * The entries affected by a run of changelog records, as read by
+ * {@link ChangelogChangeSource}. A deleted entry is dropped, and a renamed
+ * or moved entry is dropped from its old DN and read again under its new
+ * DN. Other changes are read again under the targetDN. Entries outside the
+ * base DN are not read.
+ */
+class ChangelogChanges {
+  private final String canonicalBase;
+
+  /**
+   * The canonical DNs of the changed entries, mapped to the full DN to
+   * read, or to null if the entry has been deleted or renamed.
+   */
+  private final Map<String, String> changed = Maps.newLinkedHashMap();
+
+  /**
+   * @param canonicalBase the base DN in canonical form, or "" for the
+   *        whole directory
+   */
+  public ChangelogChanges(String canonicalBase) {
+    this.canonicalBase = canonicalBase;
+  }
+
+  /**
+   * Returns true if a changelog that holds the changes from first to last
+   * still has every change after the saved changeNumber. It does not if
+   * the server has trimmed changes after the saved one, or if the server's
+   * changelog has been reset, so that it ends before the saved one.
+   */
+  public static boolean hasChangesSince(long saved, long first, long last) {
+    return first <= saved + 1 && last >= saved;
+  }
+
+  /**
+   * Adds a changelog record. Records must be added in changeNumber order.
+   *
+   * @param attributes the record's targetDN, changeType, and for a rename,
+   *        newRDN and newSuperior
+   */
+  public void add(Attributes attributes) throws NamingException {
+    String targetDn = getString(attributes, "targetDN");
+    String changeType = getString(attributes, "changeType");
+    if (targetDn == null || changeType == null) {
+      return;
+    }
+    if ("delete".equalsIgnoreCase(changeType)) {
+      changed.put(LdapHandler.canonicalDn(targetDn), null);
+      return;
+    }
+    if ("modrdn".equalsIgnoreCase(changeType) || "moddn".equalsIgnoreCase(changeType)) {
+      changed.put(LdapHandler.canonicalDn(targetDn), null);
+      String newRdn = getString(attributes, "newRDN");
+      if (newRdn == null) {
+        return;
+      }
+      // deleteOldRdn only changes the entry's attributes, which are read
+      // again anyway.
+      LdapName newName;
+      String newSuperior = getString(attributes, "newSuperior");
+      if (newSuperior == null) {
+        LdapName target = new LdapName(targetDn);
+        newName = (LdapName) target.getPrefix(target.size() - 1);
+      } else {
+        newName = new LdapName(newSuperior);
+      }
+      newName.add(newRdn);
+      targetDn = newName.toString();
+    }
+    String canonicalTarget = LdapHandler.canonicalDn(targetDn);
+    if (LdapHandler.isWithin(canonicalTarget, canonicalBase)) {
+      changed.put(canonicalTarget, targetDn);
+    }
+  }
+
+  /** Returns the number of entries affected. */
+  public int size() {
+    return changed.size();
+  }
+
+  /**
+   * Adds the deleted and renamed entries to a change set.
+   *
+   * @return the full DNs of the entries to read
+   */
+  public List<String> addDeleted(ChangeSet changes) {
+    List<String> dns = Lists.newArrayList();
+    for (Entry<String, String> entry : changed.entrySet()) {
+      if (entry.getValue() == null) {
+        changes.addDeleted(entry.getKey());
+      } else {
+        dns.add(entry.getValue());
+      }
+    }
+    return dns;
+  }
+
+  /**
+   * Returns the first value of an attribute as a String, or {@code null}.
+   * Some servers return changelog values as bytes, which are decoded as
+   * UTF-8.
+   */
+  static String getString(Attributes attributes, String name) throws NamingException {
+    Attribute attribute = attributes.get(name);
+    if (attribute == null || attribute.size() == 0) {
+      return null;
+    }
+    Object value = attribute.get();
+    if (value instanceof byte[]) {
+      try {
+        return new String((byte[]) value, "UTF-8");
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return value.toString();
+  }
+}
@@ -0,0 +1,478 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multiset;
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-only {@link Multimap} of the attribute values of an ldap entry,
+ * stored in a few arrays. Attribute names are held once, by a {@link Names}
+ * table shared by the entries of a traversal, and each entry stores small
+ * integer ids for them. The values of all the attributes are stored in one
+ * array, with the offset of each attribute's values in another. An entry
+ * with a dozen attributes is about a tenth of the size of the equivalent
+ * {@code ArrayListMultimap}, before counting the values themselves.
+ * <p>
+ * The keys are in the order they were first added, and the values of
+ * each key are in the order they were added. Equality follows the
+ * {@code Multimap} contract, so an entry equals an {@code ArrayListMultimap}
+ * with the same values.
+ */
+public class CompactEntry implements Multimap<String, String> {
+
+  /**
+   * Assigns small integer ids to attribute names. A table is safe for use
+   * by several threads.
+   */
+  public static class Names {
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] names = new String[0];
+
+    /** Creates a table with ids for the given names, such as the schema. */
+    public Names(Collection<String> initialNames) {
+      for (String name : initialNames) {
+        getId(name);
+      }
+    }
+
+    public Names() {
+      this(Collections.<String>emptyList());
+    }
+
+    /** Returns the id of a name, assigning it one if it has none. */
+    public int getId(String name) {
+      Integer id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+      synchronized (this) {
+        id = ids.get(name);
+        if (id == null) {
+          // The name must be readable by id before the id is published.
+          String[] grown = Arrays.copyOf(names, names.length + 1);
+          grown[names.length] = name;
+          names = grown;
+          id = names.length - 1;
+          ids.put(name, id);
+        }
+        return id;
+      }
+    }
+
+    /** Returns the id of a name, or -1 if it has none. */
+    int findId(Object name) {
+      Integer id = ids.get(name);
+      return (id == null) ? -1 : id;
+    }
+
+    String getName(int id) {
+      return names[id];
+    }
+
+    public int size() {
+      return names.length;
+    }
+  }
+
+  /**
+   * Builds a {@link CompactEntry}. The values may be added in any order;
+   * they are grouped by name when the entry is built.
+   */
+  public static class Builder {
+    private final Names names;
+    private int[] valueIds = new int[16];
+    private String[] values = new String[16];
+    private int count = 0;
+
+    public Builder(Names names) {
+      this.names = names;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param name the lower-case attribute name
+     * @param value the value
+     */
+    public Builder put(String name, String value) {
+      if (count == values.length) {
+        valueIds = Arrays.copyOf(valueIds, 2 * count);
+        values = Arrays.copyOf(values, 2 * count);
+      }
+      valueIds[count] = names.getId(name);
+      values[count] = value;
+      count++;
+      return this;
+    }
+
+    /** Adds all the values of a multimap. */
+    public Builder putAll(Multimap<String, String> multimap) {
+      for (Map.Entry<String, String> entry : multimap.entries()) {
+        put(entry.getKey(), entry.getValue());
+      }
+      return this;
+    }
+
+    public CompactEntry build() {
+      // Find the keys, in the order they were first added. Entries have
+      // few keys, so a linear search is fast enough.
+      int[] keyIds = new int[8];
+      int[] sizes = new int[8];
+      int keyCount = 0;
+      for (int i = 0; i < count; i++) {
+        int key = indexOf(keyIds, keyCount, valueIds[i]);
+        if (key < 0) {
+          if (keyCount == keyIds.length) {
+            keyIds = Arrays.copyOf(keyIds, 2 * keyCount);
+            sizes = Arrays.copyOf(sizes, 2 * keyCount);
+          }
+          key = keyCount++;
+          keyIds[key] = valueIds[i];
+        }
+        sizes[key]++;
+      }
+      int[] offsets = new int[keyCount + 1];
+      for (int key = 0; key < keyCount; key++) {
+        offsets[key + 1] = offsets[key] + sizes[key];
+      }
+      // Place the values, in the order they were added within each key.
+      int[] next = Arrays.copyOf(offsets, keyCount);
+      String[] grouped = new String[count];
+      for (int i = 0; i < count; i++) {
+        grouped[next[indexOf(keyIds, keyCount, valueIds[i])]++] = values[i];
+      }
+      return new CompactEntry(names, Arrays.copyOf(keyIds, keyCount), offsets, grouped);
+    }
+
+    private static int indexOf(int[] array, int length, int value) {
+      for (int i = 0; i < length; i++) {
+        if (array[i] == value) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private final Names names;
+
+  /** The name id of each key. */
+  private final int[] keyIds;
+
+  /**
+   * The offset in {@link #values} of the first value of each key, and the
+   * number of values at the end.
+   */
+  private final int[] offsets;
+
+  private final String[] values;
+
+  private CompactEntry(Names names, int[] keyIds, int[] offsets, String[] values) {
+    this.names = names;
+    this.keyIds = keyIds;
+    this.offsets = offsets;
+    this.values = values;
+  }
+
+  /** Returns a compact copy of a multimap. */
+  public static CompactEntry copyOf(Names names, Multimap<String, String> multimap) {
+    return new Builder(names).putAll(multimap).build();
+  }
+
+  /** Returns the index of a key, or -1 if it is not present. */
+  private int indexOf(Object key) {
+    int id = names.findId(key);
+    if (id >= 0) {
+      for (int i = 0; i < keyIds.length; i++) {
+        if (keyIds[i] == id) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private List<String> valuesAt(int index) {
+    return new ValueList(offsets[index], offsets[index + 1]);
+  }
+
+  @Override
+  public int size() {
+    return values.length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return values.length == 0;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    return Arrays.asList(values).contains(value);
+  }
+
+  @Override
+  public boolean containsEntry(Object key, Object value) {
+    return valuesOf(key).contains(value);
+  }
+
+  /**
+   * Returns the values of a key, as a read-only list.
+   */
+  @Override
+  public List<String> get(String key) {
+    return valuesOf(key);
+  }
+
+  private List<String> valuesOf(Object key) {
+    int index = indexOf(key);
+    return (index < 0) ? Collections.<String>emptyList() : valuesAt(index);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return new AbstractSet<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new IndexIterator<String>(keyIds.length) {
+          @Override
+          String get(int index) {
+            return names.getName(keyIds[index]);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return keyIds.length;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+    };
+  }
+
+  @Override
+  public Multiset<String> keys() {
+    ImmutableMultiset.Builder<String> builder = ImmutableMultiset.builder();
+    for (int i = 0; i < keyIds.length; i++) {
+      builder.addCopies(names.getName(keyIds[i]), offsets[i + 1] - offsets[i]);
+    }
+    return builder.build();
+  }
+
+  @Override
+  public Collection<String> values() {
+    return Collections.unmodifiableList(Arrays.asList(values));
+  }
+
+  @Override
+  public Collection<Map.Entry<String, String>> entries() {
+    return new AbstractCollection<Map.Entry<String, String>>() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        return new IndexIterator<Map.Entry<String, String>>(values.length) {
+          private int key = 0;
+
+          @Override
+          Map.Entry<String, String> get(int index) {
+            while (index >= offsets[key + 1]) {
+              key++;
+            }
+            return Maps.immutableEntry(names.getName(keyIds[key]), values[index]);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return values.length;
+      }
+    };
+  }
+
+  @Override
+  public Map<String, Collection<String>> asMap() {
+    return new AbstractMap<String, Collection<String>>() {
+      @Override
+      public Set<Map.Entry<String, Collection<String>>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Collection<String>>>() {
+          @Override
+          public Iterator<Map.Entry<String, Collection<String>>> iterator() {
+            return new IndexIterator<Map.Entry<String, Collection<String>>>(keyIds.length) {
+              @Override
+              Map.Entry<String, Collection<String>> get(int index) {
+                return Maps.<String, Collection<String>>immutableEntry(
+                    names.getName(keyIds[index]), valuesAt(index));
+              }
+            };
+          }
+
+          @Override
+          public int size() {
+            return keyIds.length;
+          }
+        };
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return CompactEntry.this.containsKey(key);
+      }
+
+      @Override
+      public Collection<String> get(Object key) {
+        int index = indexOf(key);
+        return (index < 0) ? null : valuesAt(index);
+      }
+    };
+  }
+
+  @Override
+  public boolean put(String key, String value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean putAll(String key, Iterable<? extends String> values) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean putAll(Multimap<? extends String, ? extends String> multimap) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Collection<String> replaceValues(String key, Iterable<? extends String> values) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Collection<String> removeAll(Object key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (object == this) {
+      return true;
+    }
+    if (object instanceof Multimap) {
+      return asMap().equals(((Multimap<?, ?>) object).asMap());
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return asMap().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return asMap().toString();
+  }
+
+  /** A read-only view of the values of one key. */
+  private class ValueList extends AbstractList<String> implements RandomAccess {
+    private final int start;
+    private final int end;
+
+    ValueList(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public String get(int index) {
+      if (index < 0 || index >= end - start) {
+        throw new IndexOutOfBoundsException(Integer.toString(index));
+      }
+      return values[start + index];
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+  }
+
+  /** A read-only iterator over the elements at indexes 0 to size - 1. */
+  private abstract static class IndexIterator<T> implements Iterator<T> {
+    private final int size;
+    private int index = 0;
+
+    IndexIterator(int size) {
+      this.size = size;
+    }
+
+    abstract T get(int index);
+
+    @Override
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    @Override
+    public T next() {
+      if (index >= size) {
+        throw new NoSuchElementException();
+      }
+      return get(index++);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A pool of idle, authenticated connections, keyed by the connection
+ * settings. A connection is checked before it is reused, and closed if it
+ * has been idle too long or there are already enough idle connections with
+ * the same settings. The connection timeout only applies to new
+ * connections, so it is not part of the key.
+ */
+class ConnectionPool {
+  private static final Logger LOG = Logger.getLogger(ConnectionPool.class.getName());
+
+  /** The most idle connections kept for the same settings. */
+  private static final int MAX_IDLE = 8;
+
+  /** How long a connection may be idle before it is closed. */
+  private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+  private static class IdleConnection {
+    final LdapConnection connection;
+    final long idleSince;
+
+    IdleConnection(LdapConnection connection, long idleSince) {
+      this.connection = connection;
+      this.idleSince = idleSince;
+    }
+  }
+
+  /** The most recently used connection is first in each list. */
+  private final Map<LdapConnectionSettings, LinkedList<IdleConnection>> idle =
+      Maps.newHashMap();
+
+  private ScheduledExecutorService evictor = null;
+
+  /**
+   * Returns a working idle connection with the given settings, or a new
+   * connection. A new connection may have failed; the caller must check
+   * its context and errors.
+   * <p>
+   * An idle connection to the replica that a new connection would use is
+   * preferred. If a replica is requested, only connections to it are
+   * reused.
+   *
+   * @param replica the index of the replica to prefer, or -1 for the best
+   */
+  public LdapConnection borrow(LdapConnectionSettings settings, String connectionTimeOut,
+      int replica) {
+    String preferred = LdapHandler.getReplicaSelector().orderTiers(settings.getEndpoints(), replica).get(0);
+    while (true) {
+      IdleConnection candidate = null;
+      synchronized (this) {
+        LinkedList<IdleConnection> connections = idle.get(settings);
+        if (connections == null) {
+          break;
+        }
+        for (Iterator<IdleConnection> it = connections.iterator(); it.hasNext(); ) {
+          IdleConnection connection = it.next();
+          if (preferred.equals(connection.connection.getEndpoint())) {
+            candidate = connection;
+            it.remove();
+            break;
+          }
+        }
+        if (candidate == null) {
+          if (replica >= 0) {
+            break;
+          }
+          candidate = connections.removeFirst();
+        }
+        if (connections.isEmpty()) {
+          idle.remove(settings);
+        }
+      }
+      if (candidate.connection.reset()) {
+        LOG.fine("Reusing pooled connection");
+        return candidate.connection;
+      }
+      candidate.connection.close();
+    }
+    return new LdapConnection(settings, connectionTimeOut, true, replica);
+  }
+
+  /**
+   * Returns a connection to the pool. The caller must not use it again.
+   */
+  public void release(LdapConnection connection) {
+    if (connection.getLdapContext() == null) {
+      return;
+    }
+    LdapConnectionSettings settings = connection.getSettings();
+    boolean pooled = false;
+    synchronized (this) {
+      LinkedList<IdleConnection> connections = idle.get(settings);
+      if (connections == null) {
+        connections = new LinkedList<IdleConnection>();
+        idle.put(settings, connections);
+      }
+      if (connections.size() < MAX_IDLE) {
+        connections.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+        pooled = true;
+        startEvictor();
+      }
+    }
+    if (!pooled) {
+      connection.close();
+    }
+  }
+
+  private synchronized void startEvictor() {
+    if (evictor == null) {
+      evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("ldap-connection-evictor").setDaemon(true).build());
+      evictor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evictIdle();
+        }
+      }, IDLE_TIMEOUT_MILLIS / 2, IDLE_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Closes the connections that have been idle too long. The evictor
+   * stops when the pool is empty.
+   */
+  private void evictIdle() {
+    List<LdapConnection> expired = Lists.newArrayList();
+    long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+    synchronized (this) {
+      Iterator<LinkedList<IdleConnection>> lists = idle.values().iterator();
+      while (lists.hasNext()) {
+        LinkedList<IdleConnection> connections = lists.next();
+        while (!connections.isEmpty() && connections.getLast().idleSince < cutoff) {
+          expired.add(connections.removeLast().connection);
+        }
+        if (connections.isEmpty()) {
+          lists.remove();
+        }
+      }
+      if (idle.isEmpty() && evictor != null) {
+        evictor.shutdown();
+        evictor = null;
+      }
+    }
+    for (LdapConnection connection : expired) {
+      connection.close();
+    }
+    if (expired.size() > 0) {
+      LOG.fine("Closed " + expired.size() + " idle connections");
+    }
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Finds changed entries with the Active Directory DirSync control. The
+ * server keeps track of what has changed since the state recorded in a
+ * cookie, and returns only the changed objects, with only their changed
+ * attributes. The entries are then read in full, by DN. The position is
+ * the cookie.
+ * <p>
+ * DirSync searches must start at the root of a naming context and cover
+ * the whole subtree, so the results outside the base DN are dropped. A
+ * deleted object is returned with its new name in the Deleted Objects
+ * container, which cannot be matched with the saved entries, so a
+ * deletion leads to a full traversal.
+ */
+class DirSyncChangeSource implements ChangeSource {
+  private static final Logger LOG = Logger.getLogger(DirSyncChangeSource.class.getName());
+
+  private static final String PREFIX = "dirsync:";
+
+  private final LdapDirectory directory;
+
+  public DirSyncChangeSource(LdapDirectory directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public String getPosition() {
+    // Reading from an empty cookie returns every object, so ask for as
+    // little as possible; only the final cookie is kept.
+    byte[] cookie = dirSync(null, new String[] { "objectGUID" }, null, 0);
+    return (cookie == null) ? null : PREFIX + Ber.toHex(cookie);
+  }
+
+  @Override
+  public ChangeSet getChanges(String position, int maxChanges) {
+    if (!position.startsWith(PREFIX)) {
+      return null;
+    }
+    byte[] cookie;
+    try {
+      cookie = Ber.fromHex(position.substring(PREFIX.length()));
+    } catch (IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Invalid DirSync position", e);
+      return null;
+    }
+    // Only the changed attributes are returned, so asking for all of them
+    // costs little, and catches changes to the attributes in the filter.
+    Set<String> changedDns = Sets.newLinkedHashSet();
+    cookie = dirSync(cookie, null, changedDns, maxChanges);
+    if (cookie == null) {
+      return null;
+    }
+    ChangeSet changes = new ChangeSet(PREFIX + Ber.toHex(cookie));
+    return changes.readChanged(directory, changedDns) ? changes : null;
+  }
+
+  /**
+   * Reads the changes since a cookie, following the cookies until there
+   * are no more results.
+   *
+   * @param cookie the starting cookie, or {@code null} to read every object
+   * @param attributes the attributes to read, or {@code null} for all
+   * @param changedDns if not {@code null}, the DNs of the changed entries
+   *        within the base DN are added to it
+   * @param maxChanges the largest number of DNs to add
+   * @return the final cookie, or {@code null} if the changes could not be
+   *         read, or there are too many, or an object has been deleted
+   */
+  private byte[] dirSync(byte[] cookie, String[] attributes, Set<String> changedDns,
+      int maxChanges) {
+    LdapRule rule = directory.getRule();
+    if (rule.getScope() != LdapRule.Scope.SUBTREE) {
+      LOG.warning("DirSync requires a subtree search");
+      return null;
+    }
+    String canonicalBase = directory.getCanonicalBaseDn();
+    String namingContext = findNamingContext(canonicalBase);
+    if (namingContext == null) {
+      LOG.warning("Unable to find the naming context of " + canonicalBase);
+      return null;
+    }
+    LdapDirectory.Connection rootConnection = directory.connect(false);
+    if (rootConnection == null) {
+      return null;
+    }
+    try {
+      SearchControls controls = new SearchControls();
+      controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      controls.setReturningAttributes(attributes);
+      LdapName name = new LdapName(namingContext);
+      while (true) {
+        NamingEnumeration<SearchResult> results = rootConnection.search(name,
+            rule.getFilter(), controls,
+            new DirSyncControl(DirSyncControl.OBJECT_SECURITY, 0, cookie));
+        try {
+          while (results.hasMore()) {
+            SearchResult result = results.next();
+            if (changedDns == null) {
+              continue;
+            }
+            if (result.getAttributes().get("isDeleted") != null) {
+              LOG.info("An object has been deleted");
+              return null;
+            }
+            String dn = result.getNameInNamespace();
+            if (LdapHandler.isWithin(LdapHandler.canonicalDn(dn), canonicalBase)) {
+              changedDns.add(dn);
+              if (changedDns.size() > maxChanges) {
+                LOG.info("More than " + maxChanges + " changes");
+                return null;
+              }
+            }
+          }
+        } finally {
+          results.close();
+        }
+        DirSyncControl.Response response =
+            getDirSyncResponse(rootConnection.getResponseControls());
+        if (response == null) {
+          LOG.warning("The server did not return a DirSync cookie");
+          return null;
+        }
+        cookie = response.getCookie();
+        if (!response.hasMoreResults()) {
+          return cookie;
+        }
+      }
+    } catch (NamingException e) {
+      LOG.log(Level.WARNING, "Unable to read the DirSync changes", e);
+      return null;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Invalid DirSync response", e);
+      return null;
+    } finally {
+      rootConnection.close();
+    }
+  }
+
+  /**
+   * Returns the naming context that contains the base DN, as advertised by
+   * the rootDSE.
+   */
+  private String findNamingContext(String canonicalBase) {
+    Multimap<String, String> rootDse =
+        directory.readRootDse("namingContexts", "defaultNamingContext");
+    if (canonicalBase.length() == 0) {
+      return LdapHandler.getFirst("defaultnamingcontext", rootDse);
+    }
+    String best = null;
+    for (String namingContext : rootDse.get("namingcontexts")) {
+      if (LdapHandler.isWithin(canonicalBase, LdapHandler.canonicalDn(namingContext))
+          && (best == null || namingContext.length() > best.length())) {
+        best = namingContext;
+      }
+    }
+    return best;
+  }
+
+  private DirSyncControl.Response getDirSyncResponse(Control[] controls)
+      throws IOException {
+    Control control = LdapHandler.findControl(controls, DirSyncControl.OID);
+    return (control == null) ? null : DirSyncControl.Response.decode(control.getEncodedValue());
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The Active Directory DirSync request control. A search with this control
+ * returns the objects that have changed since the state recorded in the
+ * cookie, with only their changed attributes, and a response control with a
+ * new cookie. An empty cookie returns every object.
+ * <p>
+ * The request value is {@code SEQUENCE { flags INTEGER, maxBytes INTEGER,
+ * cookie OCTET STRING }}; the response has the same form, with a non-zero
+ * first element if there are more results to read.
+ */
+public class DirSyncControl extends BasicControl {
+  private static final long serialVersionUID = 1L;
+
+  public static final String OID = "1.2.840.113556.1.4.841";
+
+  /**
+   * Asks the server to check the caller's access to each object, instead of
+   * requiring the Replicating Directory Changes right.
+   */
+  public static final int OBJECT_SECURITY = 0x00000001;
+
+  /**
+   * @param flags the DirSync flags
+   * @param maxBytes the most data to return, or 0 for the server's limit
+   * @param cookie the cookie from an earlier response, or {@code null} to
+   *        read every object
+   */
+  public DirSyncControl(int flags, int maxBytes, byte[] cookie) {
+    super(OID, true, encode(flags, maxBytes, cookie));
+  }
+
+  static byte[] encode(int flags, int maxBytes, byte[] cookie) {
+    return Ber.sequence(
+        Ber.integer(flags),
+        Ber.integer(maxBytes),
+        Ber.octetString((cookie == null) ? new byte[0] : cookie));
+  }
+
+  /** The value of a DirSync response control. */
+  public static class Response {
+    private final boolean moreResults;
+    private final byte[] cookie;
+
+    public Response(boolean moreResults, byte[] cookie) {
+      this.moreResults = moreResults;
+      this.cookie = cookie;
+    }
+
+    /**
+     * Decodes the value of a response control.
+     *
+     * @throws IOException if the value is not a valid response
+     */
+    public static Response decode(byte[] value) throws IOException {
+      Ber.Decoder sequence = new Ber.Decoder(value).readSequence();
+      long moreResults = sequence.readInteger();
+      sequence.readInteger(); // unused
+      return new Response(moreResults != 0, sequence.readOctetString());
+    }
+
+    /** Returns true if another search with the new cookie will return more results. */
+    public boolean hasMoreResults() {
+      return moreResults;
+    }
+
+    public byte[] getCookie() {
+      return cookie;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.ldap.Rdn;
+
+/**
+ * Computes the canonical form of a DN, as returned by
+ * {@link LdapHandler#canonicalDn}. Most DNs are plain ASCII with no
+ * escapes, and for those lower-casing and replacing slashes is all
+ * {@code Rdn.unescapeValue} would do, so they are converted in a single
+ * pass into a per-thread buffer. A DN that is already canonical is
+ * returned as is. Any other DN takes the slow path, and its result is kept
+ * in a bounded LRU cache, since escaped DNs such as
+ * {@code cn=Smith\, John} tend to be seen again and again.
+ */
+class DnCanonicalizer {
+  private static final Logger LOG = Logger.getLogger(DnCanonicalizer.class.getName());
+
+  /** The most DNs whose slow-path canonical form is cached. */
+  static final int CACHE_SIZE = 10000;
+
+  private static final Map<String, String> cache =
+      new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[256];
+    }
+  };
+
+  private DnCanonicalizer() {
+    // prevents instantiation
+  }
+
+  public static String canonicalize(String dn) {
+    if (dn == null) {
+      return null;
+    }
+    String canonical = canonicalizeAscii(dn);
+    if (canonical != null) {
+      return canonical;
+    }
+    synchronized (cache) {
+      canonical = cache.get(dn);
+    }
+    if (canonical == null) {
+      canonical = canonicalizeSlowly(dn);
+      synchronized (cache) {
+        cache.put(dn, canonical);
+      }
+    }
+    return canonical;
+  }
+
+  /**
+   * Canonicalizes a DN that needs no unescaping: ASCII only, with no
+   * backslashes or quotes, no leading {@code #}, and no leading or trailing
+   * whitespace. The default locale must lower-case ASCII letters the usual
+   * way.
+   *
+   * @return the canonical DN, or {@code null} if the DN needs the slow path
+   */
+  @VisibleForTesting
+  static String canonicalizeAscii(String dn) {
+    int length = dn.length();
+    if (length == 0) {
+      return dn;
+    }
+    if (dn.charAt(0) <= ' ' || dn.charAt(0) == '#' || dn.charAt(length - 1) <= ' '
+        || hasSpecialLowerCase(Locale.getDefault())) {
+      return null;
+    }
+    char[] buffer = buffers.get();
+    if (buffer.length < 3 * length) {
+      buffer = new char[Math.max(3 * length, 2 * buffer.length)];
+      buffers.set(buffer);
+    }
+    boolean changed = false;
+    int end = 0;
+    for (int i = 0; i < length; i++) {
+      char c = dn.charAt(i);
+      if (c >= 0x80 || c == '\\' || c == '"') {
+        return null;
+      } else if (c >= 'A' && c <= 'Z') {
+        buffer[end++] = (char) (c + ('a' - 'A'));
+        changed = true;
+      } else if (c == '/') {
+        buffer[end++] = '%';
+        buffer[end++] = '2';
+        buffer[end++] = 'F';
+        changed = true;
+      } else {
+        buffer[end++] = c;
+      }
+    }
+    return changed ? new String(buffer, 0, end) : dn;
+  }
+
+  /** Returns true if the locale lower-cases some ASCII letters differently. */
+  private static boolean hasSpecialLowerCase(Locale locale) {
+    String language = locale.getLanguage();
+    return "tr".equals(language) || "az".equals(language) || "lt".equals(language);
+  }
+
+  /**
+   * Canonicalizes any DN: lower-cased, unescaped by
+   * {@code Rdn.unescapeValue}, with slashes replaced by {@code %2F}.
+   * Note: this code is from GADS
+   */
+  @VisibleForTesting
+  static String canonicalizeSlowly(String origDn) {
+    origDn = origDn.toLowerCase();
+    try {
+      return Rdn.unescapeValue(origDn).toString().replaceAll("/", "%2F");
+    } catch (IllegalArgumentException e) {
+      LOG.log(Level.INFO, "Potentially invalid LDAP DN found: " + origDn, e);
+    }
+    // we only do this if the Rdn parsing above threw an exception
+    return origDn.replaceAll(" *, *", ",").replaceAll("/", "%2F");
+  }
+}
@@ -0,0 +1,176 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes a sequence of ldap results, each a key and a Multimap of
+ * attributes, in a simple binary format. Strings are written as UTF-8, with
+ * no limit on their length.
+ */
+public class EntryFile {
+  private static final Logger LOG = Logger.getLogger(EntryFile.class.getName());
+
+  private static final int MAGIC = 0x4c444150; // "LDAP"
+  private static final int VERSION = 1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private EntryFile() {
+    // prevents instantiation
+  }
+
+  /**
+   * Writes entries to a file, in the order they are given.
+   */
+  public static class Writer {
+    private final File file;
+    private final DataOutputStream out;
+
+    public Writer(File file) throws IOException {
+      this.file = file;
+      this.out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public void write(String key, Multimap<String, String> entry) throws IOException {
+      out.writeBoolean(true);
+      writeString(out, key);
+      out.writeInt(entry.keySet().size());
+      for (String name : entry.keySet()) {
+        Collection<String> values = entry.get(name);
+        writeString(out, name);
+        out.writeInt(values.size());
+        for (String value : values) {
+          writeString(out, value);
+        }
+      }
+    }
+
+    /** Marks the end of the entries and closes the file. */
+    public void close() throws IOException {
+      out.writeBoolean(false);
+      out.close();
+    }
+
+    /** Closes the file without marking the end; the file is unusable. */
+    public void abort() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Error closing " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Reads the entries from a file written by {@link Writer}, in the order
+   * they were written. I/O errors are thrown as IllegalStateException.
+   */
+  public static class Reader extends AbstractIterator<Entry<String, Multimap<String, String>>> {
+    private final File file;
+    private final DataInputStream in;
+    private boolean closed = false;
+
+    public Reader(File file) throws IOException {
+      this.file = file;
+      this.in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          throw new IOException("Unrecognized file format: " + file);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    @Override
+    protected Entry<String, Multimap<String, String>> computeNext() {
+      if (closed) {
+        return endOfData();
+      }
+      try {
+        if (!in.readBoolean()) {
+          close();
+          return endOfData();
+        }
+        String key = readString(in);
+        int attributeCount = in.readInt();
+        Multimap<String, String> entry = ArrayListMultimap.create();
+        for (int i = 0; i < attributeCount; i++) {
+          String name = readString(in);
+          int valueCount = in.readInt();
+          for (int j = 0; j < valueCount; j++) {
+            entry.put(name, readString(in));
+          }
+        }
+        return Maps.immutableEntry(key, entry);
+      } catch (IOException e) {
+        close();
+        throw new IllegalStateException("Error reading " + file, e);
+      }
+    }
+
+    public void close() {
+      closed = true;
+      try {
+        in.close();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Error closing " + file, e);
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * The entries found by a search, each keyed by its schemaKey value. The
+ * search is closed when the last entry has been read, or when an error
+ * occurs, but a caller that stops early must close it.
+ */
+interface EntrySearch extends Iterator<Entry<String, Multimap<String, String>>> {
+  /** Stops the search, and releases its connection. */
+  void close();
+}
@@ -0,0 +1,171 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts ldap results by key, using a bounded amount of memory. Results are
+ * collected in memory until the buffer is full, then written to disk as a
+ * sorted run. The runs are merged as the sorted results are read.
+ * <p>
+ * When two results have the same key, the one added last wins, as it would
+ * in a {@link java.util.Map}.
+ * <p>
+ * Typical usage is to {@link #add} all of the results, then read them back
+ * from {@link #iterator}. The temporary files are deleted when the iterator
+ * is exhausted, or when {@link #close} is called.
+ */
+public class ExternalEntrySorter implements Iterable<Entry<String, Multimap<String, String>>> {
+
+  private static final Logger LOG = Logger.getLogger(ExternalEntrySorter.class.getName());
+
+  /** The default maximum number of results to hold in memory. */
+  public static final int DEFAULT_BUFFER_SIZE = 50000;
+
+  private final File directory;
+  private final int bufferSize;
+
+  private SortedMap<String, Multimap<String, String>> buffer =
+      new TreeMap<String, Multimap<String, String>>();
+  private final List<File> runs = Lists.newArrayList();
+  private final List<EntryFile.Reader> readers = Lists.newArrayList();
+
+  /**
+   * @param directory the directory for the temporary files, or {@code null}
+   *        to use the system temporary directory
+   * @param bufferSize the maximum number of results to hold in memory
+   */
+  public ExternalEntrySorter(File directory, int bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+    }
+    this.directory = directory;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Adds a result to be sorted. I/O errors are thrown as
+   * IllegalStateException.
+   */
+  public void add(String key, Multimap<String, String> entry) {
+    buffer.put(key, entry);
+    if (buffer.size() >= bufferSize) {
+      spill();
+    }
+  }
+
+  /** Returns the number of sorted runs that have been written to disk. */
+  public int getRunCount() {
+    return runs.size();
+  }
+
+  /**
+   * Returns the results in ascending key order. This should be called only
+   * once, after all of the results have been added.
+   */
+  @Override
+  public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+    List<Iterator<Entry<String, Multimap<String, String>>>> inputs = Lists.newArrayList();
+    try {
+      for (File run : runs) {
+        EntryFile.Reader reader = new EntryFile.Reader(run);
+        readers.add(reader);
+        inputs.add(reader);
+      }
+    } catch (IOException e) {
+      close();
+      throw new IllegalStateException(e);
+    }
+    // The entries still in memory were added last, so they win ties.
+    inputs.add(buffer.entrySet().iterator());
+    if (runs.size() > 0) {
+      LOG.info("Merging " + runs.size() + " sorted runs");
+    }
+    final Iterator<Entry<String, Multimap<String, String>>> merged =
+        (inputs.size() == 1) ? inputs.get(0)
+        : new MergingIterator<Multimap<String, String>>(inputs);
+    return new AbstractIterator<Entry<String, Multimap<String, String>>>() {
+      @Override
+      protected Entry<String, Multimap<String, String>> computeNext() {
+        try {
+          if (merged.hasNext()) {
+            return merged.next();
+          }
+        } catch (RuntimeException e) {
+          close();
+          throw e;
+        }
+        close();
+        return endOfData();
+      }
+    };
+  }
+
+  /** Discards any buffered results and deletes the temporary files. */
+  public void close() {
+    for (EntryFile.Reader reader : readers) {
+      reader.close();
+    }
+    readers.clear();
+    for (File run : runs) {
+      if (!run.delete()) {
+        LOG.warning("Unable to delete temporary file " + run);
+      }
+    }
+    runs.clear();
+    buffer = new TreeMap<String, Multimap<String, String>>();
+  }
+
+  private void spill() {
+    EntryFile.Writer writer = null;
+    try {
+      if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create directory " + directory);
+      }
+      File run = File.createTempFile("ldap-sort", ".run", directory);
+      run.deleteOnExit();
+      runs.add(run);
+      writer = new EntryFile.Writer(run);
+      for (Entry<String, Multimap<String, String>> entry : buffer.entrySet()) {
+        writer.write(entry.getKey(), entry.getValue());
+      }
+      writer.close();
+      writer = null;
+    } catch (IOException e) {
+      if (writer != null) {
+        writer.abort();
+      }
+      close();
+      throw new IllegalStateException(e);
+    }
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Wrote sorted run " + runs.size() + " of " + buffer.size() + " results");
+    }
+    buffer = new TreeMap<String, Multimap<String, String>>();
+  }
+}
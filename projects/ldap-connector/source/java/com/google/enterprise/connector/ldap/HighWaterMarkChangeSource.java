@@ -0,0 +1,118 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.ServerType;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+/**
+ * Finds changed entries with a search for entries changed since a
+ * high-water mark. For Active Directory, the mark is the domain
+ * controller's highestCommittedUSN, compared with each entry's
+ * uSNChanged; the USNs are only meaningful on the same domain controller,
+ * so the mark includes its dsServiceName. For other servers, the mark is
+ * a time, compared with each entry's modifyTimestamp.
+ * <p>
+ * These searches do not find deleted entries, or entries that have moved
+ * out of the search.
+ */
+class HighWaterMarkChangeSource implements ChangeSource {
+  private static final Logger LOG = Logger.getLogger(HighWaterMarkChangeSource.class.getName());
+
+  private static final String USN_PREFIX = "usn:";
+  private static final String TIMESTAMP_PREFIX = "modifytimestamp:";
+
+  /**
+   * How far before the current time a modifyTimestamp high-water mark is
+   * set, to allow for a difference between our clock and the server's.
+   */
+  private static final long CLOCK_SKEW_MILLIS = 10 * 60 * 1000L;
+
+  private final LdapDirectory directory;
+  private final boolean useUsn;
+
+  public HighWaterMarkChangeSource(LdapDirectory directory) {
+    this.directory = directory;
+    this.useUsn = directory.getServerType() == ServerType.ACTIVE_DIRECTORY;
+  }
+
+  @Override
+  public String getPosition() {
+    if (useUsn) {
+      Multimap<String, String> rootDse =
+          directory.readRootDse("highestCommittedUSN", "dsServiceName");
+      String usn = LdapHandler.getFirst("highestcommittedusn", rootDse);
+      String dsa = LdapHandler.getFirst("dsservicename", rootDse);
+      if (usn == null || dsa == null) {
+        LOG.warning("Unable to read the highestCommittedUSN");
+        return null;
+      }
+      return USN_PREFIX + usn + "|" + dsa;
+    } else {
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return TIMESTAMP_PREFIX
+          + format.format(new Date(System.currentTimeMillis() - CLOCK_SKEW_MILLIS));
+    }
+  }
+
+  @Override
+  public ChangeSet getChanges(String position, int maxChanges) {
+    String changeFilter;
+    if (useUsn && position.startsWith(USN_PREFIX)) {
+      String[] mark = position.substring(USN_PREFIX.length()).split("\\|", 2);
+      String current = getPosition();
+      if (current == null || mark.length != 2 || !current.endsWith("|" + mark[1])) {
+        LOG.info("Connected to a different domain controller");
+        return null;
+      }
+      try {
+        changeFilter = "(uSNChanged>=" + (Long.parseLong(mark[0]) + 1) + ")";
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      return search(changeFilter, current, maxChanges);
+    } else if (!useUsn && position.startsWith(TIMESTAMP_PREFIX)) {
+      // Read the new mark first, so that no changes are missed.
+      String current = getPosition();
+      changeFilter = "(modifyTimestamp>=" + position.substring(TIMESTAMP_PREFIX.length()) + ")";
+      return search(changeFilter, current, maxChanges);
+    } else {
+      return null;
+    }
+  }
+
+  private ChangeSet search(String changeFilter, String current, int maxChanges) {
+    ChangeSet changes = new ChangeSet(current);
+    EntrySearch search = directory.search(changeFilter);
+    while (search.hasNext()) {
+      Entry<String, Multimap<String, String>> entry = search.next();
+      changes.addChanged(entry.getKey(), entry.getValue());
+      if (changes.size() > maxChanges) {
+        LOG.info("More than " + maxChanges + " changes");
+        search.close();
+        return null;
+      }
+    }
+    return changes;
+  }
+}
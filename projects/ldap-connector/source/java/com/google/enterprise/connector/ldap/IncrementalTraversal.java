@@ -0,0 +1,296 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Multimap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Produces the sorted results of a traversal from the results of the
+ * previous traversal plus the changes since then, instead of reading every
+ * entry. The results of each traversal are saved in a directory, along with
+ * the position to read the next changes from, once they have all been read.
+ * <p>
+ * A full traversal is done instead if there are no saved results, if the
+ * configuration has changed since they were saved, if the changes are not
+ * available or there are too many of them, or if the last full traversal is
+ * older than the reconciliation interval. Periodic full traversals catch
+ * the changes that a {@link ChangeSource} cannot see, such as deletions.
+ */
+public class IncrementalTraversal {
+  private static final Logger LOG = Logger.getLogger(IncrementalTraversal.class.getName());
+
+  static final String BASELINE_FILE = "baseline.dat";
+  static final String STATE_FILE = "state.properties";
+
+  private static final String FINGERPRINT = "fingerprint";
+  private static final String POSITION = "position";
+  private static final String LAST_FULL = "lastFull";
+
+  private final File directory;
+  private final String fingerprint;
+  private final long reconcileMillis;
+  private final int maxChanges;
+
+  /**
+   * @param directory the directory for the saved results
+   * @param fingerprint a description of the configuration that determines
+   *        the results; saved results with a different fingerprint are
+   *        discarded
+   * @param reconcileMillis the longest time between full traversals
+   * @param maxChanges the largest number of changes to apply; with more
+   *        changes than this, a full traversal is done
+   */
+  public IncrementalTraversal(File directory, String fingerprint, long reconcileMillis,
+      int maxChanges) {
+    this.directory = directory;
+    this.fingerprint = fingerprint;
+    this.reconcileMillis = reconcileMillis;
+    this.maxChanges = maxChanges;
+  }
+
+  /**
+   * Returns the results of a traversal, in ascending key order. The results
+   * are saved, along with the new position, when the returned iterator is
+   * exhausted.
+   *
+   * @param source the source of the changes
+   * @param full supplies the results of a full traversal, in ascending key
+   *        order
+   */
+  public Iterator<Entry<String, Multimap<String, String>>> traverse(ChangeSource source,
+      Supplier<Iterator<Entry<String, Multimap<String, String>>>> full) {
+    Properties state = loadState();
+    if (state != null) {
+      ChangeSet changes = source.getChanges(state.getProperty(POSITION), maxChanges);
+      if (changes == null) {
+        LOG.info("Changes are not available; reading all entries");
+      } else {
+        try {
+          EntryFile.Reader baseline = new EntryFile.Reader(new File(directory, BASELINE_FILE));
+          LOG.info("Applying " + changes.size() + " changes to the saved entries");
+          return save(apply(baseline, changes), changes.getPosition(),
+              Long.parseLong(state.getProperty(LAST_FULL)), baseline);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to read the saved entries; reading all entries", e);
+        }
+      }
+    }
+    String position = source.getPosition();
+    long started = System.currentTimeMillis();
+    return save(full.get(), position, started, null);
+  }
+
+  /**
+   * Returns the saved state, or null if there are no usable saved results.
+   */
+  private Properties loadState() {
+    File stateFile = new File(directory, STATE_FILE);
+    if (!stateFile.exists() || !new File(directory, BASELINE_FILE).exists()) {
+      LOG.info("No saved entries; reading all entries");
+      return null;
+    }
+    Properties state = new Properties();
+    try {
+      InputStream in = new FileInputStream(stateFile);
+      try {
+        state.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read " + stateFile, e);
+      return null;
+    }
+    if (!fingerprint.equals(state.getProperty(FINGERPRINT))) {
+      LOG.info("The configuration has changed; reading all entries");
+      return null;
+    }
+    if (state.getProperty(POSITION) == null) {
+      return null;
+    }
+    long lastFull;
+    try {
+      lastFull = Long.parseLong(state.getProperty(LAST_FULL));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (System.currentTimeMillis() - lastFull >= reconcileMillis) {
+      LOG.info("Reconciliation is due; reading all entries");
+      return null;
+    }
+    return state;
+  }
+
+  /**
+   * Drops the saved entries that have changed, and merges in their new
+   * versions.
+   */
+  private static Iterator<Entry<String, Multimap<String, String>>> apply(
+      Iterator<Entry<String, Multimap<String, String>>> baseline, ChangeSet changes) {
+    final Set<String> removedDns = changes.getRemovedDns();
+    Iterator<Entry<String, Multimap<String, String>>> unchanged = Iterators.filter(baseline,
+        new Predicate<Entry<String, Multimap<String, String>>>() {
+          @Override
+          public boolean apply(Entry<String, Multimap<String, String>> entry) {
+            for (String dn : entry.getValue().get(LdapHandler.DN_ATTRIBUTE)) {
+              if (removedDns.contains(dn)) {
+                return false;
+              }
+            }
+            return true;
+          }
+        });
+    return new MergingIterator<Multimap<String, String>>(ImmutableList.of(
+        unchanged, changes.getChanged().entrySet().iterator()));
+  }
+
+  /**
+   * Passes the results through, writing them to a new baseline file. When
+   * the results are exhausted, the new file replaces the old one, and the
+   * state is saved. If the results cannot be written, they are still
+   * returned, and the previous results and state are kept.
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> save(
+      final Iterator<Entry<String, Multimap<String, String>>> results, final String position,
+      final long lastFull, final EntryFile.Reader baseline) {
+    return new AbstractIterator<Entry<String, Multimap<String, String>>>() {
+      private File temporary = null;
+      private EntryFile.Writer writer = null;
+      private boolean started = false;
+
+      @Override
+      protected Entry<String, Multimap<String, String>> computeNext() {
+        if (!started) {
+          started = true;
+          open();
+        }
+        Entry<String, Multimap<String, String>> entry;
+        try {
+          if (!results.hasNext()) {
+            commit();
+            return endOfData();
+          }
+          entry = results.next();
+        } catch (RuntimeException e) {
+          abort();
+          throw e;
+        }
+        if (writer != null) {
+          try {
+            writer.write(entry.getKey(), entry.getValue());
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to save the entries", e);
+            discard();
+          }
+        }
+        return entry;
+      }
+
+      private void open() {
+        try {
+          if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+          }
+          temporary = File.createTempFile("baseline", ".tmp", directory);
+          writer = new EntryFile.Writer(temporary);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to save the entries", e);
+          discard();
+        }
+      }
+
+      private void commit() {
+        if (baseline != null) {
+          baseline.close();
+        }
+        if (writer == null) {
+          return;
+        }
+        File stateFile = new File(directory, STATE_FILE);
+        File baselineFile = new File(directory, BASELINE_FILE);
+        try {
+          writer.close();
+          writer = null;
+          // Without a state file, the baseline is not used, so a failure
+          // part way through leads to a full traversal.
+          if (stateFile.exists() && !stateFile.delete()) {
+            throw new IOException("Unable to delete " + stateFile);
+          }
+          if (baselineFile.exists() && !baselineFile.delete()) {
+            throw new IOException("Unable to delete " + baselineFile);
+          }
+          if (!temporary.renameTo(baselineFile)) {
+            throw new IOException("Unable to rename " + temporary + " to " + baselineFile);
+          }
+          if (position != null) {
+            Properties state = new Properties();
+            state.setProperty(FINGERPRINT, fingerprint);
+            state.setProperty(POSITION, position);
+            state.setProperty(LAST_FULL, Long.toString(lastFull));
+            OutputStream out = new FileOutputStream(stateFile);
+            try {
+              state.store(out, null);
+            } finally {
+              out.close();
+            }
+          }
+          LOG.fine("Saved the entries at position " + position);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to save the entries", e);
+          stateFile.delete();
+          discard();
+        }
+      }
+
+      /** Stops reading the old baseline, and discards the new one. */
+      private void abort() {
+        if (baseline != null) {
+          baseline.close();
+        }
+        discard();
+      }
+
+      /** Discards the new baseline. */
+      private void discard() {
+        if (writer != null) {
+          writer.abort();
+          writer = null;
+        }
+        if (temporary != null) {
+          temporary.delete();
+          temporary = null;
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.ldap.LdapConstants.ErrorMessages;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * An {@link LdapEngine} on top of JNDI. JNDI searches are synchronous, so
+ * each search runs on a pooled thread, with a connection from the pool
+ * that {@link LdapHandler} uses. This gives the listener interface, and
+ * lets searches share connections and replica selection with
+ * LdapHandler, but each search in progress still holds a thread and a
+ * connection.
+ */
+public class JndiLdapEngine implements LdapEngine {
+  private static final Logger LOG = Logger.getLogger(JndiLdapEngine.class.getName());
+
+  private final LdapConnectionSettings settings;
+  private final String connectionTimeout;
+  private final ExecutorService executor;
+
+  /**
+   * @param settings the server to connect to
+   * @param connectionTimeout the connection timeout, in milliseconds, as a
+   *        string; zero or less uses the network's timeout
+   */
+  public JndiLdapEngine(LdapConnectionSettings settings, String connectionTimeout) {
+    this.settings = settings;
+    this.connectionTimeout = connectionTimeout;
+    this.executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("ldap-engine-%d").setDaemon(true).build());
+  }
+
+  @Override
+  public Map<LdapConnectionError, Throwable> checkConnection() {
+    LdapConnection connection = LdapHandler.borrowConnection(settings, connectionTimeout);
+    Map<LdapConnectionError, Throwable> errors = ImmutableMap.copyOf(connection.getErrors());
+    LdapHandler.releaseConnection(connection);
+    return errors;
+  }
+
+  @Override
+  public Search search(LdapRule.Scope scope, String filter, Set<String> attributes,
+      int pageSize, SearchListener listener) {
+    JndiSearch search = new JndiSearch(scope, filter, attributes, pageSize, listener);
+    executor.execute(search);
+    return search;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private class JndiSearch implements Search, Runnable {
+    private final String filter;
+    private final SearchControls controls;
+    private final int pageSize;
+    private final SearchListener listener;
+    private volatile boolean cancelled = false;
+
+    JndiSearch(LdapRule.Scope scope, String filter, Set<String> attributes, int pageSize,
+        SearchListener listener) {
+      this.filter = filter;
+      this.pageSize = pageSize;
+      this.listener = listener;
+      controls = new SearchControls();
+      if (scope == LdapRule.Scope.OBJECT) {
+        controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+      } else if (scope == LdapRule.Scope.ONELEVEL) {
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+      } else {
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      }
+      if (attributes != null && !attributes.isEmpty()) {
+        controls.setReturningAttributes(attributes.toArray(new String[attributes.size()]));
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+
+    @Override
+    public void run() {
+      LdapConnection connection = LdapHandler.borrowConnection(settings, connectionTimeout);
+      LdapContext ctx = connection.getLdapContext();
+      if (ctx == null) {
+        Map<LdapConnectionError, Throwable> errors = connection.getErrors();
+        listener.onError(errors.isEmpty()
+            ? new IllegalStateException(ErrorMessages.UNKNOWN_CONNECTION_ERROR.toString())
+            : new IllegalStateException(errors.values().iterator().next()));
+        return;
+      }
+      boolean reusable = false;
+      try {
+        byte[] cookie = null;
+        do {
+          ctx.setRequestControls(new Control[] {
+              new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+          NamingEnumeration<SearchResult> results = ctx.search("", filter, controls);
+          try {
+            while (!cancelled && results.hasMore()) {
+              SearchResult result = results.next();
+              String dn = result.getNameInNamespace();
+              Multimap<String, String> values = ArrayListMultimap.create();
+              List<RangedAttributes.Range> ranges = addValues(values, result.getAttributes());
+              if (!ranges.isEmpty()) {
+                RangedAttributes.readRemaining(settings, connectionTimeout, dn, values, ranges);
+              }
+              listener.onEntry(dn, values);
+            }
+          } finally {
+            results.close();
+          }
+          cookie = getCookie(ctx.getResponseControls());
+        } while (!cancelled && cookie != null && cookie.length > 0);
+        // A cancelled search may still be active on the server, so that
+        // connection is not reused.
+        reusable = !cancelled;
+        if (!cancelled) {
+          listener.onDone();
+        }
+      } catch (NamingException e) {
+        connection.recordError(e);
+        listener.onError(new IllegalStateException(e));
+      } catch (IOException e) {
+        listener.onError(new IllegalStateException(e));
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Ldap search failed", e);
+        listener.onError(e);
+      } finally {
+        if (reusable) {
+          LdapHandler.releaseConnection(connection);
+        } else {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  private static byte[] getCookie(Control[] controls) {
+    if (controls != null) {
+      for (Control control : controls) {
+        if (control instanceof PagedResultsResponseControl) {
+          return ((PagedResultsResponseControl) control).getCookie();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds the string values of the attributes, by lower-case name. The
+   * values of an attribute returned in ranges are added under its plain
+   * name.
+   *
+   * @return the ranges of attributes with more values to read
+   */
+  private static List<RangedAttributes.Range> addValues(Multimap<String, String> values,
+      Attributes attributes) throws NamingException {
+    List<RangedAttributes.Range> ranges = Lists.newArrayList();
+    NamingEnumeration<? extends Attribute> all = attributes.getAll();
+    while (all.hasMore()) {
+      Attribute attribute = all.next();
+      String name = attribute.getID().toLowerCase();
+      RangedAttributes.Range range = RangedAttributes.parse(name);
+      if (range != null) {
+        name = range.name;
+        if (!range.isLast()) {
+          ranges.add(range);
+        }
+      }
+      RangedAttributes.addValues(values, name, attribute);
+    }
+    return ranges;
+  }
+}
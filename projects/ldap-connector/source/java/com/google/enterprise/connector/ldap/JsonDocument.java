@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SimpleDocument;
 import com.google.enterprise.connector.spi.SpiConstants;
@@ -46,8 +47,17 @@ public class JsonDocument extends SimpleDocument {
   private final String jsonString;
   private final String objectId;
 
+  /**
+   * True if the document was made from a snapshot string. Its properties
+   * are then parsed into {@code parsed} on first use, instead of being held
+   * by the superclass.
+   */
+  private final boolean fromSnapshot;
+  private SimpleDocument parsed = null;
+
   public JsonDocument(JSONObject jo) {
     super(buildJsonProperties(jo));
+    fromSnapshot = false;
     jsonString = jo.toString();
     try {
       objectId = Value.getSingleValueString(this, SpiConstants.PROPNAME_DOCID);
@@ -59,6 +69,40 @@ public class JsonDocument extends SimpleDocument {
     }
   }
 
+  /**
+   * Makes a document whose properties and snapshot string have already
+   * been built, such as by {@link JsonSnapshotWriter}.
+   *
+   * @param properties the properties, as parsing the string would give
+   * @param jsonString the snapshot string
+   * @param objectId the docid that the string holds
+   */
+  JsonDocument(Map<String, List<Value>> properties, String jsonString, String objectId) {
+    super(properties);
+    this.fromSnapshot = false;
+    this.jsonString = jsonString;
+    this.objectId = objectId;
+  }
+
+  private JsonDocument(String jsonString, String objectId) {
+    super(ImmutableMap.<String, List<Value>>of());
+    this.fromSnapshot = true;
+    this.jsonString = jsonString;
+    this.objectId = objectId;
+  }
+
+  /**
+   * Returns a document for a snapshot string that has already been
+   * written. Its properties are only parsed from the string if they are
+   * asked for.
+   *
+   * @param jsonString the snapshot string
+   * @param objectId the docid that the string holds
+   */
+  static JsonDocument fromSnapshot(String jsonString, String objectId) {
+    return new JsonDocument(jsonString, objectId);
+  }
+
   public static Function<Multimap<String, String>, JsonDocument> buildFromMultimap =
     new Function<Multimap<String, String>, JsonDocument>() {
     @Override
@@ -87,6 +131,27 @@ public class JsonDocument extends SimpleDocument {
     return jsonString;
   }
 
+  @Override
+  public Property findProperty(String name) {
+    return fromSnapshot ? getParsed().findProperty(name) : super.findProperty(name);
+  }
+
+  @Override
+  public Set<String> getPropertyNames() {
+    return fromSnapshot ? getParsed().getPropertyNames() : super.getPropertyNames();
+  }
+
+  private synchronized SimpleDocument getParsed() {
+    if (parsed == null) {
+      try {
+        parsed = new SimpleDocument(buildJsonProperties(new JSONObject(jsonString)));
+      } catch (JSONException e) {
+        throw new IllegalStateException("Internal consistency error", e);
+      }
+    }
+    return parsed;
+  }
+
   private static Map<String, List<Value>> buildJsonProperties(JSONObject jo) {
     ImmutableMap.Builder<String, List<Value>> mapBuilder =
         new ImmutableMap.Builder<String, List<Value>>();
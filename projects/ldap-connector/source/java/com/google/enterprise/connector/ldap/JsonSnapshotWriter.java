@@ -0,0 +1,211 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Writes the snapshot string of an entry directly from its attributes,
+ * into a buffer that is reused from one entry to the next. The output is
+ * the same, byte for byte, as building a {@code JSONObject} from the entry
+ * with the docid and lock added and calling {@code toString} on it, which
+ * is how snapshots have always been written, so existing snapshots still
+ * match. The {@link JsonDocument} properties are built in the same pass,
+ * with the same values that parsing the string back would give, so the
+ * string is never parsed.
+ * <p>
+ * Matching the old key order relies on library behavior that is not
+ * specified, and holds for the JDK 6 and the org.json and Guava jars that
+ * the Connector Manager ships with:
+ * <ul>
+ * <li>{@code JSONObject} keeps its keys in a {@code java.util.HashMap},
+ * and {@code toString} writes them in its iteration order.
+ * <li>{@code HashMap} iterates in bucket order, and within a bucket in
+ * an order that depends on the order the keys were added. The bucket depends on the hash and the
+ * table size, which doubles once the map is three quarters full, and
+ * {@code new HashMap(map)} may pick a different table size than adding
+ * the same keys one at a time.
+ * <li>{@code ArrayListMultimap} keeps its keys in a {@code HashMap}, and
+ * {@code ArrayListMultimap.create(multimap)} sizes it for the keys of the
+ * multimap it copies.
+ * </ul>
+ * {@code JsonSnapshotWriterTest} compares the output against
+ * {@link JsonDocument#buildFromMultimap}, including entries with keys
+ * whose hashes collide and with enough keys to resize the table; run it
+ * after upgrading any of these.
+ * <p>
+ * A writer is not thread-safe; use one per traversal.
+ */
+public class JsonSnapshotWriter {
+  private final StringBuilder buffer = new StringBuilder(1024);
+
+  /**
+   * Returns the document for an entry.
+   *
+   * @param docid the docid, already encoded
+   * @param attributes the attributes of the entry
+   */
+  public JsonDocument write(String docid, Multimap<String, String> attributes) {
+    // The keys are written in the order that they used to come out of the
+    // HashMap in JSONObject, which depends on the order they were added in.
+    // That was the order of the HashMap in the ArrayListMultimap copy of the
+    // entry, sized for the entry's keys, that the docid and lock were added
+    // to.
+    Iterable<String> entryKeys = attributes.keySet();
+    if (attributes instanceof CompactEntry) {
+      // Entries were ArrayListMultimaps built in the order that a compact
+      // entry keeps its keys, and the copy was made in their HashMap order.
+      Map<String, Boolean> original = Maps.newHashMap();
+      for (String key : entryKeys) {
+        original.put(key, Boolean.TRUE);
+      }
+      entryKeys = original.keySet();
+    }
+    Map<String, Collection<String>> copy =
+        Maps.newHashMapWithExpectedSize(attributes.keySet().size());
+    for (String key : entryKeys) {
+      copy.put(key, attributes.get(key));
+    }
+    if (!copy.containsKey(SpiConstants.PROPNAME_DOCID)) {
+      copy.put(SpiConstants.PROPNAME_DOCID, Collections.<String>emptyList());
+    }
+    if (!copy.containsKey(SpiConstants.PROPNAME_LOCK)) {
+      copy.put(SpiConstants.PROPNAME_LOCK, Collections.<String>emptyList());
+    }
+    // Added one at a time, since putAll may size the map differently.
+    Map<String, Collection<String>> keys = Maps.newHashMap();
+    for (Map.Entry<String, Collection<String>> entry : copy.entrySet()) {
+      keys.put(entry.getKey(), entry.getValue());
+    }
+
+    SortedMap<String, List<Value>> properties = Maps.newTreeMap();
+    buffer.setLength(0);
+    buffer.append('{');
+    String objectId = null;
+    for (Map.Entry<String, Collection<String>> entry : keys.entrySet()) {
+      if (buffer.length() > 1) {
+        buffer.append(',');
+      }
+      String key = entry.getKey();
+      quote(key);
+      buffer.append(':');
+      int start = buffer.length();
+      buffer.append('[');
+      ImmutableList.Builder<Value> values = ImmutableList.builder();
+      boolean first = true;
+      for (String value : entry.getValue()) {
+        first = append(value, first, values);
+      }
+      if (key.equals(SpiConstants.PROPNAME_DOCID)) {
+        append(docid, first, values);
+      } else if (key.equals(SpiConstants.PROPNAME_LOCK)) {
+        append("true", first, values);
+      }
+      buffer.append(']');
+      if (key.equals(SpiConstants.PROPNAME_DOCID)) {
+        // JsonDocument took the docid from JSONObject.getString, which
+        // returns the text of the JSON array.
+        objectId = buffer.substring(start);
+        properties.put(key, ImmutableList.of(Value.getStringValue(objectId)));
+      } else {
+        List<Value> list = values.build();
+        if (!list.isEmpty()) {
+          properties.put(key, list);
+        }
+      }
+    }
+    buffer.append('}');
+    return new JsonDocument(ImmutableMap.copyOf(properties), buffer.toString(), objectId);
+  }
+
+  /**
+   * Appends a value to the JSON array being written, and to the values of
+   * its property as {@code JSONArray.getString} would return it.
+   */
+  private boolean append(String value, boolean first, ImmutableList.Builder<Value> values) {
+    if (!first) {
+      buffer.append(',');
+    }
+    if (value == null) {
+      // JSONArray.getString skipped null values.
+      buffer.append("null");
+    } else {
+      quote(value);
+      values.add(Value.getStringValue(value));
+    }
+    return false;
+  }
+
+  /** Appends a string quoted as {@code JSONObject.quote} does. */
+  private void quote(String value) {
+    buffer.append('"');
+    char previous;
+    char c = 0;
+    for (int i = 0; i < value.length(); i++) {
+      previous = c;
+      c = value.charAt(i);
+      switch (c) {
+        case '\\':
+        case '"':
+          buffer.append('\\').append(c);
+          break;
+        case '/':
+          if (previous == '<') {
+            buffer.append('\\');
+          }
+          buffer.append(c);
+          break;
+        case '\b':
+          buffer.append("\\b");
+          break;
+        case '\t':
+          buffer.append("\\t");
+          break;
+        case '\n':
+          buffer.append("\\n");
+          break;
+        case '\f':
+          buffer.append("\\f");
+          break;
+        case '\r':
+          buffer.append("\\r");
+          break;
+        default:
+          if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+            buffer.append("\\u");
+            String hex = Integer.toHexString(c);
+            for (int pad = hex.length(); pad < 4; pad++) {
+              buffer.append('0');
+            }
+            buffer.append(hex);
+          } else {
+            buffer.append(c);
+          }
+      }
+    }
+    buffer.append('"');
+  }
+}
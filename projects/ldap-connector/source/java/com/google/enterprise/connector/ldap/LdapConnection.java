@@ -0,0 +1,298 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Maps;
+import com.google.enterprise.connector.ldap.LdapConstants.AuthType;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapConstants.Method;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+
+import java.io.IOException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.AuthenticationException;
+import javax.naming.AuthenticationNotSupportedException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+
+/**
+ * A connection to an Ldap Server
+ */
+class LdapConnection {
+  private static final Logger LOG = Logger.getLogger(LdapConnection.class.getName());
+
+  /** The latency and availability of each replica, shared with the handlers. */
+  private static final ReplicaSelector REPLICAS = LdapHandler.getReplicaSelector();
+
+  private static final String COM_SUN_JNDI_LDAP_LDAP_CTX_FACTORY =
+      "com.sun.jndi.ldap.LdapCtxFactory";
+  private static final String COM_SUN_JNDI_LDAP_CONNECT_TIMEOUT =
+      "com.sun.jndi.ldap.connect.timeout";
+
+  private final LdapConnectionSettings settings;
+  private LdapContext ldapContext = null;
+  private final Map<LdapConnectionError, Throwable> errors;
+  private String connectionTimeOut;
+  private final boolean useBaseDN;
+
+  /** The replica connected to, or null if the connection failed. */
+  private String endpoint = null;
+
+  public LdapConnection(LdapConnectionSettings ldapConnectionSettings, String connectionTimeOut) {
+    this(ldapConnectionSettings, connectionTimeOut, true);
+  }
+
+  /**
+   * @param useBaseDN if false, the context is rooted at the rootDSE
+   *        rather than the base DN
+   */
+  public LdapConnection(LdapConnectionSettings ldapConnectionSettings, String connectionTimeOut,
+      boolean useBaseDN) {
+    this(ldapConnectionSettings, connectionTimeOut, useBaseDN, -1);
+  }
+
+  /**
+   * @param useBaseDN if false, the context is rooted at the rootDSE
+   *        rather than the base DN
+   * @param replica the index of the replica to prefer, or -1 for the best
+   */
+  public LdapConnection(LdapConnectionSettings ldapConnectionSettings, String connectionTimeOut,
+      boolean useBaseDN, int replica) {
+    LOG.fine("Configuring LdapConnection with settings: " + ldapConnectionSettings);
+    this.settings = ldapConnectionSettings;
+    this.errors = Maps.newHashMap();
+    this.connectionTimeOut = connectionTimeOut;
+    this.useBaseDN = useBaseDN;
+    Hashtable<String, String> env = configureLdapEnvironment();
+    ldapContext = makeContext(env, LdapHandler.DEFAULT_PAGE_SIZE, replica);
+  }
+
+  public LdapContext getLdapContext() {
+    return ldapContext;
+  }
+
+  public Map<LdapConnectionError, Throwable> getErrors() {
+    return errors;
+  }
+
+  public LdapConnectionSettings getSettings() {
+    return settings;
+  }
+
+  /** Returns the replica connected to, or null if the connection failed. */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Records an error from this connection. If the replica stopped
+   * answering, it is avoided by new connections for a while.
+   */
+  public void recordError(NamingException e) {
+    if (endpoint != null && (e instanceof CommunicationException
+        || e instanceof ServiceUnavailableException)) {
+      REPLICAS.recordFailure(endpoint);
+    }
+  }
+
+  /**
+   * Checks that an idle connection still works, and restores the request
+   * controls that a new connection would have.
+   *
+   * @return true if the connection can be used
+   */
+  public boolean reset() {
+    if (ldapContext == null) {
+      return false;
+    }
+    try {
+      ldapContext.setRequestControls(null);
+      // Read the base entry, asking for no attributes.
+      ldapContext.getAttributes("", new String[] { "1.1" });
+      ldapContext.setRequestControls(new Control[] {
+          new PagedResultsControl(LdapHandler.DEFAULT_PAGE_SIZE, Control.NONCRITICAL)});
+      return true;
+    } catch (NamingException e) {
+      LOG.log(Level.FINE, "Discarding idle connection", e);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Discarding idle connection", e);
+    }
+    return false;
+  }
+
+  public void close() {
+    if (ldapContext != null) {
+      try {
+        ldapContext.close();
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "ldap_connection_cleanup_error_on_context", e);
+      }
+    }
+  }
+
+  /**
+   * Connects to the first replica that answers, trying them in the order
+   * chosen by {@link #REPLICAS}. Errors other than communication errors,
+   * such as failing to authenticate, would be the same on every replica,
+   * so the other replicas are not tried.
+   */
+  private LdapContext makeContext(Hashtable<String, String> env, int pageSize, int replica) {
+    LdapContext ctx = null;
+    for (String candidate : REPLICAS.orderTiers(settings.getEndpoints(), replica)) {
+      errors.clear();
+      env.put(Context.PROVIDER_URL, makeLdapUrl(candidate));
+      long start = System.nanoTime();
+      ctx = makeContext(env);
+      if (ctx != null) {
+        REPLICAS.recordSuccess(candidate, System.nanoTime() - start);
+        endpoint = candidate;
+        break;
+      }
+      if (!isCommunicationError()) {
+        break;
+      }
+      REPLICAS.recordFailure(candidate);
+    }
+    if (ctx == null) {
+      return null;
+    }
+    try {
+      ctx.setRequestControls(new Control[] {new PagedResultsControl(pageSize, 
+          Control.NONCRITICAL)});
+    } catch (NamingException e) {
+      errors.put(LdapConnectionError.NamingException, e);
+    } catch (IOException e) {
+      errors.put(LdapConnectionError.IOException, e);
+    }
+    return ctx;
+  }
+
+  private boolean isCommunicationError() {
+    return errors.containsKey(LdapConnectionError.CommunicationException)
+        || errors.containsKey(LdapConnectionError.CommunicationExceptionTimeout)
+        || errors.containsKey(LdapConnectionError.CommunicationExceptionUnknownhost);
+  }
+
+  private LdapContext makeContext(Hashtable<String, String> env) {
+    LdapContext ctx = null;
+    try {
+      ctx = new InitialLdapContext(env, null);
+    } catch (CommunicationException e) {
+      LOG.info("Communication error : " + e.toString());
+
+      if (e.getCause() instanceof NoRouteToHostException) {
+        errors.put(LdapConnectionError.CommunicationException, e.getCause());
+      } else if (e.getCause() instanceof SocketTimeoutException) {
+        errors.put(LdapConnectionError.CommunicationExceptionTimeout, e.getCause());
+      } else if (e.getCause() instanceof UnknownHostException) {
+        errors.put(LdapConnectionError.CommunicationExceptionUnknownhost, e.getCause());
+      } else {
+        errors.put(LdapConnectionError.CommunicationException, e);
+      }
+    } catch (AuthenticationNotSupportedException e) {
+      errors.put(LdapConnectionError.AuthenticationNotSupported, e);
+    } catch (AuthenticationException e) {
+      errors.put(LdapConnectionError.AuthenticationException, e);
+    } catch (NamingException e) {
+      errors.put(LdapConnectionError.NamingException, e);
+    }
+    return ctx;
+  }
+
+  private String makeLdapUrl(String endpoint) {
+    String url;
+    Method connectMethod =
+        settings.getConnectMethod();
+    if (connectMethod == Method.SSL) {
+      url = "ldaps://"; //$NON-NLS-1$
+    } else {
+      url = "ldap://"; //$NON-NLS-1$
+    }
+
+    // Construct the full URL
+    url = url + endpoint + "/";
+
+    if (useBaseDN && settings.getBaseDN() != null) {
+      url = url + encodeBaseDN(settings.getBaseDN());
+    }
+    return url;
+  }
+
+  /**
+   * Initialize the Hashtable used to create an initial LDAP Context. Note
+   * that we specifically require a Hashtable rather than a HashMap as the
+   * parameter type in the InitialLDAPContext constructor
+   *
+   * @return initialized Hashtable suitable for constructing an
+   *         InitiaLdaplContext
+   */
+  private Hashtable<String, String> configureLdapEnvironment() {
+    Hashtable<String, String> env = new Hashtable<String, String>();
+
+    // Use the built-in LDAP support.
+    env.put(Context.INITIAL_CONTEXT_FACTORY, COM_SUN_JNDI_LDAP_LDAP_CTX_FACTORY);
+
+    // property to indicate to the server how to handle referrals
+    env.put(Context.REFERRAL, "follow");
+
+    // force the following attributes to be returned as binary data
+    env.put("java.naming.ldap.attributes.binary", "objectGUID objectSid");
+
+    // Specify connection timeout, value of zero or less means use networks timeout value
+    env.put(COM_SUN_JNDI_LDAP_CONNECT_TIMEOUT, connectionTimeOut);    
+
+    // Set our authentication settings.
+    AuthType authType = settings.getAuthType();
+    if (authType == AuthType.SIMPLE) {
+      env.put(Context.SECURITY_AUTHENTICATION, authType.toString()
+          .toLowerCase());
+      env.put(Context.SECURITY_PRINCIPAL, settings.getUsername());
+      env.put(Context.SECURITY_CREDENTIALS, settings.getPassword());
+      LOG.info("Using simple authentication.");
+    } else {
+      if (authType != AuthType.ANONYMOUS) {
+        LOG.warning("Unknown authType - falling back to anonymous.");
+      } else {
+        LOG.info("Using anonymous authentication.");
+      }
+      env.put(Context.SECURITY_AUTHENTICATION, "none"); //$NON-NLS-1$
+    }
+    return env;
+  }
+
+  /**
+   * We have to do some simple, naive escaping of the base DN. We CANNOT use
+   * normal URL escaping, as '+' is not handled properly by the JNDI backend.
+   */
+  private String encodeBaseDN(String origValue) {
+    origValue = origValue.replace(" ", "%20");
+    return origValue;
+  }
+
+}
@@ -16,8 +16,11 @@ package com.google.enterprise.connector.ldap;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.ldap.LdapConstants.AuthType;
+import com.google.enterprise.connector.ldap.LdapConstants.ChangeSourceType;
 import com.google.enterprise.connector.ldap.LdapConstants.ConfigName;
+import com.google.enterprise.connector.ldap.LdapConstants.EngineType;
 import com.google.enterprise.connector.ldap.LdapConstants.Method;
+import com.google.enterprise.connector.ldap.LdapConstants.ServerType;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapRule.Scope;
@@ -54,6 +57,24 @@ public class LdapConnectorConfig {
   private final String basedn;
   private final String filter;
   private final String schemaKey;
+  private final String workdir;
+  private final int sortBufferSize;
+  private final boolean serverSort;
+  private final int partitions;
+  private final String partitionAttribute;
+  private final boolean spreadReplicas;
+  private final int pageSize;
+  private final boolean adaptivePageSize;
+  private final boolean prefetch;
+  private final ServerType serverType;
+  private final String domain;
+  private final EngineType engine;
+  private final boolean incremental;
+  private final int reconcileHours;
+  private final ChangeSourceType changeSource;
+  private final boolean twoPhase;
+  private final int internValues;
+  private final Set<String> internAttributes;
 
   private final Set<String> schema;
   private final LdapRule rule;
@@ -91,6 +112,7 @@ public class LdapConnectorConfig {
     String basedn = getTrimmedValueFromConfig(config, ConfigName.BASEDN);
     String filter = getTrimmedValueFromConfig(config, ConfigName.FILTER);
     String schemaKey = getTrimmedValueFromConfig(config, ConfigName.SCHEMA_KEY);
+    String workdir = getTrimmedValueFromConfig(config, ConfigName.WORKDIR);
     //Since we removed this attribute from UI in 2.6.4 we need to add 
     //a default value here.
     if (schemaKey == null) {
@@ -151,10 +173,81 @@ public class LdapConnectorConfig {
     this.schemaKey = schemaKey;
     this.filter = filter;
     this.schema = schema;
+    this.workdir = workdir;
+    this.sortBufferSize = getIntValueFromConfig(config, ConfigName.SORTBUFFER,
+        ExternalEntrySorter.DEFAULT_BUFFER_SIZE);
+    this.serverSort = getBooleanValueFromConfig(config, ConfigName.SERVERSORT);
+    this.partitions = getIntValueFromConfig(config, ConfigName.PARTITIONS, 1);
+    this.partitionAttribute =
+        getTrimmedValueFromConfig(config, ConfigName.PARTITIONATTRIBUTE);
+    this.spreadReplicas = getBooleanValueFromConfig(config, ConfigName.SPREADREPLICAS);
+    this.pageSize = getIntValueFromConfig(config, ConfigName.PAGESIZE,
+        LdapHandler.DEFAULT_PAGE_SIZE);
+    this.adaptivePageSize =
+        getBooleanValueFromConfig(config, ConfigName.ADAPTIVEPAGESIZE);
+    this.prefetch = getBooleanValueFromConfig(config, ConfigName.PREFETCH);
+    this.incremental = getBooleanValueFromConfig(config, ConfigName.INCREMENTAL);
+    this.reconcileHours = getIntValueFromConfig(config, ConfigName.RECONCILEHOURS,
+        LdapHandler.DEFAULT_RECONCILE_HOURS);
+    this.twoPhase = getBooleanValueFromConfig(config, ConfigName.TWOPHASE);
+    // Zero turns interning off, so it is not treated as an illegal value.
+    if ("0".equals(getTrimmedValueFromConfig(config, ConfigName.INTERNVALUES))) {
+      this.internValues = 0;
+    } else {
+      this.internValues = getIntValueFromConfig(config, ConfigName.INTERNVALUES,
+          ValueInterner.DEFAULT_MAX_VALUES);
+    }
+    Set<String> internAttributes = new TreeSet<String>();
+    String internString = getTrimmedValueFromConfig(config, ConfigName.INTERNATTRIBUTES);
+    if (internString != null) {
+      for (String attribute : internString.split("[,\\s]+")) {
+        if (attribute.length() > 0) {
+          internAttributes.add(attribute.toLowerCase());
+        }
+      }
+    }
+    this.internAttributes = ImmutableSet.copyOf(internAttributes);
+
+    String serverTypeString = getTrimmedValueFromConfig(config, ConfigName.SERVERTYPE);
+    ServerType serverType = ServerType.getDefault();
+    if (serverTypeString != null) {
+      try {
+        serverType = Enum.valueOf(ServerType.class, serverTypeString);
+      } catch (IllegalArgumentException e) {
+        LOG.warning("Found illegal servertype value: " + serverTypeString + " defaulting to "
+            + serverType.toString());
+      }
+    }
+    this.serverType = serverType;
+    this.domain = getTrimmedValueFromConfig(config, ConfigName.DOMAIN);
+
+    String changeSourceString = getTrimmedValueFromConfig(config, ConfigName.CHANGESOURCE);
+    ChangeSourceType changeSource = ChangeSourceType.getDefault();
+    if (changeSourceString != null) {
+      try {
+        changeSource = Enum.valueOf(ChangeSourceType.class, changeSourceString);
+      } catch (IllegalArgumentException e) {
+        LOG.warning("Found illegal changesource value: " + changeSourceString + " defaulting to "
+            + changeSource.toString());
+      }
+    }
+    this.changeSource = changeSource;
+
+    String engineString = getTrimmedValueFromConfig(config, ConfigName.ENGINE);
+    EngineType engine = EngineType.getDefault();
+    if (engineString != null) {
+      try {
+        engine = Enum.valueOf(EngineType.class, engineString);
+      } catch (IllegalArgumentException e) {
+        LOG.warning("Found illegal engine value: " + engineString + " defaulting to "
+            + engine.toString());
+      }
+    }
+    this.engine = engine;
 
     this.settings =
         new LdapConnectionSettings(this.method, this.hostname, this.port, this.basedn,
-        this.authtype, this.username, this.password);
+        this.authtype, this.username, this.password, this.serverType, this.domain);
     LOG.fine("this.settings: " + this.settings);
 
     // only create an LdapRule if one was supplied
@@ -234,6 +327,37 @@ public class LdapConnectorConfig {
     return value;
   }
 
+  /**
+   * Gets an optional positive integer from the config, or the default value
+   * if it is missing or invalid.
+   */
+  private int getIntValueFromConfig(Map<String, String> config, ConfigName name,
+      int defaultValue) {
+    String value = getTrimmedValueFromConfig(config, name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      int i = Integer.parseInt(value);
+      if (i > 0) {
+        return i;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the warning.
+    }
+    LOG.warning("Found illegal " + name + " value: " + value + " defaulting to "
+        + defaultValue);
+    return defaultValue;
+  }
+
+  /**
+   * Gets an optional boolean from the config, which is false unless the value
+   * is "true", ignoring case.
+   */
+  private boolean getBooleanValueFromConfig(Map<String, String> config, ConfigName name) {
+    return Boolean.parseBoolean(getTrimmedValueFromConfig(config, name));
+  }
+
   private static String getTrimmedValue(String value) {
     if (value == null || value.length() < 1) {
       return null;
@@ -293,6 +417,82 @@ public class LdapConnectorConfig {
     return schemaKey;
   }
 
+  /**
+   * Returns the connector's working directory, or {@code null} if it was not
+   * configured.
+   */
+  public String getWorkdir() {
+    return workdir;
+  }
+
+  public int getSortBufferSize() {
+    return sortBufferSize;
+  }
+
+  public boolean getServerSort() {
+    return serverSort;
+  }
+
+  public int getPartitions() {
+    return partitions;
+  }
+
+  public String getPartitionAttribute() {
+    return partitionAttribute;
+  }
+
+  public boolean getSpreadReplicas() {
+    return spreadReplicas;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public boolean getAdaptivePageSize() {
+    return adaptivePageSize;
+  }
+
+  public boolean getPrefetch() {
+    return prefetch;
+  }
+
+  public ServerType getServerType() {
+    return serverType;
+  }
+
+  public String getDomain() {
+    return domain;
+  }
+
+  public EngineType getEngine() {
+    return engine;
+  }
+
+  public boolean getIncremental() {
+    return incremental;
+  }
+
+  public int getReconcileHours() {
+    return reconcileHours;
+  }
+
+  public ChangeSourceType getChangeSource() {
+    return changeSource;
+  }
+
+  public boolean getTwoPhase() {
+    return twoPhase;
+  }
+
+  public int getInternValues() {
+    return internValues;
+  }
+
+  public Set<String> getInternAttributes() {
+    return internAttributes;
+  }
+
   /**
    * Returns the string that represents the selected attributes in a json
    * understandable way. 
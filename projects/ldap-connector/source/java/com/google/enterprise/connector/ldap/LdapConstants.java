@@ -41,7 +41,25 @@ public class LdapConstants {
     CONFIGURED("configured"),
     SCHEMA("schema"),
     SCHEMAVALUE("schemavalue"),
-    SCHEMA_KEY("schema_key"), ;
+    SCHEMA_KEY("schema_key"),
+    WORKDIR("workdir"),
+    SORTBUFFER("sortbuffer"),
+    SERVERSORT("serversort"),
+    PARTITIONS("partitions"),
+    PARTITIONATTRIBUTE("partitionattribute"),
+    SPREADREPLICAS("spreadreplicas"),
+    PAGESIZE("pagesize"),
+    ADAPTIVEPAGESIZE("adaptivepagesize"),
+    PREFETCH("prefetch"),
+    SERVERTYPE("servertype"),
+    DOMAIN("domain"),
+    INCREMENTAL("incremental"),
+    RECONCILEHOURS("reconcilehours"),
+    CHANGESOURCE("changesource"),
+    TWOPHASE("twophase"),
+    ENGINE("engine"),
+    INTERNVALUES("internvalues"),
+    INTERNATTRIBUTES("internattributes"), ;
 
     private final String tag;
 
@@ -89,6 +107,46 @@ public class LdapConstants {
     }
   }
 
+  /**
+   * How incremental traversals find the entries that have changed.
+   */
+  public enum ChangeSourceType {
+    /** Search for entries changed since a USN or timestamp. */
+    HIGHWATERMARK,
+    /** Use the Active Directory DirSync control. */
+    DIRSYNC,
+    /** Use RFC 4533 content synchronization, as OpenLDAP's syncrepl does. */
+    SYNCREPL,
+    /** Listen for changes with a persistent search between traversals. */
+    PSEARCH,
+    /** Read the changelog under cn=changelog, as 389-DS and OpenDJ publish it. */
+    CHANGELOG;
+    public static ErrorMessages safeValueOf(String v) {
+      return LdapConstants.safeValueOf(ErrorMessages.class, v);
+    }
+    static ChangeSourceType getDefault() {
+      return HIGHWATERMARK;
+    }
+  }
+
+  public enum EngineType {
+    /** Search with {@link LdapHandler}, one page at a time. */
+    JNDI,
+    /** Search with {@link AsyncLdapHandler}, on a {@link JndiLdapEngine}. */
+    ASYNC,
+    /**
+     * Search with {@link AsyncLdapHandler}, on a {@link NioLdapEngine}.
+     * SSL connections use a {@link JndiLdapEngine} instead.
+     */
+    NIO;
+    public static ErrorMessages safeValueOf(String v) {
+      return LdapConstants.safeValueOf(ErrorMessages.class, v);
+    }
+    static EngineType getDefault() {
+      return JNDI;
+    }
+  }
+
   public enum LdapConnectionError {
     AuthenticationNotSupported,
     AuthenticationException,
@@ -0,0 +1,112 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.ServerType;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+
+/**
+ * The reads and searches that the change sources make, over the
+ * handler's settings, rule and connections. The change sources use only
+ * this, so that they can be tested with fake results.
+ */
+interface LdapDirectory {
+  /** A connection for searches that send controls of their own. */
+  interface Connection {
+    /**
+     * Starts a search.
+     *
+     * @param name the name to search under, relative to the connection's
+     *        root
+     * @param requestControls the controls to send with the search
+     */
+    NamingEnumeration<SearchResult> search(Name name, String filter,
+        SearchControls controls, Control... requestControls) throws NamingException;
+
+    /** Returns the controls that came with the end of the last search. */
+    Control[] getResponseControls() throws NamingException;
+
+    void close();
+  }
+
+  ServerType getServerType();
+
+  /** Returns the base DN in canonical form, or "" if there is none. */
+  String getCanonicalBaseDn();
+
+  LdapRule getRule();
+
+  /**
+   * Returns search controls for the rule's scope, asking for the
+   * attributes in the schema.
+   */
+  SearchControls makeControls();
+
+  /**
+   * Reads attributes of the server's rootDSE. Errors are logged, and
+   * result in an empty Multimap.
+   *
+   * @return the values of the attributes, keyed by lower-case attribute name
+   */
+  Multimap<String, String> readRootDse(String... attributeNames);
+
+  /**
+   * Searches for the entries that match both the rule's filter and the
+   * given filter.
+   *
+   * @throws IllegalStateException if the search fails
+   */
+  EntrySearch search(String filter);
+
+  /**
+   * Reads entries in full, by DN. Entries that do not exist, do not match
+   * the filter, have no schemaKey value, or are outside the base DN are
+   * left out.
+   *
+   * @param dns the full DNs of the entries, as returned by the server
+   * @return the entries, keyed by their schemaKey values
+   * @throws IllegalStateException if the entries could not be read
+   */
+  List<Entry<String, Multimap<String, String>>> fetchEntries(Collection<String> dns);
+
+  /**
+   * Converts a search result to an entry keyed by its schemaKey value.
+   *
+   * @return the entry, or {@code null} if it has no schemaKey value
+   */
+  Entry<String, Multimap<String, String>> toEntry(SearchResult result) throws NamingException;
+
+  /**
+   * Opens a new connection, which the caller must close.
+   *
+   * @param useBaseDn if false, names are relative to the rootDSE rather
+   *        than the base DN
+   * @return the connection, or {@code null} if it failed, which is logged
+   */
+  Connection connect(boolean useBaseDn);
+}
@@ -0,0 +1,91 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A client that runs ldap searches asynchronously. A search returns at
+ * once, and its results are passed to a listener as they arrive, so that
+ * many searches can be in progress without a thread waiting on each.
+ * Engines manage their own connections to the server configured when they
+ * are created.
+ */
+public interface LdapEngine {
+
+  /**
+   * Receives the results of a search. The methods of one listener may be
+   * called from different threads, but never concurrently for one search.
+   * A listener may block, which slows the search down.
+   */
+  public interface SearchListener {
+    /**
+     * Receives an entry.
+     *
+     * @param dn the entry's DN, as the server returned it
+     * @param attributes the string values of the entry's attributes, with
+     *        the attribute names in lower case; binary values are left out
+     */
+    void onEntry(String dn, Multimap<String, String> attributes);
+
+    /** Called when the search has returned all of its entries. */
+    void onDone();
+
+    /**
+     * Called if the search fails. No more methods are called after this.
+     *
+     * @param e the error, usually an IllegalStateException wrapping the
+     *        underlying exception
+     */
+    void onError(RuntimeException e);
+  }
+
+  /** A search in progress. */
+  public interface Search {
+    /**
+     * Stops the search. The listener may receive a call that was already
+     * in progress, but no more after that.
+     */
+    void cancel();
+  }
+
+  /**
+   * Connects to the server to check the settings.
+   *
+   * @return the errors, or an empty map if the connection succeeded
+   */
+  Map<LdapConnectionError, Throwable> checkConnection();
+
+  /**
+   * Starts a paged search under the base DN.
+   *
+   * @param scope the scope of the search
+   * @param filter the filter to search for
+   * @param attributes the attributes to read, or {@code null} for all
+   * @param pageSize the number of entries to request in each page
+   * @param listener the listener to receive the results
+   * @return the search, which can be used to cancel it
+   */
+  Search search(LdapRule.Scope scope, String filter, Set<String> attributes, int pageSize,
+      SearchListener listener);
+
+  /** Cancels the searches in progress and releases the engine's resources. */
+  void close();
+}
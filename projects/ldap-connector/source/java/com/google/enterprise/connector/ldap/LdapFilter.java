@@ -0,0 +1,247 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Encodes an ldap search filter in the string form of RFC 4515 as the BER
+ * Filter of an RFC 4511 search request, for clients that speak the
+ * protocol directly. A filter without enclosing parentheses, such as
+ * {@code cn=x}, is accepted, as JNDI accepts it.
+ */
+public class LdapFilter {
+  private static final int AND = 0xa0;
+  private static final int OR = 0xa1;
+  private static final int NOT = 0xa2;
+  private static final int EQUALITY = 0xa3;
+  private static final int SUBSTRINGS = 0xa4;
+  private static final int GREATER_OR_EQUAL = 0xa5;
+  private static final int LESS_OR_EQUAL = 0xa6;
+  private static final int PRESENT = 0x87;
+  private static final int APPROX = 0xa8;
+  private static final int EXTENSIBLE = 0xa9;
+
+  private static final int SUBSTRING_INITIAL = 0x80;
+  private static final int SUBSTRING_ANY = 0x81;
+  private static final int SUBSTRING_FINAL = 0x82;
+
+  private static final int MATCHING_RULE = 0x81;
+  private static final int MATCH_TYPE = 0x82;
+  private static final int MATCH_VALUE = 0x83;
+  private static final int DN_ATTRIBUTES = 0x84;
+
+  private final String filter;
+  private int position = 0;
+
+  private LdapFilter(String filter) {
+    this.filter = filter;
+  }
+
+  /**
+   * Encodes a filter.
+   *
+   * @throws IllegalArgumentException if the filter is not valid
+   */
+  public static byte[] encode(String filter) {
+    String trimmed = filter.trim();
+    if (!trimmed.startsWith("(")) {
+      trimmed = "(" + trimmed + ")";
+    }
+    LdapFilter parser = new LdapFilter(trimmed);
+    byte[] encoded = parser.parseFilter();
+    if (parser.position != trimmed.length()) {
+      throw parser.error("Unexpected characters after the filter");
+    }
+    return encoded;
+  }
+
+  private byte[] parseFilter() {
+    expect('(');
+    byte[] encoded;
+    char c = peek();
+    if (c == '&') {
+      position++;
+      encoded = Ber.element(AND, Ber.concat(parseFilterList()));
+    } else if (c == '|') {
+      position++;
+      encoded = Ber.element(OR, Ber.concat(parseFilterList()));
+    } else if (c == '!') {
+      position++;
+      encoded = Ber.element(NOT, parseFilter());
+    } else {
+      encoded = parseItem();
+    }
+    expect(')');
+    return encoded;
+  }
+
+  private byte[][] parseFilterList() {
+    List<byte[]> filters = Lists.newArrayList();
+    while (peek() == '(') {
+      filters.add(parseFilter());
+    }
+    if (filters.isEmpty()) {
+      throw error("Expected a filter");
+    }
+    return filters.toArray(new byte[filters.size()][]);
+  }
+
+  private byte[] parseItem() {
+    int start = position;
+    while (position < filter.length() && "=~<>()".indexOf(filter.charAt(position)) < 0) {
+      position++;
+    }
+    String attribute = filter.substring(start, position).trim();
+    if (position >= filter.length()) {
+      throw error("Expected an operator");
+    }
+    char operator = filter.charAt(position);
+    if (operator == '~' || operator == '<' || operator == '>') {
+      position++;
+      expect('=');
+      int tag = (operator == '~') ? APPROX : ((operator == '<') ? LESS_OR_EQUAL : GREATER_OR_EQUAL);
+      return assertion(tag, attribute, unescape(readValue()));
+    }
+    expect('=');
+    if (attribute.endsWith(":")) {
+      return extensible(attribute.substring(0, attribute.length() - 1), readValue());
+    }
+    if (attribute.length() == 0) {
+      throw error("Expected an attribute");
+    }
+    String value = readValue();
+    if (value.equals("*")) {
+      return Ber.element(PRESENT, Ber.utf8(attribute));
+    }
+    if (value.indexOf('*') < 0) {
+      return assertion(EQUALITY, attribute, unescape(value));
+    }
+    return substrings(attribute, value);
+  }
+
+  private static byte[] assertion(int tag, String attribute, byte[] value) {
+    return Ber.element(tag, Ber.concat(Ber.octetString(attribute), Ber.octetString(value)));
+  }
+
+  private byte[] substrings(String attribute, String value) {
+    String[] parts = value.split("\\*", -1);
+    List<byte[]> substrings = Lists.newArrayList();
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i].length() == 0) {
+        continue;
+      }
+      int tag = (i == 0) ? SUBSTRING_INITIAL
+          : ((i == parts.length - 1) ? SUBSTRING_FINAL : SUBSTRING_ANY);
+      substrings.add(Ber.element(tag, unescape(parts[i])));
+    }
+    return Ber.element(SUBSTRINGS, Ber.concat(Ber.octetString(attribute),
+        Ber.sequence(substrings.toArray(new byte[substrings.size()][]))));
+  }
+
+  /**
+   * Encodes an extensible match, whose attribute part has the form
+   * {@code [type][:dn][:rule]}.
+   */
+  private byte[] extensible(String description, String value) {
+    String[] parts = description.split(":", -1);
+    List<byte[]> elements = Lists.newArrayList();
+    String type = parts[0];
+    boolean dnAttributes = false;
+    String rule = null;
+    for (int i = 1; i < parts.length; i++) {
+      if (parts[i].equalsIgnoreCase("dn") && rule == null) {
+        dnAttributes = true;
+      } else if (parts[i].length() > 0 && rule == null) {
+        rule = parts[i];
+      } else {
+        throw error("Invalid extensible match " + description);
+      }
+    }
+    if (type.length() == 0 && rule == null) {
+      throw error("An extensible match needs a type or a matching rule");
+    }
+    if (rule != null) {
+      elements.add(Ber.element(MATCHING_RULE, Ber.utf8(rule)));
+    }
+    if (type.length() > 0) {
+      elements.add(Ber.element(MATCH_TYPE, Ber.utf8(type)));
+    }
+    elements.add(Ber.element(MATCH_VALUE, unescape(value)));
+    if (dnAttributes) {
+      elements.add(Ber.element(DN_ATTRIBUTES, new byte[] { (byte) 0xff }));
+    }
+    return Ber.element(EXTENSIBLE, Ber.concat(elements.toArray(new byte[elements.size()][])));
+  }
+
+  /** Reads a value, up to the closing parenthesis. */
+  private String readValue() {
+    int start = position;
+    while (position < filter.length() && filter.charAt(position) != ')') {
+      if (filter.charAt(position) == '(') {
+        throw error("Unescaped '(' in a value");
+      }
+      position++;
+    }
+    return filter.substring(start, position);
+  }
+
+  /** Decodes the \XX escapes in a value, returning its UTF-8 bytes. */
+  private byte[] unescape(String value) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(value.length());
+    int start = 0;
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) == '\\') {
+        byte[] run = Ber.utf8(value.substring(start, i));
+        out.write(run, 0, run.length);
+        if (i + 2 >= value.length()) {
+          throw error("Incomplete escape in " + value);
+        }
+        int high = Character.digit(value.charAt(i + 1), 16);
+        int low = Character.digit(value.charAt(i + 2), 16);
+        if (high < 0 || low < 0) {
+          throw error("Invalid escape in " + value);
+        }
+        out.write((high << 4) | low);
+        i += 2;
+        start = i + 1;
+      }
+    }
+    byte[] run = Ber.utf8(value.substring(start));
+    out.write(run, 0, run.length);
+    return out.toByteArray();
+  }
+
+  private char peek() {
+    if (position >= filter.length()) {
+      throw error("Unexpected end of filter");
+    }
+    return filter.charAt(position);
+  }
+
+  private void expect(char c) {
+    if (peek() != c) {
+      throw error("Expected '" + c + "'");
+    }
+    position++;
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at position " + position + " of " + filter);
+  }
+}
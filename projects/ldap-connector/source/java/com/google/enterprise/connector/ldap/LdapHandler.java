@@ -16,33 +16,47 @@ package com.google.enterprise.connector.ldap;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.connector.ldap.LdapConstants.AuthType;
+import com.google.enterprise.connector.ldap.LdapConstants.ChangeSourceType;
+import com.google.enterprise.connector.ldap.LdapConstants.EngineType;
 import com.google.enterprise.connector.ldap.LdapConstants.ErrorMessages;
 import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
 import com.google.enterprise.connector.ldap.LdapConstants.Method;
 import com.google.enterprise.connector.ldap.LdapConstants.ServerType;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.NoRouteToHostException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.Hashtable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.naming.AuthenticationException;
-import javax.naming.AuthenticationNotSupportedException;
 import javax.naming.CommunicationException;
-import javax.naming.Context;
+import javax.naming.Name;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
@@ -51,15 +65,18 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
-import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
 import javax.naming.ldap.PagedResultsControl;
 import javax.naming.ldap.PagedResultsResponseControl;
-import javax.naming.ldap.Rdn;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
 
 /**
  * This class encapsulates all interaction with jdni (javax.naming). No other
- * ldap connector class should need to import anything from jdni. All
+ * ldap connector class should need to import anything from jdni, apart from
+ * the implementations of ldap controls that jndi lacks, the connections, and
+ * the change sources, which search through an {@link LdapDirectory}. All
  * javax.naming
  * exceptions are wrapped in RuntimeException, so callers need to be careful to
  * catch RuntimeException.
@@ -72,16 +89,97 @@ public class LdapHandler implements LdapHandlerI {
    */
   public static final String DN_ATTRIBUTE = "dn";
 
+  /**
+   * The ordering rule requested for server-side sorting. caseExactOrderingMatch
+   * compares by code point, which agrees with String.compareTo except for
+   * supplementary characters, so the results can be used without re-sorting.
+   */
+  private static final String SORT_MATCHING_RULE = "2.5.13.6";
+
+  /**
+   * The attribute used to partition searches when the schemaKey is the DN,
+   * which cannot be used in a filter.
+   */
+  public static final String DEFAULT_PARTITION_ATTRIBUTE = "cn";
+
+  /** The default time between full traversals in incremental mode. */
+  public static final int DEFAULT_RECONCILE_HOURS = 24;
+
+  /** The number of results requested in each page, unless configured. */
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  /**
+   * The query policy object where Active Directory advertises its limits,
+   * relative to the configuration naming context.
+   */
+  private static final String AD_QUERY_POLICY =
+      "CN=Default Query Policy,CN=Query-Policies,CN=Directory Service,CN=Windows NT,CN=Services";
+
+  /** The most connections used at once to read entries by DN. */
+  private static final int FETCH_THREADS = 4;
+
   private static Logger LOG = Logger.getLogger(LdapHandler.class.getName());
 
   private LdapConnectionSettings ldapConnectionSettings = null;
   private String schemaKey = null;
   private Set<String> schema = null;
+  /** The ids of the attribute names of the entries, shared by all of them. */
+  private CompactEntry.Names attributeNames = new CompactEntry.Names();
   private LdapRule rule = null;
   private int maxResults = 0;
   private String ldapConnectionTimeout = "-1";
+  private File sortDirectory = null;
+  private int sortBufferSize = ExternalEntrySorter.DEFAULT_BUFFER_SIZE;
+  private boolean serverSort = false;
+  private int partitions = 1;
+  private String partitionAttribute = null;
+  private int pageSize = DEFAULT_PAGE_SIZE;
+  private boolean adaptivePaging = false;
+  private boolean spreadReplicas = false;
+  private boolean prefetch = false;
+  private boolean incremental = false;
+  private File incrementalDirectory = null;
+  private long reconcileMillis = DEFAULT_RECONCILE_HOURS * 60 * 60 * 1000L;
+  private ChangeSourceType changeSourceType = ChangeSourceType.getDefault();
+  private boolean twoPhase = false;
+  private File twoPhaseDirectory = null;
+  private int internValues = ValueInterner.DEFAULT_MAX_VALUES;
+  private Set<String> internAttributes = Collections.emptySet();
+
+  /** Leaves values as they are, for searches outside a traversal. */
+  private static final ValueInterner NO_INTERNING = new ValueInterner(0, null);
+
+  /**
+   * The page size chosen from earlier pages when adaptive paging is on:
+   * null until the first search, and reset when the settings change.
+   */
+  private volatile AdaptivePageSize adaptivePageSize = null;
 
-  private LdapConnection connection = null;
+  /**
+   * Whether the server can sort by the schemaKey: null until the rootDSE has
+   * been checked, and false after a sorted search fails.
+   */
+  private volatile Boolean serverSortSupported = null;
+
+  /**
+   * The connection checked by the settings, or used by the current search
+   * on a single connection, for {@link #getErrors}. The searches of
+   * partitions, which run at the same time, keep their connections to
+   * themselves.
+   */
+  private volatile LdapConnection connection = null;
+
+  /** The persistent search listener, once started. */
+  private PersistentSearchChangeSource persistentSearch = null;
+
+  /** Idle connections, shared by all handlers. */
+  private static final ConnectionPool POOL = new ConnectionPool();
+
+  /** The latency and availability of each replica, shared by all handlers. */
+  private static final ReplicaSelector REPLICAS = new ReplicaSelector();
+
+  /** The ldap servers found for each domain, shared by all handlers. */
+  private static final SrvLocator LOCATOR = new SrvLocator();
 
   private static Function<String, String> toLower = new Function<String, String>() {
     @Override
@@ -93,97 +191,1270 @@ public class LdapHandler implements LdapHandlerI {
   public LdapHandler() {
   }
 
-  public void setConnectionTimeout(String ldapConnectionTimeout) {
-    this.ldapConnectionTimeout = ldapConnectionTimeout;
-  }
+  public void setConnectionTimeout(String ldapConnectionTimeout) {
+    this.ldapConnectionTimeout = ldapConnectionTimeout;
+  }
+
+  public String getConnectionTimeout() {
+    return this.ldapConnectionTimeout;
+  }
+
+  /**
+   * Sets the directory used to sort large result sets on disk. If this is
+   * not set, the system temporary directory is used.
+   */
+  public void setSortDirectory(File sortDirectory) {
+    this.sortDirectory = sortDirectory;
+  }
+
+  /**
+   * Sets the maximum number of results held in memory while sorting.
+   */
+  public void setSortBufferSize(int sortBufferSize) {
+    this.sortBufferSize = sortBufferSize;
+  }
+
+  /**
+   * Sets whether to ask the server to sort the results by the schemaKey,
+   * using the server-side sort control (RFC 2891), if the server supports it.
+   * When the server sorts the results, they are returned without buffering.
+   */
+  public void setServerSort(boolean serverSort) {
+    this.serverSort = serverSort;
+  }
+
+  /**
+   * Sets the number of partitions to search in parallel, each on its own
+   * connection, when the results are sorted on the client. The default is
+   * one, which searches the rule's filter on a single connection.
+   */
+  public void setPartitions(int partitions) {
+    this.partitions = partitions;
+  }
+
+  /**
+   * Sets the attribute whose leading characters divide the entries into
+   * partitions. If this is not set, the schemaKey is used, or
+   * {@link #DEFAULT_PARTITION_ATTRIBUTE} if the schemaKey is the DN.
+   *
+   * @see PartitionFilters
+   */
+  public void setPartitionAttribute(String partitionAttribute) {
+    this.partitionAttribute = partitionAttribute;
+  }
+
+  /**
+   * Sets whether to search each partition on a different replica, when the
+   * hostname lists several. Otherwise every partition is searched on the
+   * fastest replica that is available.
+   *
+   * @see ReplicaSelector
+   */
+  public void setSpreadReplicas(boolean spreadReplicas) {
+    this.spreadReplicas = spreadReplicas;
+  }
+
+  /**
+   * Sets the number of results requested in each page. If adaptive paging
+   * is on, this is the initial page size.
+   */
+  public void setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+    this.adaptivePageSize = null;
+  }
+
+  /**
+   * Sets whether to adjust the page size between pages, based on how long
+   * the pages take to arrive and how large they are, within the limits the
+   * server advertises or enforces.
+   *
+   * @see AdaptivePageSize
+   */
+  public void setAdaptivePaging(boolean adaptivePaging) {
+    this.adaptivePaging = adaptivePaging;
+    this.adaptivePageSize = null;
+  }
+
+  /**
+   * Sets whether to read the next page of results in a background thread
+   * while the current page is being converted.
+   */
+  public void setPrefetch(boolean prefetch) {
+    this.prefetch = prefetch;
+  }
+
+  /**
+   * Sets whether to read only the entries that have changed since the last
+   * traversal, and apply them to the saved results of that traversal. This
+   * needs a directory to save the results in.
+   *
+   * @see IncrementalTraversal
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * Sets the directory where the results of each traversal are saved in
+   * incremental mode.
+   */
+  public void setIncrementalDirectory(File incrementalDirectory) {
+    this.incrementalDirectory = incrementalDirectory;
+  }
+
+  /**
+   * Sets the longest time between full traversals in incremental mode. Full
+   * traversals catch deleted entries, and entries that have moved out of
+   * the search.
+   */
+  public void setReconcileHours(int reconcileHours) {
+    this.reconcileMillis = reconcileHours * 60 * 60 * 1000L;
+  }
+
+  /**
+   * Sets how incremental traversals find the entries that have changed.
+   */
+  public void setChangeSource(ChangeSourceType changeSourceType) {
+    this.changeSourceType = changeSourceType;
+  }
+
+  /**
+   * Sets whether to scan only the DN, schemaKey and a change token of each
+   * entry, and read in full only the entries that have changed since the
+   * last traversal. This needs a directory to save the results in. It is
+   * not used in incremental mode.
+   *
+   * @see TwoPhaseTraversal
+   */
+  public void setTwoPhase(boolean twoPhase) {
+    this.twoPhase = twoPhase;
+  }
+
+  /**
+   * Sets the directory where the results of each traversal are saved in
+   * two-phase mode.
+   */
+  public void setTwoPhaseDirectory(File twoPhaseDirectory) {
+    this.twoPhaseDirectory = twoPhaseDirectory;
+  }
+
+  /**
+   * Sets the most distinct attribute values that each traversal shares
+   * between entries. Zero turns off sharing.
+   *
+   * @see ValueInterner
+   */
+  public void setInternValues(int internValues) {
+    this.internValues = internValues;
+  }
+
+  /**
+   * Sets the attributes whose values are always shared between entries,
+   * whatever the number of distinct values. The values of other attributes
+   * are shared if they repeat often enough.
+   */
+  public void setInternAttributes(Set<String> internAttributes) {
+    this.internAttributes = (internAttributes == null)
+        ? Collections.<String>emptySet()
+        : Sets.newHashSet(Collections2.transform(internAttributes, toLower));
+  }
+
+  @Override
+  public void setQueryParameters(LdapRule rule, Set<String> schema, String schemaKey, int maxResults) {
+    this.rule = rule;
+    if (!Objects.equal(this.schemaKey, schemaKey)) {
+      serverSortSupported = null;
+    }
+    this.schemaKey = schemaKey;
+    if (schema == null) {
+      this.schema = null;
+      this.attributeNames = new CompactEntry.Names();
+    } else {
+      this.schema = Sets.newHashSet(Collections2.transform(schema, toLower));
+      this.attributeNames = new CompactEntry.Names(this.schema);
+    }
+    this.maxResults = maxResults;
+  }
+
+  @Override
+  public void setLdapConnectionSettings(LdapConnectionSettings ldapConnectionSettings) {
+    this.ldapConnectionSettings = ldapConnectionSettings;
+    this.serverSortSupported = null;
+    this.adaptivePageSize = null;
+    LOG.fine("settings " + this.ldapConnectionSettings);
+    connection = POOL.borrow(ldapConnectionSettings, getConnectionTimeout(), -1);
+    // The connection was only needed to check the settings, so make it
+    // available to the next search.
+    POOL.release(connection);
+  }
+
+  @Override
+  public Map<LdapConnectionError, Throwable> getErrors() {
+    if (connection != null) {
+      return connection.getErrors();
+    }
+    throw new IllegalStateException("Must successfully set connection config before getting error state");
+  }
+
+  /**
+   * Convenience routine for setting up an LdapHandler from an LdapConnectorConfig.
+   * This is expected to be called by Spring, for a production instance.
+   */
+  public static LdapHandlerI makeLdapHandlerFromConfig(LdapConnectorConfig ldapConnectorConfig) {
+    LOG.fine("ldapConnectorConfig: " + ldapConnectorConfig);
+    if (ldapConnectorConfig.getEngine() != EngineType.JNDI) {
+      return AsyncLdapHandler.makeLdapHandlerFromConfig(ldapConnectorConfig);
+    }
+    LdapHandler ldapHandler = new LdapHandler();
+    LOG.fine("ldapHandler: " + ldapHandler);
+    LdapConnectionSettings settings = ldapConnectorConfig.getSettings();
+    LOG.fine("settings: " + settings);
+    ldapHandler.setLdapConnectionSettings(settings);
+    LdapRule rule = ldapConnectorConfig.getRule();
+    Set<String> schema = ldapConnectorConfig.getSchema();
+    String schemaKey = ldapConnectorConfig.getSchemaKey();
+    ldapHandler.setQueryParameters(rule, schema, schemaKey, 0);
+    String workdir = ldapConnectorConfig.getWorkdir();
+    if (workdir != null) {
+      ldapHandler.setSortDirectory(new File(workdir, "sort"));
+      ldapHandler.setIncrementalDirectory(new File(workdir, "incremental"));
+      ldapHandler.setTwoPhaseDirectory(new File(workdir, "twophase"));
+    }
+    ldapHandler.setSortBufferSize(ldapConnectorConfig.getSortBufferSize());
+    ldapHandler.setServerSort(ldapConnectorConfig.getServerSort());
+    ldapHandler.setPartitions(ldapConnectorConfig.getPartitions());
+    ldapHandler.setPartitionAttribute(ldapConnectorConfig.getPartitionAttribute());
+    ldapHandler.setSpreadReplicas(ldapConnectorConfig.getSpreadReplicas());
+    ldapHandler.setPageSize(ldapConnectorConfig.getPageSize());
+    ldapHandler.setAdaptivePaging(ldapConnectorConfig.getAdaptivePageSize());
+    ldapHandler.setPrefetch(ldapConnectorConfig.getPrefetch());
+    ldapHandler.setIncremental(ldapConnectorConfig.getIncremental());
+    ldapHandler.setReconcileHours(ldapConnectorConfig.getReconcileHours());
+    ldapHandler.setChangeSource(ldapConnectorConfig.getChangeSource());
+    ldapHandler.setTwoPhase(ldapConnectorConfig.getTwoPhase());
+    ldapHandler.setInternValues(ldapConnectorConfig.getInternValues());
+    ldapHandler.setInternAttributes(ldapConnectorConfig.getInternAttributes());
+    return ldapHandler;
+  }
+
+  /**
+   * Returns a pooled connection with the given settings, for the other
+   * clients in this package. The connection may have failed; the caller
+   * must check its context and errors.
+   */
+  static LdapConnection borrowConnection(LdapConnectionSettings settings,
+      String connectionTimeout) {
+    return POOL.borrow(settings, connectionTimeout, -1);
+  }
+
+  /**
+   * Returns a connection from {@link #borrowConnection} to the pool. The
+   * caller must not use it again.
+   */
+  static void releaseConnection(LdapConnection connection) {
+    POOL.release(connection);
+  }
+
+  /**
+   * Returns the latency and availability of each replica, shared by the
+   * clients in this package.
+   */
+  static ReplicaSelector getReplicaSelector() {
+    return REPLICAS;
+  }
+
+  @VisibleForTesting
+  LdapContext getLdapContext() {
+    return connection.getLdapContext();
+  }
+
+  /**
+   * Executes a rule. Note: the implementation of this class is based on GADS.
+   * Note: execute should only be called once. To execute again, create a new
+   * LdapHandler and execute that.
+   *
+   * @return a Map of results. The map is sorted by the schemaKey
+   *         specified in the constructor. Each result is a Multimap of Strings
+   *         to Strings, keyed by attributes in the schema. Results are
+   *         Multimaps because ldap can store multiple values with an attribute,
+   *         although in practice this is rare (except for a few attributes,
+   *         like email aliases).
+   */
+  @Override
+  public Map<String, Multimap<String, String>> get() {
+    LOG.fine("entering get " + ldapConnectionSettings);
+
+    SortedMap<String, Multimap<String, String>> result =
+        new TreeMap<String, Multimap<String, String>>();
+    Iterator<Entry<String, Multimap<String, String>>> results =
+        new PagedSearch(null, null, new ValueInterner(internValues, internAttributes));
+    while (results.hasNext()) {
+      Entry<String, Multimap<String, String>> entry = results.next();
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Executes a rule, like {@link #get}, but pages through the results as the
+   * returned iterator is consumed. The results are returned in ascending
+   * order of the schemaKey.
+   *
+   * @throws IllegalStateException if the connection to the server could not
+   *         be established. Errors while reading later pages are also thrown
+   *         as IllegalStateException, from the iterator's methods.
+   */
+  @Override
+  public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+    LOG.fine("entering iterator " + ldapConnectionSettings);
+    final ValueInterner interner = new ValueInterner(internValues, internAttributes);
+    final Iterator<Entry<String, Multimap<String, String>>> entries = traverse(interner);
+    return new AbstractIterator<Entry<String, Multimap<String, String>>>() {
+      @Override
+      protected Entry<String, Multimap<String, String>> computeNext() {
+        if (entries.hasNext()) {
+          return entries.next();
+        }
+        if (interner.getLookups() > 0) {
+          LOG.info("Traversal done: " + interner);
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  /**
+   * Starts a traversal of the kind that the settings call for.
+   *
+   * @param interner shares repeated values across the entries of this
+   *        traversal
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> traverse(
+      final ValueInterner interner) {
+
+    Supplier<Iterator<Entry<String, Multimap<String, String>>>> full =
+        new Supplier<Iterator<Entry<String, Multimap<String, String>>>>() {
+          @Override
+          public Iterator<Entry<String, Multimap<String, String>>> get() {
+            return fullIterator(interner);
+          }
+        };
+    if (incremental && maxResults == 0) {
+      if (incrementalDirectory == null) {
+        LOG.warning("No directory to save results in; incremental traversal is disabled");
+      } else {
+        IncrementalTraversal traversal = new IncrementalTraversal(incrementalDirectory,
+            getFingerprint(), reconcileMillis, sortBufferSize);
+        return traversal.traverse(makeChangeSource(interner), full);
+      }
+    } else if (twoPhase && maxResults == 0) {
+      if (twoPhaseDirectory == null) {
+        LOG.warning("No directory to save results in; two-phase traversal is disabled");
+      } else {
+        TwoPhaseTraversal traversal = new TwoPhaseTraversal(twoPhaseDirectory,
+            getFingerprint() + "|" + getChangeTokenAttribute(), reconcileMillis,
+            TwoPhaseTraversal.DEFAULT_BATCH_SIZE);
+        return traversal.traverse(scan(interner), full, new TwoPhaseTraversal.Fetcher() {
+          @Override
+          public List<Entry<String, Multimap<String, String>>> fetch(List<String> names) {
+            return fetchEntries(names, interner);
+          }
+        });
+      }
+    }
+    return fullIterator(interner);
+  }
+
+  /**
+   * Reads the DN, schemaKey and change token of every entry, for the first
+   * phase of a two-phase traversal. The results are returned in ascending
+   * order of the schemaKey.
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> scan(
+      final ValueInterner interner) {
+    final String token = getChangeTokenAttribute();
+    final Set<String> attributes = Sets.newHashSet(token);
+    if (schemaKey != null && !schemaKey.equalsIgnoreCase(DN_ATTRIBUTE)) {
+      attributes.add(schemaKey.toLowerCase());
+    }
+    return sort(new PagedSearch(null, null, attributes, interner) {
+      @Override
+      protected Entry<String, Multimap<String, String>> convert(SearchResult searchResult)
+          throws NamingException {
+        String name = searchResult.getNameInNamespace();
+        String dn = canonicalDn(name);
+        CompactEntry.Builder builder = new CompactEntry.Builder(attributeNames);
+        builder.put(DN_ATTRIBUTE, dn);
+        handleAttrs(builder, searchResult.getAttributes(), attributes, interner);
+        Multimap<String, String> values = builder.build();
+        String keyValue = getFirst(schemaKey, values);
+        if (keyValue == null) {
+          return null;
+        }
+        CompactEntry.Builder scanned = new CompactEntry.Builder(attributeNames);
+        scanned.put(DN_ATTRIBUTE, dn);
+        scanned.put(TwoPhaseTraversal.NAME_ATTRIBUTE, name);
+        for (String value : values.get(token)) {
+          scanned.put(TwoPhaseTraversal.TOKEN_ATTRIBUTE, value);
+        }
+        Multimap<String, String> scannedEntry = scanned.build();
+        return Maps.immutableEntry(keyValue, scannedEntry);
+      }
+    });
+  }
+
+  /**
+   * Returns the attribute that changes whenever an entry changes, for
+   * two-phase traversals: whenChanged for Active Directory, entryCSN for
+   * OpenLDAP, and modifyTimestamp for other servers.
+   */
+  private String getChangeTokenAttribute() {
+    ServerType serverType = ldapConnectionSettings.getServerType();
+    if (serverType == ServerType.ACTIVE_DIRECTORY) {
+      return "whenchanged";
+    } else if (serverType == ServerType.OPENLDAP) {
+      return "entrycsn";
+    } else {
+      return "modifytimestamp";
+    }
+  }
+
+  /**
+   * Reads every entry, returning them in ascending order of the schemaKey.
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> fullIterator(
+      ValueInterner interner) {
+    if (useServerSort()) {
+      PagedSearch search = new PagedSearch(null, makeSortControl(), interner);
+      try {
+        // Issue the first request now, to find out whether the server
+        // accepts the sort control.
+        search.hasNext();
+        return new ServerSortedIterator(search, getPageSize(),
+            new Supplier<ExternalEntrySorter>() {
+              @Override
+              public ExternalEntrySorter get() {
+                return new ExternalEntrySorter(sortDirectory, sortBufferSize);
+              }
+            },
+            new ServerSortedIterator.Listener() {
+              @Override
+              public void outOfOrder() {
+                serverSortSupported = false;
+              }
+            });
+      } catch (IllegalStateException e) {
+        if (!(e.getCause() instanceof NamingException)
+            || e.getCause() instanceof CommunicationException) {
+          throw e;
+        }
+        LOG.log(Level.WARNING, "Server-side sort failed, sorting on the client instead.", e);
+        serverSortSupported = false;
+      }
+    }
+    if (partitions > 1 && maxResults == 0) {
+      return partitionedSort(interner);
+    }
+    return sort(new PagedSearch(null, null, interner));
+  }
+
+  /**
+   * Returns a description of everything that determines the results of a
+   * traversal, apart from the contents of the directory.
+   */
+  private String getFingerprint() {
+    Set<String> sortedSchema = (schema == null) ? null : new TreeSet<String>(schema);
+    return ldapConnectionSettings.getHostname() + ":" + ldapConnectionSettings.getPort()
+        + "|" + ldapConnectionSettings.getBaseDN()
+        + "|" + ldapConnectionSettings.getServerType()
+        + "|" + rule.getScope() + "|" + rule.getFilter()
+        + "|" + schemaKey + "|" + sortedSchema + "|" + changeSourceType;
+  }
+
+  /**
+   * Returns the change source for incremental traversals.
+   *
+   * @param interner shares repeated values across the entries of the
+   *        traversal
+   */
+  private ChangeSource makeChangeSource(ValueInterner interner) {
+    if (changeSourceType == ChangeSourceType.DIRSYNC) {
+      return new DirSyncChangeSource(new Directory(interner));
+    }
+    if (changeSourceType == ChangeSourceType.SYNCREPL) {
+      return new SyncReplChangeSource(new Directory(interner));
+    }
+    if (changeSourceType == ChangeSourceType.PSEARCH) {
+      return getPersistentSearch();
+    }
+    if (changeSourceType == ChangeSourceType.CHANGELOG) {
+      return new ChangelogChangeSource(new Directory(interner));
+    }
+    return new HighWaterMarkChangeSource(new Directory(interner));
+  }
+
+  /**
+   * Returns the persistent search listener, starting it the first time,
+   * and restarting it if it has stopped or the configuration has changed.
+   */
+  private synchronized PersistentSearchChangeSource getPersistentSearch() {
+    String fingerprint = getFingerprint();
+    if (persistentSearch != null
+        && (persistentSearch.isStopped()
+            || !persistentSearch.getFingerprint().equals(fingerprint))) {
+      persistentSearch.stop();
+      persistentSearch = null;
+    }
+    if (persistentSearch == null) {
+      // The listener outlives any one traversal, so it does not share values.
+      persistentSearch = new PersistentSearchChangeSource(new Directory(NO_INTERNING),
+          fingerprint, reconcileMillis);
+      persistentSearch.start();
+    }
+    return persistentSearch;
+  }
+
+  /**
+   * The directory as the change sources see it. The settings and rule are
+   * those in effect when it was made, which the persistent search listener
+   * keeps using while it runs.
+   */
+  private class Directory implements LdapDirectory {
+    private final LdapConnectionSettings settings = ldapConnectionSettings;
+    private final LdapRule searchRule = rule;
+    private final String connectionTimeout = getConnectionTimeout();
+    private final ValueInterner interner;
+
+    Directory(ValueInterner interner) {
+      this.interner = interner;
+    }
+
+    @Override
+    public ServerType getServerType() {
+      return settings.getServerType();
+    }
+
+    @Override
+    public String getCanonicalBaseDn() {
+      String baseDn = settings.getBaseDN();
+      return (baseDn == null) ? "" : canonicalDn(baseDn);
+    }
+
+    @Override
+    public LdapRule getRule() {
+      return searchRule;
+    }
+
+    @Override
+    public SearchControls makeControls() {
+      return LdapHandler.this.makeControls(searchRule, schema);
+    }
+
+    @Override
+    public Multimap<String, String> readRootDse(String... attributeNames) {
+      return LdapHandler.this.readRootDse(attributeNames);
+    }
+
+    @Override
+    public EntrySearch search(String filter) {
+      return new PagedSearch(andFilters(searchRule.getFilter(), filter), null, interner);
+    }
+
+    @Override
+    public List<Entry<String, Multimap<String, String>>> fetchEntries(Collection<String> dns) {
+      return LdapHandler.this.fetchEntries(dns, interner);
+    }
+
+    @Override
+    public Entry<String, Multimap<String, String>> toEntry(SearchResult result)
+        throws NamingException {
+      return LdapHandler.this.toEntry(result, interner);
+    }
+
+    @Override
+    public Connection connect(boolean useBaseDn) {
+      final LdapConnection connection = new LdapConnection(settings, connectionTimeout, useBaseDn);
+      final LdapContext ctx = connection.getLdapContext();
+      if (ctx == null) {
+        LOG.warning("Unable to connect: " + connection.getErrors());
+        return null;
+      }
+      return new Connection() {
+        @Override
+        public NamingEnumeration<SearchResult> search(Name name, String filter,
+            SearchControls controls, Control... requestControls) throws NamingException {
+          ctx.setRequestControls((requestControls.length == 0) ? null : requestControls);
+          return ctx.search(name, filter, controls);
+        }
+
+        @Override
+        public Control[] getResponseControls() throws NamingException {
+          return ctx.getResponseControls();
+        }
+
+        @Override
+        public void close() {
+          connection.close();
+        }
+      };
+    }
+  }
+
+  /**
+   * Reads entries in full, by DN. Entries that do not exist, do not match
+   * the filter, have no schemaKey value, or are outside the base DN are
+   * left out.
+   * <p>
+   * Where the server has a DN attribute that can be used in a filter, the
+   * DNs are looked up with a few searches, each OR-ing many DNs. Otherwise
+   * each DN is read with a base-scope search, spread across several pooled
+   * connections.
+   *
+   * @param dns the full DNs of the entries, as returned by the server
+   * @param interner shares repeated values across the entries of the
+   *        traversal
+   * @return the entries, keyed by their schemaKey values
+   * @throws IllegalStateException if the entries could not be read
+   */
+  List<Entry<String, Multimap<String, String>>> fetchEntries(Collection<String> dns,
+      ValueInterner interner) {
+    List<Entry<String, Multimap<String, String>>> entries;
+    String dnAttribute = getDnAttribute();
+    if (dnAttribute != null) {
+      entries = fetchEntries(dnAttribute, dns, interner);
+    } else {
+      entries = readEntries(dns, interner);
+    }
+    if (entries.size() < dns.size()) {
+      LOG.fine("Fetched " + entries.size() + " of " + dns.size() + " entries");
+    }
+    return entries;
+  }
+
+  /**
+   * Reads entries in full, by schemaKey value. Entries that do not exist,
+   * or do not match the filter, are left out.
+   *
+   * @param keys the schemaKey values of the entries
+   * @param interner shares repeated values across the entries of the
+   *        traversal
+   * @return the entries, keyed by their schemaKey values
+   * @throws IllegalStateException if the entries could not be read
+   */
+  List<Entry<String, Multimap<String, String>>> fetchEntriesByKey(Collection<String> keys,
+      ValueInterner interner) {
+    if (schemaKey == null || schemaKey.equalsIgnoreCase(DN_ATTRIBUTE)) {
+      return fetchEntries(keys, interner);
+    }
+    return fetchEntries(schemaKey, keys, interner);
+  }
+
+  /**
+   * Returns the attribute that holds an entry's DN and can be used in a
+   * filter: distinguishedName for Active Directory, entryDN for OpenLDAP,
+   * and null for other servers.
+   */
+  private String getDnAttribute() {
+    ServerType serverType = ldapConnectionSettings.getServerType();
+    if (serverType == ServerType.ACTIVE_DIRECTORY) {
+      return "distinguishedName";
+    } else if (serverType == ServerType.OPENLDAP) {
+      return "entryDN";
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the entries with any of the given values of an attribute, with
+   * searches that each OR together as many values as the filter limits
+   * allow.
+   */
+  private List<Entry<String, Multimap<String, String>>> fetchEntries(String attribute,
+      Collection<String> values, ValueInterner interner) {
+    List<Entry<String, Multimap<String, String>>> entries = Lists.newArrayList();
+    for (String filter : LookupFilters.split(attribute, values,
+        LookupFilters.DEFAULT_MAX_VALUES, LookupFilters.DEFAULT_MAX_LENGTH)) {
+      Iterators.addAll(entries,
+          new PagedSearch(andFilters(rule.getFilter(), filter), null, interner));
+    }
+    return entries;
+  }
+
+  /**
+   * Reads each entry with a base-scope search. The DNs are split between
+   * up to {@link #FETCH_THREADS} threads, each with its own pooled
+   * connection.
+   */
+  private List<Entry<String, Multimap<String, String>>> readEntries(Collection<String> dns,
+      final ValueInterner interner) {
+    final LdapName baseName;
+    try {
+      String baseDn = ldapConnectionSettings.getBaseDN();
+      baseName = new LdapName((baseDn == null) ? "" : baseDn);
+    } catch (NamingException e) {
+      throw new IllegalStateException(e);
+    }
+    List<LdapName> names = Lists.newArrayList();
+    for (String dn : dns) {
+      try {
+        LdapName name = new LdapName(dn);
+        if (name.startsWith(baseName)) {
+          names.add((LdapName) name.getSuffix(baseName.size()));
+        }
+      } catch (NamingException e) {
+        LOG.warning("Skipping invalid DN " + dn);
+      }
+    }
+    List<Entry<String, Multimap<String, String>>> entries = Lists.newArrayList();
+    if (names.isEmpty()) {
+      return entries;
+    }
+
+    int threads = Math.min(FETCH_THREADS, names.size());
+    int chunkSize = (names.size() + threads - 1) / threads;
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("ldap-fetch-%d").setDaemon(true).build());
+    List<Future<List<Entry<String, Multimap<String, String>>>>> futures = Lists.newArrayList();
+    try {
+      for (final List<LdapName> chunk : Lists.partition(names, chunkSize)) {
+        futures.add(executor.submit(new Callable<List<Entry<String, Multimap<String, String>>>>() {
+          @Override
+          public List<Entry<String, Multimap<String, String>>> call() {
+            return readEntries(chunk, interner);
+          }
+        }));
+      }
+      for (Future<List<Entry<String, Multimap<String, String>>>> future : futures) {
+        entries.addAll(getResult(future));
+      }
+    } catch (RuntimeException e) {
+      for (Future<List<Entry<String, Multimap<String, String>>>> future : futures) {
+        future.cancel(true);
+      }
+      throw e;
+    } finally {
+      executor.shutdown();
+    }
+    return entries;
+  }
+
+  /**
+   * Reads each entry with a base-scope search on one pooled connection.
+   *
+   * @param names the names of the entries, relative to the base DN
+   * @param interner shares repeated values across the entries of the
+   *        traversal
+   */
+  private List<Entry<String, Multimap<String, String>>> readEntries(List<LdapName> names,
+      ValueInterner interner) {
+    List<Entry<String, Multimap<String, String>>> entries = Lists.newArrayList();
+    LdapConnection fetchConnection =
+        POOL.borrow(ldapConnectionSettings, getConnectionTimeout(), -1);
+    LdapContext ctx = fetchConnection.getLdapContext();
+    if (ctx == null) {
+      Map<LdapConnectionError, Throwable> errors = fetchConnection.getErrors();
+      if (errors.isEmpty()) {
+        throw new IllegalStateException(ErrorMessages.UNKNOWN_CONNECTION_ERROR.toString());
+      }
+      throw new IllegalStateException(errors.values().iterator().next());
+    }
+    boolean reusable = false;
+    try {
+      ctx.setRequestControls(null);
+      SearchControls controls = makeControls(rule, schema);
+      controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+      for (LdapName name : names) {
+        try {
+          NamingEnumeration<SearchResult> results = ctx.search(name, rule.getFilter(), controls);
+          try {
+            if (results.hasMore()) {
+              Entry<String, Multimap<String, String>> entry =
+                  toEntry(results.next(), interner);
+              if (entry != null) {
+                entries.add(entry);
+              }
+            }
+          } finally {
+            results.close();
+          }
+        } catch (NameNotFoundException e) {
+          // Deleted since the DN was read.
+        }
+      }
+      reusable = true;
+      return entries;
+    } catch (NamingException e) {
+      fetchConnection.recordError(e);
+      throw new IllegalStateException(e);
+    } finally {
+      if (reusable) {
+        POOL.release(fetchConnection);
+      } else {
+        fetchConnection.close();
+      }
+    }
+  }
+
+  /** Returns the control with the given OID, or {@code null}. */
+  static Control findControl(Control[] controls, String oid) {
+    if (controls != null) {
+      for (Control control : controls) {
+        if (oid.equals(control.getID())) {
+          return control;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the canonical DN is the given base, or below it.
+   */
+  static boolean isWithin(String canonicalDn, String canonicalBase) {
+    return canonicalBase.length() == 0 || canonicalDn.equals(canonicalBase)
+        || canonicalDn.endsWith("," + canonicalBase);
+  }
+
+  /**
+   * Returns a filter that matches the entries that match both filters.
+   */
+  static String andFilters(String filter, String other) {
+    filter = filter.trim();
+    if (!filter.startsWith("(")) {
+      filter = "(" + filter + ")";
+    }
+    return "(&" + filter + other + ")";
+  }
+
+  /**
+   * Returns true if the server should be asked to sort the results. The
+   * rootDSE is checked for the sort control the first time.
+   */
+  private boolean useServerSort() {
+    if (!serverSort || maxResults > 0) {
+      return false;
+    }
+    if (serverSortSupported == null) {
+      if (schemaKey == null || schemaKey.equalsIgnoreCase(DN_ATTRIBUTE)) {
+        // The DN is not an attribute, so the server cannot sort by it.
+        LOG.info("Server-side sort is not possible on " + DN_ATTRIBUTE);
+        serverSortSupported = false;
+      } else {
+        Multimap<String, String> rootDse = readRootDse("supportedControl");
+        serverSortSupported = rootDse.containsEntry("supportedcontrol", SortControl.OID);
+        LOG.info("Server-side sort supported: " + serverSortSupported);
+      }
+    }
+    return serverSortSupported;
+  }
+
+  private Control makeSortControl() {
+    try {
+      return new SortControl(
+          new SortKey[] { new SortKey(schemaKey, true, SORT_MATCHING_RULE) },
+          Control.CRITICAL);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Reads attributes of the server's rootDSE. Errors are logged, and
+   * result in an empty Multimap.
+   *
+   * @param attributeNames the attributes to read
+   * @return the values of the attributes, keyed by lower-case attribute name
+   */
+  Multimap<String, String> readRootDse(String... attributeNames) {
+    return readEntry("", attributeNames);
+  }
+
+  /**
+   * Reads attributes of an entry, which may be outside the base DN. Errors
+   * are logged, and result in an empty Multimap.
+   *
+   * @param name the full DN of the entry, or "" for the rootDSE
+   * @param attributeNames the attributes to read
+   * @return the values of the attributes, keyed by lower-case attribute name
+   */
+  Multimap<String, String> readEntry(String name, String... attributeNames) {
+    Multimap<String, String> result = ArrayListMultimap.create();
+    if (ldapConnectionSettings == null) {
+      return result;
+    }
+    LdapConnection rootConnection =
+        new LdapConnection(ldapConnectionSettings, getConnectionTimeout(), false);
+    LdapContext ctx = rootConnection.getLdapContext();
+    if (ctx == null) {
+      LOG.warning("Unable to read " + describe(name) + ": " + rootConnection.getErrors());
+      return result;
+    }
+    try {
+      Attributes attributes = ctx.getAttributes(name, attributeNames);
+      NamingEnumeration<? extends Attribute> allAttrs = attributes.getAll();
+      while (allAttrs.hasMore()) {
+        Attribute attr = allAttrs.next();
+        for (int i = 0; i < attr.size(); i++) {
+          Object value = attr.get(i);
+          if (value instanceof String) {
+            result.put(attr.getID().toLowerCase(), (String) value);
+          }
+        }
+      }
+    } catch (NamingException e) {
+      LOG.log(Level.WARNING, "Unable to read " + describe(name), e);
+    } finally {
+      try {
+        ctx.close();
+      } catch (NamingException e) {
+        LOG.log(Level.WARNING, "ldap_connection_cleanup_error_on_context", e);
+      }
+    }
+    return result;
+  }
+
+  private static String describe(String name) {
+    return (name.length() == 0) ? "the rootDSE" : name;
+  }
+
+  /**
+   * Returns the page size to request. When adaptive paging is first used,
+   * the server's advertised limit is read.
+   */
+  private int getPageSize() {
+    if (!adaptivePaging) {
+      return pageSize;
+    }
+    AdaptivePageSize adaptive = getAdaptivePageSize();
+    return adaptive.get();
+  }
+
+  private synchronized AdaptivePageSize getAdaptivePageSize() {
+    if (adaptivePaging && adaptivePageSize == null) {
+      AdaptivePageSize adaptive = new AdaptivePageSize(pageSize);
+      adaptive.setServerLimit(readMaxPageSize());
+      adaptivePageSize = adaptive;
+    }
+    return adaptivePageSize;
+  }
+
+  /**
+   * Reads the MaxPageSize limit that Active Directory advertises in its
+   * default query policy. Other servers do not advertise a limit, so their
+   * limit is learned from the size of the pages they return.
+   *
+   * @return the limit, or 0 if it is not known
+   */
+  private int readMaxPageSize() {
+    Collection<String> configurationContexts =
+        readRootDse("configurationNamingContext").get("configurationnamingcontext");
+    if (configurationContexts.isEmpty()) {
+      return 0;
+    }
+    String policy = AD_QUERY_POLICY + "," + configurationContexts.iterator().next();
+    for (String limit : readEntry(policy, "lDAPAdminLimits").get("ldapadminlimits")) {
+      if (limit.toLowerCase().startsWith("maxpagesize=")) {
+        try {
+          return Integer.parseInt(limit.substring(limit.indexOf('=') + 1).trim());
+        } catch (NumberFormatException e) {
+          LOG.warning("Unexpected query policy limit: " + limit);
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Puts the search results into ascending key order. The directory returns
+   * entries in no particular order, so they are all read before the first
+   * one is returned, but at most sortBufferSize of them are held in memory;
+   * the rest are sorted on disk. When two entries have the same key, the
+   * later one wins, as in {@link #get}.
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> sort(PagedSearch results) {
+    return fill(new ExternalEntrySorter(sortDirectory, sortBufferSize), results).iterator();
+  }
+
+  /**
+   * Adds all of the results to the sorter. If an error occurs, or the
+   * thread is interrupted, the search and the sorter are closed.
+   */
+  private static ExternalEntrySorter fill(ExternalEntrySorter sorter, EntrySearch results) {
+    try {
+      while (results.hasNext()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new IllegalStateException("Interrupted while reading ldap results");
+        }
+        Entry<String, Multimap<String, String>> entry = results.next();
+        sorter.add(entry.getKey(), entry.getValue());
+      }
+    } catch (RuntimeException e) {
+      results.close();
+      sorter.close();
+      throw e;
+    }
+    return sorter;
+  }
+
+  /**
+   * Splits the rule's filter into partitions, and searches them
+   * concurrently, each on its own connection, sorting each partition's
+   * results separately. The sorted partitions are then merged. The sort
+   * buffer is shared evenly between the partitions.
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> partitionedSort(
+      final ValueInterner interner) {
+    // Report a bad connection before anything else, as a single search
+    // would. The connection is then used by one of the partitions.
+    POOL.release(borrowSearchConnection(-1, true));
+
+    String attribute = partitionAttribute;
+    if (attribute == null) {
+      attribute = (schemaKey == null || schemaKey.equalsIgnoreCase(DN_ATTRIBUTE))
+          ? DEFAULT_PARTITION_ATTRIBUTE : schemaKey;
+    }
+    List<String> filters = PartitionFilters.split(rule.getFilter(), attribute, partitions);
+    LOG.info("Searching " + filters.size() + " partitions by " + attribute);
+    final int bufferSize = Math.max(1, sortBufferSize / filters.size());
+
+    ExecutorService executor = Executors.newFixedThreadPool(filters.size(),
+        new ThreadFactoryBuilder().setNameFormat("ldap-partition-%d").setDaemon(true).build());
+    List<Future<ExternalEntrySorter>> futures = Lists.newArrayList();
+    final List<ExternalEntrySorter> sorters = Lists.newArrayList();
+    try {
+      for (int i = 0; i < filters.size(); i++) {
+        final String filter = filters.get(i);
+        final int replica = spreadReplicas ? i : -1;
+        futures.add(executor.submit(new Callable<ExternalEntrySorter>() {
+          @Override
+          public ExternalEntrySorter call() {
+            LOG.fine("Searching partition " + filter);
+            return fill(new ExternalEntrySorter(sortDirectory, bufferSize),
+                new PagedSearch(filter, null, schema, replica, false, interner));
+          }
+        }));
+      }
+      for (Future<ExternalEntrySorter> future : futures) {
+        sorters.add(getResult(future));
+      }
+    } catch (RuntimeException e) {
+      for (Future<ExternalEntrySorter> future : futures) {
+        future.cancel(true);
+      }
+      for (ExternalEntrySorter sorter : sorters) {
+        sorter.close();
+      }
+      throw e;
+    } finally {
+      executor.shutdown();
+    }
+
+    List<Iterator<Entry<String, Multimap<String, String>>>> inputs = Lists.newArrayList();
+    for (ExternalEntrySorter sorter : sorters) {
+      inputs.add(sorter.iterator());
+    }
+    final Iterator<Entry<String, Multimap<String, String>>> merged =
+        new MergingIterator<Multimap<String, String>>(inputs);
+    return new AbstractIterator<Entry<String, Multimap<String, String>>>() {
+      @Override
+      protected Entry<String, Multimap<String, String>> computeNext() {
+        try {
+          return merged.hasNext() ? merged.next() : endOfData();
+        } catch (RuntimeException e) {
+          for (ExternalEntrySorter sorter : sorters) {
+            sorter.close();
+          }
+          throw e;
+        }
+      }
+    };
+  }
+
+  /**
+   * Waits for a task, such as searching a partition. Errors are thrown as
+   * IllegalStateException.
+   */
+  private static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * A search over the configured rule that fetches one page of results at a
+   * time, as the iterator is consumed. Results are returned in the order the
+   * server sends them. The connection is returned to the pool when the last
+   * result has been read, and closed if an error occurs.
+   * <p>
+   * If prefetching is on, the pages are read by a background thread, which
+   * reads ahead by up to a page while the results are converted here.
+   */
+  private class PagedSearch extends AbstractIterator<Entry<String, Multimap<String, String>>>
+      implements EntrySearch {
+    private final PageReader reader;
+    private final PrefetchingIterator<SearchResult> prefetcher;
+    private final Iterator<SearchResult> ldapResults;
+    private final ValueInterner interner;
 
-  public String getConnectionTimeout() {
-    return this.ldapConnectionTimeout;
-  }
+    /**
+     * @param filter the filter to search for, or {@code null} for the
+     *        rule's filter
+     * @param sortControl a control to send with each page, or {@code null}
+     * @param interner shares repeated values across the entries of the
+     *        traversal
+     */
+    public PagedSearch(String filter, Control sortControl, ValueInterner interner) {
+      this(filter, sortControl, schema, interner);
+    }
 
-  @Override
-  public void setQueryParameters(LdapRule rule, Set<String> schema, String schemaKey, int maxResults) {
-    this.rule = rule;
-    this.schemaKey = schemaKey;
-    if (schema == null) {
-      this.schema = null;
-    } else {
-      this.schema = Sets.newHashSet(Collections2.transform(schema, toLower));
+    /**
+     * @param filter the filter to search for, or {@code null} for the
+     *        rule's filter
+     * @param sortControl a control to send with each page, or {@code null}
+     * @param attributes the attributes to read, or {@code null} for all
+     * @param interner shares repeated values across the entries of the
+     *        traversal
+     */
+    public PagedSearch(String filter, Control sortControl, Set<String> attributes,
+        ValueInterner interner) {
+      this(filter, sortControl, attributes, -1, true, interner);
     }
-    this.maxResults = maxResults;
-  }
 
-  @Override
-  public void setLdapConnectionSettings(LdapConnectionSettings ldapConnectionSettings) {
-    this.ldapConnectionSettings = ldapConnectionSettings;
-    LOG.fine("settings " + this.ldapConnectionSettings);
-    connection = new LdapConnection(ldapConnectionSettings, getConnectionTimeout());
-  }
+    /**
+     * @param filter the filter to search for, or {@code null} for the
+     *        rule's filter
+     * @param sortControl a control to send with each page, or {@code null}
+     * @param attributes the attributes to read, or {@code null} for all
+     * @param replica the index of the replica to prefer, or -1 for the best
+     * @param shared false if other searches are running at the same time,
+     *        so the connection is not the handler's connection
+     * @param interner shares repeated values across the entries of the
+     *        traversal
+     */
+    public PagedSearch(String filter, Control sortControl, Set<String> attributes,
+        int replica, boolean shared, ValueInterner interner) {
+      this.interner = interner;
+      reader = new PageReader(filter, sortControl, attributes, replica, shared);
+      if (prefetch) {
+        prefetcher = new PrefetchingIterator<SearchResult>(reader, reader.requestedPageSize,
+            "ldap-prefetch");
+        ldapResults = prefetcher;
+      } else {
+        prefetcher = null;
+        ldapResults = reader;
+      }
+    }
 
-  @Override
-  public Map<LdapConnectionError, Throwable> getErrors() {
-    if (connection != null) {
-      return connection.getErrors();
+    @Override
+    protected Entry<String, Multimap<String, String>> computeNext() {
+      try {
+        while (ldapResults.hasNext()) {
+          Entry<String, Multimap<String, String>> entry = convert(ldapResults.next());
+          if (entry != null) {
+            return entry;
+          }
+        }
+        return endOfData();
+      } catch (NamingException e) {
+        close();
+        throw new IllegalStateException(e);
+      } catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * Converts a search result to an entry.
+     *
+     * @return the entry, or {@code null} to skip the result
+     */
+    protected Entry<String, Multimap<String, String>> convert(SearchResult searchResult)
+        throws NamingException {
+      return toEntry(searchResult, interner);
+    }
+
+    @Override
+    public void close() {
+      if (prefetcher != null) {
+        prefetcher.close();
+      }
+      reader.close(false);
     }
-    throw new IllegalStateException("Must successfully set connection config before getting error state");
   }
 
   /**
-   * Convenience routine for setting up an LdapHandler from an LdapConnectorConfig.
-   * This is expected to be called by Spring, for a production instance.
+   * Converts a search result to an entry keyed by its schemaKey value.
+   *
+   * @param interner shares repeated values across the entries of the
+   *        traversal
+   * @return the entry, or {@code null} if it has no schemaKey value
    */
-  public static LdapHandlerI makeLdapHandlerFromConfig(LdapConnectorConfig ldapConnectorConfig) {
-    LOG.fine("ldapConnectorConfig: " + ldapConnectorConfig);
-    LdapHandlerI ldapHandler = new LdapHandler();
-    LOG.fine("ldapHandler: " + ldapHandler);
-    LdapConnectionSettings settings = ldapConnectorConfig.getSettings();
-    LOG.fine("settings: " + settings);
-    ldapHandler.setLdapConnectionSettings(settings);
-    LdapRule rule = ldapConnectorConfig.getRule();
-    Set<String> schema = ldapConnectorConfig.getSchema();
-    String schemaKey = ldapConnectorConfig.getSchemaKey();
-    ldapHandler.setQueryParameters(rule, schema, schemaKey, 0);
-    return ldapHandler;
-  }
+  private Entry<String, Multimap<String, String>> toEntry(SearchResult searchResult,
+      ValueInterner interner) throws NamingException {
+    CompactEntry.Builder builder = new CompactEntry.Builder(attributeNames);
 
-  @VisibleForTesting
-  LdapContext getLdapContext() {
-    return connection.getLdapContext();
+    // We don't see our DN as a normal attribute, we have to ask for it
+    // separately.
+    String canonicalDn = canonicalDn(searchResult.getNameInNamespace());
+    builder.put(DN_ATTRIBUTE, canonicalDn);
+
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("ldap search result dn " + canonicalDn);
+    }
+
+    // Add all our attributes to this result object
+    List<RangedAttributes.Range> ranges =
+        handleAttrs(builder, searchResult.getAttributes(), schema, interner);
+    if (!ranges.isEmpty()) {
+      Multimap<String, String> remaining = ArrayListMultimap.create();
+      RangedAttributes.readRemaining(ldapConnectionSettings, getConnectionTimeout(),
+          searchResult.getNameInNamespace(), remaining, ranges);
+      builder.putAll(remaining);
+    }
+    Multimap<String, String> thisResult = builder.build();
+
+    String keyValue = getFirst(schemaKey, thisResult);
+    if (keyValue == null) {
+      LOG.warning("Ldap result" + canonicalDn +
+          " is missing schema key attribute " + schemaKey + ": skipping");
+      return null;
+    }
+    return Maps.immutableEntry(keyValue, thisResult);
   }
 
   /**
-   * Executes a rule. Note: the implementation of this class is based on GADS.
-   * Note: execute should only be called once. To execute again, create a new
-   * LdapHandler and execute that.
+   * Borrows a connection for a search. The settings and the connection are
+   * checked before the rule is used, so that a bad connection is reported
+   * even if there is no rule.
    *
-   * @return a Map of results. The map is sorted by the schemaKey
-   *         specified in the constructor. Each result is a Multimap of Strings
-   *         to Strings, keyed by attributes in the schema. Results are
-   *         Multimaps because ldap can store multiple values with an attribute,
-   *         although in practice this is rare (except for a few attributes,
-   *         like email aliases).
+   * @param replica the index of the replica to prefer, or -1 for the best
+   * @param shared true if a failed connection becomes the handler's
+   *        connection, for {@link #getErrors}
+   * @throws IllegalStateException if there are no settings, or the
+   *         connection failed, wrapping the connection error
    */
-  @Override
-  public Map<String, Multimap<String, String>> get() {
-    LOG.fine("entering get " + ldapConnectionSettings);
-
+  private LdapConnection borrowSearchConnection(int replica, boolean shared) {
     if (ldapConnectionSettings == null) {
       throw new IllegalStateException("Must successfully set LdapConnectionSettings before get");
     }
-
-    connection = new LdapConnection(ldapConnectionSettings, getConnectionTimeout());
-
-    LOG.fine("connection:" + connection);
-
-    SortedMap<String, Multimap<String, String>> result =
-        new TreeMap<String, Multimap<String, String>>();
-
-    LdapContext ctx = connection.getLdapContext();
-
-    LOG.fine("ctx:" + ctx);
-
-    if (ctx == null) {
-      Map<LdapConnectionError, Throwable> errors = connection.getErrors();
+    LdapConnection searchConnection =
+        POOL.borrow(ldapConnectionSettings, getConnectionTimeout(), replica);
+    LOG.fine("connection:" + searchConnection);
+    if (searchConnection.getLdapContext() == null) {
+      Map<LdapConnectionError, Throwable> errors = searchConnection.getErrors();
+      if (shared) {
+        connection = searchConnection;
+      }
       if (errors.isEmpty()) {
         throw new IllegalStateException(
             ErrorMessages.UNKNOWN_CONNECTION_ERROR.toString());
@@ -192,86 +1463,188 @@ public class LdapHandler implements LdapHandlerI {
         throw new IllegalStateException(error);
       }
     }
+    return searchConnection;
+  }
 
-    NamingEnumeration<SearchResult> ldapResults = null;
-    int resultCount = 0;
-    byte[] cookie = null;
-    try {      
-
-      do {
-        SearchControls controls = makeControls(rule, schema);
-
-        LOG.info("Ldap search begin");
-        ldapResults = ctx.search("", // Filter is always relative to our base dn
-            rule.getFilter(), controls);
-
-        // Process results.
-        while (ldapResults.hasMore()) {
-          resultCount++;
+  /**
+   * Reads the raw results of a paged search, one page at a time.
+   */
+  private class PageReader extends AbstractIterator<SearchResult> {
+    private final LdapConnection searchConnection;
+    private final LdapContext ctx;
+    private final SearchControls controls;
+    private final String filter;
+    private final Control sortControl;
+    private final boolean shared;
+    private NamingEnumeration<SearchResult> ldapResults = null;
+    private int resultCount = 0;
+    private boolean lastPage = false;
+    private boolean truncated = false;
+    private boolean closed = false;
+
+    // Measurements of the current page, for adaptive paging.
+    private int requestedPageSize;
+    private int pageEntries = 0;
+    private long pageChars = 0;
+    private long pageNanos = 0;
 
-          Multimap<String, String> thisResult = ArrayListMultimap.create();
+    /**
+     * @param filter the filter to search for, or {@code null} for the
+     *        rule's filter, which is only read once the connection has been
+     *        checked
+     * @param shared true if the connection becomes the handler's
+     *        connection while the search runs
+     */
+    public PageReader(String filter, Control sortControl, Set<String> attributes,
+        int replica, boolean shared) {
+      this.sortControl = sortControl;
+      this.shared = shared;
+      searchConnection = borrowSearchConnection(replica, shared);
+      if (shared) {
+        connection = searchConnection;
+      }
+      ctx = searchConnection.getLdapContext();
+      LOG.fine("ctx:" + ctx);
 
-          SearchResult searchResult = ldapResults.next();
-          Attributes attributes = searchResult.getAttributes();
+      this.filter = (filter == null) ? rule.getFilter() : filter;
+      controls = makeControls(rule, attributes);
+      try {
+        ctx.setRequestControls(makeRequestControls(null));
+      } catch (NamingException e) {
+        searchConnection.recordError(e);
+        close(false);
+        throw new IllegalStateException(e);
+      } catch (IOException e) {
+        close(false);
+        throw new IllegalStateException(e);
+      } catch (RuntimeException e) {
+        close(false);
+        throw e;
+      }
+    }
 
-          // We don't see our DN as a normal attribute, we have to ask for it
-          // separately.
-          String canonicalDn = canonicalDn(searchResult.getNameInNamespace());
-          thisResult.put(DN_ATTRIBUTE, canonicalDn);
+    private Control[] makeRequestControls(byte[] cookie) throws IOException {
+      requestedPageSize = getPageSize();
+      Control paged =
+          new PagedResultsControl(requestedPageSize, cookie, Control.NONCRITICAL);
+      if (sortControl == null) {
+        return new Control[] {paged};
+      } else {
+        return new Control[] {sortControl, paged};
+      }
+    }
 
-          if (LOG.isLoggable(Level.FINE)) {
-            LOG.fine("ldap search result " + resultCount + " dn " + canonicalDn);
+    @Override
+    protected SearchResult computeNext() {
+      try {
+        while (true) {
+          if (ldapResults == null) {
+            if (lastPage) {
+              // A search cut short by maxResults may still be active on
+              // the server, so that connection is not reused.
+              close(!truncated);
+              LOG.info("ldap search final result count " + resultCount);
+              return endOfData();
+            }
+            LOG.info("Ldap search begin");
+            long start = System.nanoTime();
+            ldapResults = ctx.search("", // Filter is always relative to our base dn
+                filter, controls);
+            pageNanos += System.nanoTime() - start;
           }
 
-          // Add all our attributes to this result object
-          handleAttrs(thisResult, searchResult, result, attributes);
+          long start = System.nanoTime();
+          boolean hasMore = ldapResults.hasMore();
+          pageNanos += System.nanoTime() - start;
+          if (!hasMore) {
+            nextPage();
+            continue;
+          }
 
-          String keyValue = getFirst(schemaKey, thisResult);
-          if (keyValue == null) {
-            LOG.warning("Ldap result" + canonicalDn +
-                " is missing schema key attribute " + schemaKey + ": skipping");
-          } else {
-            result.put(keyValue, thisResult);
+          resultCount++;
+          start = System.nanoTime();
+          SearchResult searchResult = ldapResults.next();
+          pageNanos += System.nanoTime() - start;
+          pageEntries++;
+          if (adaptivePaging) {
+            pageChars += countChars(searchResult.getAttributes());
           }
           if (maxResults > 0 && resultCount >= maxResults) {
-            break;
+            ldapResults.close();
+            ldapResults = null;
+            lastPage = true;
+            truncated = true;
           }
+          return searchResult;
         }
+      } catch (NamingException e) {
+        searchConnection.recordError(e);
+        close(false);
+        throw new IllegalStateException(e);
+      } catch (IOException e) {
+        close(false);
+        throw new IllegalStateException(e);
+      } catch (RuntimeException e) {
+        close(false);
+        throw e;
+      }
+    }
 
-        if (LOG.isLoggable(Level.INFO)) {
-          LOG.info("ldap search intermediate result count " + resultCount);
-        }
+    /**
+     * Finishes the current page, and requests the next one if the server
+     * has more results.
+     */
+    private void nextPage() throws NamingException, IOException {
+      ldapResults.close();
+      ldapResults = null;
 
-        // Examine the paged results control response
-        // This may be null if the server does not support paged results
-        Control[] pagedControls = ctx.getResponseControls();
-        if (controls != null && pagedControls != null) {
-          for (int i = 0; i < pagedControls.length; i++) {
-            if (pagedControls[i] instanceof PagedResultsResponseControl) {
-              PagedResultsResponseControl prrc =
-                  (PagedResultsResponseControl) pagedControls[i];
-              cookie = prrc.getCookie();
-            } else {
-              // Handle other response controls (if any)
-            }
+      if (LOG.isLoggable(Level.INFO)) {
+        LOG.info("ldap search intermediate result count " + resultCount);
+      }
+
+      // Examine the paged results control response
+      // This may be null if the server does not support paged results
+      byte[] cookie = null;
+      Control[] pagedControls = ctx.getResponseControls();
+      if (pagedControls != null) {
+        for (int i = 0; i < pagedControls.length; i++) {
+          if (pagedControls[i] instanceof PagedResultsResponseControl) {
+            PagedResultsResponseControl prrc =
+                (PagedResultsResponseControl) pagedControls[i];
+            cookie = prrc.getCookie();
+          } else {
+            // Handle other response controls (if any)
           }
         }
-        // Re-activate paged results
-        // Note: this code is from GADS
-        // TODO: decide whether this is really needed for the ldap connector
-        ctx.setRequestControls(new Control[] {new PagedResultsControl(LdapConnection.PAGESIZE,
-            cookie, Control.NONCRITICAL)});
-      } while (!shouldStop(cookie));
-
-    } catch (CommunicationException e) {
-      throw new IllegalStateException(e);
-    } catch (NameNotFoundException e) {
-      throw new IllegalStateException(e);
-    } catch (NamingException e) {
-      throw new IllegalStateException(e);
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    } finally {
+      }
+      if (adaptivePaging) {
+        getAdaptivePageSize().record(requestedPageSize, pageEntries,
+            pageNanos / 1000000, pageChars, cookie != null);
+      }
+      pageEntries = 0;
+      pageChars = 0;
+      pageNanos = 0;
+
+      // Re-activate paged results
+      // Note: this code is from GADS
+      // TODO: decide whether this is really needed for the ldap connector
+      ctx.setRequestControls(makeRequestControls(cookie));
+      lastPage = shouldStop(cookie);
+    }
+
+    /**
+     * Closes the search. This may be called by a consumer while a
+     * prefetching thread is reading, so it is synchronized, and only the
+     * first call has any effect.
+     *
+     * @param reusable true if the search is complete, so the connection can
+     *        be used for another search
+     */
+    private synchronized void close(boolean reusable) {
+      if (closed) {
+        return;
+      }
+      closed = true;
       // Clean up everything.
       if (ldapResults != null) {
         try {
@@ -279,18 +1652,34 @@ public class LdapHandler implements LdapHandlerI {
         } catch (Exception e) {
           LOG.log(Level.WARNING, "ldap_connection_cleanup_error_on_results", e);
         }
+        ldapResults = null;
       }
-      if (ctx != null) {
-        try {
-          ctx.close();
-        } catch (Exception e) {
-          LOG.log(Level.WARNING, "ldap_connection_cleanup_error_on_context", e);
+      if (reusable) {
+        POOL.release(searchConnection);
+      } else {
+        searchConnection.close();
+      }
+      lastPage = true;
+      if (shared && connection == searchConnection) {
+        connection = null;
+      }
+    }
+  }
+
+  /** Counts the characters in the String values of the attributes. */
+  private static long countChars(Attributes attributes) throws NamingException {
+    long chars = 0;
+    NamingEnumeration<? extends Attribute> allAttrs = attributes.getAll();
+    while (allAttrs.hasMore()) {
+      Attribute attr = allAttrs.next();
+      for (int i = 0; i < attr.size(); i++) {
+        Object value = attr.get(i);
+        if (value instanceof String) {
+          chars += ((String) value).length();
         }
       }
-      connection = null;
     }
-    LOG.info("ldap search final result count " + resultCount);
-    return result;
+    return chars;
   }
 
   private static boolean shouldStop(byte[] cookie) {
@@ -303,22 +1692,37 @@ public class LdapHandler implements LdapHandlerI {
     return shouldStop;
   }
 
-  private String getFirst(String key, Multimap<String, String> m) {
+  static String getFirst(String key, Multimap<String, String> m) {
     for (String value : m.get(key)) {
       return value;
     }
     return null;
   }
 
-  private void handleAttrs(Multimap<String, String> thisResult,
-      SearchResult searchResult, SortedMap<String, Multimap<String, String>> result,
-      Attributes attributes) throws NamingException {
+  /**
+   * Adds the string values of the attributes in the schema to an entry.
+   * The values of an attribute returned in ranges, as Active Directory
+   * returns large attributes, are added under the plain attribute name.
+   *
+   * @param interner shares repeated values across the entries of the
+   *        traversal
+   * @return the ranges of attributes with more values to read, usually
+   *         none
+   */
+  private List<RangedAttributes.Range> handleAttrs(CompactEntry.Builder thisResult,
+      Attributes attributes, Set<String> schema, ValueInterner interner)
+      throws NamingException {
+    List<RangedAttributes.Range> ranges = null;
 
     NamingEnumeration<? extends Attribute> allAttrs = attributes.getAll();
 
     while (allAttrs.hasMore()) {
       Attribute attr = allAttrs.next();
       String attrName = attr.getID().toLowerCase();
+      RangedAttributes.Range range = RangedAttributes.parse(attrName);
+      if (range != null) {
+        attrName = range.name;
+      }
       // treat a null schema by returning all attributes
       // otherwise only return attributes in the schema
       if (schema == null || schema.contains(attrName)) {
@@ -327,7 +1731,7 @@ public class LdapHandler implements LdapHandlerI {
           Object attributeValue = attr.get(i);
           if (attributeValue instanceof String) {
             String value = (String) attr.get(i);
-            thisResult.put(attrName, value);
+            thisResult.put(attrName, interner.intern(attrName, value));
           } else if (attributeValue.getClass().isAssignableFrom(byte[].class)) {
             // skip this attribute - we only deal with Strings
             // This means we can't deal with encrypted strings (e.g. passwords)
@@ -335,8 +1739,15 @@ public class LdapHandler implements LdapHandlerI {
             // TODO: maybe report this?
           }
         }
+        if (range != null && !range.isLast()) {
+          if (ranges == null) {
+            ranges = Lists.newArrayList();
+          }
+          ranges.add(range);
+        }
       }
     }
+    return (ranges == null) ? Collections.<RangedAttributes.Range>emptyList() : ranges;
   }
 
   private SearchControls makeControls(LdapRule rule, Set<String> allNotableAttributes) {
@@ -369,168 +1780,13 @@ public class LdapHandler implements LdapHandlerI {
    * any \{2 hexdigits} sequences replaced with that byte (other than slash)
    * Note: this code is from GADS
    * TODO: decide whether this is really needed for the ldap connector
+   *
+   * @see DnCanonicalizer
    */
   public static String canonicalDn(String origDn) {
-    if (origDn == null) {
-      return null;
-    }
-    origDn = origDn.toLowerCase();
-    try {
-      return Rdn.unescapeValue(origDn).toString().replaceAll("/", "%2F");
-    } catch (IllegalArgumentException e) {
-      LOG.log(Level.INFO, "Potentially invalid LDAP DN found: " + origDn, e);
-    }
-    // we only do this if the Rdn parsing above threw an exception
-    return origDn.replaceAll(" *, *", ",").replaceAll("/", "%2F");
+    return DnCanonicalizer.canonicalize(origDn);
   }
 
-  /**
-   * A connection to an Ldap Server
-   */
-  private static class LdapConnection {
-
-    private static final String COM_SUN_JNDI_LDAP_LDAP_CTX_FACTORY =
-        "com.sun.jndi.ldap.LdapCtxFactory";
-    private static final String COM_SUN_JNDI_LDAP_CONNECT_TIMEOUT =
-        "com.sun.jndi.ldap.connect.timeout";
-
-    private final LdapConnectionSettings settings;
-    private LdapContext ldapContext = null;
-    private final Map<LdapConnectionError, Throwable> errors;
-    private String connectionTimeOut;
-
-    public static final int PAGESIZE = 1000;
-
-    public LdapConnection(LdapConnectionSettings ldapConnectionSettings, String connectionTimeOut) {
-      LOG.fine("Configuring LdapConnection with settings: " + ldapConnectionSettings);
-      this.settings = ldapConnectionSettings;
-      this.errors = Maps.newHashMap();
-      this.connectionTimeOut = connectionTimeOut;
-      Hashtable<String, String> env = configureLdapEnvironment();
-      ldapContext = makeContext(env, PAGESIZE);
-    }
-
-    public LdapContext getLdapContext() {
-      return ldapContext;
-    }
-
-    public Map<LdapConnectionError, Throwable> getErrors() {
-      return errors;
-    }
-
-    private LdapContext makeContext(Hashtable<String, String> env, int pageSize) {
-      LdapContext ctx = null;
-      try {
-        ctx = new InitialLdapContext(env, null);
-      } catch (CommunicationException e) {
-        LOG.info("Communication error : " + e.toString());
-
-        if (e.getCause() instanceof NoRouteToHostException) {
-          errors.put(LdapConnectionError.CommunicationException, e.getCause());
-        } else if (e.getCause() instanceof SocketTimeoutException) {
-          errors.put(LdapConnectionError.CommunicationExceptionTimeout, e.getCause());
-        } else if (e.getCause() instanceof UnknownHostException) {
-          errors.put(LdapConnectionError.CommunicationExceptionUnknownhost, e.getCause());
-        } else {
-          errors.put(LdapConnectionError.CommunicationException, e);
-        }
-      } catch (AuthenticationNotSupportedException e) {
-        errors.put(LdapConnectionError.AuthenticationNotSupported, e);
-      } catch (AuthenticationException e) {
-        errors.put(LdapConnectionError.AuthenticationException, e);
-      } catch (NamingException e) {
-        errors.put(LdapConnectionError.NamingException, e);
-      }
-      if (ctx == null) {
-        return null;
-      }
-      try {
-        ctx.setRequestControls(new Control[] {new PagedResultsControl(pageSize, 
-            Control.NONCRITICAL)});
-      } catch (NamingException e) {
-        errors.put(LdapConnectionError.NamingException, e);
-      } catch (IOException e) {
-        errors.put(LdapConnectionError.IOException, e);
-      }
-      return ctx;
-    }
-
-    private String makeLdapUrl() {
-      String url;
-      Method connectMethod =
-          settings.getConnectMethod();
-      if (connectMethod == Method.SSL) {
-        url = "ldaps://"; //$NON-NLS-1$
-      } else {
-        url = "ldap://"; //$NON-NLS-1$
-      }
-
-      // Construct the full URL
-      url = url + settings.getHostname();
-      if (settings.getPort() > 0) {
-        url = url + ":" + settings.getPort();
-      }
-      url = url + "/";
-
-      if (settings.getBaseDN() != null) {
-        url = url + encodeBaseDN(settings.getBaseDN());
-      }
-      return url;
-    }
-
-    /**
-     * Initialize the Hashtable used to create an initial LDAP Context. Note
-     * that we specifically require a Hashtable rather than a HashMap as the
-     * parameter type in the InitialLDAPContext constructor
-     *
-     * @return initialized Hashtable suitable for constructing an
-     *         InitiaLdaplContext
-     */
-    private Hashtable<String, String> configureLdapEnvironment() {
-      Hashtable<String, String> env = new Hashtable<String, String>();
-
-      // Use the built-in LDAP support.
-      env.put(Context.INITIAL_CONTEXT_FACTORY, COM_SUN_JNDI_LDAP_LDAP_CTX_FACTORY);
-
-      // property to indicate to the server how to handle referrals
-      env.put(Context.REFERRAL, "follow");
-
-      // force the following attributes to be returned as binary data
-      env.put("java.naming.ldap.attributes.binary", "objectGUID objectSid");
-
-      // Specify connection timeout, value of zero or less means use networks timeout value
-      env.put(COM_SUN_JNDI_LDAP_CONNECT_TIMEOUT, connectionTimeOut);    
-
-      // Set our authentication settings.
-      AuthType authType = settings.getAuthType();
-      if (authType == AuthType.SIMPLE) {
-        env.put(Context.SECURITY_AUTHENTICATION, authType.toString()
-            .toLowerCase());
-        env.put(Context.SECURITY_PRINCIPAL, settings.getUsername());
-        env.put(Context.SECURITY_CREDENTIALS, settings.getPassword());
-        LOG.info("Using simple authentication.");
-      } else {
-        if (authType != AuthType.ANONYMOUS) {
-          LOG.warning("Unknown authType - falling back to anonymous.");
-        } else {
-          LOG.info("Using anonymous authentication.");
-        }
-        env.put(Context.SECURITY_AUTHENTICATION, "none"); //$NON-NLS-1$
-      }
-      env.put(Context.PROVIDER_URL, makeLdapUrl());
-      return env;
-    }
-
-    /**
-     * We have to do some simple, naive escaping of the base DN. We CANNOT use
-     * normal URL escaping, as '+' is not handled properly by the JNDI backend.
-     */
-    private String encodeBaseDN(String origValue) {
-      origValue = origValue.replace(" ", "%20");
-      return origValue;
-    }
-
-  }
 
   /**
    * Configuration for an ldap connection. Immutable, static data class.
@@ -545,17 +1801,37 @@ public class LdapHandler implements LdapHandlerI {
     private final Method connectMethod;
     private final String baseDN;
     private final ServerType serverType;
+    private final String domain;
 
     public LdapConnectionSettings(Method connectMethod, String hostname,
         int port, String baseDN, AuthType authType, String username, String password) {
+      this(connectMethod, hostname, port, baseDN, authType, username, password,
+          ServerType.GENERIC);
+    }
+
+    public LdapConnectionSettings(Method connectMethod, String hostname,
+        int port, String baseDN, AuthType authType, String username, String password,
+        ServerType serverType) {
+      this(connectMethod, hostname, port, baseDN, authType, username, password, serverType,
+          null);
+    }
+
+    /**
+     * @param domain a DNS domain whose SRV records list the servers to use
+     *        instead of the hostname, or {@code null}
+     */
+    public LdapConnectionSettings(Method connectMethod, String hostname,
+        int port, String baseDN, AuthType authType, String username, String password,
+        ServerType serverType, String domain) {
       this.authType = authType;
       this.baseDN = baseDN;
       this.connectMethod = connectMethod;
       this.hostname = hostname;
       this.password = password;
       this.port = port;
-      this.serverType = ServerType.GENERIC;
+      this.serverType = serverType;
       this.username = username;
+      this.domain = domain;
     }
 
     public LdapConnectionSettings(Method connectMethod, String hostname,
@@ -568,6 +1844,7 @@ public class LdapHandler implements LdapHandlerI {
       this.port = port;
       this.serverType = ServerType.GENERIC;
       this.username = null;
+      this.domain = null;
     }
 
     @Override
@@ -583,7 +1860,33 @@ public class LdapHandler implements LdapHandlerI {
       return "LdapConnectionSettings [authType=" + authType + ", baseDN=" + baseDN
           + ", connectMethod=" + connectMethod + ", hostname=" + hostname + ", password="
           + displayPassword + ", port=" + port + ", serverType=" + serverType + ", username=" + username
-          + "]";
+          + ", domain=" + domain + "]";
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(authType, baseDN, connectMethod, hostname, password, port,
+          serverType, username, domain);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof LdapConnectionSettings)) {
+        return false;
+      }
+      LdapConnectionSettings other = (LdapConnectionSettings) obj;
+      return authType == other.authType
+          && Objects.equal(baseDN, other.baseDN)
+          && connectMethod == other.connectMethod
+          && Objects.equal(hostname, other.hostname)
+          && Objects.equal(password, other.password)
+          && port == other.port
+          && serverType == other.serverType
+          && Objects.equal(username, other.username)
+          && Objects.equal(domain, other.domain);
     }
 
     public AuthType getAuthType() {
@@ -598,10 +1901,43 @@ public class LdapHandler implements LdapHandlerI {
       return connectMethod;
     }
 
+    /**
+     * Returns the hostname as configured, which may list several replicas,
+     * separated by commas or spaces.
+     */
     public String getHostname() {
       return hostname;
     }
 
+    /**
+     * Returns the replicas to connect to, as {@code host:port} strings, in
+     * tiers to try in order. If a domain is set, these are the servers in
+     * its SRV records, in tiers of equal priority. Otherwise, or if no
+     * servers are found, they are the replicas named by the hostname, in
+     * one tier; replicas named without a port use the configured port.
+     */
+    public List<List<String>> getEndpoints() {
+      if (domain != null) {
+        // The SRV records give the plain ldap port, so use the configured
+        // port for SSL.
+        List<List<String>> tiers =
+            LOCATOR.locate(domain, (connectMethod == Method.SSL) ? port : 0);
+        if (!tiers.isEmpty()) {
+          return tiers;
+        }
+      }
+      List<String> endpoints = ReplicaSelector.parseEndpoints(hostname, port);
+      if (endpoints.isEmpty()) {
+        endpoints.add((port > 0) ? hostname + ":" + port : String.valueOf(hostname));
+      }
+      return Collections.singletonList(endpoints);
+    }
+
+    /** Returns the domain whose SRV records list the servers, or null. */
+    public String getDomain() {
+      return domain;
+    }
+
     public String getPassword() {
       return password;
     }
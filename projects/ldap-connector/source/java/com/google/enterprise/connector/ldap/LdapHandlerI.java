@@ -20,10 +20,13 @@ import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
 
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
-public interface LdapHandlerI extends Supplier<Map<String, Multimap<String, String>>> {
+public interface LdapHandlerI extends Supplier<Map<String, Multimap<String, String>>>,
+    Iterable<Entry<String, Multimap<String, String>>> {
 
   public void setLdapConnectionSettings(LdapConnectionSettings ldapConnectionSettings);
 
@@ -31,4 +34,11 @@ public interface LdapHandlerI extends Supplier<Map<String, Multimap<String, Stri
 
   public Map<LdapConnectionError, Throwable> getErrors();
 
+  /**
+   * Executes the query, returning the same results as {@link #get} in the
+   * same order, but as they are read from the server rather than all at once.
+   */
+  @Override
+  public Iterator<Entry<String, Multimap<String, String>>> iterator();
+
 }
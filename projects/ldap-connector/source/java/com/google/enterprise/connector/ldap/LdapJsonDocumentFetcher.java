@@ -16,17 +16,13 @@ package com.google.enterprise.connector.ldap;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
-import com.google.common.base.Functions;
-import com.google.common.base.Supplier;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ForwardingIterator;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Multimap;
-import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.util.Base16;
 import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
 
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,52 +40,53 @@ public class LdapJsonDocumentFetcher implements JsonDocumentFetcher {
    */
   private final int[] waitTimes; 
 
-  private final Supplier<Map<String, Multimap<String, String>>> mapOfMultimapsSupplier;
+  private final Iterable<Entry<String, Multimap<String, String>>> entries;
 
   /**
-   * Creates a JsonDocument fetcher from something that provides a sorted map of
-   * Multimaps
+   * Creates a JsonDocument fetcher from something that provides an ordered
+   * sequence of Multimaps
    *
-   * @param mapOfMultimapsSupplier An object that can supply a sorted Map of
-   *        Multimaps. This supplier must permit multiple calls to get() on the
-   *        same instance. Calls may return different results. The map must be
-   *        in natural key order, that is, the order of the entrySet() must be
-   *        ascending by key. The values (the individual multimaps) represent a
-   *        document as a bag of (metadata-name,value) pairs.
+   * @param entries An object that can supply an iterator over key and
+   *        Multimap pairs. This iterable must permit multiple calls to
+   *        iterator() on the same instance. Calls may return different
+   *        results. The iterator must be in natural key order, that is, it
+   *        must be ascending by key. The values (the individual multimaps)
+   *        represent a document as a bag of (metadata-name,value) pairs.
    */
   public LdapJsonDocumentFetcher(
-      Supplier<Map<String, Multimap<String, String>>> mapOfMultimapsSupplier) {
-    this.mapOfMultimapsSupplier = mapOfMultimapsSupplier;
+      Iterable<Entry<String, Multimap<String, String>>> entries) {
+    this.entries = entries;
     this.waitTimes = new int[] { 1 * 60 * 1000, 2 * 60 * 1000, 4 * 60 * 1000, 
     		  8 * 60 * 1000, 15 * 60 * 1000 }; 
   }
 
   public LdapJsonDocumentFetcher(
-          Supplier<Map<String, Multimap<String, String>>> mapOfMultimapsSupplier, 
+          Iterable<Entry<String, Multimap<String, String>>> entries, 
           int [] waitTimes) {
-        this.mapOfMultimapsSupplier = mapOfMultimapsSupplier;
+        this.entries = entries;
         this.waitTimes = waitTimes;
   }
 
-  private static Function<Entry<String, Multimap<String, String>>, Multimap<String, String>> addDocid =
-      new Function<Entry<String, Multimap<String, String>>, Multimap<String, String>>() {
+  /**
+   * Writes the snapshot of each entry, with the docid and lock added, into
+   * a buffer that the whole traversal reuses.
+   */
+  private static class SnapshotFunction
+      implements Function<Entry<String, Multimap<String, String>>, JsonDocument> {
+    private final JsonSnapshotWriter writer = new JsonSnapshotWriter();
+
     @Override
-    public Multimap<String, String> apply(Entry<String, Multimap<String, String>> e) {
-      Multimap<String, String> person = ArrayListMultimap.create(e.getValue());
-      String key = e.getKey();
-      key = cleanLdapKey(key);
-      person.put(SpiConstants.PROPNAME_DOCID, key);
-      person.put(SpiConstants.PROPNAME_LOCK, "true");
-      return person;
+    public JsonDocument apply(Entry<String, Multimap<String, String>> e) {
+      return writer.write(cleanLdapKey(e.getKey()), e.getValue());
     }
-  };
+  }
 
   @Override
   public Iterator<JsonDocument> iterator() {
-    Map<String, Multimap<String, String>> results;
+    Iterator<Entry<String, Multimap<String, String>>> results;
 
     try {
-      results = mapOfMultimapsSupplier.get();
+      results = entries.iterator();
       // reset wait counter
       waitcounter = 0;
     } catch (IllegalStateException e) {
@@ -114,8 +111,45 @@ public class LdapJsonDocumentFetcher implements JsonDocumentFetcher {
       throw new SnapshotRepositoryRuntimeException(e.getMessage(), null);
     }
 
-    return Iterators.transform(results.entrySet().iterator(),
-        Functions.compose(JsonDocument.buildFromMultimap, addDocid));
+    return Iterators.transform(new TraversalIterator(results), new SnapshotFunction());
+  }
+
+  /**
+   * Reports errors that occur after the traversal has started, while later
+   * pages of results are being read, the same way as errors at the start.
+   */
+  private static class TraversalIterator
+      extends ForwardingIterator<Entry<String, Multimap<String, String>>> {
+    private final Iterator<Entry<String, Multimap<String, String>>> delegate;
+
+    public TraversalIterator(Iterator<Entry<String, Multimap<String, String>>> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected Iterator<Entry<String, Multimap<String, String>>> delegate() {
+      return delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+      try {
+        return super.hasNext();
+      } catch (IllegalStateException e) {
+        LOG.log(Level.SEVERE, "Encountered IllegalStateException during traversal.", e);
+        throw new SnapshotRepositoryRuntimeException(e.getMessage(), null);
+      }
+    }
+
+    @Override
+    public Entry<String, Multimap<String, String>> next() {
+      try {
+        return super.next();
+      } catch (IllegalStateException e) {
+        LOG.log(Level.SEVERE, "Encountered IllegalStateException during traversal.", e);
+        throw new SnapshotRepositoryRuntimeException(e.getMessage(), null);
+      }
+    }
   }
 
   /**
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.ldap;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -31,6 +32,8 @@ import org.json.JSONObject;
  */
 public class LdapPerson implements DocumentHandle, DocumentSnapshot {
 
+  private static final String DOCID_KEY = JSONObject.quote(SpiConstants.PROPNAME_DOCID) + ":";
+
   private final JsonDocument document;
   private final String documentId;
   private final String jsonString;
@@ -48,24 +51,77 @@ public class LdapPerson implements DocumentHandle, DocumentSnapshot {
     }
   };
 
+  /**
+   * Makes a person from a snapshot string that was read back. The diffing
+   * framework mostly needs only the docid and the string itself, so the
+   * docid is found with a light scan of the string, and the properties of
+   * the document are only parsed if they are asked for.
+   *
+   * @throws IllegalArgumentException if the string is not a JSON object
+   *         with a docid
+   */
   public LdapPerson(String jsonString) {
-    // This is implemented by saving the supplied jsonString then making a JSONObject
-    // (rather than by making a JSONObject then calling the other constructor) because
-    // I want to make sure that the jsonObject stored in this object is exactly the
-    // the same as the one supplied. TODO(Max): think about this - is it necessary?
+    // The supplied jsonString is saved as is, rather than rewritten from a
+    // JSONObject, so that it compares equal to the one it was read from.
     this.jsonString = jsonString;
-    JSONObject jo;
-    try {
-      jo = new JSONObject(jsonString);
-    } catch (JSONException e) {
-      throw new IllegalArgumentException();
+    String docid = findDocumentId(jsonString);
+    if (docid == null) {
+      // Not a string that the connector wrote; parse it the slow way.
+      JsonDocument parsed;
+      try {
+        parsed = new JsonDocument(new JSONObject(jsonString));
+        docid = Value.getSingleValueString(parsed, SpiConstants.PROPNAME_DOCID);
+      } catch (JSONException e) {
+        throw new IllegalArgumentException();
+      } catch (RepositoryException e) {
+        throw new IllegalArgumentException();
+      }
     }
-    document = new JsonDocument(jo);
-    try {
-      documentId = Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID);
-    } catch (RepositoryException e) {
-      throw new IllegalArgumentException();
+    documentId = docid;
+    document = JsonDocument.fromSnapshot(jsonString, docid);
+  }
+
+  /**
+   * Finds the docid in a snapshot string without parsing it. The docid is
+   * the text of the JSON array that holds it, as {@code JSONObject.getString}
+   * returns it, so only an array of one string with no characters that
+   * {@code JSONObject.quote} would change is accepted.
+   *
+   * @return the docid, or {@code null} if the string must be parsed to
+   *         find it
+   */
+  @VisibleForTesting
+  static String findDocumentId(String jsonString) {
+    if (!jsonString.startsWith("{") || !jsonString.endsWith("}")) {
+      return null;
+    }
+    // An unescaped quote cannot be inside a JSON string, so the quoted key
+    // followed by a colon is always a key of the object.
+    int index = jsonString.indexOf(DOCID_KEY);
+    if (index < 0 || jsonString.indexOf(DOCID_KEY, index + 1) >= 0) {
+      return null;
+    }
+    char before = jsonString.charAt(index - 1);
+    if (before != '{' && before != ',') {
+      return null;
+    }
+    int start = index + DOCID_KEY.length();
+    if (jsonString.length() < start + 3 || jsonString.charAt(start) != '['
+        || jsonString.charAt(start + 1) != '"') {
+      return null;
+    }
+    for (int i = start + 2; i < jsonString.length(); i++) {
+      char c = jsonString.charAt(i);
+      if (c == '"') {
+        if (i + 1 < jsonString.length() && jsonString.charAt(i + 1) == ']') {
+          return jsonString.substring(start, i + 2);
+        }
+        return null;
+      } else if (c < ' ' || c >= 0x7f || c == '\\' || c == '/') {
+        return null;
+      }
     }
+    return null;
   }
 
   @Override
@@ -0,0 +1,104 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Builds ldap filters that match entries by a list of values of one
+ * attribute, such as DNs or schemaKey values, so that many entries can be
+ * read with a few searches. The values are split across several filters
+ * to keep each one within the server's limits.
+ */
+public class LookupFilters {
+
+  /** The most values in each filter, unless given. */
+  public static final int DEFAULT_MAX_VALUES = 200;
+
+  /** The longest filter, unless given, well within server request limits. */
+  public static final int DEFAULT_MAX_LENGTH = 16 * 1024;
+
+  private LookupFilters() {
+    // prevents instantiation
+  }
+
+  /**
+   * Returns filters that together match the entries with any of the values.
+   *
+   * @param attribute the attribute to match
+   * @param values the values to match
+   * @param maxValues the most values in each filter
+   * @param maxLength the longest filter, unless a single value is longer
+   * @return a list of filters, empty if there are no values
+   */
+  public static List<String> split(String attribute, Collection<String> values, int maxValues,
+      int maxLength) {
+    List<String> filters = Lists.newArrayList();
+    StringBuilder filter = null;
+    int count = 0;
+    for (String value : values) {
+      String term = "(" + attribute + "=" + escape(value) + ")";
+      if (filter != null
+          && (count == maxValues || filter.length() + term.length() + 1 > maxLength)) {
+        filters.add(filter.append(')').toString());
+        filter = null;
+      }
+      if (filter == null) {
+        filter = new StringBuilder("(|");
+        count = 0;
+      }
+      filter.append(term);
+      count++;
+    }
+    if (filter != null) {
+      filters.add(filter.append(')').toString());
+    }
+    return filters;
+  }
+
+  /**
+   * Escapes the characters that are special in a filter value, as in
+   * RFC 4515.
+   */
+  public static String escape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          sb.append("\\5c");
+          break;
+        case '*':
+          sb.append("\\2a");
+          break;
+        case '(':
+          sb.append("\\28");
+          break;
+        case ')':
+          sb.append("\\29");
+          break;
+        case '\0':
+          sb.append("\\00");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
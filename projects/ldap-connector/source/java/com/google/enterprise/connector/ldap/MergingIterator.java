@@ -0,0 +1,94 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several iterators, each in ascending key order, into a single
+ * iterator in ascending key order. If more than one of the inputs has an
+ * entry with the same key, only the entry from the input that comes last in
+ * the list is returned. Keys must be unique within each input.
+ */
+public class MergingIterator<V> extends AbstractIterator<Entry<String, V>> {
+
+  private static class Input<V> {
+    final PeekingIterator<Entry<String, V>> iterator;
+    final int index;
+
+    Input(Iterator<Entry<String, V>> iterator, int index) {
+      this.iterator = Iterators.peekingIterator(iterator);
+      this.index = index;
+    }
+
+    String peekKey() {
+      return iterator.peek().getKey();
+    }
+  }
+
+  private final PriorityQueue<Input<V>> queue;
+
+  public MergingIterator(List<? extends Iterator<Entry<String, V>>> inputs) {
+    Comparator<Input<V>> comparator = new Comparator<Input<V>>() {
+      @Override
+      public int compare(Input<V> a, Input<V> b) {
+        int c = a.peekKey().compareTo(b.peekKey());
+        if (c != 0) {
+          return c;
+        }
+        // Later inputs first, so they win ties.
+        return b.index - a.index;
+      }
+    };
+    queue = new PriorityQueue<Input<V>>(Math.max(1, inputs.size()), comparator);
+    for (int i = 0; i < inputs.size(); i++) {
+      Input<V> input = new Input<V>(inputs.get(i), i);
+      if (input.iterator.hasNext()) {
+        queue.add(input);
+      }
+    }
+  }
+
+  @Override
+  protected Entry<String, V> computeNext() {
+    Input<V> first = queue.poll();
+    if (first == null) {
+      return endOfData();
+    }
+    Entry<String, V> result = first.iterator.next();
+    requeue(first);
+    // Skip the same key in the other inputs.
+    while (!queue.isEmpty() && queue.peek().peekKey().equals(result.getKey())) {
+      Input<V> duplicate = queue.poll();
+      duplicate.iterator.next();
+      requeue(duplicate);
+    }
+    return result;
+  }
+
+  private void requeue(Input<V> input) {
+    if (input.iterator.hasNext()) {
+      queue.add(input);
+    }
+  }
+}
@@ -0,0 +1,827 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.AuthType;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link LdapEngine} that speaks LDAPv3 directly over non-blocking
+ * sockets. Several searches share each connection, told apart by their
+ * message IDs, and one thread reads every connection. Entries are decoded
+ * straight from each connection's read buffer into the listener's
+ * multimap, without the per-attribute objects that JNDI builds.
+ * <p>
+ * Connections are opened and bound with blocking I/O by the thread that
+ * starts a search, and are then handed to the selector thread. Only simple
+ * and anonymous binds over plain ldap are supported; use
+ * {@link JndiLdapEngine} for SSL. Referrals are not followed.
+ * <p>
+ * The listeners are called on the selector thread. A listener that blocks
+ * stops every connection from being read, which slows the server down
+ * rather than buffering results here.
+ */
+public class NioLdapEngine implements LdapEngine {
+  private static final Logger LOG = Logger.getLogger(NioLdapEngine.class.getName());
+
+  /** The most searches in progress on one connection before another is opened. */
+  static final int MAX_SEARCHES_PER_CONNECTION = 8;
+
+  /** The most connections opened to the server. */
+  static final int MAX_CONNECTIONS = 4;
+
+  /** The initial size of each connection's read buffer. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int DEFAULT_PORT = 389;
+
+  static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+  // Protocol operations, from RFC 4511.
+  static final int BIND_REQUEST = 0x60;
+  static final int BIND_RESPONSE = 0x61;
+  static final int UNBIND_REQUEST = 0x42;
+  static final int SEARCH_REQUEST = 0x63;
+  static final int SEARCH_RESULT_ENTRY = 0x64;
+  static final int SEARCH_RESULT_DONE = 0x65;
+  static final int SEARCH_RESULT_REFERENCE = 0x73;
+  static final int ABANDON_REQUEST = 0x50;
+  static final int EXTENDED_RESPONSE = 0x78;
+  static final int CONTROLS = 0xa0;
+  private static final int SIMPLE_AUTHENTICATION = 0x80;
+
+  private static final int DEREF_ALWAYS = 3;
+
+  /**
+   * The attributes that JNDI returns as binary by default, plus the ones
+   * that LdapHandler asks it to. Their values are left out, as they are by
+   * {@link JndiLdapEngine}.
+   */
+  static final Set<String> BINARY_ATTRIBUTES = ImmutableSet.of(
+      "objectguid", "objectsid", "userpassword", "usercertificate", "cacertificate",
+      "authorityrevocationlist", "certificaterevocationlist", "crosscertificatepair",
+      "deltarevocationlist", "jpegphoto", "photo", "audio", "thumbnailphoto", "thumbnaillogo",
+      "personalsignature", "x500uniqueidentifier", "supportedalgorithms",
+      "javaserializeddata");
+
+  private final LdapConnectionSettings settings;
+  private final int connectTimeoutMillis;
+  private final Selector selector;
+  private final Thread selectorThread;
+
+  /** Work for the selector thread, such as sending requests. */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /** The open connections; guarded by this. */
+  private final List<Connection> connections = Lists.newArrayList();
+
+  private volatile boolean closed = false;
+
+  /**
+   * @param settings the server to connect to
+   * @param connectionTimeout the connection timeout, in milliseconds, as a
+   *        string, which is also the longest a connection with searches in
+   *        progress may go without hearing from the server; zero or less
+   *        waits as long as the network does
+   */
+  public NioLdapEngine(LdapConnectionSettings settings, String connectionTimeout) {
+    this.settings = settings;
+    int timeout;
+    try {
+      timeout = Math.max(0, Integer.parseInt(connectionTimeout));
+    } catch (NumberFormatException e) {
+      timeout = 0;
+    }
+    this.connectTimeoutMillis = timeout;
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    selectorThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        select();
+      }
+    }, "ldap-nio-selector");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  @Override
+  public Map<LdapConnectionError, Throwable> checkConnection() {
+    try {
+      getConnection();
+      return ImmutableMap.of();
+    } catch (BindException e) {
+      return ImmutableMap.<LdapConnectionError, Throwable>of(
+          LdapConnectionError.AuthenticationException, e);
+    } catch (UnknownHostException e) {
+      return ImmutableMap.<LdapConnectionError, Throwable>of(
+          LdapConnectionError.CommunicationExceptionUnknownhost, e);
+    } catch (SocketTimeoutException e) {
+      return ImmutableMap.<LdapConnectionError, Throwable>of(
+          LdapConnectionError.CommunicationExceptionTimeout, e);
+    } catch (IOException e) {
+      return ImmutableMap.<LdapConnectionError, Throwable>of(
+          LdapConnectionError.CommunicationException, e);
+    }
+  }
+
+  @Override
+  public Search search(LdapRule.Scope scope, String filter, Set<String> attributes,
+      int pageSize, SearchListener listener) {
+    byte[] encodedFilter = LdapFilter.encode(filter);
+    // The first page is queued while holding the lock, so that the
+    // selector thread either runs it or fails it when it stops.
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("The ldap engine is closed");
+      }
+      Connection connection;
+      try {
+        connection = getConnection();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      final NioSearch search = new NioSearch(connection, scope, encodedFilter, attributes,
+          pageSize, listener);
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          search.sendPage(null);
+        }
+      });
+      return search;
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  /** Runs a task on the selector thread. */
+  private void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Returns the least busy connection, opening a new one if every
+   * connection has {@link #MAX_SEARCHES_PER_CONNECTION} searches and there
+   * are fewer than {@link #MAX_CONNECTIONS}.
+   *
+   * @throws BindException if the server refused the credentials
+   * @throws IOException if no replica could be reached
+   */
+  private synchronized Connection getConnection() throws IOException {
+    Connection best = null;
+    for (Connection connection : connections) {
+      if (best == null || connection.load.get() < best.load.get()) {
+        best = connection;
+      }
+    }
+    if (best != null && (best.load.get() < MAX_SEARCHES_PER_CONNECTION
+        || connections.size() >= MAX_CONNECTIONS)) {
+      best.load.incrementAndGet();
+      return best;
+    }
+    Connection connection = connect();
+    connections.add(connection);
+    connection.load.incrementAndGet();
+    return connection;
+  }
+
+  /**
+   * Opens and binds a connection to the first replica that answers.
+   */
+  private Connection connect() throws IOException {
+    ReplicaSelector replicas = LdapHandler.getReplicaSelector();
+    IOException lastError = null;
+    for (String endpoint : replicas.orderTiers(settings.getEndpoints(), -1)) {
+      SocketChannel channel = null;
+      try {
+        long start = System.nanoTime();
+        channel = SocketChannel.open();
+        channel.socket().connect(toAddress(endpoint), connectTimeoutMillis);
+        channel.socket().setSoTimeout(connectTimeoutMillis);
+        bind(channel);
+        channel.socket().setSoTimeout(0);
+        channel.configureBlocking(false);
+        replicas.recordSuccess(endpoint, System.nanoTime() - start);
+        final Connection connection = new Connection(channel, endpoint);
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            connection.register();
+          }
+        });
+        LOG.fine("Connected to " + endpoint);
+        return connection;
+      } catch (BindException e) {
+        closeQuietly(channel);
+        // Every replica would refuse the same credentials.
+        throw e;
+      } catch (IOException e) {
+        closeQuietly(channel);
+        LOG.log(Level.INFO, "Unable to connect to " + endpoint, e);
+        replicas.recordFailure(endpoint);
+        lastError = e;
+      }
+    }
+    throw (lastError == null) ? new IOException("No ldap servers to connect to") : lastError;
+  }
+
+  private static InetSocketAddress toAddress(String endpoint) throws UnknownHostException {
+    String host = endpoint;
+    int port = DEFAULT_PORT;
+    int colon = endpoint.lastIndexOf(':');
+    if (colon > endpoint.lastIndexOf(']')) {
+      host = endpoint.substring(0, colon);
+      try {
+        port = Integer.parseInt(endpoint.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        throw new UnknownHostException("Invalid port in " + endpoint);
+      }
+    }
+    if (host.startsWith("[") && host.endsWith("]")) {
+      host = host.substring(1, host.length() - 1);
+    }
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    if (address.isUnresolved()) {
+      throw new UnknownHostException(host);
+    }
+    return address;
+  }
+
+  /** Sends a simple bind on a blocking channel, and reads the response. */
+  private void bind(SocketChannel channel) throws IOException {
+    String name = "";
+    String password = "";
+    if (settings.getAuthType() == AuthType.SIMPLE) {
+      name = settings.getUsername();
+      password = settings.getPassword();
+    }
+    byte[] request = Ber.sequence(Ber.integer(1), Ber.element(BIND_REQUEST, Ber.concat(
+        Ber.integer(3), Ber.octetString(name),
+        Ber.element(SIMPLE_AUTHENTICATION, Ber.utf8(password)))));
+    OutputStream out = channel.socket().getOutputStream();
+    out.write(request);
+    out.flush();
+
+    byte[] response = readMessage(channel.socket().getInputStream());
+    Ber.Decoder message = new Ber.Decoder(response).readSequence();
+    message.readInteger();
+    Ber.Decoder bindResponse = message.readConstructed(BIND_RESPONSE);
+    int resultCode = bindResponse.readEnumerated();
+    bindResponse.readString();
+    String diagnostic = bindResponse.readString();
+    if (resultCode != 0) {
+      throw new BindException("Ldap bind failed with result code " + resultCode + ": "
+          + diagnostic);
+    }
+  }
+
+  /** Reads one BER element from a blocking stream. */
+  private static byte[] readMessage(InputStream in) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read = 0;
+    int length;
+    while ((length = Ber.elementLength(buffer, 0, read)) < 0 || read < length) {
+      if (length > buffer.length) {
+        byte[] larger = new byte[length];
+        System.arraycopy(buffer, 0, larger, 0, read);
+        buffer = larger;
+      }
+      int count = in.read(buffer, read, buffer.length - read);
+      if (count < 0) {
+        throw new IOException("Connection closed by the server");
+      }
+      read += count;
+    }
+    return buffer;
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Error closing ldap connection", e);
+      }
+    }
+  }
+
+  /**
+   * Runs the selector thread until the engine is closed. When it stops,
+   * for whatever reason, every search that has not finished fails.
+   */
+  private void select() {
+    try {
+      while (!closed) {
+        // With a timeout, a silent connection is noticed within twice
+        // the timeout.
+        selector.select(connectTimeoutMillis);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.flush();
+            }
+          } catch (CancelledKeyException e) {
+            connection.fail(new IOException("Connection closed"));
+          } catch (IOException e) {
+            connection.fail(e);
+          }
+        }
+        if (connectTimeoutMillis > 0) {
+          failSilentConnections();
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Ldap selector failed", e);
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Ldap selector failed", e);
+    } finally {
+      List<Connection> open;
+      synchronized (this) {
+        closed = true;
+        open = Lists.newArrayList(connections);
+      }
+      IOException cause = new IOException("Ldap engine closed");
+      for (Connection connection : open) {
+        connection.close(cause);
+      }
+      // Searches whose first page was still queued fail on their closed
+      // connection.
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Error failing an ldap search", e);
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Error closing selector", e);
+      }
+    }
+  }
+
+  /**
+   * Fails the connections that have searches waiting for a response, but
+   * have not heard from the server within the timeout.
+   */
+  private void failSilentConnections() {
+    List<Connection> open;
+    synchronized (this) {
+      open = Lists.newArrayList(connections);
+    }
+    long now = System.nanoTime();
+    for (Connection connection : open) {
+      if (!connection.searches.isEmpty()
+          && now - connection.lastActivity > connectTimeoutMillis * 1000000L) {
+        connection.fail(new SocketTimeoutException("No response from " + connection.endpoint
+            + " in " + connectTimeoutMillis + " milliseconds"));
+      }
+    }
+  }
+
+  /** Thrown when the server refuses a bind. */
+  static class BindException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    BindException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A connection, with the searches in progress on it. Except for
+   * {@link #load}, it is only used by the selector thread once registered.
+   */
+  private class Connection {
+    final SocketChannel channel;
+    final String endpoint;
+
+    /** The number of searches started on this connection and not finished. */
+    final AtomicInteger load = new AtomicInteger();
+
+    final Map<Integer, NioSearch> searches = Maps.newHashMap();
+    final LinkedList<ByteBuffer> writeQueue = Lists.newLinkedList();
+    ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    SelectionKey key = null;
+    int nextMessageId = 2;
+    boolean failed = false;
+
+    /**
+     * When the connection last read from the server or, if it was idle,
+     * sent it a search, from {@code System.nanoTime}.
+     */
+    long lastActivity = System.nanoTime();
+
+    Connection(SocketChannel channel, String endpoint) {
+      this.channel = channel;
+      this.endpoint = endpoint;
+    }
+
+    void register() {
+      try {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    /** Queues a request and writes as much as the socket accepts. */
+    void send(byte[] request) {
+      if (failed) {
+        return;
+      }
+      writeQueue.add(ByteBuffer.wrap(request));
+      if (key != null) {
+        try {
+          flush();
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      while (!writeQueue.isEmpty()) {
+        ByteBuffer buffer = writeQueue.getFirst();
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        writeQueue.removeFirst();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** Reads what has arrived, and handles each complete message. */
+    void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        throw new IOException("Connection closed by the server");
+      }
+      lastActivity = System.nanoTime();
+      byte[] data = readBuffer.array();
+      int start = 0;
+      int end = readBuffer.position();
+      while (true) {
+        int length = Ber.elementLength(data, start, end - start);
+        if (length < 0 || end - start < length) {
+          if (length > readBuffer.capacity()) {
+            // Make room for a message larger than the buffer.
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(length, 2 * readBuffer.capacity()));
+            larger.put(data, start, end - start);
+            readBuffer = larger;
+            return;
+          }
+          break;
+        }
+        handle(data, start, start + length);
+        start += length;
+        if (failed) {
+          return;
+        }
+      }
+      readBuffer.limit(end);
+      readBuffer.position(start);
+      readBuffer.compact();
+    }
+
+    /** Handles one LDAPMessage. */
+    private void handle(byte[] data, int start, int end) throws IOException {
+      Ber.Decoder message = new Ber.Decoder(data, start, end).readSequence();
+      int messageId = (int) message.readInteger();
+      int operation = message.peekTag();
+      if (messageId == 0 && operation == EXTENDED_RESPONSE) {
+        throw new IOException("Notice of disconnection from the server");
+      }
+      NioSearch search = searches.get(messageId);
+      if (search == null) {
+        // The search was abandoned.
+        return;
+      }
+      if (operation == SEARCH_RESULT_ENTRY) {
+        Ber.Decoder entry = message.readConstructed(SEARCH_RESULT_ENTRY);
+        String dn = entry.readString();
+        search.onEntry(dn, readAttributes(dn, entry.readSequence()));
+      } else if (operation == SEARCH_RESULT_DONE) {
+        Ber.Decoder done = message.readConstructed(SEARCH_RESULT_DONE);
+        int resultCode = done.readEnumerated();
+        done.readString();
+        String diagnostic = done.readString();
+        byte[] cookie = null;
+        if (message.peekTag() == CONTROLS) {
+          cookie = readPagedResultsCookie(message.readConstructed(CONTROLS));
+        }
+        searches.remove(messageId);
+        search.onDone(resultCode, diagnostic, cookie);
+      } else if (operation == SEARCH_RESULT_REFERENCE) {
+        LOG.fine("Ignoring a search result reference");
+      } else {
+        throw new IOException("Unexpected ldap operation 0x" + Integer.toHexString(operation));
+      }
+    }
+
+    /**
+     * Closes the connection after an error, failing its searches.
+     */
+    void fail(IOException e) {
+      if (failed) {
+        return;
+      }
+      LOG.log(Level.WARNING, "Ldap connection to " + endpoint + " failed", e);
+      LdapHandler.getReplicaSelector().recordFailure(endpoint);
+      close(e);
+    }
+
+    /**
+     * Closes the connection, with an unbind if it still works, and fails
+     * its searches.
+     */
+    void close(IOException cause) {
+      synchronized (NioLdapEngine.this) {
+        connections.remove(this);
+      }
+      if (!failed) {
+        failed = true;
+        try {
+          // The unbind is only a courtesy, so it is not retried if the
+          // socket is not ready for it.
+          channel.write(ByteBuffer.wrap(Ber.sequence(Ber.integer(nextMessageId++),
+              Ber.element(UNBIND_REQUEST, new byte[0]))));
+        } catch (IOException e) {
+          LOG.log(Level.FINEST, "Unable to unbind", e);
+        }
+      }
+      if (key != null) {
+        key.cancel();
+      }
+      closeQuietly(channel);
+      List<NioSearch> failedSearches = Lists.newArrayList(searches.values());
+      searches.clear();
+      for (NioSearch search : failedSearches) {
+        search.fail(new IllegalStateException(cause));
+      }
+    }
+  }
+
+  /**
+   * Reads a PartialAttributeList into a multimap of string values. The
+   * values of an attribute returned in ranges are added under its plain
+   * name. The remaining ranges are not read; use {@link JndiLdapEngine}
+   * for directories with such large attributes.
+   */
+  private static Multimap<String, String> readAttributes(String dn, Ber.Decoder attributes)
+      throws IOException {
+    Multimap<String, String> values = ArrayListMultimap.create();
+    while (attributes.hasMore()) {
+      Ber.Decoder attribute = attributes.readSequence();
+      String name = attribute.readString().toLowerCase();
+      RangedAttributes.Range range = RangedAttributes.parse(name);
+      if (range != null) {
+        name = range.name;
+        if (!range.isLast()) {
+          LOG.warning("Only " + range + " of the values of " + dn + " were read");
+        }
+      }
+      Ber.Decoder attributeValues = attribute.readConstructed(Ber.SET);
+      boolean binary = BINARY_ATTRIBUTES.contains(name) || name.endsWith(";binary");
+      while (attributeValues.hasMore()) {
+        if (binary) {
+          attributeValues.skip();
+        } else {
+          values.put(name, attributeValues.readString());
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns the cookie from a paged results response control, or null if
+   * there is none.
+   */
+  private static byte[] readPagedResultsCookie(Ber.Decoder controls) throws IOException {
+    while (controls.hasMore()) {
+      Ber.Decoder control = controls.readSequence();
+      String oid = control.readString();
+      if (control.peekTag() == Ber.BOOLEAN) {
+        control.readBoolean();
+      }
+      if (oid.equals(PAGED_RESULTS_OID) && control.peekTag() == Ber.OCTET_STRING) {
+        Ber.Decoder value = new Ber.Decoder(control.readOctetString()).readSequence();
+        value.readInteger();
+        return value.readOctetString();
+      }
+    }
+    return null;
+  }
+
+  /** Encodes a paged search request. */
+  static byte[] searchRequest(int messageId, String baseDn, LdapRule.Scope scope,
+      byte[] filter, Collection<String> attributes, int pageSize, byte[] cookie) {
+    int scopeValue;
+    if (scope == LdapRule.Scope.OBJECT) {
+      scopeValue = 0;
+    } else if (scope == LdapRule.Scope.ONELEVEL) {
+      scopeValue = 1;
+    } else {
+      scopeValue = 2;
+    }
+    List<byte[]> attributeList = Lists.newArrayList();
+    if (attributes != null) {
+      for (String attribute : attributes) {
+        attributeList.add(Ber.octetString(attribute));
+      }
+    }
+    byte[] request = Ber.element(SEARCH_REQUEST, Ber.concat(
+        Ber.octetString(baseDn),
+        Ber.enumerated(scopeValue),
+        Ber.enumerated(DEREF_ALWAYS),
+        Ber.integer(0),
+        Ber.integer(0),
+        Ber.bool(false),
+        filter,
+        Ber.sequence(attributeList.toArray(new byte[attributeList.size()][]))));
+    byte[] pagedResults = Ber.sequence(
+        Ber.octetString(PAGED_RESULTS_OID),
+        Ber.octetString(Ber.sequence(Ber.integer(pageSize),
+            Ber.octetString((cookie == null) ? new byte[0] : cookie))));
+    return Ber.sequence(Ber.integer(messageId), request, Ber.element(CONTROLS, pagedResults));
+  }
+
+  /**
+   * A search on one connection. Each page is requested with a new message
+   * ID. Apart from {@link #cancel}, its methods are called on the selector
+   * thread.
+   */
+  private class NioSearch implements Search {
+    private final Connection connection;
+    private final LdapRule.Scope scope;
+    private final byte[] filter;
+    private final Set<String> attributes;
+    private final int pageSize;
+    private final SearchListener listener;
+    private int messageId = 0;
+    private boolean finished = false;
+    private volatile boolean cancelled = false;
+
+    NioSearch(Connection connection, LdapRule.Scope scope, byte[] filter,
+        Set<String> attributes, int pageSize, SearchListener listener) {
+      this.connection = connection;
+      this.scope = scope;
+      this.filter = filter;
+      this.attributes = attributes;
+      this.pageSize = pageSize;
+      this.listener = listener;
+    }
+
+    void sendPage(byte[] cookie) {
+      if (cancelled || finished) {
+        return;
+      }
+      if (connection.failed) {
+        fail(new IllegalStateException("The ldap connection to " + connection.endpoint
+            + " failed"));
+        return;
+      }
+      if (connection.searches.isEmpty()) {
+        // The connection was idle, so the timeout starts now.
+        connection.lastActivity = System.nanoTime();
+      }
+      messageId = connection.nextMessageId++;
+      connection.searches.put(messageId, this);
+      String baseDn = settings.getBaseDN();
+      connection.send(searchRequest(messageId, (baseDn == null) ? "" : baseDn, scope, filter,
+          attributes, pageSize, cookie));
+    }
+
+    void onEntry(String dn, Multimap<String, String> values) {
+      if (cancelled || finished) {
+        return;
+      }
+      try {
+        listener.onEntry(dn, values);
+      } catch (RuntimeException e) {
+        abandon();
+        fail(e);
+      }
+    }
+
+    void onDone(int resultCode, String diagnostic, byte[] cookie) {
+      if (cancelled || finished) {
+        finish();
+        return;
+      }
+      if (resultCode != 0) {
+        fail(new IllegalStateException("Ldap search failed with result code " + resultCode
+            + ": " + diagnostic));
+      } else if (cookie != null && cookie.length > 0) {
+        sendPage(cookie);
+      } else {
+        finish();
+        listener.onDone();
+      }
+    }
+
+    void fail(RuntimeException e) {
+      if (finished) {
+        return;
+      }
+      finish();
+      if (!cancelled) {
+        listener.onError(e);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          abandon();
+          finish();
+        }
+      });
+    }
+
+    private void abandon() {
+      if (connection.searches.remove(messageId) != null) {
+        connection.send(Ber.sequence(Ber.integer(connection.nextMessageId++),
+            Ber.integer(ABANDON_REQUEST, messageId)));
+      }
+    }
+
+    private void finish() {
+      if (!finished) {
+        finished = true;
+        connection.load.decrementAndGet();
+      }
+    }
+  }
+}
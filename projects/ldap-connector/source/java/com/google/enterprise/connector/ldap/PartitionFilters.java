@@ -0,0 +1,97 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Splits an ldap filter into disjoint filters that together match the same
+ * entries, so that they can be searched in parallel. The entries are divided
+ * by the first character of an attribute value: each partition but the last
+ * matches a range of leading letters and digits, using substring filters,
+ * and the last partition matches everything else, including entries that do
+ * not have the attribute at all.
+ * <p>
+ * The attribute must support substring matching, and should be
+ * single-valued. An entry with several values of the attribute may be
+ * returned by more than one partition.
+ */
+public class PartitionFilters {
+
+  /** The leading characters used to divide the entries. */
+  static final String LEADING_CHARACTERS = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  /** The largest number of partitions that will be returned. */
+  public static final int MAX_PARTITIONS = LEADING_CHARACTERS.length();
+
+  private PartitionFilters() {
+    // prevents instantiation
+  }
+
+  /**
+   * Splits a filter into disjoint filters.
+   *
+   * @param filter the filter to split
+   * @param attribute the attribute whose values divide the entries
+   * @param count the number of partitions wanted; at most
+   *        {@link #MAX_PARTITIONS} are returned
+   * @return a list of filters; if {@code count} is less than two, the list
+   *         contains only the original filter
+   */
+  public static List<String> split(String filter, String attribute, int count) {
+    if (count < 2) {
+      return ImmutableList.of(filter);
+    }
+    count = Math.min(count, MAX_PARTITIONS);
+    String base = filter.trim();
+    if (!base.startsWith("(")) {
+      base = "(" + base + ")";
+    }
+
+    List<String> filters = Lists.newArrayListWithCapacity(count);
+    int characters = LEADING_CHARACTERS.length();
+    for (int i = 0; i < count - 1; i++) {
+      int start = i * characters / count;
+      int end = (i + 1) * characters / count;
+      filters.add("(&" + base + anyOf(attribute, start, end) + ")");
+    }
+    // The last partition is everything not matched by the others.
+    int end = (count - 1) * characters / count;
+    filters.add("(&" + base + "(!" + anyOf(attribute, 0, end) + "))");
+    return filters;
+  }
+
+  /**
+   * Returns a filter matching values that start with any of the leading
+   * characters in the range [start, end).
+   */
+  private static String anyOf(String attribute, int start, int end) {
+    if (end - start == 1) {
+      return startsWith(attribute, LEADING_CHARACTERS.charAt(start));
+    }
+    StringBuilder sb = new StringBuilder("(|");
+    for (int i = start; i < end; i++) {
+      sb.append(startsWith(attribute, LEADING_CHARACTERS.charAt(i)));
+    }
+    return sb.append(')').toString();
+  }
+
+  private static String startsWith(String attribute, char c) {
+    return "(" + attribute + "=" + c + "*)";
+  }
+}
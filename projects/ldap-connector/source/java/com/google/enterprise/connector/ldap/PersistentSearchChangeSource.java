@@ -0,0 +1,320 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Finds changed entries with a persistent search, which a background
+ * thread holds open between traversals. The server notifies the thread of
+ * each change as it happens, and the changed DNs are kept until the next
+ * traversal reads them; only those entries are then read in full. A
+ * traversal is therefore cheap, and can run as often as changes need to
+ * be picked up.
+ * <p>
+ * The position is a session, which ends when the connection is lost, and
+ * the number of notifications received in it. The thread reconnects
+ * automatically, but changes may have been missed in the gap, so a
+ * position from an earlier session leads to a full traversal, as do too
+ * many unread notifications. The server does not send a notification
+ * when an entry stops matching the filter; full traversals catch those.
+ * <p>
+ * The listener stops itself once it has not been used for the
+ * reconciliation interval, since the next traversal will be a full one
+ * anyway.
+ */
+class PersistentSearchChangeSource implements ChangeSource, Runnable {
+  private static final Logger LOG =
+      Logger.getLogger(PersistentSearchChangeSource.class.getName());
+
+  private static final String PREFIX = "psearch:";
+
+  /** The most notifications kept before the session is abandoned. */
+  private static final int MAX_NOTIFICATIONS = 100000;
+
+  /** How long to wait for the search to start, before a full traversal. */
+  private static final long START_TIMEOUT_MILLIS = 30 * 1000L;
+
+  private static final long MIN_RETRY_MILLIS = 1000L;
+  private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000L;
+
+  /** A change reported by the search. */
+  private static class Notification {
+    private final String dn;
+    private final String canonicalDn;
+    private final boolean deleted;
+    private final String previousDn;
+    private long sequence;
+
+    /**
+     * @param dn the full DN of the entry
+     * @param deleted whether the entry has been deleted
+     * @param previousDn the canonical DN of a renamed entry before the
+     *        rename, or {@code null}
+     */
+    public Notification(String dn, boolean deleted, String previousDn) {
+      this.dn = dn;
+      this.canonicalDn = LdapHandler.canonicalDn(dn);
+      this.deleted = deleted;
+      this.previousDn = previousDn;
+    }
+  }
+
+  private final LdapDirectory directory;
+  private final String fingerprint;
+  private final long idleMillis;
+
+  // Guarded by this.
+  private final LinkedList<Notification> notifications = new LinkedList<Notification>();
+  private long session = 0;
+  private long lastSession = 0;
+  private long sequence = 0;
+  private long lastUsed = System.currentTimeMillis();
+  private boolean stopped = false;
+  private Thread thread = null;
+
+  /**
+   * @param directory the directory to search, whose settings and rule must
+   *        not change while the listener runs
+   * @param fingerprint a description of the settings and rule
+   * @param idleMillis how long the listener runs without being used
+   */
+  public PersistentSearchChangeSource(LdapDirectory directory, String fingerprint,
+      long idleMillis) {
+    this.directory = directory;
+    this.fingerprint = fingerprint;
+    this.idleMillis = idleMillis;
+  }
+
+  /** Returns the description of the settings and rule it was started with. */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public synchronized void start() {
+    thread = new Thread(this, "ldap-persistent-search");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stops the listener, and ends the search. */
+  public synchronized void stop() {
+    stopped = true;
+    if (thread != null) {
+      // JNDI throws InterruptedNamingException from a blocked search.
+      thread.interrupt();
+    }
+    notifyAll();
+  }
+
+  public synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  @Override
+  public synchronized String getPosition() {
+    lastUsed = System.currentTimeMillis();
+    long deadline = lastUsed + START_TIMEOUT_MILLIS;
+    while (session == 0 && !stopped) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        LOG.warning("The persistent search has not started");
+        return null;
+      }
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return stopped ? null : PREFIX + session + ":" + sequence;
+  }
+
+  @Override
+  public ChangeSet getChanges(String position, int maxChanges) {
+    if (!position.startsWith(PREFIX)) {
+      return null;
+    }
+    long positionSession;
+    long positionSequence;
+    try {
+      String[] parts = position.substring(PREFIX.length()).split(":", 2);
+      if (parts.length != 2) {
+        return null;
+      }
+      positionSession = Long.parseLong(parts[0]);
+      positionSequence = Long.parseLong(parts[1]);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    // The canonical DNs of the changed entries, mapped to the full DN to
+    // read, or to null if the entry has been deleted or renamed.
+    Map<String, String> changed = Maps.newLinkedHashMap();
+    String current;
+    synchronized (this) {
+      lastUsed = System.currentTimeMillis();
+      if (session == 0 || positionSession != session) {
+        LOG.info("Changes may have been missed since the last traversal");
+        return null;
+      }
+      Iterator<Notification> it = notifications.iterator();
+      while (it.hasNext()) {
+        Notification notification = it.next();
+        if (notification.sequence <= positionSequence) {
+          // Already applied; later positions are never earlier than this.
+          it.remove();
+          continue;
+        }
+        if (notification.previousDn != null) {
+          changed.put(notification.previousDn, null);
+        }
+        changed.put(notification.canonicalDn,
+            notification.deleted ? null : notification.dn);
+      }
+      current = PREFIX + session + ":" + sequence;
+    }
+    if (changed.size() > maxChanges) {
+      LOG.info("More than " + maxChanges + " changes");
+      return null;
+    }
+    ChangeSet changes = new ChangeSet(current);
+    List<String> dns = Lists.newArrayList();
+    for (Entry<String, String> entry : changed.entrySet()) {
+      if (entry.getValue() == null) {
+        changes.addDeleted(entry.getKey());
+      } else {
+        dns.add(entry.getValue());
+      }
+    }
+    return changes.readChanged(directory, dns) ? changes : null;
+  }
+
+  @Override
+  public void run() {
+    long retryMillis = MIN_RETRY_MILLIS;
+    while (!isStopped()) {
+      LdapDirectory.Connection listenConnection = directory.connect(true);
+      if (listenConnection != null) {
+        NamingEnumeration<SearchResult> results = null;
+        try {
+          SearchControls controls = directory.makeControls();
+          controls.setReturningAttributes(new String[] { "1.1" });
+          startSession();
+          LOG.info("Starting the persistent search");
+          results = listenConnection.search(new LdapName(""),
+              directory.getRule().getFilter(), controls,
+              new PersistentSearchControl(PersistentSearchControl.ALL, true, true));
+          while (results.hasMore()) {
+            record(results.next());
+            retryMillis = MIN_RETRY_MILLIS;
+          }
+          LOG.warning("The server ended the persistent search");
+        } catch (NamingException e) {
+          if (!isStopped()) {
+            LOG.log(Level.WARNING, "The persistent search failed", e);
+          }
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Invalid entry change notification", e);
+        } finally {
+          endSession();
+          if (results != null) {
+            try {
+              results.close();
+            } catch (NamingException e) {
+              LOG.log(Level.FINE, "Unable to close the persistent search", e);
+            }
+          }
+          listenConnection.close();
+        }
+      }
+      synchronized (this) {
+        if (!stopped) {
+          try {
+            wait(retryMillis);
+          } catch (InterruptedException e) {
+            stopped = true;
+          }
+        }
+      }
+      retryMillis = Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+    }
+    LOG.info("Stopped the persistent search");
+  }
+
+  /** Records a notification. */
+  private void record(SearchResult result) throws NamingException, IOException {
+    Control control = (result instanceof HasControls)
+        ? LdapHandler.findControl(((HasControls) result).getControls(),
+            PersistentSearchControl.ENTRY_CHANGE_OID)
+        : null;
+    PersistentSearchControl.EntryChange change = (control == null) ? null
+        : PersistentSearchControl.EntryChange.decode(control.getEncodedValue());
+    String dn = result.getNameInNamespace();
+    Notification notification = new Notification(dn,
+        change != null && change.getChangeType() == PersistentSearchControl.DELETE,
+        (change == null) ? null : LdapHandler.canonicalDn(change.getPreviousDn()));
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Change notification for " + dn);
+    }
+    synchronized (this) {
+      if (System.currentTimeMillis() - lastUsed > idleMillis) {
+        LOG.info("The persistent search is no longer being used");
+        stop();
+        return;
+      }
+      notification.sequence = ++sequence;
+      notifications.add(notification);
+      if (notifications.size() > MAX_NOTIFICATIONS) {
+        LOG.warning("More than " + MAX_NOTIFICATIONS + " unread changes");
+        startSession();
+      }
+    }
+  }
+
+  /** Starts a new session, discarding the notifications of the last. */
+  private synchronized void startSession() {
+    // Sessions are times, so that they are not reused after a restart.
+    session = Math.max(lastSession + 1, System.currentTimeMillis());
+    lastSession = session;
+    notifications.clear();
+    notifyAll();
+  }
+
+  private synchronized void endSession() {
+    session = 0;
+    notifications.clear();
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The persistent search request control, from
+ * draft-ietf-ldapext-psearch. A search with this control does not end:
+ * the server returns each entry as it changes, with an
+ * {@link EntryChange} control that says how it changed.
+ */
+public class PersistentSearchControl extends BasicControl {
+  private static final long serialVersionUID = 1L;
+
+  public static final String OID = "2.16.840.1.113730.3.4.3";
+  public static final String ENTRY_CHANGE_OID = "2.16.840.1.113730.3.4.7";
+
+  public static final int ADD = 1;
+  public static final int DELETE = 2;
+  public static final int MODIFY = 4;
+  public static final int MODDN = 8;
+  public static final int ALL = ADD | DELETE | MODIFY | MODDN;
+
+  /**
+   * @param changeTypes the changes to return, as a combination of
+   *        {@link #ADD}, {@link #DELETE}, {@link #MODIFY} and {@link #MODDN}
+   * @param changesOnly if false, the matching entries are returned first
+   * @param returnEntryChanges whether to return an {@link EntryChange}
+   *        control with each entry
+   */
+  public PersistentSearchControl(int changeTypes, boolean changesOnly,
+      boolean returnEntryChanges) {
+    super(OID, true, encode(changeTypes, changesOnly, returnEntryChanges));
+  }
+
+  static byte[] encode(int changeTypes, boolean changesOnly, boolean returnEntryChanges) {
+    return Ber.sequence(
+        Ber.integer(changeTypes),
+        Ber.bool(changesOnly),
+        Ber.bool(returnEntryChanges));
+  }
+
+  /** The value of the entry change notification control. */
+  public static class EntryChange {
+    private final int changeType;
+    private final String previousDn;
+
+    public EntryChange(int changeType, String previousDn) {
+      this.changeType = changeType;
+      this.previousDn = previousDn;
+    }
+
+    /**
+     * Decodes the value of an entry change notification control.
+     *
+     * @throws IOException if the value is not a valid notification
+     */
+    public static EntryChange decode(byte[] value) throws IOException {
+      Ber.Decoder sequence = new Ber.Decoder(value).readSequence();
+      int changeType = sequence.readEnumerated();
+      String previousDn = null;
+      if (sequence.peekTag() == Ber.OCTET_STRING) {
+        previousDn = new String(sequence.readOctetString(), "UTF-8");
+      }
+      // An optional changeNumber may follow; it is not needed.
+      return new EntryChange(changeType, previousDn);
+    }
+
+    /**
+     * Returns one of {@link PersistentSearchControl#ADD},
+     * {@link PersistentSearchControl#DELETE},
+     * {@link PersistentSearchControl#MODIFY} or
+     * {@link PersistentSearchControl#MODDN}.
+     */
+    public int getChangeType() {
+      return changeType;
+    }
+
+    /** Returns the DN before a rename, or {@code null}. */
+    public String getPreviousDn() {
+      return previousDn;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads ahead from another iterator in a background thread, so that the
+ * work of producing the elements overlaps with the work of consuming them.
+ * At most {@code capacity} elements are buffered. The thread is started
+ * when the first element is requested, and ends when the source is
+ * exhausted, when the source throws an exception, or when {@link #close}
+ * is called.
+ * <p>
+ * An exception thrown by the source is thrown to the consumer, after the
+ * elements that were read before it. The source must not return null
+ * elements, and must not be used by anything else once this iterator has
+ * been created.
+ */
+public class PrefetchingIterator<T> extends AbstractIterator<T> {
+
+  /** Marks the end of the source. */
+  private static final Object END = new Object();
+
+  /** Carries an exception thrown by the source. */
+  private static class Failure {
+    final Throwable cause;
+
+    Failure(Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  private final Iterator<? extends T> source;
+  private final BlockingQueue<Object> queue;
+  private final String threadName;
+  private Thread thread = null;
+  private volatile boolean closed = false;
+
+  /**
+   * @param source the iterator to read from
+   * @param capacity the maximum number of elements to buffer
+   * @param threadName the name of the background thread
+   */
+  public PrefetchingIterator(Iterator<? extends T> source, int capacity, String threadName) {
+    this.source = source;
+    this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+    this.threadName = threadName;
+  }
+
+  @Override
+  protected T computeNext() {
+    if (closed) {
+      return endOfData();
+    }
+    if (thread == null) {
+      thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          prefetch();
+        }
+      }, threadName);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    Object item;
+    try {
+      item = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new IllegalStateException(e);
+    }
+    if (item == END) {
+      return endOfData();
+    }
+    if (item instanceof Failure) {
+      Throwable cause = ((Failure) item).cause;
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IllegalStateException(cause);
+      }
+    }
+    @SuppressWarnings("unchecked") T element = (T) item;
+    return element;
+  }
+
+  /**
+   * Stops reading ahead, and discards any buffered elements. This does not
+   * wait for the background thread; if it is blocked in the source, it
+   * stops when the source returns.
+   */
+  public void close() {
+    closed = true;
+    if (thread != null) {
+      thread.interrupt();
+    }
+    queue.clear();
+  }
+
+  private void prefetch() {
+    try {
+      while (!closed && source.hasNext()) {
+        queue.put(source.next());
+      }
+      if (!closed) {
+        queue.put(END);
+      }
+    } catch (InterruptedException e) {
+      // We have been closed.
+    } catch (Throwable t) {
+      if (!closed) {
+        try {
+          queue.put(new Failure(t));
+        } catch (InterruptedException e) {
+          // We have been closed.
+        }
+      }
+    }
+  }
+}
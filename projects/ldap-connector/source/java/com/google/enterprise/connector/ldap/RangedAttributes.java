@@ -0,0 +1,243 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.ErrorMessages;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Reads attributes that the server returns in ranges. Active Directory
+ * returns at most 1500 values of an attribute such as member at a time,
+ * under a name such as {@code member;range=0-1499}, and the rest must be
+ * asked for by name, {@code member;range=1500-*}, one range after
+ * another. The values of every range are added under the plain attribute
+ * name, so the whole attribute is never held as one JNDI attribute.
+ */
+public class RangedAttributes {
+  private static final Logger LOG = Logger.getLogger(RangedAttributes.class.getName());
+
+  private static final String RANGE_OPTION = ";range=";
+
+  /** The most follow-up reads for one entry, in case a server never ends. */
+  static final int MAX_READS = 10000;
+
+  private RangedAttributes() {
+    // prevents instantiation
+  }
+
+  /** The range of values returned under an attribute name with a range option. */
+  static class Range {
+    /** The lower-case attribute name, without the range option. */
+    final String name;
+    final int low;
+    /** The last value returned, or -1 if this is the last range. */
+    final int high;
+
+    Range(String name, int low, int high) {
+      this.name = name;
+      this.low = low;
+      this.high = high;
+    }
+
+    boolean isLast() {
+      return high < 0;
+    }
+
+    /** Returns the attribute name that asks for the rest of the values. */
+    String next() {
+      return name + RANGE_OPTION + (high + 1) + "-*";
+    }
+
+    @Override
+    public String toString() {
+      return name + RANGE_OPTION + low + "-" + (isLast() ? "*" : Integer.toString(high));
+    }
+  }
+
+  /** Reads the given attributes of an entry. */
+  interface Reader {
+    Attributes read(String[] attributeIds) throws NamingException;
+  }
+
+  /**
+   * Parses an attribute name with a range option.
+   *
+   * @param id the attribute name, in lower case
+   * @return the range, or {@code null} if the name has no valid range option
+   */
+  static Range parse(String id) {
+    int option = id.indexOf(RANGE_OPTION);
+    if (option < 0) {
+      return null;
+    }
+    int start = option + RANGE_OPTION.length();
+    int end = id.indexOf(';', start);
+    if (end < 0) {
+      end = id.length();
+    }
+    String range = id.substring(start, end);
+    int dash = range.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      int low = Integer.parseInt(range.substring(0, dash));
+      String last = range.substring(dash + 1);
+      int high = last.equals("*") ? -1 : Integer.parseInt(last);
+      if (low < 0 || (high >= 0 && high < low)) {
+        return null;
+      }
+      return new Range(id.substring(0, option) + id.substring(end), low, high);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the remaining ranges of the given attributes of an entry, on a
+   * pooled connection.
+   *
+   * @param settings the connection settings
+   * @param connectionTimeout the connection timeout
+   * @param dn the full DN of the entry
+   * @param values the values of the entry, which the remaining values are
+   *        added to
+   * @param pending the ranges that have been read
+   * @throws IllegalStateException if the ranges could not be read
+   */
+  static void readRemaining(LdapConnectionSettings settings, String connectionTimeout,
+      String dn, Multimap<String, String> values, List<Range> pending) {
+    final LdapName name;
+    try {
+      LdapName fullName = new LdapName(dn);
+      String baseDn = settings.getBaseDN();
+      LdapName baseName = new LdapName((baseDn == null) ? "" : baseDn);
+      if (!fullName.startsWith(baseName)) {
+        LOG.warning("Unable to read the remaining values of " + pending + " for " + dn);
+        return;
+      }
+      name = (LdapName) fullName.getSuffix(baseName.size());
+    } catch (NamingException e) {
+      throw new IllegalStateException(e);
+    }
+    LdapConnection connection = LdapHandler.borrowConnection(settings, connectionTimeout);
+    final LdapContext ctx = connection.getLdapContext();
+    if (ctx == null) {
+      Map<LdapConnectionError, Throwable> errors = connection.getErrors();
+      if (errors.isEmpty()) {
+        throw new IllegalStateException(ErrorMessages.UNKNOWN_CONNECTION_ERROR.toString());
+      }
+      throw new IllegalStateException(errors.values().iterator().next());
+    }
+    boolean reusable = false;
+    try {
+      ctx.setRequestControls(null);
+      readRemaining(new Reader() {
+        @Override
+        public Attributes read(String[] attributeIds) throws NamingException {
+          return ctx.getAttributes(name, attributeIds);
+        }
+      }, values, pending);
+      reusable = true;
+    } catch (NamingException e) {
+      connection.recordError(e);
+      throw new IllegalStateException(e);
+    } finally {
+      if (reusable) {
+        LdapHandler.releaseConnection(connection);
+      } else {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the remaining ranges of the given attributes of an entry. The
+   * next range of every attribute that has more values is asked for in the
+   * same request.
+   */
+  @VisibleForTesting
+  static void readRemaining(Reader reader, Multimap<String, String> values,
+      List<Range> pending) throws NamingException {
+    List<Range> ranges = Lists.newArrayList();
+    for (Range range : pending) {
+      if (!range.isLast()) {
+        ranges.add(range);
+      }
+    }
+    for (int reads = 0; !ranges.isEmpty(); reads++) {
+      if (reads == MAX_READS) {
+        LOG.warning("Stopped reading the values of " + ranges);
+        return;
+      }
+      String[] ids = new String[ranges.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = ranges.get(i).next();
+      }
+      Attributes attributes = reader.read(ids);
+      List<Range> next = Lists.newArrayList();
+      NamingEnumeration<? extends Attribute> all = attributes.getAll();
+      while (all.hasMore()) {
+        Attribute attribute = all.next();
+        String id = attribute.getID().toLowerCase();
+        Range range = parse(id);
+        String attributeName = (range == null) ? id : range.name;
+        if (!isPending(ranges, attributeName)) {
+          continue;
+        }
+        addValues(values, attributeName, attribute);
+        if (range != null && !range.isLast()) {
+          next.add(range);
+        }
+      }
+      ranges = next;
+    }
+  }
+
+  private static boolean isPending(List<Range> ranges, String name) {
+    for (Range range : ranges) {
+      if (range.name.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Adds the string values of an attribute under the given name. */
+  static void addValues(Multimap<String, String> values, String name, Attribute attribute)
+      throws NamingException {
+    for (int i = 0; i < attribute.size(); i++) {
+      Object value = attribute.get(i);
+      if (value instanceof String) {
+        values.put(name, (String) value);
+      }
+    }
+  }
+}
@@ -0,0 +1,208 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Chooses which of several replicas of a directory to connect to. Replicas
+ * that answer fastest are preferred, and a replica that fails to answer is
+ * avoided for a while, for longer after each failure, so that connections
+ * go to the replicas that are up.
+ * <p>
+ * Endpoints are strings of the form {@code host:port}, as returned by
+ * {@link #parseEndpoints}. Instances are thread-safe, so they can be shared
+ * by concurrent searches.
+ */
+public class ReplicaSelector {
+  private static final Logger LOG = Logger.getLogger(ReplicaSelector.class.getName());
+
+  /** How long a replica is avoided after its first failure. */
+  static final long MIN_BACKOFF_MILLIS = 10 * 1000L;
+
+  /** The longest a replica is avoided after repeated failures. */
+  static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+  /** The weight of the latest latency in the moving average. */
+  private static final double LATENCY_WEIGHT = 0.3;
+
+  private static class Stats {
+    /** The moving average latency, or -1 if unknown. */
+    long latencyNanos = -1;
+    int failures = 0;
+    long downUntilNanos = 0;
+  }
+
+  private final Ticker ticker;
+  private final Map<String, Stats> stats = Maps.newHashMap();
+
+  public ReplicaSelector() {
+    this(Ticker.systemTicker());
+  }
+
+  ReplicaSelector(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  /**
+   * Splits a list of hostnames, separated by commas or spaces, into
+   * endpoints. Hostnames without a port are given the default port.
+   *
+   * @param hostnames the hostnames, each optionally followed by a colon
+   *        and a port
+   * @param defaultPort the port to use when none is given, or 0 to leave
+   *        the port out
+   */
+  public static List<String> parseEndpoints(String hostnames, int defaultPort) {
+    List<String> endpoints = Lists.newArrayList();
+    if (hostnames == null) {
+      return endpoints;
+    }
+    for (String hostname : hostnames.trim().split("[,\\s]+")) {
+      if (hostname.length() == 0) {
+        continue;
+      }
+      // An IPv6 address in brackets contains colons, but not after the ']'.
+      boolean hasPort = hostname.lastIndexOf(':') > hostname.lastIndexOf(']');
+      if (!hasPort && defaultPort > 0) {
+        hostname = hostname + ":" + defaultPort;
+      }
+      endpoints.add(hostname);
+    }
+    return endpoints;
+  }
+
+  /**
+   * Returns the endpoints in the order they should be tried. Replicas that
+   * have not recently failed come first, fastest first, with replicas of
+   * unknown latency ahead of the rest so that they are measured. Replicas
+   * that have failed come last, those available soonest first.
+   *
+   * @param endpoints the endpoints to choose from
+   * @param preferred if not negative, the index among the available
+   *        replicas of the one to put first, to spread concurrent searches
+   *        across the replicas; it is taken modulo the number available
+   */
+  public List<String> order(List<String> endpoints, int preferred) {
+    return orderTiers(Collections.singletonList(endpoints), preferred);
+  }
+
+  /**
+   * Returns the endpoints in the order they should be tried, as
+   * {@link #order(List, int)} does, but keeping the available replicas in
+   * the given tiers, such as the priorities of DNS SRV records. Replicas
+   * are only sorted by latency within a tier, and only the first tier with
+   * an available replica is used to spread searches. Replicas of unknown
+   * latency keep their order within a tier.
+   *
+   * @param tiers the endpoints to choose from, most preferred tier first
+   * @param preferred the index of the replica to put first, or -1
+   */
+  public synchronized List<String> orderTiers(List<List<String>> tiers, int preferred) {
+    final long now = ticker.read();
+    List<String> ordered = Lists.newArrayList();
+    List<String> down = Lists.newArrayList();
+    for (List<String> tier : tiers) {
+      List<String> available = Lists.newArrayList();
+      for (String endpoint : tier) {
+        if (getStats(endpoint).downUntilNanos - now > 0) {
+          down.add(endpoint);
+        } else {
+          available.add(endpoint);
+        }
+      }
+      Collections.sort(available, new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+          long latencyA = stats.get(a).latencyNanos;
+          long latencyB = stats.get(b).latencyNanos;
+          return (latencyA < latencyB) ? -1 : ((latencyA == latencyB) ? 0 : 1);
+        }
+      });
+      if (preferred > 0 && ordered.isEmpty() && available.size() > 1) {
+        Collections.rotate(available, -(preferred % available.size()));
+      }
+      ordered.addAll(available);
+    }
+    Collections.sort(down, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        long untilA = stats.get(a).downUntilNanos - now;
+        long untilB = stats.get(b).downUntilNanos - now;
+        return (untilA < untilB) ? -1 : ((untilA == untilB) ? 0 : 1);
+      }
+    });
+    ordered.addAll(down);
+    return ordered;
+  }
+
+  /**
+   * Records that a replica answered.
+   *
+   * @param endpoint the replica
+   * @param nanos how long it took to connect
+   */
+  public synchronized void recordSuccess(String endpoint, long nanos) {
+    Stats replica = getStats(endpoint);
+    if (replica.failures > 0) {
+      LOG.info("Replica " + endpoint + " is available again");
+    }
+    replica.failures = 0;
+    replica.downUntilNanos = 0;
+    if (replica.latencyNanos < 0) {
+      replica.latencyNanos = nanos;
+    } else {
+      replica.latencyNanos =
+          (long) (LATENCY_WEIGHT * nanos + (1 - LATENCY_WEIGHT) * replica.latencyNanos);
+    }
+  }
+
+  /**
+   * Records that a replica could not be reached, or stopped answering.
+   */
+  public synchronized void recordFailure(String endpoint) {
+    Stats replica = getStats(endpoint);
+    long backoff = MIN_BACKOFF_MILLIS << Math.min(replica.failures, 10);
+    backoff = Math.min(backoff, MAX_BACKOFF_MILLIS);
+    replica.failures++;
+    replica.downUntilNanos = ticker.read() + TimeUnit.MILLISECONDS.toNanos(backoff);
+    LOG.warning("Avoiding replica " + endpoint + " for " + backoff + " ms after "
+        + replica.failures + " failures");
+  }
+
+  /** Returns the moving average latency of a replica, or -1 if unknown. */
+  public synchronized long getLatencyNanos(String endpoint) {
+    Stats replica = stats.get(endpoint);
+    return (replica == null) ? -1 : replica.latencyNanos;
+  }
+
+  private Stats getStats(String endpoint) {
+    Stats replica = stats.get(endpoint);
+    if (replica == null) {
+      replica = new Stats();
+      stats.put(endpoint, replica);
+    }
+    return replica;
+  }
+}
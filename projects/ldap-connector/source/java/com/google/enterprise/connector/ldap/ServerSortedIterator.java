@@ -0,0 +1,167 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.PeekingIterator;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * Passes through results that the server has sorted, checking that they
+ * really are in ascending order. When two results have the same key, the
+ * later one wins, as in {@link LdapHandler#get}.
+ * <p>
+ * The server's order need not agree with ours: servers prepare strings
+ * before comparing them (RFC 4518), and sort an entry with several key
+ * values by the smallest one, where we key it by the first one returned.
+ * So the first results, up to a page, are checked before any of them are
+ * returned, and if they are out of order, all of the results are sorted on
+ * the client instead. A result that is out of order after that cannot be
+ * put in its place, because the results before it have been returned, so
+ * it and the rest of the results are sorted on the client and returned
+ * after them. The traversal is not failed either way, but the listener is
+ * told, so that later traversals sort on the client.
+ */
+class ServerSortedIterator extends AbstractIterator<Entry<String, Multimap<String, String>>> {
+  private static final Logger LOG = Logger.getLogger(ServerSortedIterator.class.getName());
+
+  /** Told when the server's order does not agree with ours. */
+  interface Listener {
+    void outOfOrder();
+  }
+
+  private final EntrySearch search;
+  private final PeekingIterator<Entry<String, Multimap<String, String>>> results;
+  private final int checkSize;
+  private final Supplier<ExternalEntrySorter> sorters;
+  private final Listener listener;
+
+  /** The results read ahead, or sorted on the client, still to be returned. */
+  private Iterator<Entry<String, Multimap<String, String>>> pending = null;
+  private boolean clientSorted = false;
+  private String lastKey = null;
+
+  /**
+   * @param search the search, with a sort control
+   * @param checkSize the number of results to check before returning any
+   * @param sorters makes a sorter for results that are out of order
+   * @param listener told if the results are out of order
+   */
+  public ServerSortedIterator(EntrySearch search, int checkSize,
+      Supplier<ExternalEntrySorter> sorters, Listener listener) {
+    this.search = search;
+    this.results = Iterators.peekingIterator(search);
+    this.checkSize = checkSize;
+    this.sorters = sorters;
+    this.listener = listener;
+  }
+
+  @Override
+  protected Entry<String, Multimap<String, String>> computeNext() {
+    if (pending == null) {
+      pending = readFirst();
+    }
+    if (pending.hasNext()) {
+      return pending.next();
+    }
+    if (clientSorted || !results.hasNext()) {
+      return endOfData();
+    }
+    Entry<String, Multimap<String, String>> entry = results.next();
+    while (results.hasNext() && results.peek().getKey().equals(entry.getKey())) {
+      entry = results.next();
+    }
+    if (entry.getKey().compareTo(lastKey) < 0) {
+      outOfOrder(entry.getKey());
+      pending = sortRest(Collections.singletonList(entry));
+      return pending.hasNext() ? pending.next() : endOfData();
+    }
+    lastKey = entry.getKey();
+    return entry;
+  }
+
+  /**
+   * Reads the first results, at least checkSize of them if there are that
+   * many, and checks their order.
+   *
+   * @return the first results, or all of the results sorted on the client
+   *         if the first ones are out of order
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> readFirst() {
+    List<Entry<String, Multimap<String, String>>> first = Lists.newArrayList();
+    // Carry on past checkSize while the key repeats, so that the last of
+    // the results with that key is the one kept.
+    while (results.hasNext()
+        && (first.size() < checkSize || results.peek().getKey().equals(lastKey))) {
+      Entry<String, Multimap<String, String>> entry = results.next();
+      int order = (lastKey == null) ? 1 : entry.getKey().compareTo(lastKey);
+      if (order == 0) {
+        first.set(first.size() - 1, entry);
+      } else if (order > 0) {
+        first.add(entry);
+        lastKey = entry.getKey();
+      } else {
+        outOfOrder(entry.getKey());
+        first.add(entry);
+        return sortRest(first);
+      }
+    }
+    return first.iterator();
+  }
+
+  private void outOfOrder(String key) {
+    LOG.warning("Server-side sort returned " + key + " after " + lastKey
+        + "; sorting on the client from now on");
+    clientSorted = true;
+    listener.outOfOrder();
+  }
+
+  /**
+   * Sorts the given results and the ones that have not been read yet. If
+   * an error occurs, or the thread is interrupted, the search and the
+   * sorter are closed.
+   */
+  private Iterator<Entry<String, Multimap<String, String>>> sortRest(
+      List<Entry<String, Multimap<String, String>>> read) {
+    ExternalEntrySorter sorter = sorters.get();
+    try {
+      for (Entry<String, Multimap<String, String>> entry : read) {
+        sorter.add(entry.getKey(), entry.getValue());
+      }
+      while (results.hasNext()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new IllegalStateException("Interrupted while reading ldap results");
+        }
+        Entry<String, Multimap<String, String>> entry = results.next();
+        sorter.add(entry.getKey(), entry.getValue());
+      }
+    } catch (RuntimeException e) {
+      search.close();
+      sorter.close();
+      throw e;
+    }
+    return sorter.iterator();
+  }
+}
@@ -0,0 +1,274 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Finds the ldap servers for a domain from its {@code _ldap._tcp} DNS SRV
+ * records, as Active Directory publishes them for its domain controllers.
+ * The servers are returned in tiers of equal priority, lowest priority
+ * first, with the heaviest weight first within each tier, for
+ * {@link ReplicaSelector#orderTiers} to order by latency.
+ * <p>
+ * Lookups are cached for the records' time to live. If a lookup fails, the
+ * previous servers are used until a later lookup succeeds. Instances are
+ * thread-safe.
+ */
+public class SrvLocator {
+  private static final Logger LOG = Logger.getLogger(SrvLocator.class.getName());
+
+  /** The time to live of records whose TTL is not known. */
+  public static final long DEFAULT_TTL_SECONDS = 10 * 60;
+
+  /** How long to wait before looking up a domain again after a failure. */
+  static final long FAILURE_TTL_SECONDS = 60;
+
+  /** A DNS SRV record. */
+  public static class Record {
+    private final int priority;
+    private final int weight;
+    private final int port;
+    private final String target;
+    private final long ttlSeconds;
+
+    public Record(int priority, int weight, int port, String target, long ttlSeconds) {
+      this.priority = priority;
+      this.weight = weight;
+      this.port = port;
+      this.target = target;
+      this.ttlSeconds = ttlSeconds;
+    }
+
+    public int getPriority() {
+      return priority;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
+    public int getPort() {
+      return port;
+    }
+
+    /** Returns the host name, without a trailing dot. */
+    public String getTarget() {
+      return target;
+    }
+
+    public long getTtlSeconds() {
+      return ttlSeconds;
+    }
+  }
+
+  /** Looks up DNS SRV records. */
+  public interface Resolver {
+    /**
+     * Returns the SRV records for a name, or an empty list if there are
+     * none.
+     *
+     * @throws NamingException if the lookup fails
+     */
+    List<Record> resolve(String name) throws NamingException;
+  }
+
+  /**
+   * Looks up SRV records with the JNDI DNS provider, using the system's
+   * DNS servers. The provider does not return time to live values, so the
+   * records are given {@link #DEFAULT_TTL_SECONDS}.
+   */
+  public static class JndiResolver implements Resolver {
+    @Override
+    public List<Record> resolve(String name) throws NamingException {
+      Hashtable<String, String> env = new Hashtable<String, String>();
+      env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+      env.put(Context.PROVIDER_URL, "dns:");
+      DirContext ctx = new InitialDirContext(env);
+      List<Record> records = Lists.newArrayList();
+      try {
+        Attributes attributes = ctx.getAttributes(name, new String[] { "SRV" });
+        Attribute srv = attributes.get("SRV");
+        if (srv == null) {
+          return records;
+        }
+        NamingEnumeration<?> values = srv.getAll();
+        while (values.hasMore()) {
+          Record record = parse(values.next().toString());
+          if (record != null) {
+            records.add(record);
+          }
+        }
+        return records;
+      } catch (NameNotFoundException e) {
+        return records;
+      } finally {
+        ctx.close();
+      }
+    }
+  }
+
+  /**
+   * Parses an SRV record in the form "priority weight port target".
+   *
+   * @return the record, or {@code null} if it is not valid
+   */
+  static Record parse(String value) {
+    String[] fields = value.trim().split("\\s+");
+    if (fields.length != 4) {
+      LOG.warning("Ignoring invalid SRV record " + value);
+      return null;
+    }
+    try {
+      String target = fields[3];
+      if (target.endsWith(".")) {
+        target = target.substring(0, target.length() - 1);
+      }
+      if (target.length() == 0) {
+        // "." means the service is not available at this domain.
+        return null;
+      }
+      return new Record(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+          Integer.parseInt(fields[2]), target, DEFAULT_TTL_SECONDS);
+    } catch (NumberFormatException e) {
+      LOG.warning("Ignoring invalid SRV record " + value);
+      return null;
+    }
+  }
+
+  private static class CachedLookup {
+    final List<List<String>> tiers;
+    final long expiresNanos;
+
+    CachedLookup(List<List<String>> tiers, long expiresNanos) {
+      this.tiers = tiers;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+
+  private final Resolver resolver;
+  private final Ticker ticker;
+  private final Map<String, CachedLookup> cache = Maps.newHashMap();
+
+  public SrvLocator() {
+    this(new JndiResolver(), Ticker.systemTicker());
+  }
+
+  SrvLocator(Resolver resolver, Ticker ticker) {
+    this.resolver = resolver;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Returns the ldap servers for a domain, as {@code host:port} strings in
+   * tiers of equal priority.
+   *
+   * @param domain the DNS domain name
+   * @param port the port to use instead of the records' ports, or 0 to use
+   *        the records' ports
+   * @return the servers, or an empty list if none are known
+   */
+  public synchronized List<List<String>> locate(String domain, int port) {
+    String key = domain.toLowerCase() + ":" + port;
+    CachedLookup cached = cache.get(key);
+    long now = ticker.read();
+    if (cached != null && cached.expiresNanos - now > 0) {
+      return cached.tiers;
+    }
+    String name = "_ldap._tcp." + domain;
+    List<Record> records;
+    try {
+      records = resolver.resolve(name);
+    } catch (NamingException e) {
+      LOG.log(Level.WARNING, "Unable to look up " + name, e);
+      records = null;
+    }
+    if (records == null || records.isEmpty()) {
+      if (records != null) {
+        LOG.warning("No SRV records found for " + name);
+      }
+      // Keep the servers from the last successful lookup, if any.
+      List<List<String>> tiers = (cached == null)
+          ? ImmutableList.<List<String>>of() : cached.tiers;
+      cache.put(key, new CachedLookup(tiers,
+          now + TimeUnit.SECONDS.toNanos(FAILURE_TTL_SECONDS)));
+      return tiers;
+    }
+    List<List<String>> tiers = toTiers(records, port);
+    long ttlSeconds = Long.MAX_VALUE;
+    for (Record record : records) {
+      ttlSeconds = Math.min(ttlSeconds, record.getTtlSeconds());
+    }
+    LOG.info("Found ldap servers for " + domain + ": " + tiers);
+    cache.put(key, new CachedLookup(tiers, now + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+    return tiers;
+  }
+
+  /**
+   * Groups the records by priority, lowest first, ordering each group by
+   * weight, heaviest first.
+   */
+  private static List<List<String>> toTiers(List<Record> records, int port) {
+    List<Record> sorted = Lists.newArrayList(records);
+    Collections.sort(sorted, new Comparator<Record>() {
+      @Override
+      public int compare(Record a, Record b) {
+        if (a.getPriority() != b.getPriority()) {
+          return (a.getPriority() < b.getPriority()) ? -1 : 1;
+        }
+        return (a.getWeight() > b.getWeight()) ? -1 : ((a.getWeight() == b.getWeight()) ? 0 : 1);
+      }
+    });
+    ImmutableList.Builder<List<String>> tiers = ImmutableList.builder();
+    List<String> tier = null;
+    int priority = 0;
+    for (Record record : sorted) {
+      if (tier == null || record.getPriority() != priority) {
+        if (tier != null) {
+          tiers.add(ImmutableList.copyOf(tier));
+        }
+        tier = Lists.newArrayList();
+        priority = record.getPriority();
+      }
+      String endpoint = record.getTarget() + ":" + ((port > 0) ? port : record.getPort());
+      if (!tier.contains(endpoint)) {
+        tier.add(endpoint);
+      }
+    }
+    tiers.add(ImmutableList.copyOf(tier));
+    return tiers.build();
+  }
+}
@@ -0,0 +1,205 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Finds changed entries with an RFC 4533 refreshOnly content
+ * synchronization search, as supported by OpenLDAP's syncprov overlay.
+ * The server returns the entries that have changed since the state
+ * recorded in a cookie, and the DNs of deleted entries. The position is
+ * the cookie.
+ * <p>
+ * The server may instead use the present phase, sending the DN of every
+ * unchanged entry and leaving the deletions implied. JNDI does not pass
+ * on the intermediate messages that can carry those DNs, so the present
+ * phase leads to a full traversal. A syncprov session log lets the server
+ * send deletions explicitly. An entry that is renamed is returned under
+ * its new DN only, so an entry keyed by its DN stays under the old key
+ * until the next full traversal.
+ */
+class SyncReplChangeSource implements ChangeSource {
+  private static final Logger LOG = Logger.getLogger(SyncReplChangeSource.class.getName());
+
+  private static final String PREFIX = "syncrepl:";
+
+  private final LdapDirectory directory;
+
+  public SyncReplChangeSource(LdapDirectory directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public String getPosition() {
+    // Reading without a cookie returns every entry, so ask for no
+    // attributes; only the final cookie is kept.
+    SearchControls controls = directory.makeControls();
+    controls.setReturningAttributes(new String[] { "1.1" });
+    SyncRequestControl.Done done = sync(null, controls, null, 0);
+    if (done == null || done.getCookie() == null) {
+      return null;
+    }
+    return PREFIX + Ber.toHex(done.getCookie());
+  }
+
+  @Override
+  public ChangeSet getChanges(String position, int maxChanges) {
+    if (!position.startsWith(PREFIX)) {
+      return null;
+    }
+    byte[] cookie;
+    try {
+      cookie = Ber.fromHex(position.substring(PREFIX.length()));
+    } catch (IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Invalid syncrepl position", e);
+      return null;
+    }
+    ChangeCollector collector = new ChangeCollector();
+    SyncRequestControl.Done done =
+        sync(cookie, directory.makeControls(), collector, maxChanges);
+    if (done == null) {
+      return null;
+    }
+    if (!done.getRefreshDeletes()) {
+      // The deletions are implied by the unchanged entries, which may
+      // have been sent in messages that JNDI drops.
+      LOG.info("The server did not list the deleted entries");
+      return null;
+    }
+    byte[] newCookie = (done.getCookie() == null) ? cookie : done.getCookie();
+    ChangeSet changes = new ChangeSet(PREFIX + Ber.toHex(newCookie));
+    for (Entry<String, Multimap<String, String>> entry : collector.changed) {
+      changes.addChanged(entry.getKey(), entry.getValue());
+    }
+    for (String dn : collector.deletedDns) {
+      changes.addDeleted(dn);
+    }
+    return changes;
+  }
+
+  /**
+   * Runs a refreshOnly search.
+   *
+   * @param cookie the starting cookie, or {@code null} to read every entry
+   * @param controls the search scope and attributes
+   * @param collector if not {@code null}, receives the changes
+   * @param maxChanges the largest number of changes to collect
+   * @return the done control, or {@code null} if the changes could not be
+   *         read, or there are too many
+   */
+  private SyncRequestControl.Done sync(byte[] cookie, SearchControls controls,
+      ChangeCollector collector, int maxChanges) {
+    LdapDirectory.Connection syncConnection = directory.connect(true);
+    if (syncConnection == null) {
+      return null;
+    }
+    try {
+      NamingEnumeration<SearchResult> results = syncConnection.search(new LdapName(""),
+          directory.getRule().getFilter(), controls,
+          new SyncRequestControl(SyncRequestControl.REFRESH_ONLY, cookie));
+      try {
+        while (results.hasMore()) {
+          SearchResult result = results.next();
+          if (collector != null && !collector.add(result)) {
+            return null;
+          }
+          if (collector != null && collector.size() > maxChanges) {
+            LOG.info("More than " + maxChanges + " changes");
+            return null;
+          }
+        }
+      } finally {
+        results.close();
+      }
+      Control done = LdapHandler.findControl(syncConnection.getResponseControls(),
+          SyncRequestControl.DONE_OID);
+      if (done == null) {
+        LOG.warning("The server did not return a syncrepl cookie");
+        return null;
+      }
+      return SyncRequestControl.Done.decode(done.getEncodedValue());
+    } catch (NamingException e) {
+      LOG.log(Level.WARNING, "Unable to read the syncrepl changes", e);
+      return null;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Invalid syncrepl response", e);
+      return null;
+    } finally {
+      syncConnection.close();
+    }
+  }
+
+  /** Sorts the entries from a content synchronization search by state. */
+  private class ChangeCollector {
+    private final List<Entry<String, Multimap<String, String>>> changed = Lists.newArrayList();
+    private final List<String> deletedDns = Lists.newArrayList();
+
+    /**
+     * Adds an entry.
+     *
+     * @return false if the entry shows that the changes cannot be used
+     */
+    public boolean add(SearchResult result) throws NamingException, IOException {
+      Control control = (result instanceof HasControls)
+          ? LdapHandler.findControl(((HasControls) result).getControls(),
+              SyncRequestControl.STATE_OID)
+          : null;
+      if (control == null) {
+        LOG.warning("The server did not return a sync state");
+        return false;
+      }
+      SyncRequestControl.State state =
+          SyncRequestControl.State.decode(control.getEncodedValue());
+      String dn = LdapHandler.canonicalDn(result.getNameInNamespace());
+      switch (state.getState()) {
+        case SyncRequestControl.State.PRESENT:
+          LOG.info("The server is listing the unchanged entries");
+          return false;
+        case SyncRequestControl.State.DELETE:
+          deletedDns.add(dn);
+          return true;
+        default:
+          Entry<String, Multimap<String, String>> entry = directory.toEntry(result);
+          if (entry == null) {
+            deletedDns.add(dn);
+          } else {
+            changed.add(entry);
+          }
+          return true;
+      }
+    }
+
+    public int size() {
+      return changed.size() + deletedDns.size();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The RFC 4533 content synchronization request control, used by OpenLDAP's
+ * syncrepl. A refreshOnly search with this control returns the entries
+ * that have changed since the state recorded in the cookie, each with a
+ * {@link State} control, and ends with a {@link Done} control holding the
+ * new cookie. Without a cookie, every entry is returned.
+ */
+public class SyncRequestControl extends BasicControl {
+  private static final long serialVersionUID = 1L;
+
+  public static final String OID = "1.3.6.1.4.1.4203.1.9.1.1";
+  public static final String STATE_OID = "1.3.6.1.4.1.4203.1.9.1.2";
+  public static final String DONE_OID = "1.3.6.1.4.1.4203.1.9.1.3";
+
+  public static final int REFRESH_ONLY = 1;
+  public static final int REFRESH_AND_PERSIST = 3;
+
+  /**
+   * @param mode {@link #REFRESH_ONLY} or {@link #REFRESH_AND_PERSIST}
+   * @param cookie the cookie from an earlier search, or {@code null} to
+   *        read every entry
+   */
+  public SyncRequestControl(int mode, byte[] cookie) {
+    super(OID, true, encode(mode, cookie));
+  }
+
+  static byte[] encode(int mode, byte[] cookie) {
+    // syncRequestValue ::= SEQUENCE { mode ENUMERATED, cookie syncCookie
+    //     OPTIONAL, reloadHint BOOLEAN DEFAULT FALSE }
+    if (cookie == null) {
+      return Ber.sequence(Ber.enumerated(mode));
+    } else {
+      return Ber.sequence(Ber.enumerated(mode), Ber.octetString(cookie));
+    }
+  }
+
+  /** The value of the sync state control returned with each entry. */
+  public static class State {
+    public static final int PRESENT = 0;
+    public static final int ADD = 1;
+    public static final int MODIFY = 2;
+    public static final int DELETE = 3;
+
+    private final int state;
+    private final byte[] entryUuid;
+    private final byte[] cookie;
+
+    public State(int state, byte[] entryUuid, byte[] cookie) {
+      this.state = state;
+      this.entryUuid = entryUuid;
+      this.cookie = cookie;
+    }
+
+    /**
+     * Decodes the value of a sync state control.
+     *
+     * @throws IOException if the value is not a valid state
+     */
+    public static State decode(byte[] value) throws IOException {
+      // syncStateValue ::= SEQUENCE { state ENUMERATED, entryUUID
+      //     syncUUID, cookie syncCookie OPTIONAL }
+      Ber.Decoder sequence = new Ber.Decoder(value).readSequence();
+      int state = sequence.readEnumerated();
+      byte[] entryUuid = sequence.readOctetString();
+      byte[] cookie = sequence.hasMore() ? sequence.readOctetString() : null;
+      return new State(state, entryUuid, cookie);
+    }
+
+    /** Returns one of {@link #PRESENT}, {@link #ADD}, {@link #MODIFY} or {@link #DELETE}. */
+    public int getState() {
+      return state;
+    }
+
+    public byte[] getEntryUuid() {
+      return entryUuid;
+    }
+
+    /** Returns the cookie, or {@code null} if there is none. */
+    public byte[] getCookie() {
+      return cookie;
+    }
+  }
+
+  /** The value of the sync done control returned at the end of a search. */
+  public static class Done {
+    private final byte[] cookie;
+    private final boolean refreshDeletes;
+
+    public Done(byte[] cookie, boolean refreshDeletes) {
+      this.cookie = cookie;
+      this.refreshDeletes = refreshDeletes;
+    }
+
+    /**
+     * Decodes the value of a sync done control.
+     *
+     * @throws IOException if the value is not a valid done control
+     */
+    public static Done decode(byte[] value) throws IOException {
+      // syncDoneValue ::= SEQUENCE { cookie syncCookie OPTIONAL,
+      //     refreshDeletes BOOLEAN DEFAULT FALSE }
+      Ber.Decoder sequence = new Ber.Decoder(value).readSequence();
+      byte[] cookie = null;
+      if (sequence.peekTag() == Ber.OCTET_STRING) {
+        cookie = sequence.readOctetString();
+      }
+      boolean refreshDeletes = false;
+      if (sequence.peekTag() == Ber.BOOLEAN) {
+        refreshDeletes = sequence.readBoolean();
+      }
+      return new Done(cookie, refreshDeletes);
+    }
+
+    /** Returns the new cookie, or {@code null} if there is none. */
+    public byte[] getCookie() {
+      return cookie;
+    }
+
+    /**
+     * Returns true if deleted entries were sent with a delete state. If
+     * false, the server used the present phase, and every entry that was
+     * not sent has been deleted.
+     */
+    public boolean getRefreshDeletes() {
+      return refreshDeletes;
+    }
+  }
+}
@@ -0,0 +1,458 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.PeekingIterator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Produces the sorted results of a traversal in two phases. The first phase
+ * is a scan that reads only the DN, the schemaKey and a change token, such
+ * as modifyTimestamp, of each entry. The scan is compared with the results
+ * of the previous traversal, and the second phase reads in full only the
+ * entries that are new, or whose DN or change token has changed. The other
+ * entries are copied from the previous results. Entries missing from the
+ * scan are dropped, so deletions are seen.
+ * <p>
+ * A full traversal is done instead if there are no saved results, if the
+ * configuration has changed since they were saved, or if the last full
+ * traversal is older than the reconciliation interval.
+ */
+public class TwoPhaseTraversal {
+  private static final Logger LOG = Logger.getLogger(TwoPhaseTraversal.class.getName());
+
+  static final String BASELINE_FILE = "baseline.dat";
+  static final String TOKENS_FILE = "tokens.dat";
+  static final String STATE_FILE = "state.properties";
+
+  /** The attribute of a scanned entry holding the DN to read it by. */
+  public static final String NAME_ATTRIBUTE = "name";
+
+  /** The attribute of a scanned entry holding its change token. */
+  public static final String TOKEN_ATTRIBUTE = "token";
+
+  /** The number of scanned entries compared at a time. */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  private static final String FINGERPRINT = "fingerprint";
+  private static final String LAST_FULL = "lastFull";
+
+  /** Reads entries in full, for the second phase. */
+  public interface Fetcher {
+    /**
+     * @param names the DNs of the entries, as in the scanned entries'
+     *        {@link #NAME_ATTRIBUTE}
+     * @return the entries that were found, keyed by their schemaKey values
+     */
+    public List<Entry<String, Multimap<String, String>>> fetch(List<String> names);
+  }
+
+  private final File directory;
+  private final String fingerprint;
+  private final long reconcileMillis;
+  private final int batchSize;
+
+  /**
+   * @param directory the directory for the saved results
+   * @param fingerprint a description of the configuration that determines
+   *        the results; saved results with a different fingerprint are
+   *        discarded
+   * @param reconcileMillis the longest time between full traversals
+   * @param batchSize the largest number of entries to fetch at once
+   */
+  public TwoPhaseTraversal(File directory, String fingerprint, long reconcileMillis,
+      int batchSize) {
+    this.directory = directory;
+    this.fingerprint = fingerprint;
+    this.reconcileMillis = reconcileMillis;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns the results of a traversal, in ascending key order. The results
+   * are saved, along with the change tokens, when the returned iterator is
+   * exhausted.
+   *
+   * @param scan the scanned entries, in ascending key order, each with the
+   *        {@link LdapHandler#DN_ATTRIBUTE}, {@link #NAME_ATTRIBUTE} and
+   *        {@link #TOKEN_ATTRIBUTE}
+   * @param full supplies the results of a full traversal, in ascending key
+   *        order
+   * @param fetcher reads the entries that have changed
+   */
+  public Iterator<Entry<String, Multimap<String, String>>> traverse(
+      Iterator<Entry<String, Multimap<String, String>>> scan,
+      Supplier<Iterator<Entry<String, Multimap<String, String>>>> full, Fetcher fetcher) {
+    Output output = new Output();
+    Properties state = loadState();
+    if (state != null) {
+      try {
+        EntryFile.Reader baseline = new EntryFile.Reader(new File(directory, BASELINE_FILE));
+        EntryFile.Reader tokens;
+        try {
+          tokens = new EntryFile.Reader(new File(directory, TOKENS_FILE));
+        } catch (IOException e) {
+          baseline.close();
+          throw e;
+        }
+        LOG.info("Reading the entries that have changed since the last traversal");
+        return output.save(new Comparison(scan, baseline, tokens, fetcher, output),
+            Long.parseLong(state.getProperty(LAST_FULL)), baseline, tokens);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to read the saved entries; reading all entries", e);
+      }
+    }
+    long started = System.currentTimeMillis();
+    // Scanning first means that a change during the full traversal leaves
+    // an old token, so the entry is read again next time.
+    try {
+      while (scan.hasNext()) {
+        Entry<String, Multimap<String, String>> entry = scan.next();
+        output.writeToken(entry.getKey(), entry.getValue());
+      }
+    } catch (RuntimeException e) {
+      output.discard();
+      throw e;
+    }
+    return output.save(full.get(), started);
+  }
+
+  /**
+   * Returns the saved state, or null if there are no usable saved results.
+   */
+  private Properties loadState() {
+    File stateFile = new File(directory, STATE_FILE);
+    if (!stateFile.exists() || !new File(directory, BASELINE_FILE).exists()
+        || !new File(directory, TOKENS_FILE).exists()) {
+      LOG.info("No saved entries; reading all entries");
+      return null;
+    }
+    Properties state = new Properties();
+    try {
+      InputStream in = new FileInputStream(stateFile);
+      try {
+        state.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read " + stateFile, e);
+      return null;
+    }
+    if (!fingerprint.equals(state.getProperty(FINGERPRINT))) {
+      LOG.info("The configuration has changed; reading all entries");
+      return null;
+    }
+    long lastFull;
+    try {
+      lastFull = Long.parseLong(state.getProperty(LAST_FULL));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (System.currentTimeMillis() - lastFull >= reconcileMillis) {
+      LOG.info("Reconciliation is due; reading all entries");
+      return null;
+    }
+    return state;
+  }
+
+  /**
+   * Returns the part of a scanned entry that is saved: its DN and change
+   * token.
+   */
+  private static Multimap<String, String> getToken(Multimap<String, String> scanned) {
+    ImmutableMultimap.Builder<String, String> builder = ImmutableMultimap.builder();
+    builder.putAll(LdapHandler.DN_ATTRIBUTE, scanned.get(LdapHandler.DN_ATTRIBUTE));
+    builder.putAll(TOKEN_ATTRIBUTE, scanned.get(TOKEN_ATTRIBUTE));
+    return builder.build();
+  }
+
+  /**
+   * Advances a sorted iterator to the given key.
+   *
+   * @return the value for the key, or {@code null} if there is none
+   */
+  private static Multimap<String, String> advanceTo(
+      PeekingIterator<Entry<String, Multimap<String, String>>> iterator, String key) {
+    while (iterator.hasNext() && iterator.peek().getKey().compareTo(key) < 0) {
+      iterator.next();
+    }
+    if (iterator.hasNext() && iterator.peek().getKey().equals(key)) {
+      return iterator.peek().getValue();
+    }
+    return null;
+  }
+
+  /**
+   * Compares the scanned entries with the saved ones a batch at a time,
+   * and returns the saved entries that have not changed, and the new
+   * versions of the others.
+   */
+  private class Comparison extends AbstractIterator<Entry<String, Multimap<String, String>>> {
+    private final Iterator<Entry<String, Multimap<String, String>>> scan;
+    private final PeekingIterator<Entry<String, Multimap<String, String>>> baseline;
+    private final PeekingIterator<Entry<String, Multimap<String, String>>> tokens;
+    private final Fetcher fetcher;
+    private final Output output;
+    private Iterator<Entry<String, Multimap<String, String>>> batch = Iterators.emptyIterator();
+    private int scanned = 0;
+    private int fetched = 0;
+
+    public Comparison(Iterator<Entry<String, Multimap<String, String>>> scan,
+        Iterator<Entry<String, Multimap<String, String>>> baseline,
+        Iterator<Entry<String, Multimap<String, String>>> tokens, Fetcher fetcher,
+        Output output) {
+      this.scan = scan;
+      this.baseline = Iterators.peekingIterator(baseline);
+      this.tokens = Iterators.peekingIterator(tokens);
+      this.fetcher = fetcher;
+      this.output = output;
+    }
+
+    @Override
+    protected Entry<String, Multimap<String, String>> computeNext() {
+      while (!batch.hasNext()) {
+        if (!scan.hasNext()) {
+          LOG.info("Read " + fetched + " of " + scanned + " entries in full");
+          return endOfData();
+        }
+        batch = nextBatch();
+      }
+      return batch.next();
+    }
+
+    private Iterator<Entry<String, Multimap<String, String>>> nextBatch() {
+      List<Entry<String, Multimap<String, String>>> entries = Lists.newArrayList();
+      Map<String, Multimap<String, String>> unchanged = Maps.newHashMap();
+      List<String> names = Lists.newArrayList();
+      while (entries.size() < batchSize && scan.hasNext()) {
+        Entry<String, Multimap<String, String>> entry = scan.next();
+        entries.add(entry);
+        String key = entry.getKey();
+        Multimap<String, String> savedToken = advanceTo(tokens, key);
+        Multimap<String, String> saved = advanceTo(baseline, key);
+        Collection<String> token = entry.getValue().get(TOKEN_ATTRIBUTE);
+        if (saved != null && savedToken != null && !token.isEmpty()
+            && getToken(entry.getValue()).equals(savedToken)) {
+          unchanged.put(key, saved);
+        } else {
+          names.addAll(entry.getValue().get(NAME_ATTRIBUTE));
+        }
+      }
+      scanned += entries.size();
+
+      Map<String, Entry<String, Multimap<String, String>>> changed = Maps.newHashMap();
+      if (!names.isEmpty()) {
+        for (Entry<String, Multimap<String, String>> entry : fetcher.fetch(names)) {
+          for (String dn : entry.getValue().get(LdapHandler.DN_ATTRIBUTE)) {
+            changed.put(dn, entry);
+          }
+        }
+        fetched += changed.size();
+      }
+
+      List<Entry<String, Multimap<String, String>>> results = Lists.newArrayList();
+      for (Entry<String, Multimap<String, String>> entry : entries) {
+        String key = entry.getKey();
+        Multimap<String, String> value = unchanged.get(key);
+        if (value == null) {
+          Entry<String, Multimap<String, String>> fetchedEntry = null;
+          for (String dn : entry.getValue().get(LdapHandler.DN_ATTRIBUTE)) {
+            fetchedEntry = changed.get(dn);
+          }
+          // An entry that has gone, or whose key has changed, since the
+          // scan is left for the next traversal.
+          if (fetchedEntry == null || !Objects.equal(key, fetchedEntry.getKey())) {
+            continue;
+          }
+          value = fetchedEntry.getValue();
+        }
+        output.writeToken(key, entry.getValue());
+        results.add(Maps.immutableEntry(key, value));
+      }
+      return results.iterator();
+    }
+  }
+
+  /**
+   * Writes the results and tokens of a traversal to new files, which
+   * replace the old ones when the results are exhausted. If the files
+   * cannot be written, the results are still returned, and the previous
+   * files are kept.
+   */
+  private class Output {
+    private File baselineTemporary = null;
+    private File tokensTemporary = null;
+    private EntryFile.Writer baselineWriter = null;
+    private EntryFile.Writer tokensWriter = null;
+
+    public Output() {
+      try {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          throw new IOException("Unable to create directory " + directory);
+        }
+        baselineTemporary = File.createTempFile("baseline", ".tmp", directory);
+        baselineWriter = new EntryFile.Writer(baselineTemporary);
+        tokensTemporary = File.createTempFile("tokens", ".tmp", directory);
+        tokensWriter = new EntryFile.Writer(tokensTemporary);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to save the entries", e);
+        discard();
+      }
+    }
+
+    public void writeToken(String key, Multimap<String, String> scanned) {
+      if (tokensWriter != null) {
+        try {
+          tokensWriter.write(key, getToken(scanned));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to save the entries", e);
+          discard();
+        }
+      }
+    }
+
+    /**
+     * Passes the results through, writing them to the new baseline.
+     *
+     * @param readers the saved files being read, which are closed with the
+     *        results
+     */
+    public Iterator<Entry<String, Multimap<String, String>>> save(
+        final Iterator<Entry<String, Multimap<String, String>>> results, final long lastFull,
+        final EntryFile.Reader... readers) {
+      return new AbstractIterator<Entry<String, Multimap<String, String>>>() {
+        @Override
+        protected Entry<String, Multimap<String, String>> computeNext() {
+          Entry<String, Multimap<String, String>> entry;
+          try {
+            if (!results.hasNext()) {
+              closeReaders();
+              commit(lastFull);
+              return endOfData();
+            }
+            entry = results.next();
+          } catch (RuntimeException e) {
+            closeReaders();
+            discard();
+            throw e;
+          }
+          if (baselineWriter != null) {
+            try {
+              baselineWriter.write(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+              LOG.log(Level.WARNING, "Unable to save the entries", e);
+              discard();
+            }
+          }
+          return entry;
+        }
+
+        private void closeReaders() {
+          for (EntryFile.Reader reader : readers) {
+            reader.close();
+          }
+        }
+      };
+    }
+
+    private void commit(long lastFull) {
+      if (baselineWriter == null) {
+        return;
+      }
+      File stateFile = new File(directory, STATE_FILE);
+      File baselineFile = new File(directory, BASELINE_FILE);
+      File tokensFile = new File(directory, TOKENS_FILE);
+      try {
+        baselineWriter.close();
+        baselineWriter = null;
+        tokensWriter.close();
+        tokensWriter = null;
+        // Without a state file, the saved files are not used, so a failure
+        // part way through leads to a full traversal.
+        if (stateFile.exists() && !stateFile.delete()) {
+          throw new IOException("Unable to delete " + stateFile);
+        }
+        replace(baselineTemporary, baselineFile);
+        replace(tokensTemporary, tokensFile);
+        Properties state = new Properties();
+        state.setProperty(FINGERPRINT, fingerprint);
+        state.setProperty(LAST_FULL, Long.toString(lastFull));
+        OutputStream out = new FileOutputStream(stateFile);
+        try {
+          state.store(out, null);
+        } finally {
+          out.close();
+        }
+        LOG.fine("Saved the entries");
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to save the entries", e);
+        stateFile.delete();
+        discard();
+      }
+    }
+
+    private void replace(File temporary, File file) throws IOException {
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Unable to delete " + file);
+      }
+      if (!temporary.renameTo(file)) {
+        throw new IOException("Unable to rename " + temporary + " to " + file);
+      }
+    }
+
+    /** Discards the new files. */
+    private void discard() {
+      if (baselineWriter != null) {
+        baselineWriter.abort();
+        baselineWriter = null;
+      }
+      if (tokensWriter != null) {
+        tokensWriter.abort();
+        tokensWriter = null;
+      }
+      if (baselineTemporary != null) {
+        baselineTemporary.delete();
+        baselineTemporary = null;
+      }
+      if (tokensTemporary != null) {
+        tokensTemporary.delete();
+        tokensTemporary = null;
+      }
+    }
+  }
+}
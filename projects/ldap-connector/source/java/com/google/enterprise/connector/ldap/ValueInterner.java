@@ -0,0 +1,205 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one instance of each repeated attribute value across the entries
+ * of a traversal. Values such as objectClass, department or a manager's DN
+ * repeat across many entries, but each entry reads its own copy of them.
+ * <p>
+ * The values of the attributes given are always interned. The first
+ * {@link #SAMPLE_SIZE} values of each other attribute are shared through a
+ * candidate set of its own, and are only added to the table if at most
+ * half of them were new. Otherwise the candidates are dropped and the
+ * attribute is no longer interned, so that attributes with a value per
+ * entry, such as mail, take no room in the table. The table holds at most
+ * a fixed number of values, and is meant to be discarded at the end of the
+ * traversal. An interner is safe for use by several threads.
+ */
+public class ValueInterner {
+
+  /** The most values held, unless given. */
+  public static final int DEFAULT_MAX_VALUES = 50000;
+
+  /** The number of values of an attribute seen before deciding whether to intern it. */
+  static final int SAMPLE_SIZE = 1000;
+
+  /** Estimated bytes of a String and its char array, apart from the characters. */
+  private static final int STRING_OVERHEAD = 40;
+
+  /** The lookups and hits for one attribute. */
+  private static class Counts {
+    final boolean always;
+    final AtomicInteger lookups = new AtomicInteger();
+    final AtomicInteger hits = new AtomicInteger();
+    volatile boolean enabled = true;
+
+    /** The values seen while sampling, or null once the attribute is sampled. */
+    volatile ConcurrentMap<String, String> candidates;
+
+    Counts(boolean always) {
+      this.always = always;
+      if (!always) {
+        candidates = new ConcurrentHashMap<String, String>();
+      }
+    }
+  }
+
+  private final int maxValues;
+  private final Set<String> attributes;
+  private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final ConcurrentMap<String, Counts> counts = new ConcurrentHashMap<String, Counts>();
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong savedBytes = new AtomicLong();
+
+  /**
+   * @param maxValues the most values to hold; zero or less disables
+   *        interning
+   * @param attributes the lower-case names of attributes whose values are
+   *        always interned
+   */
+  public ValueInterner(int maxValues, Collection<String> attributes) {
+    this.maxValues = maxValues;
+    this.attributes = (attributes == null)
+        ? ImmutableSet.<String>of() : ImmutableSet.copyOf(attributes);
+  }
+
+  /**
+   * Returns the shared instance of a value, or the value itself if it is
+   * not interned.
+   *
+   * @param attribute the lower-case attribute name
+   * @param value the value
+   */
+  public String intern(String attribute, String value) {
+    if (maxValues <= 0) {
+      return value;
+    }
+    Counts attributeCounts = counts.get(attribute);
+    if (attributeCounts == null) {
+      Counts newCounts = new Counts(attributes.contains(attribute));
+      attributeCounts = counts.putIfAbsent(attribute, newCounts);
+      if (attributeCounts == null) {
+        attributeCounts = newCounts;
+      }
+    }
+    if (!attributeCounts.enabled) {
+      return value;
+    }
+
+    lookups.incrementAndGet();
+    int attributeLookups = attributeCounts.lookups.incrementAndGet();
+    ConcurrentMap<String, String> candidates = attributeCounts.candidates;
+    String shared = values.get(value);
+    if (shared == null) {
+      shared = (candidates == null) ? add(value) : candidates.putIfAbsent(value, value);
+    }
+    if (shared != null) {
+      hits.incrementAndGet();
+      attributeCounts.hits.incrementAndGet();
+      savedBytes.addAndGet(STRING_OVERHEAD + 2 * value.length());
+    } else {
+      shared = value;
+    }
+    if (candidates != null && attributeLookups == SAMPLE_SIZE) {
+      endSample(attributeCounts, candidates);
+    }
+    return shared;
+  }
+
+  /**
+   * Adds a value to the table, if there is room.
+   *
+   * @return the instance already in the table, or null if there was none
+   */
+  private String add(String value) {
+    if (size.get() >= maxValues) {
+      return null;
+    }
+    String shared = values.putIfAbsent(value, value);
+    if (shared == null) {
+      size.incrementAndGet();
+    }
+    return shared;
+  }
+
+  /**
+   * Decides whether to keep interning an attribute, once its sample is
+   * complete. Only the candidates of an attribute that is kept are added
+   * to the table. A candidate added by another thread during the decision
+   * may be dropped, which only means that it is not shared.
+   */
+  private void endSample(Counts attributeCounts, ConcurrentMap<String, String> candidates) {
+    if (2 * attributeCounts.hits.get() < SAMPLE_SIZE) {
+      attributeCounts.enabled = false;
+    } else {
+      for (String candidate : candidates.keySet()) {
+        add(candidate);
+      }
+    }
+    attributeCounts.candidates = null;
+  }
+
+  /** Returns whether the values of an attribute are still being interned. */
+  boolean isInterning(String attribute) {
+    Counts attributeCounts = counts.get(attribute);
+    return maxValues > 0 && (attributeCounts == null || attributeCounts.enabled);
+  }
+
+  /** Returns the number of values held. */
+  public int size() {
+    return size.get();
+  }
+
+  /** Returns the number of values looked up. */
+  public long getLookups() {
+    return lookups.get();
+  }
+
+  /** Returns the number of values that were replaced by a shared instance. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Returns the fraction of lookups that were hits, or zero if there were none. */
+  public double getHitRate() {
+    long total = lookups.get();
+    return (total == 0) ? 0 : (double) hits.get() / total;
+  }
+
+  /** Returns an estimate of the bytes of values that were shared instead of held. */
+  public long getSavedBytes() {
+    return savedBytes.get();
+  }
+
+  /** Describes the hit rate, for logging. */
+  @Override
+  public String toString() {
+    return String.format("%d of %d attribute values shared (%.1f%%), "
+        + "about %d KB saved; %d distinct values held", getHits(), getLookups(),
+        100 * getHitRate(), getSavedBytes() / 1024, size());
+  }
+}
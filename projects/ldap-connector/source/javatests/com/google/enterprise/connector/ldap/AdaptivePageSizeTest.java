@@ -0,0 +1,75 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+public class AdaptivePageSizeTest extends TestCase {
+
+  public void testGrowsWhenFast() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000);
+    pageSize.record(1000, 1000, 10, 1000 * 100, true);
+    assertEquals(2000, pageSize.get());
+    for (int i = 0; i < 10; i++) {
+      pageSize.record(pageSize.get(), pageSize.get(), 10, pageSize.get() * 100, true);
+    }
+    assertEquals(AdaptivePageSize.MAX_PAGE_SIZE, pageSize.get());
+  }
+
+  public void testShrinksWhenSlow() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000);
+    pageSize.record(1000, 1000, AdaptivePageSize.SLOW_PAGE_MILLIS + 1, 1000 * 100, true);
+    assertEquals(500, pageSize.get());
+    for (int i = 0; i < 10; i++) {
+      pageSize.record(pageSize.get(), pageSize.get(), 60000, pageSize.get() * 100, true);
+    }
+    assertEquals(AdaptivePageSize.MIN_PAGE_SIZE, pageSize.get());
+  }
+
+  public void testSteady() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000);
+    pageSize.record(1000, 1000, AdaptivePageSize.FAST_PAGE_MILLIS, 1000 * 100, true);
+    assertEquals(1000, pageSize.get());
+  }
+
+  public void testLastPageIgnored() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000);
+    pageSize.record(1000, 17, 10, 1700, false);
+    assertEquals(1000, pageSize.get());
+  }
+
+  public void testLearnsServerLimit() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000);
+    pageSize.record(1000, 500, 10, 500 * 100, true);
+    assertEquals(500, pageSize.get());
+    pageSize.record(500, 500, 10, 500 * 100, true);
+    assertEquals(500, pageSize.get());
+  }
+
+  public void testServerLimit() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(5000);
+    pageSize.setServerLimit(1000);
+    assertEquals(1000, pageSize.get());
+    pageSize.record(1000, 1000, 10, 1000 * 100, true);
+    assertEquals(1000, pageSize.get());
+  }
+
+  public void testLargeEntries() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000);
+    long charsPerEntry = AdaptivePageSize.MAX_PAGE_CHARS / 400;
+    pageSize.record(1000, 1000, 10, 1000 * charsPerEntry, true);
+    assertEquals(400, pageSize.get());
+  }
+}
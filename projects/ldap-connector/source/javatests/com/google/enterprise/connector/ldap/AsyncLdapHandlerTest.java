@@ -0,0 +1,170 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule.Scope;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+public class AsyncLdapHandlerTest extends TestCase {
+
+  /**
+   * An engine that answers each search from its own thread, with the
+   * entries that match the rule's filter or a partition of it.
+   */
+  private static class FakeEngine implements LdapEngine {
+    final List<String> filters = Lists.newArrayList();
+    final List<String> cns;
+    final boolean fail;
+    int cancelled = 0;
+
+    FakeEngine(List<String> cns, boolean fail) {
+      this.cns = cns;
+      this.fail = fail;
+    }
+
+    @Override
+    public Map<LdapConnectionError, Throwable> checkConnection() {
+      return ImmutableMap.of();
+    }
+
+    @Override
+    public synchronized Search search(Scope scope, final String filter, Set<String> attributes,
+        int pageSize, final SearchListener listener) {
+      filters.add(filter);
+      new Thread() {
+        @Override
+        public void run() {
+          for (String cn : cns) {
+            if (matches(filter, cn)) {
+              listener.onEntry("CN=" + cn + ",DC=example,DC=com", ImmutableMultimap.of(
+                  "cn", cn, "mail", cn + "@example.com", "secret", "x"));
+            }
+          }
+          if (fail) {
+            listener.onError(new IllegalStateException("fake failure"));
+          } else {
+            listener.onDone();
+          }
+        }
+      }.start();
+      return new Search() {
+        @Override
+        public void cancel() {
+          synchronized (FakeEngine.this) {
+            cancelled++;
+          }
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static boolean matches(String filter, String cn) {
+      if (filter.equals("(objectclass=person)")) {
+        return true;
+      }
+      boolean listed = filter.contains("(cn=" + cn.charAt(0) + "*)");
+      return filter.contains("(!") ? !listed : listed;
+    }
+  }
+
+  private static final List<String> CNS = ImmutableList.of("zed", "amy", "bob", "carl", "dan");
+
+  private AsyncLdapHandler makeHandler(FakeEngine engine, String schemaKey) {
+    AsyncLdapHandler handler = new AsyncLdapHandler(engine);
+    handler.setLdapConnectionSettings(null);
+    handler.setQueryParameters(new LdapRule(Scope.SUBTREE, "(objectclass=person)"),
+        ImmutableSet.of("CN", "mail", "dn"), schemaKey, 0);
+    return handler;
+  }
+
+  public void testSortedByKey() {
+    FakeEngine engine = new FakeEngine(CNS, false);
+    AsyncLdapHandler handler = makeHandler(engine, "cn");
+    List<String> keys = Lists.newArrayList();
+    Iterator<Entry<String, Multimap<String, String>>> it = handler.iterator();
+    while (it.hasNext()) {
+      Entry<String, Multimap<String, String>> entry = it.next();
+      keys.add(entry.getKey());
+      Multimap<String, String> person = entry.getValue();
+      assertEquals("cn=" + entry.getKey() + ",dc=example,dc=com",
+          person.get(LdapHandler.DN_ATTRIBUTE).iterator().next());
+      assertEquals(ImmutableList.of(entry.getKey() + "@example.com"), person.get("mail"));
+      assertFalse(person.containsKey("secret"));
+    }
+    assertEquals(ImmutableList.of("amy", "bob", "carl", "dan", "zed"), keys);
+    assertEquals(ImmutableMap.of(), handler.getErrors());
+  }
+
+  public void testDnKey() {
+    AsyncLdapHandler handler = makeHandler(new FakeEngine(CNS, false), "dn");
+    Map<String, Multimap<String, String>> results = handler.get();
+    assertEquals(5, results.size());
+    assertEquals("cn=amy,dc=example,dc=com", results.keySet().iterator().next());
+  }
+
+  public void testMissingKey() {
+    AsyncLdapHandler handler = makeHandler(new FakeEngine(CNS, false), "uid");
+    assertEquals(0, handler.get().size());
+  }
+
+  public void testPartitions() {
+    FakeEngine engine = new FakeEngine(CNS, false);
+    AsyncLdapHandler handler = makeHandler(engine, "cn");
+    handler.setPartitions(4);
+    List<String> keys = Lists.newArrayList(handler.get().keySet());
+    assertEquals(ImmutableList.of("amy", "bob", "carl", "dan", "zed"), keys);
+    assertEquals(PartitionFilters.split("(objectclass=person)", "cn", 4).size(),
+        engine.filters.size());
+  }
+
+  public void testMaxResults() {
+    FakeEngine engine = new FakeEngine(CNS, false);
+    AsyncLdapHandler handler = new AsyncLdapHandler(engine);
+    handler.setQueryParameters(new LdapRule(Scope.SUBTREE, "(objectclass=person)"),
+        null, "cn", 2);
+    assertEquals(2, handler.get().size());
+    assertEquals(1, engine.cancelled);
+  }
+
+  public void testError() {
+    FakeEngine engine = new FakeEngine(CNS, true);
+    AsyncLdapHandler handler = makeHandler(engine, "cn");
+    try {
+      handler.iterator();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      assertEquals("fake failure", expected.getMessage());
+    }
+    assertEquals(1, engine.cancelled);
+  }
+}
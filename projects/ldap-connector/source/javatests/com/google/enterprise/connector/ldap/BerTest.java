@@ -0,0 +1,116 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class BerTest extends TestCase {
+
+  private static void assertBytes(String expectedHex, byte[] actual) {
+    assertEquals(expectedHex, Ber.toHex(actual));
+  }
+
+  public void testInteger() {
+    assertBytes("020100", Ber.integer(0));
+    assertBytes("02017f", Ber.integer(127));
+    assertBytes("02020080", Ber.integer(128));
+    assertBytes("0201ff", Ber.integer(-1));
+    assertBytes("020180", Ber.integer(-128));
+    assertBytes("0202ff7f", Ber.integer(-129));
+    assertBytes("020480000000", Ber.integer(Integer.MIN_VALUE));
+  }
+
+  public void testIntegerRoundTrip() throws IOException {
+    long[] values = { 0, 1, -1, 255, 256, -256, Integer.MAX_VALUE, Long.MIN_VALUE,
+        Long.MAX_VALUE };
+    for (long value : values) {
+      assertEquals(value, new Ber.Decoder(Ber.integer(value)).readInteger());
+    }
+  }
+
+  public void testLongLength() throws IOException {
+    byte[] value = new byte[300];
+    Arrays.fill(value, (byte) 7);
+    byte[] encoded = Ber.octetString(value);
+    assertBytes("0482012c", Arrays.copyOf(encoded, 4));
+    assertTrue(Arrays.equals(value, new Ber.Decoder(encoded).readOctetString()));
+  }
+
+  public void testSequence() throws IOException {
+    byte[] encoded = Ber.sequence(Ber.bool(true), Ber.enumerated(3),
+        Ber.octetString(new byte[] { 1, 2 }));
+    assertBytes("300a" + "0101ff" + "0a0103" + "04020102", encoded);
+
+    Ber.Decoder sequence = new Ber.Decoder(encoded).readSequence();
+    assertEquals(Ber.BOOLEAN, sequence.peekTag());
+    assertTrue(sequence.readBoolean());
+    assertEquals(3, sequence.readEnumerated());
+    sequence.skip();
+    assertFalse(sequence.hasMore());
+    assertEquals(-1, sequence.peekTag());
+  }
+
+  public void testWrongTag() {
+    try {
+      new Ber.Decoder(Ber.integer(1)).readOctetString();
+      fail("Expected an exception");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testTruncated() {
+    byte[] encoded = Ber.octetString(new byte[] { 1, 2, 3 });
+    try {
+      new Ber.Decoder(Arrays.copyOf(encoded, encoded.length - 1)).readOctetString();
+      fail("Expected an exception");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testHex() {
+    byte[] bytes = { 0, 15, 16, (byte) 0xab, (byte) 0xff };
+    assertEquals("000f10abff", Ber.toHex(bytes));
+    assertTrue(Arrays.equals(bytes, Ber.fromHex("000f10abff")));
+    assertTrue(Arrays.equals(bytes, Ber.fromHex("000F10ABFF")));
+    try {
+      Ber.fromHex("0g");
+      fail("Expected an exception");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testString() throws IOException {
+    byte[] encoded = Ber.octetString("caf\u00e9");
+    assertBytes("0405636166c3a9", encoded);
+    assertEquals("caf\u00e9", new Ber.Decoder(encoded).readString());
+    assertBytes("800107", Ber.integer(0x80, 7));
+  }
+
+  public void testElementLength() throws IOException {
+    byte[] value = new byte[300];
+    byte[] encoded = Ber.concat(Ber.integer(0), Ber.octetString(value));
+    assertEquals(-1, Ber.elementLength(encoded, 0, 1));
+    assertEquals(3, Ber.elementLength(encoded, 0, 2));
+    assertEquals(-1, Ber.elementLength(encoded, 3, 3));
+    assertEquals(304, Ber.elementLength(encoded, 3, 4));
+
+    Ber.Decoder decoder = new Ber.Decoder(encoded, 3, encoded.length);
+    assertEquals(300, decoder.readOctetString().length);
+    assertFalse(decoder.hasMore());
+  }
+}
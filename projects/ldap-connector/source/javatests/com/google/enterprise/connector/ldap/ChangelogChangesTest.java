@@ -0,0 +1,178 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+public class ChangelogChangesTest extends TestCase {
+  private static final String BASE = "ou=people,dc=example,dc=com";
+
+  private ChangelogChanges changes;
+
+  @Override
+  protected void setUp() {
+    changes = new ChangelogChanges(BASE);
+  }
+
+  private static Attributes record(String targetDn, String changeType) {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put("targetDN", targetDn);
+    attributes.put("changeType", changeType);
+    return attributes;
+  }
+
+  private static Attributes rename(String targetDn, String newRdn, String newSuperior,
+      String deleteOldRdn) {
+    Attributes attributes = record(targetDn, (newSuperior == null) ? "modrdn" : "moddn");
+    attributes.put("newRDN", newRdn);
+    if (newSuperior != null) {
+      attributes.put("newSuperior", newSuperior);
+    }
+    if (deleteOldRdn != null) {
+      attributes.put("deleteOldRDN", deleteOldRdn);
+    }
+    return attributes;
+  }
+
+  private void check(List<String> expectedRead, ImmutableSet<String> expectedDeleted) {
+    ChangeSet changeSet = new ChangeSet("changelog:1");
+    assertEquals(expectedRead, changes.addDeleted(changeSet));
+    assertEquals(expectedDeleted, changeSet.getRemovedDns());
+  }
+
+  public void testModify() throws NamingException {
+    changes.add(record("cn=Alice,ou=People,dc=example,dc=com", "modify"));
+    changes.add(record("cn=Bob,ou=People,dc=example,dc=com", "add"));
+    check(ImmutableList.of("cn=Alice,ou=People,dc=example,dc=com",
+        "cn=Bob,ou=People,dc=example,dc=com"), ImmutableSet.<String>of());
+  }
+
+  public void testDelete() throws NamingException {
+    changes.add(record("cn=Alice,ou=People,dc=example,dc=com", "delete"));
+    check(ImmutableList.<String>of(), ImmutableSet.of("cn=alice," + BASE));
+  }
+
+  public void testModifyThenDelete() throws NamingException {
+    changes.add(record("cn=Alice,ou=People,dc=example,dc=com", "modify"));
+    changes.add(record("cn=Alice,ou=People,dc=example,dc=com", "delete"));
+    assertEquals(1, changes.size());
+    check(ImmutableList.<String>of(), ImmutableSet.of("cn=alice," + BASE));
+  }
+
+  public void testModrdn() throws NamingException {
+    changes.add(rename("cn=Alice,ou=People,dc=example,dc=com", "cn=Alicia", null, null));
+    check(ImmutableList.of("cn=Alicia,ou=People,dc=example,dc=com"),
+        ImmutableSet.of("cn=alice," + BASE));
+  }
+
+  public void testModrdnDeleteOldRdn() throws NamingException {
+    // The old RDN value only matters to the entry's attributes, which are
+    // read again, so the DNs are the same either way.
+    changes.add(rename("cn=Alice,ou=People,dc=example,dc=com", "cn=Alicia", null, "TRUE"));
+    changes.add(rename("cn=Bob,ou=People,dc=example,dc=com", "cn=Robert", null, "FALSE"));
+    check(ImmutableList.of("cn=Alicia,ou=People,dc=example,dc=com",
+        "cn=Robert,ou=People,dc=example,dc=com"),
+        ImmutableSet.of("cn=alice," + BASE, "cn=bob," + BASE));
+  }
+
+  public void testModdnNewSuperior() throws NamingException {
+    changes.add(rename("cn=Alice,ou=People,dc=example,dc=com", "cn=Alice",
+        "ou=Staff,ou=People,dc=example,dc=com", "1"));
+    check(ImmutableList.of("cn=Alice,ou=Staff,ou=People,dc=example,dc=com"),
+        ImmutableSet.of("cn=alice," + BASE));
+  }
+
+  public void testRenameThenModify() throws NamingException {
+    changes.add(rename("cn=Alice,ou=People,dc=example,dc=com", "cn=Alicia", null, "1"));
+    changes.add(record("cn=Alicia,ou=People,dc=example,dc=com", "modify"));
+    check(ImmutableList.of("cn=Alicia,ou=People,dc=example,dc=com"),
+        ImmutableSet.of("cn=alice," + BASE));
+  }
+
+  public void testRenameWithoutNewRdn() throws NamingException {
+    changes.add(record("cn=Alice,ou=People,dc=example,dc=com", "modrdn"));
+    check(ImmutableList.<String>of(), ImmutableSet.of("cn=alice," + BASE));
+  }
+
+  public void testOutsideBase() throws NamingException {
+    changes.add(record("cn=Admin,ou=Groups,dc=example,dc=com", "modify"));
+    changes.add(record("cn=Eve,dc=example,dc=com", "add"));
+    check(ImmutableList.<String>of(), ImmutableSet.<String>of());
+  }
+
+  public void testMoveIntoBase() throws NamingException {
+    changes.add(rename("cn=Carol,ou=Former,dc=example,dc=com", "cn=Carol",
+        "ou=People,dc=example,dc=com", "1"));
+    check(ImmutableList.of("cn=Carol,ou=People,dc=example,dc=com"),
+        ImmutableSet.of("cn=carol,ou=former,dc=example,dc=com"));
+  }
+
+  public void testMoveOutOfBase() throws NamingException {
+    changes.add(rename("cn=Carol,ou=People,dc=example,dc=com", "cn=Carol",
+        "ou=Former,dc=example,dc=com", "1"));
+    check(ImmutableList.<String>of(), ImmutableSet.of("cn=carol," + BASE));
+  }
+
+  public void testNoBase() throws NamingException {
+    changes = new ChangelogChanges("");
+    changes.add(record("cn=Eve,dc=example,dc=com", "modify"));
+    check(ImmutableList.of("cn=Eve,dc=example,dc=com"), ImmutableSet.<String>of());
+  }
+
+  public void testBinaryValues() throws Exception {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put("targetDN", "cn=J\u00fcrgen,ou=People,dc=example,dc=com".getBytes("UTF-8"));
+    attributes.put("changeType", "modify".getBytes("UTF-8"));
+    changes.add(attributes);
+    check(ImmutableList.of("cn=J\u00fcrgen,ou=People,dc=example,dc=com"),
+        ImmutableSet.<String>of());
+  }
+
+  public void testIncompleteRecord() throws NamingException {
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put("changeType", "delete");
+    changes.add(attributes);
+    assertEquals(0, changes.size());
+  }
+
+  public void testHasChangesSince() {
+    assertTrue(ChangelogChanges.hasChangesSince(100, 1, 150));
+    assertTrue(ChangelogChanges.hasChangesSince(100, 101, 150));
+    // No changes since the saved one.
+    assertTrue(ChangelogChanges.hasChangesSince(100, 1, 100));
+  }
+
+  public void testTrimmedChangelog() {
+    // The changes after 100 up to 119 are gone.
+    assertFalse(ChangelogChanges.hasChangesSince(100, 120, 150));
+    assertFalse(ChangelogChanges.hasChangesSince(100, 102, 150));
+  }
+
+  public void testResetServer() {
+    // The changelog has been recreated, and numbering started again.
+    assertFalse(ChangelogChanges.hasChangesSince(100, 1, 20));
+    assertFalse(ChangelogChanges.hasChangesSince(100, 1, 99));
+  }
+}
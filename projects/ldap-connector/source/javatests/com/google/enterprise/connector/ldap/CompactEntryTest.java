@@ -0,0 +1,124 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class CompactEntryTest extends TestCase {
+
+  private static Multimap<String, String> makeMultimap() {
+    Multimap<String, String> multimap = ArrayListMultimap.create();
+    multimap.put("dn", "cn=jane,dc=example,dc=com");
+    multimap.put("cn", "Jane");
+    multimap.put("objectclass", "top");
+    multimap.put("objectclass", "person");
+    multimap.put("mail", "jane@example.com");
+    return multimap;
+  }
+
+  public void testCopyOf() {
+    Multimap<String, String> multimap = makeMultimap();
+    CompactEntry entry = CompactEntry.copyOf(new CompactEntry.Names(), multimap);
+    assertEquals(multimap, entry);
+    assertEquals(entry, multimap);
+    assertEquals(multimap.hashCode(), entry.hashCode());
+    assertEquals(multimap.keySet(), entry.keySet());
+    assertEquals(multimap.keys(), entry.keys());
+    assertEquals(multimap.size(), entry.size());
+    assertEquals(ImmutableList.of("top", "person"), entry.get("objectclass"));
+    assertTrue(entry.get("missing").isEmpty());
+    assertTrue(entry.containsKey("cn"));
+    assertFalse(entry.containsKey("sn"));
+    assertTrue(entry.containsValue("Jane"));
+    assertTrue(entry.containsEntry("objectclass", "person"));
+    assertFalse(entry.containsEntry("cn", "person"));
+    assertEquals(ImmutableSet.copyOf(multimap.entries()), ImmutableSet.copyOf(entry.entries()));
+    assertEquals(multimap.asMap(), entry.asMap());
+    assertNull(entry.asMap().get("missing"));
+  }
+
+  public void testOrder() {
+    CompactEntry.Names names = new CompactEntry.Names(ImmutableList.of("z", "y"));
+    CompactEntry entry = new CompactEntry.Builder(names)
+        .put("b", "1").put("a", "2").put("b", "3").put("z", "4").put("a", "5").build();
+    assertEquals(ImmutableList.of("b", "a", "z"), Lists.newArrayList(entry.keySet()));
+    assertEquals(ImmutableList.of("1", "3", "2", "5", "4"), Lists.newArrayList(entry.values()));
+    assertEquals(ImmutableList.of(Maps.immutableEntry("b", "1"), Maps.immutableEntry("b", "3"),
+        Maps.immutableEntry("a", "2"), Maps.immutableEntry("a", "5"),
+        Maps.immutableEntry("z", "4")), Lists.newArrayList(entry.entries()));
+    assertEquals(ImmutableList.of("2", "5"), entry.get("a"));
+  }
+
+  public void testSharedNames() {
+    CompactEntry.Names names = new CompactEntry.Names();
+    CompactEntry first = CompactEntry.copyOf(names, makeMultimap());
+    CompactEntry second = CompactEntry.copyOf(names, makeMultimap());
+    assertEquals(first, second);
+    assertEquals(4, names.size());
+    assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+  }
+
+  public void testEmpty() {
+    CompactEntry entry = new CompactEntry.Builder(new CompactEntry.Names()).build();
+    assertTrue(entry.isEmpty());
+    assertEquals(ArrayListMultimap.create(), entry);
+    assertFalse(entry.entries().iterator().hasNext());
+  }
+
+  public void testLarge() {
+    CompactEntry.Builder builder = new CompactEntry.Builder(new CompactEntry.Names());
+    Multimap<String, String> multimap = ArrayListMultimap.create();
+    for (int i = 0; i < 1000; i++) {
+      builder.put("a" + (i % 37), "v" + i);
+      multimap.put("a" + (i % 37), "v" + i);
+    }
+    assertEquals(multimap, builder.build());
+  }
+
+  public void testReadOnly() {
+    CompactEntry entry = CompactEntry.copyOf(new CompactEntry.Names(), makeMultimap());
+    try {
+      entry.put("cn", "John");
+      fail("Expected an exception");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      entry.get("cn").add("John");
+      fail("Expected an exception");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      entry.keySet().remove("cn");
+      fail("Expected an exception");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      entry.values().clear();
+      fail("Expected an exception");
+    } catch (UnsupportedOperationException expected) {
+    }
+    List<String> values = entry.get("objectclass");
+    assertEquals(2, values.size());
+  }
+}
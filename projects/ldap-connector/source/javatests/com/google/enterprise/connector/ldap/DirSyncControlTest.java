@@ -0,0 +1,54 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class DirSyncControlTest extends TestCase {
+
+  public void testRequest() {
+    DirSyncControl control = new DirSyncControl(DirSyncControl.OBJECT_SECURITY, 0, null);
+    assertEquals(DirSyncControl.OID, control.getID());
+    assertTrue(control.isCritical());
+    assertEquals("3008020101020100" + "0400", Ber.toHex(control.getEncodedValue()));
+
+    control = new DirSyncControl(0, 1048576, new byte[] { 1, 2, 3 });
+    assertEquals("300d" + "020100" + "0203100000" + "0403010203",
+        Ber.toHex(control.getEncodedValue()));
+  }
+
+  public void testResponse() throws IOException {
+    byte[] cookie = { 0x4d, 0x53, 0x44, 0x53 };
+    DirSyncControl.Response response = DirSyncControl.Response.decode(
+        Ber.sequence(Ber.integer(1), Ber.integer(0), Ber.octetString(cookie)));
+    assertTrue(response.hasMoreResults());
+    assertTrue(Arrays.equals(cookie, response.getCookie()));
+
+    response = DirSyncControl.Response.decode(
+        Ber.sequence(Ber.integer(0), Ber.integer(0), Ber.octetString(cookie)));
+    assertFalse(response.hasMoreResults());
+  }
+
+  public void testInvalidResponse() {
+    try {
+      DirSyncControl.Response.decode(Ber.sequence(Ber.integer(0)));
+      fail("Expected an exception");
+    } catch (IOException expected) {
+    }
+  }
+}
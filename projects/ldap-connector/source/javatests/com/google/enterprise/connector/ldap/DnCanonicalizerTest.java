@@ -0,0 +1,123 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+
+import javax.naming.ldap.Rdn;
+
+public class DnCanonicalizerTest extends TestCase {
+  private static final String[] DNS = {
+      "",
+      "cn=user1,ou=people,dc=example,dc=com",
+      "CN=User1,OU=People,DC=Example,DC=Com",
+      "CN=User1, OU=People , DC=Example,DC=Com",
+      "cn=a/b,ou=x/y/z",
+      "CN=IDE,ou=TITLE",
+      "cn=Smith\\, John,ou=People",
+      "cn=Smith\\2C John,OU=People",
+      "cn=\\E6\\9D\\B1\\E4\\BA\\AC,ou=people",
+      "cn=café,ou=people",
+      "CN=ÉCOLE,ou=people",
+      "\"cn=Quoted\"",
+      "#zz",
+      " cn=Leading,ou=people",
+      "cn=Trailing,ou=people ",
+      "cn=trailing\\ ",
+      "cn=bad\\zz,ou=people",
+      "cn=bad\\",
+      "cn=tab\t",
+      "\tcn=tab",
+      "cn=a\rb",
+      "   ",
+  };
+
+  /** The canonicalization done before the fast path. */
+  private static String reference(String origDn) {
+    origDn = origDn.toLowerCase();
+    try {
+      return Rdn.unescapeValue(origDn).toString().replaceAll("/", "%2F");
+    } catch (IllegalArgumentException e) {
+      return origDn.replaceAll(" *, *", ",").replaceAll("/", "%2F");
+    }
+  }
+
+  public void testNull() {
+    assertNull(DnCanonicalizer.canonicalize(null));
+    assertNull(LdapHandler.canonicalDn(null));
+  }
+
+  public void testSameAsReference() {
+    for (String dn : DNS) {
+      assertEquals(dn, reference(dn), DnCanonicalizer.canonicalize(dn));
+      // Again, from the cache if the slow path was taken.
+      assertEquals(dn, reference(dn), DnCanonicalizer.canonicalize(dn));
+      assertEquals(dn, reference(dn), DnCanonicalizer.canonicalizeSlowly(dn));
+    }
+  }
+
+  public void testAllAsciiCharacters() {
+    for (char c = 0; c < 0x80; c++) {
+      String dn = "cn=a" + c + "b,ou=People";
+      assertEquals(Integer.toHexString(c), reference(dn), DnCanonicalizer.canonicalize(dn));
+      dn = c + "cn=a" + c;
+      assertEquals(Integer.toHexString(c), reference(dn), DnCanonicalizer.canonicalize(dn));
+    }
+  }
+
+  public void testFastPath() {
+    String dn = "cn=user1,ou=people,dc=example,dc=com";
+    assertSame(dn, DnCanonicalizer.canonicalizeAscii(dn));
+    assertEquals("cn=user1,ou=people", DnCanonicalizer.canonicalizeAscii("CN=User1,OU=People"));
+    assertEquals("cn=a%2Fb", DnCanonicalizer.canonicalizeAscii("cn=a/b"));
+    assertNull(DnCanonicalizer.canonicalizeAscii("cn=Smith\\, John"));
+    assertNull(DnCanonicalizer.canonicalizeAscii("cn=café"));
+    assertNull(DnCanonicalizer.canonicalizeAscii("#04024869"));
+    assertNull(DnCanonicalizer.canonicalizeAscii(" cn=a"));
+  }
+
+  public void testLongDn() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.append("OU=Unit/").append(i).append(',');
+    }
+    builder.append("DC=com");
+    String dn = builder.toString();
+    assertEquals(reference(dn), DnCanonicalizer.canonicalize(dn));
+  }
+
+  public void testTurkishLocale() {
+    Locale saved = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      String dn = "CN=IDE,OU=TITLE";
+      assertNull(DnCanonicalizer.canonicalizeAscii(dn));
+      assertEquals(reference(dn), DnCanonicalizer.canonicalize(dn));
+    } finally {
+      Locale.setDefault(saved);
+    }
+  }
+
+  public void testCacheIsBounded() {
+    for (int i = 0; i < DnCanonicalizer.CACHE_SIZE + 10; i++) {
+      String dn = "cn=User\\, " + i;
+      assertEquals(reference(dn), DnCanonicalizer.canonicalize(dn));
+    }
+    String dn = "cn=User\\, 0";
+    assertEquals(reference(dn), DnCanonicalizer.canonicalize(dn));
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A base class for tests of code that keeps entries in temporary files.
+ * Each test has a temporary directory, which does not yet exist when the
+ * test starts and is deleted along with its files after it.
+ */
+public abstract class EntryTestCase extends TestCase {
+
+  protected File directory;
+
+  /** A directory, and the number of full traversals of it. */
+  protected final SortedMap<String, Multimap<String, String>> entries =
+      new TreeMap<String, Multimap<String, String>>();
+  protected int fullTraversals = 0;
+
+  /** Returns the entries of the directory, in order. */
+  protected final Supplier<Iterator<Entry<String, Multimap<String, String>>>> full =
+      new Supplier<Iterator<Entry<String, Multimap<String, String>>>>() {
+        @Override
+        public Iterator<Entry<String, Multimap<String, String>>> get() {
+          fullTraversals++;
+          return new TreeMap<String, Multimap<String, String>>(entries).entrySet().iterator();
+        }
+      };
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile(getClass().getSimpleName(), ".dir");
+    // The code under test creates the directory.
+    assertTrue(directory.delete());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  protected static String getDn(String name) {
+    return "cn=" + name + ",ou=people,dc=example,dc=com";
+  }
+
+  /** Returns an entry with the given cn, and the given values. */
+  protected static Multimap<String, String> makePerson(String name, String... values) {
+    ImmutableMultimap.Builder<String, String> builder = ImmutableMultimap.builder();
+    builder.put(LdapHandler.DN_ATTRIBUTE, getDn(name));
+    builder.put("cn", name);
+    builder.putAll("value", values);
+    return builder.build();
+  }
+
+  /** Adds an entry to the directory. */
+  protected void addEntry(String name, String value) {
+    entries.put(name, makePerson(name, value));
+  }
+}
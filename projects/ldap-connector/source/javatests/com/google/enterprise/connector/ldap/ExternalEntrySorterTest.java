@@ -0,0 +1,87 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+public class ExternalEntrySorterTest extends EntryTestCase {
+
+  private void checkSorted(ExternalEntrySorter sorter,
+      Map<String, Multimap<String, String>> expected) {
+    String lastKey = null;
+    int count = 0;
+    for (Entry<String, Multimap<String, String>> entry : sorter) {
+      if (lastKey != null) {
+        assertTrue(entry.getKey(), entry.getKey().compareTo(lastKey) > 0);
+      }
+      assertEquals(expected.get(entry.getKey()), entry.getValue());
+      lastKey = entry.getKey();
+      count++;
+    }
+    assertEquals(expected.size(), count);
+  }
+
+  public void testInMemory() {
+    ExternalEntrySorter sorter = new ExternalEntrySorter(directory, 100);
+    Map<String, Multimap<String, String>> expected = Maps.newHashMap();
+    for (int i = 0; i < 50; i++) {
+      String key = "Employee" + (i * 7919 % 50);
+      expected.put(key, makePerson(key, "v" + i, "\u4e45\u4fdd\u7530 v" + i));
+      sorter.add(key, expected.get(key));
+    }
+    assertEquals(0, sorter.getRunCount());
+    checkSorted(sorter, expected);
+  }
+
+  public void testSpilled() {
+    ExternalEntrySorter sorter = new ExternalEntrySorter(directory, 7);
+    Map<String, Multimap<String, String>> expected = Maps.newHashMap();
+    Random random = new Random(42);
+    for (int i = 0; i < 500; i++) {
+      String key = "Employee" + random.nextInt(300);
+      expected.put(key, makePerson(key, "v" + i, "\u4e45\u4fdd\u7530 v" + i));
+      sorter.add(key, expected.get(key));
+    }
+    assertTrue(sorter.getRunCount() > 1);
+    assertEquals(sorter.getRunCount(), directory.listFiles().length);
+    checkSorted(sorter, expected);
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  public void testClose() {
+    ExternalEntrySorter sorter = new ExternalEntrySorter(directory, 2);
+    for (int i = 0; i < 10; i++) {
+      sorter.add("Employee" + i, makePerson("Employee" + i, "v"));
+    }
+    assertTrue(directory.listFiles().length > 0);
+    sorter.close();
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  public void testMissingDirectory() {
+    File subdirectory = new File(directory, "sort");
+    ExternalEntrySorter sorter = new ExternalEntrySorter(subdirectory, 1);
+    sorter.add("a", makePerson("a", "v"));
+    assertEquals(1, subdirectory.listFiles().length);
+    sorter.close();
+    assertTrue(subdirectory.delete());
+  }
+}
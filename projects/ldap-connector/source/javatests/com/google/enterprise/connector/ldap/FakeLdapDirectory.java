@@ -0,0 +1,370 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.ServerType;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.Name;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapName;
+
+/**
+ * A directory for testing the change sources without a server. Each
+ * search on a connection returns the next response queued by the test;
+ * a connection cannot be opened while no response is queued. Entries are
+ * keyed by their cn, which is taken from the first RDN of a result.
+ */
+class FakeLdapDirectory implements LdapDirectory {
+  static final String BASE = "ou=people,dc=example,dc=com";
+
+  /** A search made on a connection. */
+  static class Search {
+    final Name name;
+    final String filter;
+    final SearchControls controls;
+    final Control[] requestControls;
+
+    Search(Name name, String filter, SearchControls controls, Control[] requestControls) {
+      this.name = name;
+      this.filter = filter;
+      this.controls = controls;
+      this.requestControls = requestControls;
+    }
+  }
+
+  /** The results of a search, and the controls that end it. */
+  private static class Response {
+    final NamingEnumeration<SearchResult> results;
+    final Control[] controls;
+
+    Response(NamingEnumeration<SearchResult> results, Control[] controls) {
+      this.results = results;
+      this.controls = controls;
+    }
+  }
+
+  /** A search result with controls, as JNDI returns them. */
+  private static class ControlledResult extends SearchResult implements HasControls {
+    private static final long serialVersionUID = 1L;
+
+    private final Control[] controls;
+
+    ControlledResult(String dn, Attributes attributes, Control[] controls) {
+      super(dn, null, attributes);
+      setNameInNamespace(dn);
+      this.controls = controls;
+    }
+
+    @Override
+    public Control[] getControls() {
+      return controls;
+    }
+  }
+
+  /**
+   * Results that arrive while the search is open, as for a persistent
+   * search. {@link #hasMore} waits for the next result, the end of the
+   * search, or a lost connection.
+   */
+  static class Stream implements NamingEnumeration<SearchResult> {
+    private static final SearchResult END = new SearchResult(null, null, null);
+    private static final SearchResult LOST = new SearchResult(null, null, null);
+
+    private final BlockingQueue<SearchResult> queue = new LinkedBlockingQueue<SearchResult>();
+    private SearchResult next = null;
+
+    void add(SearchResult result) {
+      queue.add(result);
+    }
+
+    /** Ends the search normally. */
+    void end() {
+      queue.add(END);
+    }
+
+    /** Ends the search with a CommunicationException. */
+    void lose() {
+      queue.add(LOST);
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+      if (next == null) {
+        try {
+          next = queue.take();
+        } catch (InterruptedException e) {
+          throw new InterruptedNamingException();
+        }
+      }
+      if (next == LOST) {
+        throw new CommunicationException("connection lost");
+      }
+      return next != END;
+    }
+
+    @Override
+    public SearchResult next() throws NamingException {
+      hasMore();
+      SearchResult result = next;
+      next = null;
+      return result;
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private final BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+
+  /** The searches made on connections, in order. */
+  final List<Search> searches = Collections.synchronizedList(Lists.<Search>newArrayList());
+
+  /** The DNs read by {@link #fetchEntries}, in order. */
+  final List<String> fetched = Collections.synchronizedList(Lists.<String>newArrayList());
+
+  /** The attributes of the rootDSE. */
+  final Multimap<String, String> rootDse = ArrayListMultimap.create();
+
+  /** The entries that {@link #fetchEntries} finds, by canonical DN. */
+  final Map<String, Multimap<String, String>> entries = Maps.newHashMap();
+
+  private LdapRule rule = new LdapRule(LdapRule.Scope.SUBTREE, "(objectClass=person)");
+  private volatile int openConnections = 0;
+
+  /** Returns a search result with a cn taken from the DN's first RDN. */
+  static SearchResult result(String dn, Control... controls) throws NamingException {
+    Attributes attributes = new BasicAttributes(true);
+    LdapName name = new LdapName(dn);
+    String rdn = name.get(name.size() - 1);
+    if (rdn.toLowerCase().startsWith("cn=")) {
+      attributes.put("cn", rdn.substring(3));
+    }
+    return new ControlledResult(dn, attributes, controls);
+  }
+
+  /** Returns a control with the given encoded value. */
+  static Control control(String oid, byte[] value) {
+    return new BasicControl(oid, false, value);
+  }
+
+  /** Queues the response to the next search. */
+  void respond(NamingEnumeration<SearchResult> results, Control... controls) {
+    responses.add(new Response(results, controls));
+  }
+
+  /** Queues the response to the next search, with the given results. */
+  void respond(List<SearchResult> results, Control... controls) {
+    respond(enumerate(results), controls);
+  }
+
+  /** Adds an entry for {@link #fetchEntries} to find. */
+  void addEntry(String dn) throws NamingException {
+    Entry<String, Multimap<String, String>> entry = toEntry(result(dn));
+    entries.put(LdapHandler.canonicalDn(dn), entry.getValue());
+  }
+
+  /** Returns the number of connections that have not been closed. */
+  int getOpenConnections() {
+    return openConnections;
+  }
+
+  void setRule(LdapRule rule) {
+    this.rule = rule;
+  }
+
+  @Override
+  public ServerType getServerType() {
+    return ServerType.OPENLDAP;
+  }
+
+  @Override
+  public String getCanonicalBaseDn() {
+    return BASE;
+  }
+
+  @Override
+  public LdapRule getRule() {
+    return rule;
+  }
+
+  @Override
+  public SearchControls makeControls() {
+    SearchControls controls = new SearchControls();
+    controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    return controls;
+  }
+
+  @Override
+  public Multimap<String, String> readRootDse(String... attributeNames) {
+    return ArrayListMultimap.create(rootDse);
+  }
+
+  @Override
+  public EntrySearch search(String filter) {
+    final Iterator<Multimap<String, String>> it =
+        ImmutableList.copyOf(entries.values()).iterator();
+    class AllEntries extends AbstractIterator<Entry<String, Multimap<String, String>>>
+        implements EntrySearch {
+      @Override
+      protected Entry<String, Multimap<String, String>> computeNext() {
+        if (!it.hasNext()) {
+          return endOfData();
+        }
+        Multimap<String, String> entry = it.next();
+        return Maps.immutableEntry(LdapHandler.getFirst("cn", entry), entry);
+      }
+
+      @Override
+      public void close() {
+      }
+    }
+    return new AllEntries();
+  }
+
+  @Override
+  public List<Entry<String, Multimap<String, String>>> fetchEntries(Collection<String> dns) {
+    List<Entry<String, Multimap<String, String>>> found = Lists.newArrayList();
+    for (String dn : dns) {
+      fetched.add(dn);
+      Multimap<String, String> entry = entries.get(LdapHandler.canonicalDn(dn));
+      if (entry != null) {
+        found.add(Maps.immutableEntry(LdapHandler.getFirst("cn", entry), entry));
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public Entry<String, Multimap<String, String>> toEntry(SearchResult result)
+      throws NamingException {
+    Object cn = (result.getAttributes().get("cn") == null)
+        ? null : result.getAttributes().get("cn").get();
+    if (cn == null) {
+      return null;
+    }
+    Multimap<String, String> entry = ImmutableMultimap.of(
+        LdapHandler.DN_ATTRIBUTE, LdapHandler.canonicalDn(result.getNameInNamespace()),
+        "cn", cn.toString());
+    return Maps.immutableEntry(cn.toString(), entry);
+  }
+
+  @Override
+  public synchronized Connection connect(boolean useBaseDn) {
+    if (responses.isEmpty()) {
+      return null;
+    }
+    openConnections++;
+    return new Connection() {
+      private Control[] responseControls = null;
+      private boolean closed = false;
+
+      @Override
+      public NamingEnumeration<SearchResult> search(Name name, String filter,
+          SearchControls controls, Control... requestControls) throws NamingException {
+        searches.add(new Search(name, filter, controls, requestControls));
+        Response response = responses.poll();
+        if (response == null) {
+          throw new CommunicationException("no response queued");
+        }
+        responseControls = response.controls;
+        return response.results;
+      }
+
+      @Override
+      public Control[] getResponseControls() {
+        return responseControls;
+      }
+
+      @Override
+      public void close() {
+        synchronized (FakeLdapDirectory.this) {
+          if (!closed) {
+            closed = true;
+            openConnections--;
+          }
+        }
+      }
+    };
+  }
+
+  /** Returns an enumeration of the given results. */
+  private static NamingEnumeration<SearchResult> enumerate(List<SearchResult> results) {
+    final Iterator<SearchResult> it = results.iterator();
+    return new NamingEnumeration<SearchResult>() {
+      @Override
+      public boolean hasMore() {
+        return it.hasNext();
+      }
+
+      @Override
+      public SearchResult next() {
+        return it.next();
+      }
+
+      @Override
+      public boolean hasMoreElements() {
+        return it.hasNext();
+      }
+
+      @Override
+      public SearchResult nextElement() {
+        return it.next();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+}
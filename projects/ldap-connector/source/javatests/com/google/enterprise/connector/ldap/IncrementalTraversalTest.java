@@ -0,0 +1,163 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class IncrementalTraversalTest extends EntryTestCase {
+
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  /** A change source that returns the given changes, if any. */
+  private static class FakeChangeSource implements ChangeSource {
+    String position = "1";
+    ChangeSet changes = null;
+    String requested = null;
+
+    @Override
+    public String getPosition() {
+      return position;
+    }
+
+    @Override
+    public ChangeSet getChanges(String position, int maxChanges) {
+      requested = position;
+      return (changes == null || changes.size() > maxChanges) ? null : changes;
+    }
+  }
+
+  private void assertEntries(Map<String, Multimap<String, String>> expected,
+      List<Entry<String, Multimap<String, String>>> actual) {
+    assertEquals(Lists.newArrayList(expected.entrySet()), actual);
+  }
+
+  private IncrementalTraversal makeTraversal(String fingerprint, long reconcileMillis) {
+    return new IncrementalTraversal(directory, fingerprint, reconcileMillis, 100);
+  }
+
+  public void testChanges() {
+    addEntry("alice", "1");
+    addEntry("bob", "1");
+    addEntry("carol", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    IncrementalTraversal traversal = makeTraversal("config", DAY);
+
+    // The first traversal is a full one.
+    assertEntries(entries, Lists.newArrayList(traversal.traverse(source, full)));
+    assertEquals(1, fullTraversals);
+
+    // Bob changes, Carol is deleted, and Alice is renamed to Zoe.
+    source.changes = new ChangeSet("2");
+    source.changes.addChanged("bob", makePerson("bob", "2"));
+    source.changes.addDeleted(entries.get("carol").get(LdapHandler.DN_ATTRIBUTE)
+        .iterator().next());
+    Multimap<String, String> zoe = ImmutableMultimap.of(
+        LdapHandler.DN_ATTRIBUTE, entries.get("alice").get(LdapHandler.DN_ATTRIBUTE)
+            .iterator().next(),
+        "cn", "zoe",
+        "value", "1");
+    source.changes.addChanged("zoe", zoe);
+
+    SortedMap<String, Multimap<String, String>> expected =
+        new TreeMap<String, Multimap<String, String>>();
+    expected.put("bob", makePerson("bob", "2"));
+    expected.put("zoe", zoe);
+    assertEntries(expected, Lists.newArrayList(traversal.traverse(source, full)));
+    assertEquals("1", source.requested);
+    assertEquals(1, fullTraversals);
+
+    // The next changes are read from the new position.
+    source.changes = new ChangeSet("3");
+    assertEntries(expected, Lists.newArrayList(traversal.traverse(source, full)));
+    assertEquals("2", source.requested);
+    assertEquals(1, fullTraversals);
+  }
+
+  public void testChangesNotAvailable() {
+    addEntry("alice", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    IncrementalTraversal traversal = makeTraversal("config", DAY);
+    Lists.newArrayList(traversal.traverse(source, full));
+    addEntry("bob", "1");
+    assertEntries(entries, Lists.newArrayList(traversal.traverse(source, full)));
+    assertEquals(2, fullTraversals);
+  }
+
+  public void testTooManyChanges() {
+    addEntry("alice", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    Lists.newArrayList(makeTraversal("config", DAY).traverse(source, full));
+    source.changes = new ChangeSet("2");
+    source.changes.addChanged("bob", makePerson("bob", "1"));
+    source.changes.addChanged("carol", makePerson("carol", "1"));
+    Lists.newArrayList(new IncrementalTraversal(directory, "config", DAY, 1).traverse(source, full));
+    assertEquals(2, fullTraversals);
+  }
+
+  public void testConfigurationChanged() {
+    addEntry("alice", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    Lists.newArrayList(makeTraversal("config", DAY).traverse(source, full));
+    source.changes = new ChangeSet("2");
+    Lists.newArrayList(makeTraversal("other config", DAY).traverse(source, full));
+    assertEquals(2, fullTraversals);
+    assertNull(source.requested);
+  }
+
+  public void testReconciliation() {
+    addEntry("alice", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    Lists.newArrayList(makeTraversal("config", 0).traverse(source, full));
+    source.changes = new ChangeSet("2");
+    Lists.newArrayList(makeTraversal("config", 0).traverse(source, full));
+    assertEquals(2, fullTraversals);
+  }
+
+  public void testNoPosition() {
+    addEntry("alice", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    source.position = null;
+    IncrementalTraversal traversal = makeTraversal("config", DAY);
+    Lists.newArrayList(traversal.traverse(source, full));
+    source.changes = new ChangeSet("2");
+    Lists.newArrayList(traversal.traverse(source, full));
+    assertEquals(2, fullTraversals);
+  }
+
+  /** Nothing is saved until all of the results have been read. */
+  public void testIncompleteTraversal() {
+    addEntry("alice", "1");
+    addEntry("bob", "1");
+    FakeChangeSource source = new FakeChangeSource();
+    IncrementalTraversal traversal = makeTraversal("config", DAY);
+    Iterator<Entry<String, Multimap<String, String>>> results = traversal.traverse(source, full);
+    results.next();
+    assertFalse(new File(directory, IncrementalTraversal.STATE_FILE).exists());
+    source.changes = new ChangeSet("2");
+    Lists.newArrayList(traversal.traverse(source, full));
+    assertEquals(2, fullTraversals);
+    assertTrue(new File(directory, IncrementalTraversal.STATE_FILE).exists());
+  }
+}
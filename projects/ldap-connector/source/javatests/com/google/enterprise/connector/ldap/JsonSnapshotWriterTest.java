@@ -0,0 +1,199 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+
+public class JsonSnapshotWriterTest extends TestCase {
+
+  /** Builds the snapshot the way it was built before the writer. */
+  private static JsonDocument buildOld(String docid, Multimap<String, String> entry) {
+    Multimap<String, String> person = ArrayListMultimap.create(entry);
+    person.put(SpiConstants.PROPNAME_DOCID, docid);
+    person.put(SpiConstants.PROPNAME_LOCK, "true");
+    return JsonDocument.buildFromMultimap.apply(person);
+  }
+
+  private static void assertSame(String docid, Multimap<String, String> entry)
+      throws RepositoryException {
+    JsonDocument expected = buildOld(docid, entry);
+    JsonDocument actual = new JsonSnapshotWriter().write(docid, entry);
+    assertEquals(expected.toJson(), actual.toJson());
+    assertEquals(expected.getDocumentId(), actual.getDocumentId());
+    assertEquals(expected.getPropertyNames(), actual.getPropertyNames());
+    for (String name : expected.getPropertyNames()) {
+      assertEquals(name, getValues(expected, name), getValues(actual, name));
+    }
+  }
+
+  private static List<String> getValues(Document document, String name)
+      throws RepositoryException {
+    List<String> values = Lists.newArrayList();
+    Property property = document.findProperty(name);
+    Value value;
+    while ((value = property.nextValue()) != null) {
+      values.add(value.toString());
+    }
+    return values;
+  }
+
+  public void testSimple() throws RepositoryException {
+    Multimap<String, String> entry = ArrayListMultimap.create();
+    entry.put("dn", "cn=Jane Doe,ou=people,dc=example,dc=com");
+    entry.put("cn", "Jane Doe");
+    entry.put("mail", "jane@example.com");
+    entry.put("mail", "jdoe@example.com");
+    assertSame("636e3d4a616e65", entry);
+  }
+
+  public void testEscapes() throws RepositoryException {
+    Multimap<String, String> entry = ArrayListMultimap.create();
+    entry.put("description", "a \"quoted\" \\ back</slash> /\b\t\n\f\r\u0001");
+    entry.put("description", "\u007f\u0080\u009f é  €℀😀");
+    entry.put("empty", "");
+    assertSame("6162", entry);
+  }
+
+  public void testNullsAndLock() throws RepositoryException {
+    Multimap<String, String> entry = ArrayListMultimap.create();
+    entry.put("manager", null);
+    entry.put("manager", "cn=Boss");
+    entry.put(SpiConstants.PROPNAME_LOCK, "false");
+    entry.put(SpiConstants.PROPNAME_DOCID, "other");
+    assertSame("6162", entry);
+  }
+
+  public void testEveryCharacter() throws RepositoryException {
+    StringBuilder value = new StringBuilder();
+    for (char c = 1; c < 0xd800; c++) {
+      value.append(c);
+    }
+    Multimap<String, String> entry = ArrayListMultimap.create();
+    entry.put("value", value.toString());
+    entry.put("slash", "</</<a/");
+    assertSame("6162", entry);
+  }
+
+  public void testKeyOrder() throws RepositoryException {
+    Random random = new Random(42);
+    JsonSnapshotWriter writer = new JsonSnapshotWriter();
+    for (int i = 0; i < 200; i++) {
+      Multimap<String, String> entry = LinkedHashMultimap.create();
+      int keys = random.nextInt(60);
+      for (int j = 0; j < keys; j++) {
+        String key = Long.toString(random.nextLong() & 0xffffff, 36);
+        for (int k = random.nextInt(3); k >= 0; k--) {
+          entry.put(key, Integer.toString(random.nextInt(100)));
+        }
+      }
+      String docid = Integer.toHexString(i);
+      assertEquals(buildOld(docid, entry).toJson(), writer.write(docid, entry).toJson());
+    }
+  }
+
+  public void testCompactEntryKeyOrder() {
+    Random random = new Random(7);
+    JsonSnapshotWriter writer = new JsonSnapshotWriter();
+    CompactEntry.Names names = new CompactEntry.Names();
+    for (int i = 0; i < 200; i++) {
+      Multimap<String, String> entry = ArrayListMultimap.create();
+      CompactEntry.Builder builder = new CompactEntry.Builder(names);
+      int keys = random.nextInt(40);
+      for (int j = 0; j < keys; j++) {
+        String key = Long.toString(random.nextLong() & 0xffffff, 36);
+        String value = Integer.toString(random.nextInt(100));
+        entry.put(key, value);
+        builder.put(key, value);
+      }
+      String docid = Integer.toHexString(i);
+      assertEquals(buildOld(docid, entry).toJson(), writer.write(docid, builder.build()).toJson());
+    }
+  }
+
+  /**
+   * Returns keys that all have the same hash, so they share a HashMap
+   * bucket whatever the table size: "Aa" and "BB" have the same hash, and
+   * so does every string of the same length made of them.
+   */
+  private static List<String> collidingKeys(int count) {
+    List<String> keys = Lists.newArrayList();
+    for (int i = 0; keys.size() < count; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int bit = 4; bit >= 0; bit--) {
+        key.append(((i >> bit) & 1) == 0 ? "Aa" : "BB");
+      }
+      keys.add(key.toString());
+    }
+    return keys;
+  }
+
+  /**
+   * Checks entries on both sides of the sizes where the HashMaps resize,
+   * 12 and 24 keys with the default capacity, with the docid and lock
+   * added, and with keys that collide as well as ordinary ones.
+   */
+  public void testResizesAndCollisions() throws RepositoryException {
+    JsonSnapshotWriter writer = new JsonSnapshotWriter();
+    CompactEntry.Names names = new CompactEntry.Names();
+    List<String> colliding = collidingKeys(30);
+    for (int size = 1; size <= 30; size++) {
+      for (int collisions = 0; collisions <= size; collisions += 3) {
+        Multimap<String, String> entry = ArrayListMultimap.create();
+        CompactEntry.Builder builder = new CompactEntry.Builder(names);
+        for (int i = 0; i < size; i++) {
+          String key = (i < collisions) ? colliding.get(i) : "attribute" + i;
+          String value = key + "=" + i;
+          entry.put(key, value);
+          builder.put(key, value);
+          if (i % 4 == 0) {
+            entry.put(key, value + "b");
+            builder.put(key, value + "b");
+          }
+        }
+        assertEquals(size, entry.keySet().size());
+        String docid = Integer.toHexString(size * 100 + collisions);
+        String message = size + " keys, " + collisions + " colliding";
+        assertEquals(message, buildOld(docid, entry).toJson(),
+            writer.write(docid, entry).toJson());
+        assertEquals(message, buildOld(docid, entry).toJson(),
+            writer.write(docid, builder.build()).toJson());
+        assertSame(docid, entry);
+      }
+    }
+  }
+
+  public void testLdapPerson() {
+    Multimap<String, String> entry = ArrayListMultimap.create();
+    entry.put("cn", "Jane Doe");
+    JsonDocument document = new JsonSnapshotWriter().write("6162", entry);
+    LdapPerson person = new LdapPerson(document);
+    LdapPerson stored = new LdapPerson(person.toString());
+    assertEquals(stored.getDocumentId(), person.getDocumentId());
+    assertNull(person.getUpdate(stored));
+  }
+}
@@ -15,8 +15,12 @@
 package com.google.enterprise.connector.ldap;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.enterprise.connector.ldap.LdapConstants.ChangeSourceType;
 import com.google.enterprise.connector.ldap.LdapConstants.ConfigName;
+import com.google.enterprise.connector.ldap.LdapConstants.EngineType;
+import com.google.enterprise.connector.ldap.LdapConstants.ServerType;
 
 import junit.framework.TestCase;
 
@@ -62,6 +66,168 @@ public class LdapConnectorConfigTest extends TestCase {
     return arr.toString();
   }
 
+  public void testSortBufferSize() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people").
+        put(ConfigName.SORTBUFFER.toString(), "1234");
+    LdapConnectorConfig ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(1234, ldapConnectorConfig.getSortBufferSize());
+    assertNull(ldapConnectorConfig.getWorkdir());
+  }
+
+  public void testInvalidSortBufferSize() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people").
+        put(ConfigName.SORTBUFFER.toString(), "-1");
+    LdapConnectorConfig ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(ExternalEntrySorter.DEFAULT_BUFFER_SIZE,
+        ldapConnectorConfig.getSortBufferSize());
+  }
+
+  public void testServerSort() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    assertFalse(new LdapConnectorConfig(builder.build()).getServerSort());
+    builder.put(ConfigName.SERVERSORT.toString(), "true");
+    assertTrue(new LdapConnectorConfig(builder.build()).getServerSort());
+  }
+
+  public void testPageSize() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    LdapConnectorConfig ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(LdapHandler.DEFAULT_PAGE_SIZE, ldapConnectorConfig.getPageSize());
+    assertFalse(ldapConnectorConfig.getAdaptivePageSize());
+    assertFalse(ldapConnectorConfig.getPrefetch());
+    builder.
+        put(ConfigName.PAGESIZE.toString(), "500").
+        put(ConfigName.ADAPTIVEPAGESIZE.toString(), "true").
+        put(ConfigName.PREFETCH.toString(), "true");
+    ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(500, ldapConnectorConfig.getPageSize());
+    assertTrue(ldapConnectorConfig.getAdaptivePageSize());
+    assertTrue(ldapConnectorConfig.getPrefetch());
+  }
+
+  public void testIncremental() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    LdapConnectorConfig ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertFalse(ldapConnectorConfig.getIncremental());
+    assertEquals(LdapHandler.DEFAULT_RECONCILE_HOURS, ldapConnectorConfig.getReconcileHours());
+    assertEquals(ServerType.GENERIC, ldapConnectorConfig.getSettings().getServerType());
+    assertEquals(ChangeSourceType.HIGHWATERMARK, ldapConnectorConfig.getChangeSource());
+    assertFalse(ldapConnectorConfig.getTwoPhase());
+    builder.
+        put(ConfigName.INCREMENTAL.toString(), "true").
+        put(ConfigName.CHANGESOURCE.toString(), "DIRSYNC").
+        put(ConfigName.TWOPHASE.toString(), "true").
+        put(ConfigName.RECONCILEHOURS.toString(), "168").
+        put(ConfigName.SERVERTYPE.toString(), "ACTIVE_DIRECTORY");
+    ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertTrue(ldapConnectorConfig.getIncremental());
+    assertEquals(168, ldapConnectorConfig.getReconcileHours());
+    assertEquals(ServerType.ACTIVE_DIRECTORY, ldapConnectorConfig.getServerType());
+    assertEquals(ServerType.ACTIVE_DIRECTORY, ldapConnectorConfig.getSettings().getServerType());
+    assertEquals(ChangeSourceType.DIRSYNC, ldapConnectorConfig.getChangeSource());
+    assertTrue(ldapConnectorConfig.getTwoPhase());
+  }
+
+  public void testDomain() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    LdapConnectorConfig first = new LdapConnectorConfig(builder.build());
+    assertNull(first.getDomain());
+    assertNull(first.getSettings().getDomain());
+    builder.put(ConfigName.DOMAIN.toString(), "realistic-looking-domain.com");
+    LdapConnectorConfig second = new LdapConnectorConfig(builder.build());
+    assertEquals("realistic-looking-domain.com", second.getDomain());
+    assertEquals("realistic-looking-domain.com", second.getSettings().getDomain());
+    assertFalse(first.getSettings().equals(second.getSettings()));
+  }
+
+  public void testEngine() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    assertEquals(EngineType.JNDI, new LdapConnectorConfig(builder.build()).getEngine());
+    builder.put(ConfigName.ENGINE.toString(), "ASYNC");
+    assertEquals(EngineType.ASYNC, new LdapConnectorConfig(builder.build()).getEngine());
+  }
+
+  public void testIntern() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    LdapConnectorConfig ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(ValueInterner.DEFAULT_MAX_VALUES, ldapConnectorConfig.getInternValues());
+    assertTrue(ldapConnectorConfig.getInternAttributes().isEmpty());
+    builder.
+        put(ConfigName.INTERNVALUES.toString(), "0").
+        put(ConfigName.INTERNATTRIBUTES.toString(), "objectClass, manager department");
+    ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(0, ldapConnectorConfig.getInternValues());
+    assertEquals(ImmutableSet.of("objectclass", "manager", "department"),
+        ldapConnectorConfig.getInternAttributes());
+  }
+
+  public void testSettingsEquality() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people").
+        put(ConfigName.AUTHTYPE.toString(), "SIMPLE").
+        put(ConfigName.USERNAME.toString(), "cn=admin").
+        put(ConfigName.PASSWORD.toString(), "secret");
+    LdapConnectorConfig first = new LdapConnectorConfig(builder.build());
+    LdapConnectorConfig second = new LdapConnectorConfig(builder.build());
+    assertEquals(first.getSettings(), second.getSettings());
+    assertEquals(first.getSettings().hashCode(), second.getSettings().hashCode());
+
+    builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people").
+        put(ConfigName.AUTHTYPE.toString(), "SIMPLE").
+        put(ConfigName.USERNAME.toString(), "cn=admin").
+        put(ConfigName.PASSWORD.toString(), "other");
+    LdapConnectorConfig third = new LdapConnectorConfig(builder.build());
+    assertFalse(first.getSettings().equals(third.getSettings()));
+  }
+
+  public void testPartitions() {
+    Builder<String, String> builder = ImmutableMap.<String, String> builder();
+    builder.
+        put("hostname", "ldap.realistic-looking-domain.com").
+        put("filter", "ou=people");
+    LdapConnectorConfig ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(1, ldapConnectorConfig.getPartitions());
+    assertNull(ldapConnectorConfig.getPartitionAttribute());
+    assertFalse(ldapConnectorConfig.getSpreadReplicas());
+    builder.
+        put(ConfigName.PARTITIONS.toString(), "4").
+        put(ConfigName.PARTITIONATTRIBUTE.toString(), "uid").
+        put(ConfigName.SPREADREPLICAS.toString(), "true");
+    ldapConnectorConfig = new LdapConnectorConfig(builder.build());
+    assertEquals(4, ldapConnectorConfig.getPartitions());
+    assertEquals("uid", ldapConnectorConfig.getPartitionAttribute());
+    assertTrue(ldapConnectorConfig.getSpreadReplicas());
+  }
+
   public void testBigSchema() {
     Builder<String, String> builder = ImmutableMap.<String, String> builder();
     builder.
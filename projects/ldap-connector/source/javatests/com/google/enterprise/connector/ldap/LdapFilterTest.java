@@ -0,0 +1,70 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+public class LdapFilterTest extends TestCase {
+
+  private static void assertFilter(String expectedHex, String filter) {
+    assertEquals(expectedHex, Ber.toHex(LdapFilter.encode(filter)));
+  }
+
+  public void testEquality() {
+    assertFilter("a30b" + "04026f75" + "040570656f706c", "(ou=peopl)");
+    assertFilter("a30b" + "04026f75" + "040570656f706c", "ou=peopl");
+  }
+
+  public void testPresent() {
+    assertFilter("870b6f626a656374436c617373", "(objectClass=*)");
+  }
+
+  public void testOrdering() {
+    assertFilter("a506" + "040178" + "040131", "(x>=1)");
+    assertFilter("a606" + "040178" + "040131", "(x<=1)");
+    assertFilter("a806" + "040178" + "040131", "(x~=1)");
+  }
+
+  public void testComposite() {
+    assertFilter("a012" + "870161" + "a10d" + "a306040162040131" + "a203870163",
+        "(&(a=*)(|(b=1)(!(c=*))))");
+  }
+
+  public void testSubstrings() {
+    assertFilter("a40f" + "04026368" + "3009" + "80016a" + "810168" + "820173",
+        "(ch=j*h*s)");
+  }
+
+  public void testEscapes() {
+    assertFilter("a308" + "040163" + "0403" + "2a2829", "(c=\\2a\\28\\29)");
+  }
+
+  public void testExtensible() {
+    assertFilter("a91e" + "8116" + "312e322e3834302e3131333535362e312e342e383033"
+        + "820175" + "830133", "(u:1.2.840.113556.1.4.803:=3)");
+  }
+
+  public void testInvalid() {
+    String[] filters = { "(a=1", "(&(a=1)", "(a=\\2)", "(a=\\zz)", "(=1)", "(a=1))",
+        "" };
+    for (String filter : filters) {
+      try {
+        LdapFilter.encode(filter);
+        fail("Expected an exception for " + filter);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
@@ -79,6 +79,16 @@ public class LdapHandlerTest extends TestCase {
     assertNotNull(ldapContext);
   }
 
+  public void testConnectionReuse() {
+    LdapHandler handler = new LdapHandler();
+    handler.setLdapConnectionSettings(makeLdapConnectionSettings());
+    LdapContext ldapContext = handler.getLdapContext();
+    assertNotNull(ldapContext);
+    LdapHandler other = new LdapHandler();
+    other.setLdapConnectionSettings(makeLdapConnectionSettings());
+    assertSame(ldapContext, other.getLdapContext());
+  }
+
   private static LdapConnectionSettings makeLdapConnectionSettings() {
     Method method = Method.STANDARD;
     String hostname = TEST_PROPERTIES.getProperty("hostname");
@@ -118,6 +128,20 @@ public class LdapHandlerTest extends TestCase {
     }
   }
 
+  public void testBadConnectivity_partitions() {
+    LdapHandler handler = new LdapHandler();
+    handler.setLdapConnectionSettings(makeInvalidLdapConnectionSettings());
+    handler.setPartitions(4);
+    try {
+      handler.iterator();
+      fail("Expected an exception");
+    } catch (IllegalStateException expected) {
+      assertNotNull(expected.toString(), expected.getCause());
+      assertTrue(expected.getCause().toString(),
+          expected.getCause() instanceof UnknownHostException);
+    }
+  }
+
   private static LdapConnectionSettings makeInvalidLdapConnectionSettings() {
     Method method = Method.STANDARD;
     String hostname = "not-ldap.xyzzy.foo";
@@ -235,6 +259,41 @@ public class LdapHandlerTest extends TestCase {
     System.out.println("second time size: " + mapOfMultimaps.size());
   }
 
+  public void testIterator() {
+    Set<String> schema = getSchema();
+    LdapHandler ldapHandler = makeLdapHandlerForTesting(schema, 0);
+    checkIterator(ldapHandler);
+  }
+
+  public void testServerSortedIterator() {
+    Set<String> schema = getSchema();
+    LdapHandler ldapHandler = makeLdapHandlerForTesting(schema, 0);
+    ldapHandler.setServerSort(true);
+    checkIterator(ldapHandler);
+  }
+
+  public void testPrefetchingIterator() {
+    Set<String> schema = getSchema();
+    LdapHandler ldapHandler = makeLdapHandlerForTesting(schema, 0);
+    ldapHandler.setPrefetch(true);
+    checkIterator(ldapHandler);
+  }
+
+  private void checkIterator(LdapHandler ldapHandler) {
+    Map<String, Multimap<String, String>> mapOfMultimaps = ldapHandler.get();
+    String lastKey = null;
+    int count = 0;
+    for (Entry<String, Multimap<String, String>> entry : ldapHandler) {
+      if (lastKey != null) {
+        assertTrue(entry.getKey(), entry.getKey().compareTo(lastKey) > 0);
+      }
+      assertEquals(mapOfMultimaps.get(entry.getKey()), entry.getValue());
+      lastKey = entry.getKey();
+      count++;
+    }
+    assertEquals(mapOfMultimaps.size(), count);
+  }
+
   public void testLimitedQuery() {
     LdapHandler ldapHandler = makeLdapHandlerForTesting(null, 1);
     Map<String, Multimap<String, String>> mapOfMultimaps = ldapHandler.get();
@@ -14,9 +14,14 @@
 
 package com.google.enterprise.connector.ldap;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Multimap;
 import com.google.enterprise.connector.ldap.MockLdapHandlers.SimpleMockLdapHandler;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
 
 import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.Map.Entry;
 
 public class LdapJsonDocumentFetcherTest extends JsonDocumentFetcherTestCase {
   @Override
@@ -48,4 +53,39 @@ public class LdapJsonDocumentFetcherTest extends JsonDocumentFetcherTestCase {
       assertEquals(cleanLdapKey, encodedCleanKey);
     }
   }
+
+  public void testErrorDuringTraversal() {
+    final SimpleMockLdapHandler basicMock = MockLdapHandlers.getBasicMock();
+    Iterable<Entry<String, Multimap<String, String>>> failing =
+        new Iterable<Entry<String, Multimap<String, String>>>() {
+          @Override
+          public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+            Iterator<Entry<String, Multimap<String, String>>> error =
+                new Iterator<Entry<String, Multimap<String, String>>>() {
+                  @Override public boolean hasNext() {
+                    throw new IllegalStateException("second page failed");
+                  }
+                  @Override public Entry<String, Multimap<String, String>> next() {
+                    throw new IllegalStateException("second page failed");
+                  }
+                  @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                  }
+                };
+            return Iterators.concat(basicMock.iterator(), error);
+          }
+        };
+    JsonDocumentFetcher jdf = new LdapJsonDocumentFetcher(failing);
+    Iterator<JsonDocument> it = jdf.iterator();
+    int count = 0;
+    try {
+      while (it.hasNext()) {
+        it.next();
+        count++;
+      }
+      fail("Expected a SnapshotRepositoryRuntimeException");
+    } catch (SnapshotRepositoryRuntimeException expected) {
+    }
+    assertEquals(3, count);
+  }
 }
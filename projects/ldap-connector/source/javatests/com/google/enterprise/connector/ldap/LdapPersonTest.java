@@ -0,0 +1,101 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+public class LdapPersonTest extends TestCase {
+
+  /** Returns the docid the way it was found before the light scan. */
+  private static String parseDocumentId(String jsonString) throws Exception {
+    return new JSONObject(jsonString).getString(SpiConstants.PROPNAME_DOCID);
+  }
+
+  private static String snapshot(String key) {
+    Multimap<String, String> entry = ArrayListMultimap.create();
+    entry.put("dn", "cn=Jane Doe,ou=people,dc=example,dc=com");
+    entry.put("cn", "Jane Doe");
+    entry.put("description", "\"google:docid\":[\"fake\"]");
+    return new JsonSnapshotWriter().write(
+        LdapJsonDocumentFetcher.cleanLdapKey(key), entry).toJson();
+  }
+
+  public void testFindDocumentId() throws Exception {
+    String json = snapshot("cn=Jane Doe,ou=people,dc=example,dc=com");
+    String docid = LdapPerson.findDocumentId(json);
+    assertNotNull(docid);
+    assertEquals(parseDocumentId(json), docid);
+  }
+
+  public void testFindDocumentIdFallsBack() {
+    assertNull(LdapPerson.findDocumentId("{\"google:docid\": [\"6162\"]}"));
+    assertNull(LdapPerson.findDocumentId("{\"google:docid\":[\"a\\/b\"]}"));
+    assertNull(LdapPerson.findDocumentId("{\"google:docid\":[\"a\",\"b\"]}"));
+    assertNull(LdapPerson.findDocumentId("{\"google:docid\":\"6162\"}"));
+    assertNull(LdapPerson.findDocumentId("{\"cn\":[\"x\"]}"));
+    assertNull(LdapPerson.findDocumentId("[\"google:docid\":[\"6162\"]]"));
+    assertEquals("[\"6162\"]", LdapPerson.findDocumentId("{\"google:docid\":[\"6162\"]}"));
+  }
+
+  public void testSlowPath() throws Exception {
+    String json = "{ \"cn\" : [\"Jane\"], \"google:docid\" : [\"a\\u0062\"] }";
+    LdapPerson person = new LdapPerson(json);
+    assertEquals(parseDocumentId(json), person.getDocumentId());
+    assertEquals(json, person.toString());
+  }
+
+  public void testInvalid() {
+    try {
+      new LdapPerson("{\"cn\":[\"Jane\"]}");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new LdapPerson("not json");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testDocument() throws RepositoryException {
+    String json = snapshot("cn=Jane Doe");
+    LdapPerson person = new LdapPerson(json);
+    assertEquals(json, person.toString());
+    assertEquals(person.getDocumentId(),
+        Value.getSingleValueString(person.getDocument(), SpiConstants.PROPNAME_DOCID));
+    assertEquals("Jane Doe", Value.getSingleValueString(person.getDocument(), "cn"));
+    assertEquals("true",
+        Value.getSingleValueString(person.getDocument(), SpiConstants.PROPNAME_LOCK));
+  }
+
+  public void testGetUpdate() {
+    JsonDocument document = new JsonSnapshotWriter().write("6162",
+        ArrayListMultimap.<String, String>create());
+    LdapPerson current = new LdapPerson(document);
+    LdapPerson stored = new LdapPerson(current.toString());
+    assertEquals(current.getDocumentId(), stored.getDocumentId());
+    assertNull(current.getUpdate(stored));
+    assertSame(current, current.getUpdate(new LdapPerson(snapshot("6162"))));
+    assertSame(current, current.getUpdate(null));
+  }
+}
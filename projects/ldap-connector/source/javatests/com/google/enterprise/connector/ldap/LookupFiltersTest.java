@@ -0,0 +1,68 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class LookupFiltersTest extends TestCase {
+
+  public void testNoValues() {
+    assertEquals(0, LookupFilters.split("cn", ImmutableList.<String>of(), 10, 1000).size());
+  }
+
+  public void testOneFilter() {
+    List<String> filters = LookupFilters.split("cn", ImmutableList.of("a", "b"), 10, 1000);
+    assertEquals(ImmutableList.of("(|(cn=a)(cn=b))"), filters);
+  }
+
+  public void testMaxValues() {
+    List<String> filters =
+        LookupFilters.split("cn", ImmutableList.of("a", "b", "c", "d", "e"), 2, 1000);
+    assertEquals(ImmutableList.of("(|(cn=a)(cn=b))", "(|(cn=c)(cn=d))", "(|(cn=e))"), filters);
+  }
+
+  public void testMaxLength() {
+    List<String> values = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      values.add("value" + i);
+    }
+    List<String> filters = LookupFilters.split("cn", values, 1000, 50);
+    int terms = 0;
+    for (String filter : filters) {
+      assertTrue(filter, filter.length() <= 50);
+      terms += filter.split("\\(cn=").length - 1;
+    }
+    assertEquals(100, terms);
+  }
+
+  /** A value longer than the limit gets a filter of its own. */
+  public void testLongValue() {
+    String longValue = "cn=a very long distinguished name,ou=people,dc=example,dc=com";
+    List<String> filters =
+        LookupFilters.split("entryDN", ImmutableList.of("a", longValue, "b"), 10, 20);
+    assertEquals(ImmutableList.of("(|(entryDN=a))", "(|(entryDN=" + longValue + "))",
+        "(|(entryDN=b))"), filters);
+  }
+
+  public void testEscape() {
+    assertEquals("cn=Smith\\5c, John", LookupFilters.escape("cn=Smith\\, John"));
+    assertEquals("\\2a\\28x\\29\\00", LookupFilters.escape("*(x)\0"));
+  }
+}
@@ -26,6 +26,7 @@ import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
 import com.google.enterprise.connector.ldap.LdapHandler.LdapRule;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -72,6 +73,11 @@ public class MockLdapHandlers {
       return results;
     }
 
+    @Override
+    public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+      return get().entrySet().iterator();
+    }
+
     public Set<String> getSchemaKeys() {
       return schemaKeys;
     }
@@ -253,6 +259,11 @@ public class MockLdapHandlers {
       repoIndex++;
       return repository;
     }
+
+    @Override
+    public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+      return get().entrySet().iterator();
+    }
   }
 
   public static class MultiMockLdapHandler implements LdapHandlerI {
@@ -298,6 +309,11 @@ public class MockLdapHandlers {
       repoIndex++;
       return repository.get();
     }
+
+    @Override
+    public Iterator<Entry<String, Multimap<String, String>>> iterator() {
+      return get().entrySet().iterator();
+    }
   }
 
   public static MultiRepoMockLdapHandler getFullThenEmptyMock() {
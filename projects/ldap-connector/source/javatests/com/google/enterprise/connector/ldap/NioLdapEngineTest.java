@@ -0,0 +1,344 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.enterprise.connector.ldap.LdapConstants.AuthType;
+import com.google.enterprise.connector.ldap.LdapConstants.LdapConnectionError;
+import com.google.enterprise.connector.ldap.LdapConstants.Method;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapConnectionSettings;
+import com.google.enterprise.connector.ldap.LdapHandler.LdapRule.Scope;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NioLdapEngineTest extends TestCase {
+  private static final String BASE_DN = "dc=example,dc=com";
+  private static final String ERROR_BASE_DN = "ou=missing,dc=example,dc=com";
+  private static final String HANGING_BASE_DN = "ou=hanging,dc=example,dc=com";
+
+  private FakeServer server;
+  private NioLdapEngine engine;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new FakeServer(25);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (engine != null) {
+      engine.close();
+    }
+    server.close();
+  }
+
+  private NioLdapEngine makeEngine(String baseDn) {
+    LdapConnectionSettings settings = new LdapConnectionSettings(Method.STANDARD,
+        "127.0.0.1", server.getPort(), baseDn);
+    engine = new NioLdapEngine(settings, "5000");
+    return engine;
+  }
+
+  public void testPagedSearch() throws Exception {
+    makeEngine(BASE_DN);
+    assertTrue(engine.checkConnection().isEmpty());
+    Listener listener = new Listener();
+    engine.search(Scope.SUBTREE, "(objectClass=person)", Collections.singleton("cn"), 10,
+        listener);
+    listener.await();
+    assertNull(listener.error);
+    assertEquals(25, listener.dns.size());
+    assertEquals("cn=user0," + BASE_DN, listener.dns.get(0));
+    assertEquals(ImmutableList.of("user0", "User 0"),
+        Lists.newArrayList(listener.entries.get(0).get("cn")));
+    assertTrue(listener.entries.get(0).get("objectguid").isEmpty());
+    assertEquals(3, server.searches.get());
+  }
+
+  public void testSearchesShareConnection() throws Exception {
+    makeEngine(BASE_DN);
+    List<Listener> listeners = Lists.newArrayList();
+    for (int i = 0; i < NioLdapEngine.MAX_SEARCHES_PER_CONNECTION; i++) {
+      Listener listener = new Listener();
+      listeners.add(listener);
+      engine.search(Scope.SUBTREE, "(cn=user" + i + "*)", Collections.singleton("cn"), 7,
+          listener);
+    }
+    for (Listener listener : listeners) {
+      listener.await();
+      assertNull(listener.error);
+      assertEquals(25, listener.dns.size());
+    }
+    assertEquals(1, server.connections.get());
+  }
+
+  public void testErrorResult() throws Exception {
+    makeEngine(ERROR_BASE_DN);
+    Listener listener = new Listener();
+    engine.search(Scope.SUBTREE, "(cn=*)", Collections.singleton("cn"), 10, listener);
+    listener.await();
+    assertNotNull(listener.error);
+    assertTrue(listener.error.getMessage(), listener.error.getMessage().contains("32"));
+  }
+
+  public void testCancel() throws Exception {
+    makeEngine(HANGING_BASE_DN);
+    Listener listener = new Listener();
+    LdapEngine.Search search =
+        engine.search(Scope.SUBTREE, "(cn=*)", Collections.singleton("cn"), 10, listener);
+    assertTrue(server.hanging.await(5, TimeUnit.SECONDS));
+    search.cancel();
+    assertTrue(server.abandoned.await(5, TimeUnit.SECONDS));
+    assertEquals(1, listener.done.getCount());
+  }
+
+  public void testCloseFailsSearches() throws Exception {
+    makeEngine(HANGING_BASE_DN);
+    Listener listener = new Listener();
+    engine.search(Scope.SUBTREE, "(cn=*)", Collections.singleton("cn"), 10, listener);
+    assertTrue(server.hanging.await(5, TimeUnit.SECONDS));
+    engine.close();
+    listener.await();
+    assertNotNull(listener.error);
+    try {
+      engine.search(Scope.SUBTREE, "(cn=*)", null, 10, new Listener());
+      fail("Expected an exception");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testReadTimeout() throws Exception {
+    LdapConnectionSettings settings = new LdapConnectionSettings(Method.STANDARD,
+        "127.0.0.1", server.getPort(), HANGING_BASE_DN);
+    engine = new NioLdapEngine(settings, "200");
+    Listener listener = new Listener();
+    engine.search(Scope.SUBTREE, "(cn=*)", Collections.singleton("cn"), 10, listener);
+    listener.await();
+    assertNotNull(listener.error);
+    assertTrue(listener.error.getCause() instanceof SocketTimeoutException);
+  }
+
+  public void testBindFailure() {
+    LdapConnectionSettings settings = new LdapConnectionSettings(Method.STANDARD,
+        "127.0.0.1", server.getPort(), BASE_DN, AuthType.SIMPLE, "cn=admin", "wrong");
+    engine = new NioLdapEngine(settings, "5000");
+    assertTrue(engine.checkConnection().containsKey(LdapConnectionError.AuthenticationException));
+  }
+
+  public void testConnectionRefused() throws Exception {
+    ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    int port = socket.getLocalPort();
+    socket.close();
+    LdapConnectionSettings settings =
+        new LdapConnectionSettings(Method.STANDARD, "127.0.0.1", port, BASE_DN);
+    engine = new NioLdapEngine(settings, "5000");
+    assertTrue(engine.checkConnection().containsKey(LdapConnectionError.CommunicationException));
+    try {
+      engine.search(Scope.SUBTREE, "(cn=*)", null, 10, new Listener());
+      fail("Expected an exception");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private static class Listener implements LdapEngine.SearchListener {
+    final List<String> dns = Collections.synchronizedList(Lists.<String>newArrayList());
+    final List<Multimap<String, String>> entries =
+        Collections.synchronizedList(Lists.<Multimap<String, String>>newArrayList());
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile RuntimeException error = null;
+
+    @Override
+    public void onEntry(String dn, Multimap<String, String> attributes) {
+      dns.add(dn);
+      entries.add(attributes);
+    }
+
+    @Override
+    public void onDone() {
+      done.countDown();
+    }
+
+    @Override
+    public void onError(RuntimeException e) {
+      error = e;
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue("Timed out", done.await(10, TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * A server that answers binds, paged searches of a fixed directory, and
+   * abandons, one message at a time on each connection.
+   */
+  private static class FakeServer implements Runnable {
+    final ServerSocket serverSocket;
+    final int size;
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger searches = new AtomicInteger();
+    final CountDownLatch hanging = new CountDownLatch(1);
+    final CountDownLatch abandoned = new CountDownLatch(1);
+
+    FakeServer(int size) throws IOException {
+      this.size = size;
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      Thread thread = new Thread(this, "fake-ldap-server");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                serve(socket);
+              } catch (IOException e) {
+                // The client went away.
+              }
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // The server was closed.
+      }
+    }
+
+    private void serve(Socket socket) throws IOException {
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      byte[] buffer = new byte[64 * 1024];
+      int read = 0;
+      while (true) {
+        int length = Ber.elementLength(buffer, 0, read);
+        if (length < 0 || read < length) {
+          int count = in.read(buffer, read, buffer.length - read);
+          if (count < 0) {
+            socket.close();
+            return;
+          }
+          read += count;
+          continue;
+        }
+        Ber.Decoder message = new Ber.Decoder(buffer, 0, length).readSequence();
+        if (!handle(message, out)) {
+          socket.close();
+          return;
+        }
+        System.arraycopy(buffer, length, buffer, 0, read - length);
+        read -= length;
+      }
+    }
+
+    private boolean handle(Ber.Decoder message, OutputStream out) throws IOException {
+      int messageId = (int) message.readInteger();
+      switch (message.peekTag()) {
+        case NioLdapEngine.BIND_REQUEST: {
+          Ber.Decoder bind = message.readConstructed(NioLdapEngine.BIND_REQUEST);
+          bind.readInteger();
+          bind.readString();
+          String password = bind.readString(0x80);
+          int resultCode = password.equals("wrong") ? 49 : 0;
+          out.write(Ber.sequence(Ber.integer(messageId), Ber.element(
+              NioLdapEngine.BIND_RESPONSE, result(resultCode))));
+          return true;
+        }
+        case NioLdapEngine.SEARCH_REQUEST: {
+          searches.incrementAndGet();
+          String baseDn =
+              message.readConstructed(NioLdapEngine.SEARCH_REQUEST).readString();
+          Ber.Decoder control =
+              message.readConstructed(NioLdapEngine.CONTROLS).readSequence();
+          assertEquals(NioLdapEngine.PAGED_RESULTS_OID, control.readString());
+          Ber.Decoder paging = new Ber.Decoder(control.readOctetString()).readSequence();
+          int pageSize = (int) paging.readInteger();
+          String cookie = paging.readString();
+          if (baseDn.equals(HANGING_BASE_DN)) {
+            hanging.countDown();
+            return true;
+          }
+          if (baseDn.equals(ERROR_BASE_DN)) {
+            out.write(Ber.sequence(Ber.integer(messageId),
+                Ber.element(NioLdapEngine.SEARCH_RESULT_DONE, result(32))));
+            return true;
+          }
+          int start = cookie.length() == 0 ? 0 : Integer.parseInt(cookie);
+          int end = Math.min(size, start + pageSize);
+          for (int i = start; i < end; i++) {
+            out.write(Ber.sequence(Ber.integer(messageId), entry(i)));
+          }
+          String next = (end < size) ? Integer.toString(end) : "";
+          byte[] response = Ber.sequence(Ber.octetString(NioLdapEngine.PAGED_RESULTS_OID),
+              Ber.octetString(Ber.sequence(Ber.integer(0), Ber.octetString(next))));
+          out.write(Ber.sequence(Ber.integer(messageId),
+              Ber.element(NioLdapEngine.SEARCH_RESULT_DONE, result(0)),
+              Ber.element(NioLdapEngine.CONTROLS, response)));
+          return true;
+        }
+        case NioLdapEngine.ABANDON_REQUEST:
+          abandoned.countDown();
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private static byte[] result(int resultCode) {
+      return Ber.concat(Ber.enumerated(resultCode), Ber.octetString(""),
+          Ber.octetString(resultCode == 0 ? "" : "error " + resultCode));
+    }
+
+    private static byte[] entry(int i) {
+      byte[] cn = Ber.sequence(Ber.octetString("cn"), Ber.element(Ber.SET,
+          Ber.concat(Ber.octetString("user" + i), Ber.octetString("User " + i))));
+      byte[] guid = Ber.sequence(Ber.octetString("objectGUID"), Ber.element(Ber.SET,
+          Ber.octetString(new byte[] { (byte) 0xff, 0, (byte) i })));
+      return Ber.element(NioLdapEngine.SEARCH_RESULT_ENTRY, Ber.concat(
+          Ber.octetString("cn=user" + i + "," + BASE_DN), Ber.sequence(cn, guid)));
+    }
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class PartitionFiltersTest extends TestCase {
+
+  public void testOnePartition() {
+    List<String> filters = PartitionFilters.split("ou=people", "cn", 1);
+    assertEquals(1, filters.size());
+    assertEquals("ou=people", filters.get(0));
+  }
+
+  public void testTwoPartitions() {
+    List<String> filters = PartitionFilters.split("ou=people", "cn", 2);
+    assertEquals(2, filters.size());
+    String firstHalf = "(|(cn=0*)(cn=1*)(cn=2*)(cn=3*)(cn=4*)(cn=5*)(cn=6*)(cn=7*)(cn=8*)"
+        + "(cn=9*)(cn=a*)(cn=b*)(cn=c*)(cn=d*)(cn=e*)(cn=f*)(cn=g*)(cn=h*))";
+    assertEquals("(&(ou=people)" + firstHalf + ")", filters.get(0));
+    assertEquals("(&(ou=people)(!" + firstHalf + "))", filters.get(1));
+  }
+
+  public void testParenthesizedFilter() {
+    List<String> filters =
+        PartitionFilters.split(" (&(objectClass=person)(ou=people)) ", "uid", 3);
+    assertEquals(3, filters.size());
+    for (String filter : filters) {
+      assertTrue(filter, filter.startsWith("(&(&(objectClass=person)(ou=people))("));
+    }
+  }
+
+  public void testMaxPartitions() {
+    List<String> filters = PartitionFilters.split("ou=people", "cn", 1000);
+    assertEquals(PartitionFilters.MAX_PARTITIONS, filters.size());
+    assertEquals("(&(ou=people)(cn=0*))", filters.get(0));
+    assertEquals("(&(ou=people)(cn=y*))", filters.get(filters.size() - 2));
+    String last = filters.get(filters.size() - 1);
+    assertTrue(last, last.startsWith("(&(ou=people)(!(|(cn=0*)"));
+    assertTrue(last, last.endsWith("(cn=y*))))"));
+  }
+
+  /** Every leading character is in exactly one partition. */
+  public void testDisjoint() {
+    for (int count = 2; count <= PartitionFilters.MAX_PARTITIONS; count++) {
+      List<String> filters = PartitionFilters.split("ou=people", "cn", count);
+      String last = filters.get(count - 1);
+      for (char c : PartitionFilters.LEADING_CHARACTERS.toCharArray()) {
+        String term = "(cn=" + c + "*)";
+        int matches = 0;
+        for (String filter : filters.subList(0, count - 1)) {
+          if (filter.contains(term)) {
+            matches++;
+          }
+        }
+        if (!last.contains(term)) {
+          matches++;
+        }
+        assertEquals(count + " " + c, 1, matches);
+      }
+    }
+  }
+}
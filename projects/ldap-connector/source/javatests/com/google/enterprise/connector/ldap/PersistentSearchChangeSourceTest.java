@@ -0,0 +1,235 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+
+public class PersistentSearchChangeSourceTest extends TestCase {
+  private static final String BASE = FakeLdapDirectory.BASE;
+  private static final long IDLE_MILLIS = 60 * 60 * 1000L;
+  private static final long WAIT_MILLIS = 10 * 1000L;
+
+  private FakeLdapDirectory directory;
+  private PersistentSearchChangeSource source;
+
+  @Override
+  protected void setUp() {
+    directory = new FakeLdapDirectory();
+    source = new PersistentSearchChangeSource(directory, "fingerprint", IDLE_MILLIS);
+  }
+
+  @Override
+  protected void tearDown() {
+    source.stop();
+  }
+
+  /** Returns a change notification for the entry with the given cn. */
+  private static SearchResult notification(String cn, int changeType, String previousDn)
+      throws NamingException {
+    byte[] value = (previousDn == null)
+        ? Ber.sequence(Ber.enumerated(changeType))
+        : Ber.sequence(Ber.enumerated(changeType), Ber.octetString(previousDn));
+    return FakeLdapDirectory.result("cn=" + cn + "," + BASE,
+        FakeLdapDirectory.control(PersistentSearchControl.ENTRY_CHANGE_OID, value));
+  }
+
+  /** Starts the listener on the given search, and returns its position. */
+  private String start(FakeLdapDirectory.Stream stream) {
+    directory.respond(stream);
+    source.start();
+    String position = source.getPosition();
+    assertNotNull(position);
+    assertTrue(position, position.startsWith("psearch:"));
+    assertTrue(position, position.endsWith(":0"));
+    return position;
+  }
+
+  private static String session(String position) {
+    return position.substring(0, position.lastIndexOf(':'));
+  }
+
+  /**
+   * Waits until the given number of notifications have been received since
+   * a position. The count carries on across sessions.
+   */
+  private String waitFor(String position, int more) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    long count = Long.parseLong(position.substring(position.lastIndexOf(':') + 1));
+    String expected = session(position) + ":" + (count + more);
+    String current;
+    while (!expected.equals(current = source.getPosition())) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Expected " + expected + ", but the position is " + current);
+      }
+      Thread.sleep(10);
+    }
+    return current;
+  }
+
+  /** Waits until the listener has reconnected, and returns its position. */
+  private String waitForNewSession(String position) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    String current;
+    while ((current = source.getPosition()) == null
+        || session(current).equals(session(position))) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("The listener has not reconnected");
+      }
+      Thread.sleep(10);
+    }
+    return current;
+  }
+
+  public void testRequest() throws InterruptedException {
+    start(new FakeLdapDirectory.Stream());
+    // The session starts just before the search is sent.
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (directory.searches.isEmpty()) {
+      assertTrue("No search was sent", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    FakeLdapDirectory.Search search = directory.searches.get(0);
+    assertEquals(directory.getRule().getFilter(), search.filter);
+    assertEquals(ImmutableList.of("1.1"),
+        Arrays.asList(search.controls.getReturningAttributes()));
+    Control request = search.requestControls[0];
+    assertEquals(PersistentSearchControl.OID, request.getID());
+    assertTrue(Arrays.equals(
+        PersistentSearchControl.encode(PersistentSearchControl.ALL, true, true),
+        request.getEncodedValue()));
+  }
+
+  public void testChanges() throws Exception {
+    FakeLdapDirectory.Stream stream = new FakeLdapDirectory.Stream();
+    String position = start(stream);
+    directory.addEntry("cn=Alice," + BASE);
+    directory.addEntry("cn=Bob," + BASE);
+    stream.add(notification("Alice", PersistentSearchControl.MODIFY, null));
+    stream.add(notification("Bob", PersistentSearchControl.ADD, null));
+    stream.add(notification("Carol", PersistentSearchControl.DELETE, null));
+    String current = waitFor(position, 3);
+
+    ChangeSet changes = source.getChanges(position, 10);
+    assertEquals(current, changes.getPosition());
+    assertEquals(ImmutableSet.of("Alice", "Bob"), changes.getChanged().keySet());
+    assertEquals(ImmutableSet.of("cn=alice," + BASE, "cn=bob," + BASE, "cn=carol," + BASE),
+        changes.getRemovedDns());
+  }
+
+  public void testRename() throws Exception {
+    FakeLdapDirectory.Stream stream = new FakeLdapDirectory.Stream();
+    String position = start(stream);
+    directory.addEntry("cn=Alicia," + BASE);
+    stream.add(notification("Alicia", PersistentSearchControl.MODDN, "cn=Alice," + BASE));
+    waitFor(position, 1);
+
+    ChangeSet changes = source.getChanges(position, 10);
+    assertEquals(ImmutableSet.of("Alicia"), changes.getChanged().keySet());
+    assertEquals(ImmutableSet.of("cn=alice," + BASE, "cn=alicia," + BASE),
+        changes.getRemovedDns());
+  }
+
+  public void testCountPosition() throws Exception {
+    FakeLdapDirectory.Stream stream = new FakeLdapDirectory.Stream();
+    String position = start(stream);
+    directory.addEntry("cn=Alice," + BASE);
+    directory.addEntry("cn=Bob," + BASE);
+    stream.add(notification("Alice", PersistentSearchControl.MODIFY, null));
+    String first = waitFor(position, 1);
+    stream.add(notification("Bob", PersistentSearchControl.MODIFY, null));
+    String second = waitFor(first, 1);
+
+    // Only the notifications after the position are read.
+    ChangeSet changes = source.getChanges(first, 10);
+    assertEquals(second, changes.getPosition());
+    assertEquals(ImmutableSet.of("Bob"), changes.getChanged().keySet());
+    assertEquals(ImmutableList.of("cn=Bob," + BASE), directory.fetched);
+
+    changes = source.getChanges(second, 10);
+    assertEquals(second, changes.getPosition());
+    assertEquals(0, changes.size());
+  }
+
+  public void testTooManyChanges() throws Exception {
+    FakeLdapDirectory.Stream stream = new FakeLdapDirectory.Stream();
+    String position = start(stream);
+    stream.add(notification("Alice", PersistentSearchControl.DELETE, null));
+    stream.add(notification("Bob", PersistentSearchControl.DELETE, null));
+    waitFor(position, 2);
+    assertNull(source.getChanges(position, 1));
+  }
+
+  public void testReconnectAfterLostConnection() throws Exception {
+    FakeLdapDirectory.Stream first = new FakeLdapDirectory.Stream();
+    String position = start(first);
+    first.add(notification("Alice", PersistentSearchControl.DELETE, null));
+    waitFor(position, 1);
+
+    FakeLdapDirectory.Stream second = new FakeLdapDirectory.Stream();
+    directory.respond(second);
+    first.lose();
+    String restarted = waitForNewSession(position);
+
+    // Changes may have been missed while reconnecting, so a position from
+    // the first session leads to a full traversal.
+    assertNull(source.getChanges(position, 10));
+
+    second.add(notification("Bob", PersistentSearchControl.DELETE, null));
+    waitFor(restarted, 1);
+    assertEquals(2, directory.searches.size());
+    assertEquals(1, directory.getOpenConnections());
+    ChangeSet changes = source.getChanges(restarted, 10);
+    assertEquals(ImmutableSet.of("cn=bob," + BASE), changes.getRemovedDns());
+  }
+
+  public void testReconnectAfterSearchEnds() throws Exception {
+    FakeLdapDirectory.Stream first = new FakeLdapDirectory.Stream();
+    String position = start(first);
+    directory.respond(new FakeLdapDirectory.Stream());
+    first.end();
+    String restarted = waitForNewSession(position);
+    assertNull(source.getChanges(position, 10));
+    assertNotNull(source.getChanges(restarted, 10));
+  }
+
+  public void testStop() throws Exception {
+    start(new FakeLdapDirectory.Stream());
+    source.stop();
+    assertTrue(source.isStopped());
+    assertNull(source.getPosition());
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (directory.getOpenConnections() > 0) {
+      assertTrue("The search was not closed", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  public void testOtherPosition() {
+    start(new FakeLdapDirectory.Stream());
+    assertNull(source.getChanges("changelog:12", 10));
+    assertNull(source.getChanges("psearch:12", 10));
+    assertNull(source.getChanges("psearch:x:1", 10));
+  }
+}
@@ -0,0 +1,47 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class PersistentSearchControlTest extends TestCase {
+
+  public void testRequest() {
+    PersistentSearchControl control =
+        new PersistentSearchControl(PersistentSearchControl.ALL, true, true);
+    assertEquals(PersistentSearchControl.OID, control.getID());
+    assertTrue(control.isCritical());
+    assertEquals("3009" + "02010f" + "0101ff" + "0101ff", Ber.toHex(control.getEncodedValue()));
+
+    control = new PersistentSearchControl(PersistentSearchControl.DELETE, false, true);
+    assertEquals("3009" + "020102" + "010100" + "0101ff", Ber.toHex(control.getEncodedValue()));
+  }
+
+  public void testEntryChange() throws IOException {
+    PersistentSearchControl.EntryChange change = PersistentSearchControl.EntryChange.decode(
+        Ber.sequence(Ber.enumerated(PersistentSearchControl.MODIFY)));
+    assertEquals(PersistentSearchControl.MODIFY, change.getChangeType());
+    assertNull(change.getPreviousDn());
+
+    change = PersistentSearchControl.EntryChange.decode(Ber.sequence(
+        Ber.enumerated(PersistentSearchControl.MODDN),
+        Ber.octetString("cn=old,ou=people".getBytes("UTF-8")),
+        Ber.integer(42)));
+    assertEquals(PersistentSearchControl.MODDN, change.getChangeType());
+    assertEquals("cn=old,ou=people", change.getPreviousDn());
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PrefetchingIteratorTest extends TestCase {
+
+  private static List<Integer> drain(Iterator<Integer> iterator) {
+    List<Integer> result = Lists.newArrayList();
+    while (iterator.hasNext()) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
+  public void testOrder() {
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      expected.add(i);
+    }
+    PrefetchingIterator<Integer> iterator =
+        new PrefetchingIterator<Integer>(expected.iterator(), 7, "test");
+    assertEquals(expected, drain(iterator));
+  }
+
+  public void testEmpty() {
+    PrefetchingIterator<Integer> iterator = new PrefetchingIterator<Integer>(
+        ImmutableList.<Integer>of().iterator(), 7, "test");
+    assertFalse(iterator.hasNext());
+  }
+
+  public void testError() {
+    Iterator<Integer> source = new AbstractIterator<Integer>() {
+      private int count = 0;
+
+      @Override
+      protected Integer computeNext() {
+        if (count == 3) {
+          throw new IllegalStateException("source failed");
+        }
+        return count++;
+      }
+    };
+    PrefetchingIterator<Integer> iterator = new PrefetchingIterator<Integer>(source, 2, "test");
+    assertEquals(0, iterator.next().intValue());
+    assertEquals(1, iterator.next().intValue());
+    assertEquals(2, iterator.next().intValue());
+    try {
+      iterator.hasNext();
+      fail("Expected an exception");
+    } catch (IllegalStateException expected) {
+      assertEquals("source failed", expected.getMessage());
+    }
+  }
+
+  /** The source is read ahead, but by no more than the capacity. */
+  public void testReadAhead() throws InterruptedException {
+    final CountDownLatch read = new CountDownLatch(4);
+    Iterator<Integer> source = new AbstractIterator<Integer>() {
+      private int count = 0;
+
+      @Override
+      protected Integer computeNext() {
+        read.countDown();
+        return count++;
+      }
+    };
+    PrefetchingIterator<Integer> iterator = new PrefetchingIterator<Integer>(source, 2, "test");
+    assertEquals(0, iterator.next().intValue());
+    // One element taken, two buffered, and one waiting to be buffered.
+    assertTrue(read.await(10, TimeUnit.SECONDS));
+    iterator.close();
+    assertFalse(iterator.hasNext());
+  }
+}
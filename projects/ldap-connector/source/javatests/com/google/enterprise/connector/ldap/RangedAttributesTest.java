@@ -0,0 +1,153 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+public class RangedAttributesTest extends TestCase {
+
+  public void testParse() {
+    RangedAttributes.Range range = RangedAttributes.parse("member;range=0-1499");
+    assertEquals("member", range.name);
+    assertEquals(0, range.low);
+    assertEquals(1499, range.high);
+    assertFalse(range.isLast());
+    assertEquals("member;range=1500-*", range.next());
+
+    range = RangedAttributes.parse("member;range=1500-*");
+    assertEquals("member", range.name);
+    assertTrue(range.isLast());
+    assertEquals("member;range=1500-*", range.toString());
+
+    range = RangedAttributes.parse("member;range=0-9;binary");
+    assertEquals("member;binary", range.name);
+  }
+
+  public void testParseInvalid() {
+    String[] ids = { "member", "member;range=", "member;range=5", "member;range=a-b",
+        "member;range=10-5", "member;range=-1-*" };
+    for (String id : ids) {
+      assertNull(id, RangedAttributes.parse(id));
+    }
+  }
+
+  /** Returns the values of attributes in ranges of a fixed size. */
+  private static class FakeReader implements RangedAttributes.Reader {
+    private final int rangeSize;
+    private final String[] names;
+    private final int[] sizes;
+    final List<List<String>> requests = Lists.newArrayList();
+
+    FakeReader(int rangeSize, String[] names, int[] sizes) {
+      this.rangeSize = rangeSize;
+      this.names = names;
+      this.sizes = sizes;
+    }
+
+    /** Returns the first range of the values, as the search would. */
+    Attributes first() {
+      Attributes attributes = new BasicAttributes(true);
+      for (int i = 0; i < names.length; i++) {
+        addRange(attributes, i, 0);
+      }
+      return attributes;
+    }
+
+    @Override
+    public Attributes read(String[] attributeIds) throws NamingException {
+      requests.add(Arrays.asList(attributeIds));
+      Attributes attributes = new BasicAttributes(true);
+      for (String id : attributeIds) {
+        RangedAttributes.Range range = RangedAttributes.parse(id);
+        addRange(attributes, Arrays.asList(names).indexOf(range.name), range.low);
+      }
+      return attributes;
+    }
+
+    private void addRange(Attributes attributes, int index, int low) {
+      int high = Math.min(sizes[index], low + rangeSize) - 1;
+      boolean last = high == sizes[index] - 1;
+      String id = (low == 0 && last)
+          ? names[index] : names[index] + ";range=" + low + "-" + (last ? "*" : high);
+      BasicAttribute attribute = new BasicAttribute(id);
+      for (int i = low; i <= high; i++) {
+        attribute.add(names[index] + i);
+      }
+      attributes.put(attribute);
+    }
+  }
+
+  /** Adds the values of the first range, returning the ranges. */
+  private static List<RangedAttributes.Range> getRanges(Attributes attributes,
+      Multimap<String, String> values) throws NamingException {
+    List<RangedAttributes.Range> ranges = Lists.newArrayList();
+    NamingEnumeration<String> ids = attributes.getIDs();
+    while (ids.hasMore()) {
+      String id = ids.next();
+      RangedAttributes.Range range = RangedAttributes.parse(id);
+      String name = (range == null) ? id : range.name;
+      RangedAttributes.addValues(values, name, attributes.get(id));
+      if (range != null) {
+        ranges.add(range);
+      }
+    }
+    return ranges;
+  }
+
+  public void testReadRemaining() throws NamingException {
+    FakeReader reader =
+        new FakeReader(1500, new String[] { "member", "memberof", "cn" }, new int[] {
+            4000, 1600, 1 });
+    Multimap<String, String> values = ArrayListMultimap.create();
+    List<RangedAttributes.Range> ranges = getRanges(reader.first(), values);
+    assertEquals(2, ranges.size());
+    RangedAttributes.readRemaining(reader, values, ranges);
+
+    assertEquals(4000, values.get("member").size());
+    assertEquals(1600, values.get("memberof").size());
+    assertEquals(ImmutableList.of("cn0"), values.get("cn"));
+    assertEquals("member3999", ((List<String>) values.get("member")).get(3999));
+    // Both attributes are asked for together, until memberof is done.
+    assertEquals(2, reader.requests.size());
+    assertEquals(2, reader.requests.get(0).size());
+    assertEquals(ImmutableList.of("member;range=3000-*"), reader.requests.get(1));
+  }
+
+  public void testLastRangeOnly() throws NamingException {
+    Multimap<String, String> values = ArrayListMultimap.create();
+    RangedAttributes.readRemaining(new RangedAttributes.Reader() {
+      @Override
+      public Attributes read(String[] attributeIds) {
+        fail("Unexpected read");
+        return null;
+      }
+    }, values, ImmutableList.of(RangedAttributes.parse("member;range=0-*")));
+    assertTrue(values.isEmpty());
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ReplicaSelectorTest extends TestCase {
+  private static final List<String> ENDPOINTS = ImmutableList.of("a:389", "b:389", "c:389");
+
+  private static class FakeTicker extends Ticker {
+    long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long millis) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+  }
+
+  private FakeTicker ticker;
+  private ReplicaSelector selector;
+
+  @Override
+  protected void setUp() {
+    ticker = new FakeTicker();
+    selector = new ReplicaSelector(ticker);
+  }
+
+  public void testParseEndpoints() {
+    assertEquals(ImmutableList.of("a:389", "b:636", "[::1]:389", "[::1]:3268"),
+        ReplicaSelector.parseEndpoints(" a, b:636 [::1],[::1]:3268 ", 389));
+    assertEquals(ImmutableList.of("a"), ReplicaSelector.parseEndpoints("a", 0));
+    assertEquals(0, ReplicaSelector.parseEndpoints(null, 389).size());
+  }
+
+  public void testUnknownFirst() {
+    assertEquals(ENDPOINTS, selector.order(ENDPOINTS, -1));
+    selector.recordSuccess("a:389", 1000);
+    assertEquals(ImmutableList.of("b:389", "c:389", "a:389"), selector.order(ENDPOINTS, -1));
+  }
+
+  public void testFastestFirst() {
+    selector.recordSuccess("a:389", 3000);
+    selector.recordSuccess("b:389", 1000);
+    selector.recordSuccess("c:389", 2000);
+    assertEquals(ImmutableList.of("b:389", "c:389", "a:389"), selector.order(ENDPOINTS, -1));
+  }
+
+  public void testMovingAverage() {
+    selector.recordSuccess("a:389", 1000);
+    selector.recordSuccess("a:389", 2000);
+    assertEquals(1300, selector.getLatencyNanos("a:389"));
+    assertEquals(-1, selector.getLatencyNanos("b:389"));
+  }
+
+  public void testFailedLast() {
+    selector.recordSuccess("a:389", 1000);
+    selector.recordSuccess("b:389", 2000);
+    selector.recordSuccess("c:389", 3000);
+    selector.recordFailure("a:389");
+    assertEquals(ImmutableList.of("b:389", "c:389", "a:389"), selector.order(ENDPOINTS, -1));
+
+    ticker.advance(ReplicaSelector.MIN_BACKOFF_MILLIS);
+    assertEquals(ENDPOINTS, selector.order(ENDPOINTS, -1));
+  }
+
+  public void testBackoffGrows() {
+    selector.recordFailure("a:389");
+    selector.recordFailure("a:389");
+    ticker.advance(ReplicaSelector.MIN_BACKOFF_MILLIS);
+    assertEquals("a:389", selector.order(ENDPOINTS, -1).get(2));
+    ticker.advance(ReplicaSelector.MIN_BACKOFF_MILLIS);
+    assertEquals("a:389", selector.order(ENDPOINTS, -1).get(0));
+
+    for (int i = 0; i < 20; i++) {
+      selector.recordFailure("a:389");
+    }
+    ticker.advance(ReplicaSelector.MAX_BACKOFF_MILLIS);
+    assertEquals("a:389", selector.order(ENDPOINTS, -1).get(0));
+  }
+
+  public void testSuccessClearsFailures() {
+    selector.recordFailure("a:389");
+    selector.recordSuccess("a:389", 1000);
+    assertEquals(ImmutableList.of("b:389", "c:389", "a:389"), selector.order(ENDPOINTS, -1));
+  }
+
+  public void testPreferred() {
+    assertEquals("a:389", selector.order(ENDPOINTS, 0).get(0));
+    assertEquals("b:389", selector.order(ENDPOINTS, 1).get(0));
+    assertEquals("c:389", selector.order(ENDPOINTS, 2).get(0));
+    assertEquals("a:389", selector.order(ENDPOINTS, 3).get(0));
+
+    // Failed replicas are not preferred.
+    selector.recordFailure("b:389");
+    assertEquals(ImmutableList.of("c:389", "a:389", "b:389"), selector.order(ENDPOINTS, 1));
+  }
+
+  public void testTiers() {
+    List<List<String>> tiers = ImmutableList.<List<String>>of(
+        ImmutableList.of("a:389", "b:389"), ImmutableList.of("c:389"));
+    selector.recordSuccess("a:389", 3000);
+    selector.recordSuccess("b:389", 2000);
+    selector.recordSuccess("c:389", 1000);
+    // The faster replica in a later tier is still tried last.
+    assertEquals(ImmutableList.of("b:389", "a:389", "c:389"), selector.orderTiers(tiers, -1));
+    assertEquals(ImmutableList.of("a:389", "b:389", "c:389"), selector.orderTiers(tiers, 1));
+
+    selector.recordFailure("a:389");
+    selector.recordFailure("b:389");
+    assertEquals(ImmutableList.of("c:389", "a:389", "b:389"), selector.orderTiers(tiers, 1));
+  }
+}
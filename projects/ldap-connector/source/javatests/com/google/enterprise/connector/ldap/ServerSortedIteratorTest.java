@@ -0,0 +1,155 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+public class ServerSortedIteratorTest extends EntryTestCase {
+
+  /** A search returning the given keys, in the given order. */
+  private static class FakeSearch
+      extends AbstractIterator<Entry<String, Multimap<String, String>>>
+      implements EntrySearch {
+    private final Iterator<String> keys;
+    private int count = 0;
+    private int read = 0;
+    private boolean closed = false;
+
+    FakeSearch(String... keys) {
+      this.keys = ImmutableList.copyOf(keys).iterator();
+    }
+
+    @Override
+    protected Entry<String, Multimap<String, String>> computeNext() {
+      if (!keys.hasNext()) {
+        return endOfData();
+      }
+      read++;
+      String key = keys.next();
+      Multimap<String, String> entry = ImmutableMultimap.of("cn", key, "n", "" + count++);
+      return Maps.immutableEntry(key, entry);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private int outOfOrder = 0;
+
+  private ServerSortedIterator iterate(EntrySearch search, int checkSize) {
+    return new ServerSortedIterator(search, checkSize,
+        new Supplier<ExternalEntrySorter>() {
+          @Override
+          public ExternalEntrySorter get() {
+            return new ExternalEntrySorter(directory, 2);
+          }
+        },
+        new ServerSortedIterator.Listener() {
+          @Override
+          public void outOfOrder() {
+            outOfOrder++;
+          }
+        });
+  }
+
+  /** Returns the keys, each with the index of the result that was kept. */
+  private static List<String> keys(Iterator<Entry<String, Multimap<String, String>>> entries) {
+    List<String> keys = Lists.newArrayList();
+    while (entries.hasNext()) {
+      Entry<String, Multimap<String, String>> entry = entries.next();
+      keys.add(entry.getKey() + entry.getValue().get("n").iterator().next());
+    }
+    return keys;
+  }
+
+  public void testInOrder() {
+    FakeSearch search = new FakeSearch("a", "b", "c", "d", "e");
+    assertEquals(ImmutableList.of("a0", "b1", "c2", "d3", "e4"), keys(iterate(search, 2)));
+    assertEquals(0, outOfOrder);
+  }
+
+  public void testLaterDuplicateWins() {
+    FakeSearch search = new FakeSearch("a", "b", "b", "c", "d", "d", "d", "e");
+    assertEquals(ImmutableList.of("a0", "b2", "c3", "d6", "e7"), keys(iterate(search, 2)));
+    assertEquals(0, outOfOrder);
+  }
+
+  public void testDuplicateAcrossFirstPage() {
+    FakeSearch search = new FakeSearch("a", "b", "b", "c");
+    assertEquals(ImmutableList.of("a0", "b2", "c3"), keys(iterate(search, 2)));
+  }
+
+  public void testStreamsAfterFirstPage() {
+    FakeSearch search = new FakeSearch("a", "b", "c", "d", "e");
+    Iterator<Entry<String, Multimap<String, String>>> iterator = iterate(search, 2);
+    assertEquals("a", iterator.next().getKey());
+    // The first page, and one more to see that its last key does not repeat.
+    assertEquals(3, search.read);
+  }
+
+  public void testOutOfOrderInFirstPage() {
+    // Case-sensitive ordering differs from the server's case-insensitive one.
+    FakeSearch search = new FakeSearch("a", "B", "c", "D", "e", "F");
+    assertEquals(ImmutableList.of("B1", "D3", "F5", "a0", "c2", "e4"),
+        keys(iterate(search, 4)));
+    assertEquals(1, outOfOrder);
+  }
+
+  public void testOutOfOrderAfterFirstPage() {
+    FakeSearch search = new FakeSearch("a", "b", "c", "f", "d", "g", "e", "e");
+    // The results after "f" are sorted and returned after it.
+    assertEquals(ImmutableList.of("a0", "b1", "c2", "f3", "d4", "e7", "g5"),
+        keys(iterate(search, 2)));
+    assertEquals(1, outOfOrder);
+  }
+
+  public void testEmpty() {
+    assertFalse(iterate(new FakeSearch(), 2).hasNext());
+    assertEquals(0, outOfOrder);
+  }
+
+  public void testErrorClosesSearch() {
+    FakeSearch search = new FakeSearch("b", "a", "c") {
+      @Override
+      protected Entry<String, Multimap<String, String>> computeNext() {
+        Entry<String, Multimap<String, String>> entry = super.computeNext();
+        if (entry != null && entry.getKey().equals("c")) {
+          throw new IllegalStateException("lost connection");
+        }
+        return entry;
+      }
+    };
+    try {
+      iterate(search, 2).hasNext();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      assertEquals("lost connection", expected.getMessage());
+    }
+    assertTrue(search.closed);
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+public class SrvLocatorTest extends TestCase {
+  private static class FakeTicker extends Ticker {
+    long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  /** A resolver that returns canned records, or fails. */
+  private static class StubResolver implements SrvLocator.Resolver {
+    List<SrvLocator.Record> records = Lists.newArrayList();
+    boolean fail = false;
+    int lookups = 0;
+    String lastName;
+
+    @Override
+    public List<SrvLocator.Record> resolve(String name) throws NamingException {
+      lookups++;
+      lastName = name;
+      if (fail) {
+        throw new ServiceUnavailableException("stub failure");
+      }
+      return records;
+    }
+  }
+
+  private FakeTicker ticker;
+  private StubResolver resolver;
+  private SrvLocator locator;
+
+  @Override
+  protected void setUp() {
+    ticker = new FakeTicker();
+    resolver = new StubResolver();
+    locator = new SrvLocator(resolver, ticker);
+  }
+
+  public void testTiers() {
+    resolver.records.add(new SrvLocator.Record(10, 50, 389, "dc3.example.com", 600));
+    resolver.records.add(new SrvLocator.Record(0, 10, 389, "dc1.example.com", 600));
+    resolver.records.add(new SrvLocator.Record(0, 100, 3268, "dc2.example.com", 600));
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("dc2.example.com:3268", "dc1.example.com:389"),
+        ImmutableList.of("dc3.example.com:389")),
+        locator.locate("example.com", 0));
+    assertEquals("_ldap._tcp.example.com", resolver.lastName);
+  }
+
+  public void testPortOverride() {
+    resolver.records.add(new SrvLocator.Record(0, 100, 389, "dc1.example.com", 600));
+    assertEquals(ImmutableList.of(ImmutableList.of("dc1.example.com:636")),
+        locator.locate("example.com", 636));
+  }
+
+  public void testCachedForTtl() {
+    resolver.records.add(new SrvLocator.Record(0, 100, 389, "dc1.example.com", 300));
+    resolver.records.add(new SrvLocator.Record(0, 100, 389, "dc2.example.com", 600));
+    locator.locate("example.com", 0);
+    ticker.advance(299);
+    locator.locate("EXAMPLE.com", 0);
+    assertEquals(1, resolver.lookups);
+    ticker.advance(1);
+    locator.locate("example.com", 0);
+    assertEquals(2, resolver.lookups);
+  }
+
+  public void testFailureKeepsPreviousServers() {
+    resolver.records.add(new SrvLocator.Record(0, 100, 389, "dc1.example.com", 60));
+    List<List<String>> tiers = locator.locate("example.com", 0);
+    ticker.advance(60);
+    resolver.fail = true;
+    assertEquals(tiers, locator.locate("example.com", 0));
+    assertEquals(2, resolver.lookups);
+
+    // Failures are not retried at once.
+    locator.locate("example.com", 0);
+    assertEquals(2, resolver.lookups);
+    ticker.advance(SrvLocator.FAILURE_TTL_SECONDS);
+    resolver.fail = false;
+    resolver.records.clear();
+    resolver.records.add(new SrvLocator.Record(0, 100, 389, "dc9.example.com", 60));
+    assertEquals(ImmutableList.of(ImmutableList.of("dc9.example.com:389")),
+        locator.locate("example.com", 0));
+  }
+
+  public void testNoRecords() {
+    assertEquals(0, locator.locate("example.com", 0).size());
+    resolver.fail = true;
+    assertEquals(0, locator.locate("example.org", 0).size());
+  }
+
+  public void testParse() {
+    SrvLocator.Record record = SrvLocator.parse("0 100 389 dc1.example.com.");
+    assertEquals(0, record.getPriority());
+    assertEquals(100, record.getWeight());
+    assertEquals(389, record.getPort());
+    assertEquals("dc1.example.com", record.getTarget());
+    assertEquals(SrvLocator.DEFAULT_TTL_SECONDS, record.getTtlSeconds());
+    assertNull(SrvLocator.parse("0 0 0 ."));
+    assertNull(SrvLocator.parse("0 100 dc1.example.com."));
+    assertNull(SrvLocator.parse("x 100 389 dc1.example.com."));
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+
+public class SyncReplChangeSourceTest extends TestCase {
+  private static final byte[] UUID = new byte[16];
+  private static final byte[] COOKIE = { 'r', 'i', 'd' };
+  private static final byte[] NEW_COOKIE = { 'c', 's', 'n' };
+
+  private FakeLdapDirectory directory;
+  private SyncReplChangeSource source;
+
+  @Override
+  protected void setUp() {
+    directory = new FakeLdapDirectory();
+    source = new SyncReplChangeSource(directory);
+  }
+
+  private static String position(byte[] cookie) {
+    return "syncrepl:" + Ber.toHex(cookie);
+  }
+
+  private static SearchResult result(String cn, int state) throws NamingException {
+    return FakeLdapDirectory.result("cn=" + cn + "," + FakeLdapDirectory.BASE,
+        FakeLdapDirectory.control(SyncRequestControl.STATE_OID,
+            Ber.sequence(Ber.enumerated(state), Ber.octetString(UUID))));
+  }
+
+  private static Control done(byte[] cookie, boolean refreshDeletes) {
+    byte[] value = (cookie == null)
+        ? Ber.sequence(Ber.bool(refreshDeletes))
+        : Ber.sequence(Ber.octetString(cookie), Ber.bool(refreshDeletes));
+    return FakeLdapDirectory.control(SyncRequestControl.DONE_OID, value);
+  }
+
+  /** Checks that the last search asked for the changes since a cookie. */
+  private void checkRequest(byte[] cookie) {
+    FakeLdapDirectory.Search search = directory.searches.get(directory.searches.size() - 1);
+    assertEquals(1, search.requestControls.length);
+    Control request = search.requestControls[0];
+    assertEquals(SyncRequestControl.OID, request.getID());
+    assertTrue(Arrays.equals(SyncRequestControl.encode(SyncRequestControl.REFRESH_ONLY, cookie),
+        request.getEncodedValue()));
+    assertEquals(0, directory.getOpenConnections());
+  }
+
+  public void testGetPosition() {
+    directory.respond(ImmutableList.<SearchResult>of(), done(COOKIE, false));
+    assertEquals(position(COOKIE), source.getPosition());
+    checkRequest(null);
+    assertEquals(ImmutableList.of("1.1"), Arrays.asList(
+        directory.searches.get(0).controls.getReturningAttributes()));
+  }
+
+  public void testGetPositionWithoutCookie() {
+    directory.respond(ImmutableList.<SearchResult>of(), done(null, false));
+    assertNull(source.getPosition());
+  }
+
+  public void testGetPositionWithoutConnection() {
+    assertNull(source.getPosition());
+  }
+
+  public void testChanges() throws NamingException {
+    directory.respond(ImmutableList.of(
+        result("Alice", SyncRequestControl.State.ADD),
+        result("Bob", SyncRequestControl.State.MODIFY),
+        result("Carol", SyncRequestControl.State.DELETE)),
+        done(NEW_COOKIE, true));
+    ChangeSet changes = source.getChanges(position(COOKIE), 10);
+    checkRequest(COOKIE);
+    assertEquals(position(NEW_COOKIE), changes.getPosition());
+    assertEquals(ImmutableSet.of("Alice", "Bob"), changes.getChanged().keySet());
+    assertEquals(ImmutableSet.of("cn=alice," + FakeLdapDirectory.BASE,
+        "cn=bob," + FakeLdapDirectory.BASE, "cn=carol," + FakeLdapDirectory.BASE),
+        changes.getRemovedDns());
+  }
+
+  public void testChangedEntryWithoutKey() throws NamingException {
+    // An entry without a schemaKey value is dropped, as in a full traversal.
+    directory.respond(ImmutableList.of(
+        FakeLdapDirectory.result("uid=dave," + FakeLdapDirectory.BASE,
+            FakeLdapDirectory.control(SyncRequestControl.STATE_OID,
+                Ber.sequence(Ber.enumerated(SyncRequestControl.State.MODIFY),
+                    Ber.octetString(UUID))))),
+        done(NEW_COOKIE, true));
+    ChangeSet changes = source.getChanges(position(COOKIE), 10);
+    assertTrue(changes.getChanged().isEmpty());
+    assertEquals(ImmutableSet.of("uid=dave," + FakeLdapDirectory.BASE), changes.getRemovedDns());
+  }
+
+  public void testDoneWithoutCookie() throws NamingException {
+    // Nothing has changed, so the server may keep the old cookie.
+    directory.respond(ImmutableList.<SearchResult>of(), done(null, true));
+    ChangeSet changes = source.getChanges(position(COOKIE), 10);
+    assertEquals(position(COOKIE), changes.getPosition());
+    assertEquals(0, changes.size());
+  }
+
+  public void testPresentState() throws NamingException {
+    directory.respond(ImmutableList.of(
+        result("Alice", SyncRequestControl.State.ADD),
+        result("Bob", SyncRequestControl.State.PRESENT)),
+        done(NEW_COOKIE, false));
+    assertNull(source.getChanges(position(COOKIE), 10));
+    assertEquals(0, directory.getOpenConnections());
+  }
+
+  public void testNoRefreshDeletes() throws NamingException {
+    // The deletions are implied, so a full traversal is needed.
+    directory.respond(ImmutableList.of(result("Alice", SyncRequestControl.State.MODIFY)),
+        done(NEW_COOKIE, false));
+    assertNull(source.getChanges(position(COOKIE), 10));
+  }
+
+  public void testMissingState() throws NamingException {
+    directory.respond(ImmutableList.of(
+        FakeLdapDirectory.result("cn=Alice," + FakeLdapDirectory.BASE)),
+        done(NEW_COOKIE, true));
+    assertNull(source.getChanges(position(COOKIE), 10));
+  }
+
+  public void testMissingDone() throws NamingException {
+    directory.respond(ImmutableList.of(result("Alice", SyncRequestControl.State.MODIFY)));
+    assertNull(source.getChanges(position(COOKIE), 10));
+  }
+
+  public void testTooManyChanges() throws NamingException {
+    directory.respond(ImmutableList.of(
+        result("Alice", SyncRequestControl.State.ADD),
+        result("Bob", SyncRequestControl.State.DELETE)),
+        done(NEW_COOKIE, true));
+    assertNull(source.getChanges(position(COOKIE), 1));
+    assertEquals(0, directory.getOpenConnections());
+  }
+
+  public void testOtherPosition() {
+    assertNull(source.getChanges("dirsync:0102", 10));
+    assertNull(source.getChanges("syncrepl:xyz", 10));
+    assertTrue(directory.searches.isEmpty());
+  }
+}
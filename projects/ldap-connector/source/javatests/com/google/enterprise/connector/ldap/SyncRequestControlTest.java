@@ -0,0 +1,67 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SyncRequestControlTest extends TestCase {
+
+  public void testRequest() {
+    SyncRequestControl control = new SyncRequestControl(SyncRequestControl.REFRESH_ONLY, null);
+    assertEquals(SyncRequestControl.OID, control.getID());
+    assertTrue(control.isCritical());
+    assertEquals("3003" + "0a0101", Ber.toHex(control.getEncodedValue()));
+
+    control = new SyncRequestControl(SyncRequestControl.REFRESH_ONLY, new byte[] { 'r', 'i' });
+    assertEquals("3007" + "0a0101" + "0402" + "7269", Ber.toHex(control.getEncodedValue()));
+  }
+
+  public void testState() throws IOException {
+    byte[] uuid = new byte[16];
+    uuid[15] = 1;
+    SyncRequestControl.State state = SyncRequestControl.State.decode(
+        Ber.sequence(Ber.enumerated(SyncRequestControl.State.DELETE), Ber.octetString(uuid)));
+    assertEquals(SyncRequestControl.State.DELETE, state.getState());
+    assertTrue(Arrays.equals(uuid, state.getEntryUuid()));
+    assertNull(state.getCookie());
+
+    byte[] cookie = { 'c' };
+    state = SyncRequestControl.State.decode(Ber.sequence(
+        Ber.enumerated(SyncRequestControl.State.ADD), Ber.octetString(uuid),
+        Ber.octetString(cookie)));
+    assertEquals(SyncRequestControl.State.ADD, state.getState());
+    assertTrue(Arrays.equals(cookie, state.getCookie()));
+  }
+
+  public void testDone() throws IOException {
+    byte[] cookie = { 'c', 's', 'n' };
+    SyncRequestControl.Done done = SyncRequestControl.Done.decode(
+        Ber.sequence(Ber.octetString(cookie), Ber.bool(true)));
+    assertTrue(Arrays.equals(cookie, done.getCookie()));
+    assertTrue(done.getRefreshDeletes());
+
+    // Both elements are optional.
+    done = SyncRequestControl.Done.decode(Ber.sequence());
+    assertNull(done.getCookie());
+    assertFalse(done.getRefreshDeletes());
+
+    done = SyncRequestControl.Done.decode(Ber.sequence(Ber.bool(true)));
+    assertNull(done.getCookie());
+    assertTrue(done.getRefreshDeletes());
+  }
+}
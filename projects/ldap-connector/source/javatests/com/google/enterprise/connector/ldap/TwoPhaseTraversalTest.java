@@ -0,0 +1,158 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+public class TwoPhaseTraversalTest extends EntryTestCase {
+
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  /** The change token of each entry. */
+  private final Map<String, String> tokens = Maps.newHashMap();
+  private final List<String> fetched = Lists.newArrayList();
+
+  private final TwoPhaseTraversal.Fetcher fetcher = new TwoPhaseTraversal.Fetcher() {
+    @Override
+    public List<Entry<String, Multimap<String, String>>> fetch(List<String> names) {
+      List<Entry<String, Multimap<String, String>>> result = Lists.newArrayList();
+      for (String name : names) {
+        fetched.add(name);
+        String key = name.substring("cn=".length(), name.indexOf(','));
+        if (entries.containsKey(key)) {
+          result.add(Maps.immutableEntry(key, entries.get(key)));
+        }
+      }
+      return result;
+    }
+  };
+
+  private void addEntry(String name, String value, String token) {
+    addEntry(name, value);
+    tokens.put(name, token);
+  }
+
+  /** Returns the scanned entries, as the first phase reads them. */
+  private Iterator<Entry<String, Multimap<String, String>>> scan() {
+    List<Entry<String, Multimap<String, String>>> scan = Lists.newArrayList();
+    for (String name : entries.keySet()) {
+      Multimap<String, String> scanned = ArrayListMultimap.create();
+      scanned.put(LdapHandler.DN_ATTRIBUTE, getDn(name));
+      scanned.put(TwoPhaseTraversal.NAME_ATTRIBUTE, getDn(name));
+      if (tokens.get(name) != null) {
+        scanned.put(TwoPhaseTraversal.TOKEN_ATTRIBUTE, tokens.get(name));
+      }
+      scan.add(Maps.immutableEntry(name, scanned));
+    }
+    return scan.iterator();
+  }
+
+  private void assertEntries(List<Entry<String, Multimap<String, String>>> actual) {
+    assertEquals(Lists.newArrayList(entries.entrySet()), actual);
+  }
+
+  private List<Entry<String, Multimap<String, String>>> traverse(TwoPhaseTraversal traversal) {
+    fetched.clear();
+    return Lists.newArrayList(traversal.traverse(scan(), full, fetcher));
+  }
+
+  public void testChanges() {
+    addEntry("alice", "1", "t1");
+    addEntry("bob", "1", "t1");
+    addEntry("carol", "1", "t1");
+    TwoPhaseTraversal traversal = new TwoPhaseTraversal(directory, "config", DAY, 2);
+
+    // The first traversal is a full one.
+    assertEntries(traverse(traversal));
+    assertEquals(1, fullTraversals);
+    assertEquals(0, fetched.size());
+
+    // Nothing has changed.
+    assertEntries(traverse(traversal));
+    assertEquals(1, fullTraversals);
+    assertEquals(0, fetched.size());
+
+    // Bob changes, Carol is deleted, and Dave is added.
+    addEntry("bob", "2", "t2");
+    entries.remove("carol");
+    addEntry("dave", "1", "t1");
+    assertEntries(traverse(traversal));
+    assertEquals(1, fullTraversals);
+    assertEquals(Lists.newArrayList(getDn("bob"), getDn("dave")), fetched);
+
+    // The new tokens were saved.
+    assertEntries(traverse(traversal));
+    assertEquals(0, fetched.size());
+  }
+
+  public void testMissingToken() {
+    addEntry("alice", "1", null);
+    TwoPhaseTraversal traversal = new TwoPhaseTraversal(directory, "config", DAY, 10);
+    traverse(traversal);
+    assertEntries(traverse(traversal));
+    assertEquals(Lists.newArrayList(getDn("alice")), fetched);
+  }
+
+  /** An entry that goes between the phases is left out. */
+  public void testDeletedBetweenPhases() {
+    addEntry("alice", "1", "t1");
+    addEntry("bob", "1", "t1");
+    TwoPhaseTraversal traversal = new TwoPhaseTraversal(directory, "config", DAY, 10);
+    traverse(traversal);
+    tokens.put("bob", "t2");
+    Iterator<Entry<String, Multimap<String, String>>> scan = scan();
+    entries.remove("bob");
+    List<Entry<String, Multimap<String, String>>> results =
+        Lists.newArrayList(traversal.traverse(scan, full, fetcher));
+    assertEntries(results);
+  }
+
+  public void testConfigurationChanged() {
+    addEntry("alice", "1", "t1");
+    traverse(new TwoPhaseTraversal(directory, "config", DAY, 10));
+    traverse(new TwoPhaseTraversal(directory, "other config", DAY, 10));
+    assertEquals(2, fullTraversals);
+  }
+
+  public void testReconciliation() {
+    addEntry("alice", "1", "t1");
+    traverse(new TwoPhaseTraversal(directory, "config", 0, 10));
+    traverse(new TwoPhaseTraversal(directory, "config", 0, 10));
+    assertEquals(2, fullTraversals);
+  }
+
+  /** Nothing is saved until all of the results have been read. */
+  public void testIncompleteTraversal() {
+    addEntry("alice", "1", "t1");
+    addEntry("bob", "1", "t1");
+    TwoPhaseTraversal traversal = new TwoPhaseTraversal(directory, "config", DAY, 10);
+    Iterator<Entry<String, Multimap<String, String>>> results =
+        traversal.traverse(scan(), full, fetcher);
+    results.next();
+    assertFalse(new File(directory, TwoPhaseTraversal.STATE_FILE).exists());
+    traverse(traversal);
+    assertEquals(2, fullTraversals);
+    assertTrue(new File(directory, TwoPhaseTraversal.STATE_FILE).exists());
+  }
+}
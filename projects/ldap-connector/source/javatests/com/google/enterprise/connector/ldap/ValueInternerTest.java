@@ -0,0 +1,108 @@
+// Copyright 2011 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.ldap;
+
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+public class ValueInternerTest extends TestCase {
+
+  public void testSharesRepeatedValues() {
+    ValueInterner interner = new ValueInterner(100, ImmutableSet.of("objectclass"));
+    String first = interner.intern("objectclass", new String("person"));
+    String second = interner.intern("objectclass", new String("person"));
+    assertSame(first, second);
+    assertEquals("person", second);
+    assertEquals(2, interner.getLookups());
+    assertEquals(1, interner.getHits());
+    assertEquals(0.5, interner.getHitRate(), 0.0001);
+    assertEquals(1, interner.size());
+    assertTrue(interner.getSavedBytes() > 0);
+  }
+
+  public void testDisabled() {
+    ValueInterner interner = new ValueInterner(0, ImmutableSet.of("objectclass"));
+    String value = new String("person");
+    interner.intern("objectclass", "person");
+    assertSame(value, interner.intern("objectclass", value));
+    assertEquals(0, interner.getLookups());
+    assertEquals(0.0, interner.getHitRate());
+  }
+
+  public void testBounded() {
+    ValueInterner interner = new ValueInterner(10, ImmutableSet.of("cn"));
+    for (int i = 0; i < 100; i++) {
+      interner.intern("cn", "value" + i);
+    }
+    assertEquals(10, interner.size());
+    String value = new String("value50");
+    assertSame(value, interner.intern("cn", value));
+    assertNotSame(value, interner.intern("cn", new String("value5")));
+  }
+
+  public void testHighCardinality() {
+    ValueInterner interner = new ValueInterner(100000, null);
+    for (int i = 0; i < ValueInterner.SAMPLE_SIZE; i++) {
+      interner.intern("mail", "user" + i + "@example.com");
+      interner.intern("department", "department" + (i % 10));
+    }
+    assertFalse(interner.isInterning("mail"));
+    assertTrue(interner.isInterning("department"));
+    String value = new String("user1@example.com");
+    assertSame(value, interner.intern("mail", value));
+    // Only the values of the attribute that passed its sample are held.
+    assertEquals(10, interner.size());
+  }
+
+  public void testSampledValuesShared() {
+    ValueInterner interner = new ValueInterner(100, null);
+    String first = interner.intern("objectclass", new String("person"));
+    assertSame(first, interner.intern("objectclass", new String("person")));
+    assertEquals(1, interner.getHits());
+    assertEquals(0, interner.size());
+  }
+
+  public void testHighCardinalityTakesNoRoom() {
+    ValueInterner interner = new ValueInterner(100, null);
+    for (int i = 0; i < ValueInterner.SAMPLE_SIZE; i++) {
+      interner.intern("mail", "user" + i + "@example.com");
+      interner.intern("employeeid", Integer.toString(i));
+    }
+    assertEquals(0, interner.size());
+    for (int i = 0; i < ValueInterner.SAMPLE_SIZE; i++) {
+      interner.intern("department", "department" + (i % 10));
+    }
+    assertEquals(10, interner.size());
+    String value = new String("department5");
+    assertNotSame(value, interner.intern("department", value));
+  }
+
+  public void testAlwaysInterned() {
+    ValueInterner interner = new ValueInterner(100000, ImmutableSet.of("manager"));
+    for (int i = 0; i < 2 * ValueInterner.SAMPLE_SIZE; i++) {
+      interner.intern("manager", "cn=manager" + i);
+    }
+    assertTrue(interner.isInterning("manager"));
+    assertEquals(2 * ValueInterner.SAMPLE_SIZE, interner.size());
+  }
+
+  public void testToString() {
+    ValueInterner interner = new ValueInterner(100, null);
+    interner.intern("l", "Mountain View");
+    interner.intern("l", "Mountain View");
+    assertTrue(interner.toString(), interner.toString().startsWith("1 of 2 attribute values"));
+  }
+}